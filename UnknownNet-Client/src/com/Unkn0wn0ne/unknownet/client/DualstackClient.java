@@ -17,6 +17,8 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
 
 import javax.net.SocketFactory;
@@ -28,12 +30,17 @@ import com.Unkn0wn0ne.unknownet.client.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket5Hello;
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
 import com.Unkn0wn0ne.unknownet.client.net.Packet.PACKET_PROTOCOL;
+import com.Unkn0wn0ne.unknownet.client.util.FrameAssembler;
 
 class DualstackClient extends UDPClient{
 	
+	// How long a framed read waits for data before checking whether the server has timed out
+	private static final int FRAMED_READ_TIMEOUT = 1000;
+	
 	private Socket socket;
 	private DataInputStream diStream;
 	private DataOutputStream doStream;
+	private boolean framing = false;
 	
 	public DualstackClient(UnknownClient client) {
 		super(client);
@@ -53,6 +60,7 @@ class DualstackClient extends UDPClient{
 		    doStream = new DataOutputStream(this.socket.getOutputStream());
 			InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake) this.uClient.clientRepository.getPacket(-2);
 			handshakePacket.setVariables(this.uClient.protocolVersion, (this.uClient.loginParams != null) ? true : false, this.uClient.loginParams);
+			handshakePacket.setRequestedFlags(this.uClient.getHandshakeFlags(true, true));
 			handshakePacket._write(doStream);
 			diStream.readInt();
 			handshakePacket.read(diStream);
@@ -70,6 +78,11 @@ class DualstackClient extends UDPClient{
 				return false;	
 		    }
 			this.uClient.uid = diStream.readInt();
+			this.uClient.sessionToken = diStream.readInt();
+			this.framing = (handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_LENGTH_FRAMING) != 0;
+			this.uClient.binaryObjects = (handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_BINARY_OBJECTS) != 0;
+			this.uClient.acceptWireFormat(handshakePacket.getAcceptedFlags());
+			this.uClient.acceptDatagramFlags(handshakePacket.getAcceptedFlags());
 		}catch (UnknownHostException uhe) {
 			uhe.printStackTrace();
 			this.uClient.onConnectionFailed("An UnknownHostException has ocurred. Message: " + uhe.getMessage());
@@ -84,25 +97,25 @@ class DualstackClient extends UDPClient{
 		
 		this.uClient.lastReceivedKeepAlive = System.currentTimeMillis();
 		
-		new Thread(new Runnable() {
+		this.uClient.startThread(new Runnable() {
 			@Override
 			public void run() {
 				DualstackClient.this.doReadLoop();
 			}
-		}).start();
+		}, "UnknownNet-Client-Reader");
 		
 		return true;
 	}
 
 	@Override
 	public void handleConnection() {
-		new Thread(new Runnable() {
+		this.uClient.startThread(new Runnable() {
 			@Override
 			public void run() {
 				DualstackClient.this.doUDPReadLoop();
 			}
 			
-		}).start();
+		}, "UnknownNet-Client-UDP-Reader");
 		
 		InternalPacket5Hello hello = null;
 		try {
@@ -121,18 +134,13 @@ class DualstackClient extends UDPClient{
 		
 		
 		while (true) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-
-			}
+			this.uClient.awaitQueuedPacket(this.getReliableWait(25));
 			
-			this.udpWriter.reset();
 			while (!this.uClient.highsToBeSent.isEmpty()) {
 				Packet p2 = this.uClient.highsToBeSent.poll();
-				if (p2.getProtocol() == PACKET_PROTOCOL.TCP) {
+				if (this.isSentOverTCP(p2)) {
 					try {
-						p2._write(doStream);
+						this.writeTCP(p2);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
@@ -144,9 +152,9 @@ class DualstackClient extends UDPClient{
 			
 			while (!this.uClient.internalsToBeSent.isEmpty()) {
 				Packet p2 = this.uClient.internalsToBeSent.poll();
-				if (p2.getProtocol() == PACKET_PROTOCOL.TCP) {
+				if (this.isSentOverTCP(p2)) {
 					try {
-						p2._write(doStream);
+						this.writeTCP(p2);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
@@ -158,9 +166,9 @@ class DualstackClient extends UDPClient{
 			
 			while (!this.uClient.lowsToBeSent.isEmpty()) {
 				Packet p2 = this.uClient.lowsToBeSent.poll();
-				if (p2.getProtocol() == PACKET_PROTOCOL.TCP) {
+				if (this.isSentOverTCP(p2)) {
 					try {
-						p2._write(doStream);
+						this.writeTCP(p2);
 					} catch (IOException e) {
 						e.printStackTrace();
 					}
@@ -169,6 +177,10 @@ class DualstackClient extends UDPClient{
 				}
 				this.uClient.clientRepository.freePacket(p2);
 			}
+			
+			if (!this.updateReliableChannel()) {
+				return;
+			}
 		}
 	  }
 	
@@ -177,10 +189,15 @@ class DualstackClient extends UDPClient{
 	 * This loop runs in a separate thread and handles reading the packet ids from the stream and than calling handlePacketReceive
 	 */
 	protected void doReadLoop() {
+		if (this.framing) {
+			this.doFramedReadLoop();
+			return;
+		}
+		
 		while (!this.socket.isClosed()) {
 			try {
 				if (this.diStream.available() > 0) {
-					int id = this.diStream.readInt();
+					int id = this.uClient.wireFormat.readId(this.diStream);
 					this.uClient.handlePacketReceive(id, this.diStream);
 				}
 			} catch (IOException e) {
@@ -210,15 +227,67 @@ class DualstackClient extends UDPClient{
 		}
 	}
 	
+	/**
+	 * Internal method
+	 * Reads a framed TCP stream as soon as data arrives and handles every complete packet at once, instead of polling for one packet at a time
+	 */
+	protected void doFramedReadLoop() {
+		FrameAssembler assembler = new FrameAssembler(UnknownClient.MAX_FRAME_SIZE, this.uClient.wireFormat);
+		try {
+			this.socket.setSoTimeout(FRAMED_READ_TIMEOUT);
+		} catch (SocketException e) {
+			this.uClient.logger.warning("Internal/DualStackClient: Failed to set read timeout, server timeouts may not be detected.");
+		}
+		
+		while (!this.socket.isClosed()) {
+			try {
+				if (assembler.read(this.diStream) == -1) {
+					this.uClient.logger.info("Internal/DualStackClient: Server has closed the connection.");
+					return;
+				}
+				this.uClient.handleFrames(assembler);
+			} catch (SocketTimeoutException e) {
+				// Nothing arrived, check for a timeout below
+			} catch (IOException e) {
+				if (this.socket.isClosed()) {
+					return;
+				}
+				this.uClient.logger.severe("Internal/DualStackClient: IOException occurred while reading from TCP stream, disconnecting...");
+				e.printStackTrace();
+				this.uClient.shouldDisconnect = true;
+				this.uClient.onClientKicked("IOException has occurred while reading from TCP stream.");
+				return;
+			} catch (ProtocolViolationException e) {
+				this.uClient.logger.severe("Internal/DualStackClient: ProtocolViolationException occurred while reading from TCP stream, disconnecting...");
+				e.printStackTrace();
+				this.uClient.shouldDisconnect = true;
+				this.uClient.onClientKicked("A ProtocolViolationException has occurred while reading from TCP stream.");
+				return;
+			}
+			
+			if (System.currentTimeMillis() - this.uClient.lastReceivedKeepAlive > 300000) {
+				this.uClient.leaveServer("Client timed out.");
+				return;
+			}
+		}
+	}
+	
+	private void writeTCP(Packet p) throws IOException {
+		if (this.framing) {
+			this.uClient.writeFrame(p, this.doStream);
+		} else {
+			this.uClient.wireFormat.writePacket(p, this.doStream);
+		}
+	}
+	
+	private boolean isSentOverTCP(Packet p) {
+		// Packets that must arrive fall back to TCP if the server did not agree to acknowledge them over UDP
+		return p.getProtocol() == PACKET_PROTOCOL.TCP || (this.uClient.reliableChannel == null && isReliable(p));
+	}
+	
 	private void sendUdp(Packet p) {
 		try {
-			this.dataOutputStream.writeInt(this.uClient.uid);
-			p._write(this.dataOutputStream);
-			this.dataOutputStream.flush();
-			this.dPacket.setData(this.udpWriter.toByteArray());
-			this.dPacket.setLength(this.dPacket.getData().length);
-			this.dSocket.send(this.dPacket);
-			this.udpWriter.reset();
+			this.sendPacket(p);
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
@@ -227,16 +296,9 @@ class DualstackClient extends UDPClient{
 
 	protected void doUDPReadLoop() {
 		while (!this.uClient.shouldDisconnect ) {
+			// Blocks in receive until a datagram arrives
 			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				
-			}
-			
-			try {
-				this.closeAndLoad();
-				int id = this.dataInputStream.readInt();
-				this.uClient.handlePacketReceive(id, this.dataInputStream);
+				this.receiveDatagram();
 			} catch (IOException e) {
 				this.uClient.logger.severe("Internal/DualStackClient: IOException occurred while reading from UDP stream, disconnecting...");
 				e.printStackTrace();
@@ -17,18 +17,25 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
 
 import com.Unkn0wn0ne.unknownet.client.errors.ProtocolViolationException;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket1Kick;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
+import com.Unkn0wn0ne.unknownet.client.util.FrameAssembler;
 
 class TCPClient implements IClientImplementation {
 
+	// How long a framed read waits for data before checking whether the server has timed out
+	private static final int FRAMED_READ_TIMEOUT = 1000;
+	
 	private UnknownClient uClient;
 	private Socket socket;
 	private DataInputStream dataInputStream;
 	private DataOutputStream dataOutputStream;
+	private boolean framing = false;
 	
 	public TCPClient(UnknownClient client) {
 		this.uClient = client;
@@ -40,6 +47,7 @@ class TCPClient implements IClientImplementation {
 			
 			InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake) this.uClient.clientRepository.getPacket(-2);
 			handshakePacket.setVariables(this.uClient.protocolVersion, (this.uClient.loginParams != null) ? true : false, this.uClient.loginParams);
+			handshakePacket.setRequestedFlags(this.uClient.getHandshakeFlags(true, false));
 			handshakePacket._write(this.dataOutputStream);
 		    dataInputStream.readInt();
 			handshakePacket.read(this.dataInputStream);
@@ -56,6 +64,9 @@ class TCPClient implements IClientImplementation {
 				this.uClient.onConnectionFailed(reason);
 				return false;
 			}
+			this.framing = (handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_LENGTH_FRAMING) != 0;
+			this.uClient.binaryObjects = (handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_BINARY_OBJECTS) != 0;
+			this.uClient.acceptWireFormat(handshakePacket.getAcceptedFlags());
 		} catch (ProtocolViolationException e) {
 			this.uClient.logger.severe("Internal/UnknownClient: Failed to connect to server; a ProtocolViolationException has occurred.  (Message: " + e.getMessage() + ")");
 			this.uClient.onConnectionFailed("Failed to connect to server; an ProtocolViolationException has occurred. (Message: " + e.getMessage() + ")");
@@ -75,18 +86,18 @@ class TCPClient implements IClientImplementation {
 
 	@Override
 	public void handleConnection() {
-		new Thread(new Runnable() {
+		this.uClient.startThread(new Runnable() {
 			@Override
 			public void run() {
 				TCPClient.this.doReadLoop();
 			}
-		}).start();
+		}, "UnknownNet-Client-Reader");
 		
 		while (this.socket.isConnected()) {
 			while (!this.uClient.highsToBeSent.isEmpty()) {
 				Packet highPacket = this.uClient.highsToBeSent.poll();
 				try {
-					highPacket._write(this.dataOutputStream);
+					this.writePacket(highPacket);
 				} catch (IOException e) {
 					this.uClient.logger.severe("Internal/TCPClient: An IOException has occurred while sending a packet. Disconnecting.");
 					e.printStackTrace();
@@ -100,7 +111,7 @@ class TCPClient implements IClientImplementation {
 			while (!this.uClient.internalsToBeSent.isEmpty()) {
 				try {
 					Packet internal = this.uClient.internalsToBeSent.poll();
-					internal._write(this.dataOutputStream);
+					this.writePacket(internal);
 					
 					if (internal instanceof InternalPacket1Kick) {
 						this.socket.close();
@@ -120,7 +131,7 @@ class TCPClient implements IClientImplementation {
 			while (!this.uClient.lowsToBeSent.isEmpty()) {
 				Packet lowPacket = this.uClient.lowsToBeSent.poll();
 				try {
-					lowPacket._write(this.dataOutputStream);
+					this.writePacket(lowPacket);
 				} catch (IOException e) {
 					this.uClient.logger.severe("Internal/TCPClient: An IOException has occurred while sending a packet. Disconnecting.");
 					e.printStackTrace();
@@ -131,11 +142,15 @@ class TCPClient implements IClientImplementation {
 				this.uClient.clientRepository.freePacket(lowPacket);
 			}
 			
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				this.uClient.logger.warning("Internal/UnknownClient: InterruptedEception occurred while sleeping client writing thread. Ignoring.");
-			}
+			this.uClient.awaitQueuedPacket(25);
+		}
+	}
+	
+	private void writePacket(Packet packet) throws IOException {
+		if (this.framing) {
+			this.uClient.writeFrame(packet, this.dataOutputStream);
+		} else {
+			this.uClient.wireFormat.writePacket(packet, this.dataOutputStream);
 		}
 	}
 	
@@ -144,10 +159,15 @@ class TCPClient implements IClientImplementation {
 	 * This loop runs in a separate thread and handles reading the packet ids from the stream and than calling handlePacketReceive
 	 */
 	protected void doReadLoop() {
+		if (this.framing) {
+			this.doFramedReadLoop();
+			return;
+		}
+		
 		while (this.socket.isConnected()) {
 			try {
 				if (this.dataInputStream.available() > 0) {
-					int id = this.dataInputStream.readInt();
+					int id = this.uClient.wireFormat.readId(this.dataInputStream);
 					this.uClient.handlePacketReceive(id, this.dataInputStream);
 				}
 			} catch (IOException e) {
@@ -168,6 +188,51 @@ class TCPClient implements IClientImplementation {
 		}
 	}
 
+	/**
+	 * Internal method
+	 * Reads a framed stream as soon as data arrives and handles every complete packet at once, instead of polling for one packet at a time
+	 */
+	protected void doFramedReadLoop() {
+		FrameAssembler assembler = new FrameAssembler(UnknownClient.MAX_FRAME_SIZE, this.uClient.wireFormat);
+		try {
+			this.socket.setSoTimeout(FRAMED_READ_TIMEOUT);
+		} catch (SocketException e) {
+			this.uClient.logger.warning("Internal/TCPClient: Failed to set read timeout, server timeouts may not be detected.");
+		}
+		
+		while (!this.socket.isClosed()) {
+			try {
+				if (assembler.read(this.dataInputStream) == -1) {
+					this.uClient.logger.info("Internal/TCPClient: Server has closed the connection.");
+					return;
+				}
+				this.uClient.handleFrames(assembler);
+			} catch (SocketTimeoutException e) {
+				// Nothing arrived, check for a timeout below
+			} catch (IOException e) {
+				if (this.socket.isClosed()) {
+					return;
+				}
+				this.uClient.logger.severe("Internal/TCPClient: IOException occurred while reading from TCP stream, disconnecting...");
+				e.printStackTrace();
+				this.uClient.shouldDisconnect = true;
+				this.uClient.onClientKicked("IOException has occurred while reading from TCP stream.");
+				return;
+			} catch (ProtocolViolationException e) {
+				this.uClient.logger.severe("Internal/TCPClient: ProtocolViolationException occurred while reading from TCP stream, disconnecting...");
+				e.printStackTrace();
+				this.uClient.shouldDisconnect = true;
+				this.uClient.onClientKicked("A ProtocolViolationException has occurred while reading from TCP stream.");
+				return;
+			}
+			
+			if (System.currentTimeMillis() - this.uClient.lastReceivedKeepAlive > 180000) {
+				this.uClient.leaveServer("Client timed out.");
+				return;
+			}
+		}
+	}
+
 	protected void setConnection(Socket authenticationSocket, DataOutputStream dataOutputStream, DataInputStream dataInputStream) {
 		this.socket = authenticationSocket;
 		this.dataOutputStream = dataOutputStream;
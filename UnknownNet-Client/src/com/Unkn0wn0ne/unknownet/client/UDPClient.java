@@ -13,37 +13,54 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownet.client;
 
-import java.io.ByteArrayInputStream;
-import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
 import com.Unkn0wn0ne.unknownet.client.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownet.client.net.InternalPacket12Fragment;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket1Kick;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket5Hello;
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
+import com.Unkn0wn0ne.unknownet.client.net.Packet.PACKET_PROTOCOL;
+import com.Unkn0wn0ne.unknownet.client.util.BufferPool;
+import com.Unkn0wn0ne.unknownet.client.util.ByteBufferInputStream;
+import com.Unkn0wn0ne.unknownet.client.util.ByteBufferOutputStream;
+import com.Unkn0wn0ne.unknownet.client.util.PooledBuffer;
+import com.Unkn0wn0ne.unknownet.client.util.ReliableChannel;
 
 class UDPClient implements IClientImplementation {
 
 	protected UnknownClient uClient;
 	
-	protected DatagramSocket dSocket;
-	protected DatagramPacket dPacket, dPacket2;
-	protected ByteArrayOutputStream udpWriter;
+	// Large enough for any UDP datagram
+	private static final int MAX_DATAGRAM_SIZE = 65536;
 	
-	protected ByteArrayInputStream udpReader;
+	protected DatagramChannel channel;
 	
-	protected DataOutputStream dataOutputStream;
-	protected DataInputStream dataInputStream = null;
+	// Only used by the reading thread
+	protected ByteBufferInputStream udpReader = new ByteBufferInputStream();
+	protected DataInputStream dataInputStream = new DataInputStream(this.udpReader);
+	
+	// Only used by the writing thread
+	private ByteBufferOutputStream packetWriter = null;
+	private DataOutputStream packetOutputStream = null;
+	private int nextFragmentGroup = 0;
+	private final ReliableChannel.Transmitter reliableTransmitter = new ReliableChannel.Transmitter() {
+		@Override
+		public void transmit(byte[] datagram) throws IOException {
+			UDPClient.this.sendDatagram(datagram);
+		}
+	};
 	
 	public UDPClient(UnknownClient client) {
 		this.uClient = client;
@@ -65,6 +82,7 @@ class UDPClient implements IClientImplementation {
 			
 			InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake) this.uClient.clientRepository.getPacket(-2);
 			handshakePacket.setVariables(this.uClient.protocolVersion, (this.uClient.loginParams != null) ? true : false, this.uClient.loginParams);
+			handshakePacket.setRequestedFlags(this.uClient.getHandshakeFlags(false, true));
 			handshakePacket._write(doStream);
 		    diStream.readInt();
 			handshakePacket.read(diStream);
@@ -82,6 +100,10 @@ class UDPClient implements IClientImplementation {
 				return false;	
 		    }
 			this.uClient.uid = diStream.readInt();
+			this.uClient.sessionToken = diStream.readInt();
+			this.uClient.binaryObjects = (handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_BINARY_OBJECTS) != 0;
+			this.uClient.acceptWireFormat(handshakePacket.getAcceptedFlags());
+			this.uClient.acceptDatagramFlags(handshakePacket.getAcceptedFlags());
 			diStream.close();
 			doStream.close();
 			authSocket.close();
@@ -101,13 +123,13 @@ class UDPClient implements IClientImplementation {
 
 	@Override
 	public void handleConnection() {
-		new Thread(new Runnable() {
+		this.uClient.startThread(new Runnable() {
 			@Override
 			public void run() {
 				UDPClient.this.doUDPReadLoop();
 			}
 			
-		}).start();
+		}, "UnknownNet-Client-UDP-Reader");
 		
 		InternalPacket5Hello hello = null;
 		try {
@@ -125,23 +147,12 @@ class UDPClient implements IClientImplementation {
 		}
 		
 		while (true) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-
-			}
+			this.uClient.awaitQueuedPacket(this.getReliableWait(25));
 			
-			this.udpWriter.reset();
 			while (!this.uClient.highsToBeSent.isEmpty()) {
 				Packet highPacket = this.uClient.highsToBeSent.poll();
 				try {
-					this.dataOutputStream.writeInt(this.uClient.uid);
-					highPacket._write(this.dataOutputStream);
-					this.dataOutputStream.flush();
-					this.dPacket.setData(this.udpWriter.toByteArray());
-					this.dPacket.setLength(this.dPacket.getData().length);
-					this.dSocket.send(this.dPacket);
-					this.udpWriter.reset();
+					this.sendPacket(highPacket);
 				} catch (IOException e) {
 					this.uClient.logger.severe("Internal/TCPClient: An IOException has occurred while sending a packet. Disconnecting.");
 					e.printStackTrace();
@@ -155,16 +166,10 @@ class UDPClient implements IClientImplementation {
 			while (!this.uClient.internalsToBeSent.isEmpty()) {
 				Packet internal = this.uClient.internalsToBeSent.poll();
 				try {
-					this.dataOutputStream.writeInt(this.uClient.uid);
-					internal._write(this.dataOutputStream);
-					this.dataOutputStream.flush();
-					this.dPacket.setData(this.udpWriter.toByteArray());
-					this.dPacket.setLength(this.dPacket.getData().length);
-					this.dSocket.send(this.dPacket);
-					this.udpWriter.reset();
+					this.sendPacket(internal);
 					if (internal instanceof InternalPacket1Kick) {
 						this.uClient.shouldDisconnect = true;
-						this.dSocket.close();
+						this.channel.close();
 						return;
 					}
 				} catch (IOException e) {
@@ -181,13 +186,7 @@ class UDPClient implements IClientImplementation {
 			while (!this.uClient.lowsToBeSent.isEmpty()) {
 				Packet lowPacket = this.uClient.lowsToBeSent.poll();
 				try {
-					this.dataOutputStream.writeInt(this.uClient.uid);
-					lowPacket._write(this.dataOutputStream);
-					this.dataOutputStream.flush();
-					this.dPacket.setData(this.udpWriter.toByteArray());
-					this.dPacket.setLength(this.dPacket.getData().length);
-					this.dSocket.send(this.dPacket);
-					this.udpWriter.reset();
+					this.sendPacket(lowPacket);
 				} catch (IOException e) {
 					this.uClient.logger.severe("Internal/TCPClient: An IOException has occurred while sending a packet. Disconnecting.");
 					e.printStackTrace();
@@ -197,35 +196,229 @@ class UDPClient implements IClientImplementation {
 				}
 				this.uClient.clientRepository.freePacket(lowPacket);
 			}
+			
+			if (!this.updateReliableChannel()) {
+				return;
+			}
 		}
 	}
-
-	protected void closeAndLoad() throws IOException {
-		if (this.dataInputStream  != null) {
-			this.dataInputStream.close();
+	
+	/**
+	 * Internal method
+	 * Sends a packet in a datagram of its own, through the reliable channel if it must arrive and the server agreed to acknowledge it
+	 * @param p The packet
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected void sendPacket(Packet p) throws IOException {
+		if (this.sendReliable(p)) {
+			return;
+		}
+		PooledBuffer encoded = this.encode(p);
+		try {
+			this.sendDatagram(encoded.getBuffer());
+		} finally {
+			encoded.release();
 		}
-		this.udpReader = null;
-		this.dataInputStream = null;
-	    
-		this.dSocket.receive(this.dPacket2);
-	    
-		this.udpReader = new ByteArrayInputStream(this.dPacket2.getData());
-		this.dataInputStream = new DataInputStream(this.udpReader);
+	}
+	
+	/**
+	 * Internal method
+	 * Writes a packet straight into a leased buffer, or through the growing stream if it's larger than any pooled buffer
+	 * @param p The packet
+	 * @return The encoded packet, flipped, which the caller must release
+	 * @throws IOException If the packet could not be written
+	 */
+	private PooledBuffer encode(Packet p) throws IOException {
+		PooledBuffer encoded = this.uClient.bufferPool.lease(BufferPool.MAX_SIZE);
+		boolean written = false;
+		try {
+			this.uClient.wireFormat.putPacket(p, encoded.getBuffer());
+			written = true;
+		} catch (BufferOverflowException e) {
+			// Larger than any pooled buffer, written again below
+		} finally {
+			if (!written) {
+				encoded.release();
+			}
+		}
+		if (written) {
+			encoded.getBuffer().flip();
+			return encoded;
+		}
+		
+		this.packetWriter.begin(BufferPool.MAX_SIZE * 2);
+		this.uClient.wireFormat.writePacket(p, this.packetOutputStream);
+		return this.packetWriter.finish();
+	}
+	
+	/**
+	 * Internal method
+	 * Sends a packet through the reliable channel if its protocol is RELIABLE_UDP or RELIABLE_ORDERED_UDP and the server agreed to acknowledge it
+	 * @param p The packet
+	 * @return False if the packet must be sent some other way
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected boolean sendReliable(Packet p) throws IOException {
+		ReliableChannel channel = this.uClient.reliableChannel;
+		if (channel == null || !isReliable(p)) {
+			return false;
+		}
+		PooledBuffer encoded = this.encode(p);
+		byte[] data;
+		try {
+			// The reliable channel keeps the bytes until they're acknowledged, so they can't stay in a pooled buffer
+			data = new byte[encoded.getBuffer().remaining()];
+			encoded.getBuffer().get(data);
+		} finally {
+			encoded.release();
+		}
+		channel.send(data, p.getProtocol() == PACKET_PROTOCOL.RELIABLE_ORDERED_UDP, UnknownClient.currentMillis(), this.reliableTransmitter);
+		return true;
+	}
+	
+	/**
+	 * Internal method
+	 * Sends again the reliable packets that have not been acknowledged in time and acknowledges the ones the server sent
+	 * @return False if the client has been disconnected because the server stopped acknowledging packets
+	 */
+	protected boolean updateReliableChannel() {
+		ReliableChannel channel = this.uClient.reliableChannel;
+		if (channel == null) {
+			return true;
+		}
+		try {
+			if (channel.update(UnknownClient.currentMillis(), this.reliableTransmitter)) {
+				return true;
+			}
+			this.uClient.logger.severe("Internal/UDPClient: Reliable packets were not acknowledged in time. Disconnecting.");
+			this.uClient.shouldDisconnect = true;
+			this.uClient.onClientKicked("Reliable packets were not acknowledged in time.");
+		} catch (IOException e) {
+			this.uClient.logger.severe("Internal/UDPClient: An IOException has occurred while sending a packet. Disconnecting.");
+			e.printStackTrace();
+			this.uClient.shouldDisconnect = true;
+			this.uClient.onClientKicked("An IOException occurred while sending a a packet");
+		}
+		return false;
+	}
+	
+	/**
+	 * Internal method
+	 * @param timeout How long the writing thread would wait otherwise, in milliseconds
+	 * @return How long the writing thread may wait before the reliable channel needs to be updated, in milliseconds
+	 */
+	protected long getReliableWait(long timeout) {
+		ReliableChannel channel = this.uClient.reliableChannel;
+		if (channel == null) {
+			return timeout;
+		}
+		return Math.min(timeout, channel.getNextDeadline(UnknownClient.currentMillis()));
+	}
+	
+	/**
+	 * @param p The packet
+	 * @return True if the packet's protocol is RELIABLE_UDP or RELIABLE_ORDERED_UDP
+	 */
+	static boolean isReliable(Packet p) {
+		return p.getProtocol() == PACKET_PROTOCOL.RELIABLE_UDP || p.getProtocol() == PACKET_PROTOCOL.RELIABLE_ORDERED_UDP;
+	}
+	
+	/**
+	 * Internal method
+	 * Sends a datagram, preceded by the client's id and session token
+	 * @param data The datagram
+	 * @throws IOException If the datagram could not be sent
+	 */
+	private void sendDatagram(byte[] data) throws IOException {
+		PooledBuffer buffer = this.uClient.bufferPool.lease(data.length);
+		try {
+			buffer.getBuffer().put(data).flip();
+			this.sendDatagram(buffer.getBuffer());
+		} finally {
+			buffer.release();
+		}
+	}
+	
+	/**
+	 * Internal method
+	 * Sends a datagram, preceded by the client's id and session token. It's split into fragments if it's larger than the MTU and the server agreed to put them back together.
+	 * @param data The datagram, from its position to its limit
+	 * @throws IOException If the datagram could not be sent
+	 */
+	private void sendDatagram(ByteBuffer data) throws IOException {
+		// The id and session token start every datagram
+		int size = this.uClient.mtu - this.getHeaderSize();
+		int length = data.remaining();
+		if (this.uClient.fragmentAssembler == null || length <= size) {
+			PooledBuffer datagram = this.leaseDatagram(length);
+			try {
+				datagram.getBuffer().put(data).flip();
+				this.channel.write(datagram.getBuffer());
+			} finally {
+				datagram.release();
+			}
+			return;
+		}
+		
+		size -= InternalPacket12Fragment.HEADER_SIZE;
+		int count = (length + size - 1) / size;
+		int group = this.nextFragmentGroup++;
+		for (int index = 0; index < count; index++) {
+			int offset = index * size;
+			PooledBuffer datagram = this.leaseDatagram(this.uClient.mtu);
+			try {
+				InternalPacket12Fragment.putFragment(datagram.getBuffer(), this.uClient.wireFormat, group, index, count, data, data.position() + offset, Math.min(size, length - offset));
+				datagram.getBuffer().flip();
+				this.channel.write(datagram.getBuffer());
+			} finally {
+				datagram.release();
+			}
+		}
+		this.uClient.fragmentsSent += count;
+	}
+	
+	/**
+	 * Internal method
+	 * @return The number of bytes the client's id and session token take up in a datagram
+	 */
+	private int getHeaderSize() {
+		return this.uClient.wireFormat.getClientIdSize(this.uClient.uid) + 4;
+	}
+	
+	/**
+	 * Internal method
+	 * Leases a buffer for one datagram and writes the client's id and session token to it
+	 * @param length The bytes that will follow the id and session token
+	 */
+	private PooledBuffer leaseDatagram(int length) {
+		PooledBuffer datagram = this.uClient.bufferPool.lease(length + this.getHeaderSize());
+		this.uClient.wireFormat.putClientId(datagram.getBuffer(), this.uClient.uid);
+		datagram.getBuffer().putInt(this.uClient.sessionToken);
+		return datagram;
 	}
 
+	/**
+	 * Internal method
+	 * Blocks until a datagram arrives, then reads it into a leased buffer and handles its packet
+	 */
+	protected void receiveDatagram() throws IOException, ProtocolViolationException {
+		PooledBuffer datagram = this.uClient.bufferPool.lease(MAX_DATAGRAM_SIZE);
+		try {
+			this.channel.read(datagram.getBuffer());
+			datagram.getBuffer().flip();
+			this.udpReader.setBuffer(datagram.getBuffer());
+			int id = this.uClient.wireFormat.readId(this.dataInputStream);
+			this.uClient.handlePacketReceive(id, this.dataInputStream);
+		} finally {
+			datagram.release();
+		}
+	}
 
 	protected void doUDPReadLoop() {
 		while (!this.uClient.shouldDisconnect ) {
+			// Blocks in receive until a datagram arrives
 			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				
-			}
-			
-			try {
-				this.closeAndLoad();
-				int id = this.dataInputStream.readInt();
-				this.uClient.handlePacketReceive(id, this.dataInputStream);
+				this.receiveDatagram();
 			} catch (IOException e) {
 				this.uClient.logger.severe("Internal/DualStackClient: IOException occurred while reading from UDP stream, disconnecting...");
 				e.printStackTrace();
@@ -244,16 +437,12 @@ class UDPClient implements IClientImplementation {
 
 	@Override
 	public void close() throws IOException {
-		this.dataInputStream.close();
-		this.dataOutputStream.close();
-		this.dSocket.close();
+		this.channel.close();
 	}
 
-	public void setConnection(DatagramSocket dSocket, DatagramPacket dPacket, DatagramPacket dPacket2, ByteArrayOutputStream udpWriter, DataOutputStream dataOutputStream) {
-		this.dSocket = dSocket;
-		this.dPacket = dPacket;
-		this.dPacket2 = dPacket2;
-		this.udpWriter = udpWriter;
-		this.dataOutputStream = dataOutputStream;
+	public void setConnection(DatagramChannel channel) {
+		this.channel = channel;
+		this.packetWriter = new ByteBufferOutputStream(this.uClient.bufferPool);
+		this.packetOutputStream = new DataOutputStream(this.packetWriter);
 	}
 }
\ No newline at end of file
@@ -13,29 +13,39 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownet.client;
 
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.io.OutputStream;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import javax.net.SocketFactory;
 import javax.net.ssl.SSLSocketFactory;
 
 import com.Unkn0wn0ne.unknownet.client.distributed.DistributedObject;
+import com.Unkn0wn0ne.unknownet.client.distributed.ObjectCodec;
 import com.Unkn0wn0ne.unknownet.client.distributed.ObjectManager;
 import com.Unkn0wn0ne.unknownet.client.errors.ProtocolViolationException;
 import com.Unkn0wn0ne.unknownet.client.net.ClientRepository;
+import com.Unkn0wn0ne.unknownet.client.net.InternalPacket11ReliableDatagram;
+import com.Unkn0wn0ne.unknownet.client.net.InternalPacket12Fragment;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket1Kick;
+import com.Unkn0wn0ne.unknownet.client.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket3KeepAlive;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket6DistributedObjectCreation;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket7DestroyDistributedObject;
@@ -43,7 +53,15 @@ import com.Unkn0wn0ne.unknownet.client.net.InternalPacket8DistributedObjectEdit;
 import com.Unkn0wn0ne.unknownet.client.net.InternalPacket9LeaveZone;
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
 import com.Unkn0wn0ne.unknownet.client.net.Packet.PACKET_PRIORITY;
+import com.Unkn0wn0ne.unknownet.client.util.BufferPool;
+import com.Unkn0wn0ne.unknownet.client.util.FragmentAssembler;
+import com.Unkn0wn0ne.unknownet.client.util.FrameAssembler;
+import com.Unkn0wn0ne.unknownet.client.util.MPSCQueue;
+import com.Unkn0wn0ne.unknownet.client.util.ObjectPool;
 import com.Unkn0wn0ne.unknownet.client.util.Protocol;
+import com.Unkn0wn0ne.unknownet.client.util.ReliableChannel;
+import com.Unkn0wn0ne.unknownet.client.util.Threads;
+import com.Unkn0wn0ne.unknownet.client.util.WireFormat;
 
 /**
  * UnknownClient - Abstract class for connecting to an UnknownNet server.
@@ -54,6 +72,7 @@ public abstract class UnknownClient implements Runnable{
 	public Logger logger = Logger.getLogger("UnknownNet");
 	
 	protected ClientRepository clientRepository = new ClientRepository();
+	protected BufferPool bufferPool = new BufferPool();
 	
 	protected String ipAddress = "";
 	protected int port = 4334;
@@ -66,9 +85,19 @@ public abstract class UnknownClient implements Runnable{
 	protected ObjectManager dObjManager = new ObjectManager();
 	protected HashMap<Integer, ObjectManager> clientZones = new HashMap<Integer, ObjectManager>();
 	
-	protected Queue<Packet> internalsToBeSent = new LinkedList<Packet>();
-	protected Queue<Packet> highsToBeSent = new LinkedList<Packet>();
-	protected Queue<Packet> lowsToBeSent = new LinkedList<Packet>();
+	// The number of packets of each priority that may be waiting to be sent
+	private static final int QUEUE_CAPACITY = 4096;
+	
+	// Filled by any thread through queuePacket, drained only by the writing thread
+	protected MPSCQueue<Packet> internalsToBeSent = new MPSCQueue<Packet>(QUEUE_CAPACITY);
+	protected MPSCQueue<Packet> highsToBeSent = new MPSCQueue<Packet>(QUEUE_CAPACITY);
+	protected MPSCQueue<Packet> lowsToBeSent = new MPSCQueue<Packet>(QUEUE_CAPACITY);
+	
+	// Wakes the writing thread as soon as a packet is queued.
+	// A lock rather than a monitor, so that a virtual thread waiting on it doesn't hold on to its carrier thread.
+	private final ReentrantLock writerLock = new ReentrantLock();
+	private final Condition writerCondition = this.writerLock.newCondition();
+	private volatile boolean writerSignalled = false;
 	
 	protected InternalPacket3KeepAlive keepAlivePacket = null;
 	
@@ -81,6 +110,43 @@ public abstract class UnknownClient implements Runnable{
 	private IClientImplementation clientImpl;
 
 	protected int uid;
+	// Sent with every datagram so the server knows the datagram really came from us
+	protected int sessionToken;
+	
+	// Whether the connection's threads are virtual threads
+	protected boolean useVirtualThreads = false;
+	
+	// Whether to ask the server to prefix every TCP packet with its length. Off unless asked for, so the handshake stays what servers without options expect
+	protected boolean useFraming = false;
+	// Whether to ask the server to send DistributedObjects in the binary format
+	protected boolean useBinaryObjects = false;
+	// Whether to ask the server to send packet ids and lengths as varints
+	protected boolean useCompactHeaders = false;
+	// Switched to V2 once the server has agreed to compact headers, set before the connection's threads start
+	protected WireFormat wireFormat = WireFormat.V1;
+	// True once the server has agreed to send DistributedObjects in the binary format
+	protected boolean binaryObjects = false;
+	// Whether to ask the server to acknowledge RELIABLE_UDP and RELIABLE_ORDERED_UDP packets sent over UDP
+	protected boolean useReliableUDP = false;
+	// Set up once the server has agreed to acknowledge reliable packets, shared by the reading and writing threads
+	protected ReliableChannel reliableChannel = null;
+	// Only used by the thread reading datagrams
+	private final List<byte[]> reliableDelivered = new ArrayList<byte[]>();
+	// Whether to ask the server to split datagrams larger than its MTU into fragments and put ours back together
+	protected boolean useFragmentation = false;
+	// The largest datagram sent, and the memory and time the server's fragmented datagrams may take to be put back together
+	protected int mtu = 1200;
+	protected int reassemblyBudget = 4 * 1024 * 1024;
+	protected long reassemblyTimeout = 5000;
+	// Set up once the server has agreed to fragmentation, only used by the thread reading datagrams
+	protected FragmentAssembler fragmentAssembler = null;
+	// Only written by the writing thread
+	protected volatile long fragmentsSent = 0;
+	// The largest framed packet the server may send
+	protected static final int MAX_FRAME_SIZE = 1024 * 1024;
+	// Only used by the writing thread
+	private FrameWriter frameWriter = new FrameWriter();
+	private DataOutputStream frameOutputStream = new DataOutputStream(this.frameWriter);
 	
 	/**
 	 * Creates an UnknownClient object for use in connecting to an UnknownNet server.
@@ -101,6 +167,177 @@ public abstract class UnknownClient implements Runnable{
 		}
 	}
 	
+	/**
+	 * Sets whether the client asks the server to prefix every packet sent over TCP with its length, must be called before connecting. Disabled by default.
+	 * Framed packets are read as soon as they have fully arrived and every packet that has arrived is handled at once. Servers that don't allow framing simply decline it.
+	 * Only enable it, like every other handshake option, when the server supports handshake options. Servers that are older than them receive the request as one more login parameter.
+	 * @param useFraming Whether to ask for framing
+	 */
+	public void setUseFraming(boolean useFraming) {
+		this.useFraming = useFraming;
+	}
+	
+	/**
+	 * Sets whether the client asks the server to send packet ids, frame lengths and the client id of datagrams as varints instead of ints, must be called before connecting. Disabled by default.
+	 * Most packets are then 3 to 6 bytes smaller in both directions. Servers that don't allow it keep using the original format.
+	 * Like framing, it is asked for in the handshake, so only enable it when the server supports handshake options.
+	 * @param useCompactHeaders Whether to ask for compact headers
+	 */
+	public void setUseCompactHeaders(boolean useCompactHeaders) {
+		this.useCompactHeaders = useCompactHeaders;
+	}
+	
+	/**
+	 * Sets whether the client asks the server to send DistributedObjects in the binary format instead of as text, must be called before connecting. Disabled by default.
+	 * The binary format is smaller and much cheaper to encode and decode, and it carries the contents of byte arrays. Servers that don't support it send text instead.
+	 * Like framing, it is asked for in the handshake, so only enable it when the server supports handshake options.
+	 * @param useBinaryObjects Whether to ask for binary DistributedObjects
+	 */
+	public void setUseBinaryObjects(boolean useBinaryObjects) {
+		this.useBinaryObjects = useBinaryObjects;
+	}
+	
+	/**
+	 * Sets whether the client asks the server to acknowledge packets sent with the RELIABLE_UDP and RELIABLE_ORDERED_UDP protocols, and to send its own again until they arrive, must be called before connecting. Disabled by default, it is asked for in the handshake like framing.
+	 * Without it those packets are sent over TCP in the 'Dualstack (TCP + UDP)' configuration, and over plain UDP in the 'UDP' one. It has no effect on TCP connections.
+	 * @param useReliableUDP Whether to ask for reliable packets over UDP
+	 */
+	public void setUseReliableUDP(boolean useReliableUDP) {
+		this.useReliableUDP = useReliableUDP;
+	}
+	
+	/**
+	 * Sets whether the client asks the server to split datagrams larger than the MTU into fragments and to put the client's back together, must be called before connecting. Disabled by default, it is asked for in the handshake like framing.
+	 * Without it large datagrams are sent whole and may be fragmented by IP, or dropped once they exceed the path MTU. It has no effect on TCP connections.
+	 * @param useFragmentation Whether to ask for fragmentation
+	 */
+	public void setUseFragmentation(boolean useFragmentation) {
+		this.useFragmentation = useFragmentation;
+	}
+	
+	/**
+	 * Sets the largest datagram the client sends, in bytes, must be called before connecting. Larger ones are split into fragments if the server agreed to it.
+	 * The default of 1200 fits the path MTU of almost every network, IPv6 included. Values below 256 are treated as 256.
+	 * @param mtu The largest datagram size
+	 */
+	public void setMTU(int mtu) {
+		this.mtu = Math.max(256, mtu);
+	}
+	
+	/**
+	 * Sets the memory and time the server's fragmented datagrams may take to be put back together, must be called before connecting.
+	 * The oldest unfinished datagrams are discarded once the budget is exceeded, and any datagram whose fragments haven't all arrived within the timeout.
+	 * @param budget The most bytes of fragments held at once, 4MB by default
+	 * @param timeout How long a datagram's fragments may take to arrive, in milliseconds, 5000 by default
+	 */
+	public void setReassemblyLimits(int budget, long timeout) {
+		this.reassemblyBudget = budget;
+		this.reassemblyTimeout = timeout;
+	}
+	
+	/**
+	 * Sets the most freed packets of each id kept for reuse, besides the 64 each thread keeps. 1024 by default, 0 creates a new packet every time
+	 * @param size The most packets to keep per id
+	 */
+	public void setPacketPoolSize(int size) {
+		this.clientRepository.setPoolSize(size);
+	}
+	
+	/**
+	 * Gets the pool that the packets with the given id are taken from and freed to, whose counters show how often packets are reused instead of created
+	 * @param id The packet id
+	 * @return The pool of the packet, or null if no packet is registered with the id
+	 */
+	public ObjectPool<Packet> getPacketPool(int id) {
+		return this.clientRepository.getPacketPool(id);
+	}
+	
+	/**
+	 * Gets the direct buffers that datagrams are sent from and received into, whose counters show how many are leased and how much memory the pool holds
+	 * @return The client's buffer pool
+	 */
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+	
+	/**
+	 * @return The number of fragments sent because datagrams were larger than the MTU
+	 */
+	public long getFragmentsSent() {
+		return this.fragmentsSent;
+	}
+	
+	/**
+	 * @return The number of the server's fragmented datagrams that were put back together
+	 */
+	public long getReassembledCount() {
+		FragmentAssembler assembler = this.fragmentAssembler;
+		return assembler == null ? 0 : assembler.getReassembledCount();
+	}
+	
+	/**
+	 * @return The number of the server's fragmented datagrams that were discarded before all of their fragments arrived
+	 */
+	public long getExpiredCount() {
+		FragmentAssembler assembler = this.fragmentAssembler;
+		return assembler == null ? 0 : assembler.getExpiredCount();
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Gets the options to ask the server for in the handshake
+	 * @param stream True if the connection's packets are sent over a TCP stream, which can be framed
+	 * @param datagrams True if the connection's packets are sent over UDP, which can be acknowledged
+	 * @return A combination of the InternalPacket2Handshake FLAG_ constants
+	 */
+	protected int getHandshakeFlags(boolean stream, boolean datagrams) {
+		int flags = 0;
+		if (stream && this.useFraming) {
+			flags |= InternalPacket2Handshake.FLAG_LENGTH_FRAMING;
+		}
+		if (this.useBinaryObjects) {
+			flags |= InternalPacket2Handshake.FLAG_BINARY_OBJECTS;
+		}
+		if (this.useCompactHeaders) {
+			flags |= InternalPacket2Handshake.FLAG_COMPACT_HEADERS;
+		}
+		if (datagrams && this.useReliableUDP) {
+			flags |= InternalPacket2Handshake.FLAG_RELIABLE_UDP;
+		}
+		if (datagrams && this.useFragmentation) {
+			flags |= InternalPacket2Handshake.FLAG_FRAGMENTATION;
+		}
+		return flags;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Switches to the wire format the server accepted in the handshake, which is used from the first packet after the handshake's response
+	 * @param acceptedFlags The flags the server accepted
+	 */
+	protected void acceptWireFormat(int acceptedFlags) {
+		this.wireFormat = WireFormat.fromFlags(acceptedFlags);
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Sets up the options for datagrams that the server accepted in the handshake
+	 * @param acceptedFlags The flags the server accepted
+	 */
+	protected void acceptDatagramFlags(int acceptedFlags) {
+		this.reliableChannel = (acceptedFlags & InternalPacket2Handshake.FLAG_RELIABLE_UDP) != 0 ? new ReliableChannel(WireFormat.fromFlags(acceptedFlags)) : null;
+		this.fragmentAssembler = (acceptedFlags & InternalPacket2Handshake.FLAG_FRAGMENTATION) != 0 ? new FragmentAssembler(this.reassemblyBudget, this.reassemblyTimeout) : null;
+	}
+	
+	/**
+	 * Sets whether the connection, its handshake and the packet callbacks run on virtual threads instead of platform threads, must be called before connecting. Disabled by default.
+	 * Virtual threads require Java 21 or later, older versions keep using platform threads.
+	 * @param useVirtualThreads Whether to use virtual threads
+	 */
+	public void setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+	}
+	
 	/**
 	 * Connects the client to a UnknownNet-based server over TCP
 	 * @param ip The IP address or hostname of the server to connect to
@@ -113,7 +350,7 @@ public abstract class UnknownClient implements Runnable{
 		this.port = port;
 		this.loginParams = loginData;
 		this.clientImpl = new TCPClient(this);
-		new Thread(this).start();
+		this.startThread(this, "UnknownNet-Client");
 	}
 	
 	public void connectUDP(String ip, int port, int authPort, String[] loginData) {
@@ -123,7 +360,7 @@ public abstract class UnknownClient implements Runnable{
 		this.authPort = authPort;
 		this.loginParams = loginData;
 		this.clientImpl = new UDPClient(this);
-		new Thread(this).start();
+		this.startThread(this, "UnknownNet-Client");
 	}
 	
 	public void connectDualstack(String ip, int tcpport, int udpport, String[] loginData) {
@@ -133,7 +370,7 @@ public abstract class UnknownClient implements Runnable{
 		this.authPort = udpport;
 		this.loginParams = loginData;
 		this.clientImpl = new DualstackClient(this);
-		new Thread(this).start();
+		this.startThread(this, "UnknownNet-Client");
 	}
 	
 	/**
@@ -204,11 +441,7 @@ public abstract class UnknownClient implements Runnable{
 		} else {
 			// UDP CLIENT and DUALSTACK Client
 			if (this.protocol == Protocol.UDP || this.protocol == Protocol.DUALSTACK) {
-				DatagramSocket dSocket = null;
-				DatagramPacket dPacket = null;
-				DatagramPacket dPacket2 = null;
-				ByteArrayOutputStream udpWriter = new ByteArrayOutputStream();
-				DataOutputStream dataOutputStream = new DataOutputStream(udpWriter);
+				DatagramChannel channel = null;
 				
 				if (this.protocol == Protocol.UDP) {
 					this.logger.info("Internal/UnknownClient: Running with UDP.");
@@ -224,29 +457,35 @@ public abstract class UnknownClient implements Runnable{
 				if (!this.clientImpl.authenticate()) {
 					return;
 				}
-				this.logger.info("Internal/UnknownClient: Connecting to " + this.ipAddress + ":" + this.port + " via datagram socket.");
+				// A DUALSTACK server receives datagrams on its UDP port, the TCP port only accepts streams
+				int datagramPort = this.protocol == Protocol.DUALSTACK ? this.authPort : this.port;
+				this.logger.info("Internal/UnknownClient: Connecting to " + this.ipAddress + ":" + datagramPort + " via datagram socket.");
 				
 				try {		
-					dSocket = new DatagramSocket();
-					dSocket.connect(InetAddress.getByName(this.ipAddress), this.port);
-					dPacket = new DatagramPacket(new byte[dSocket.getReceiveBufferSize()], dSocket.getReceiveBufferSize());
-					dPacket2 = new DatagramPacket(new byte[dSocket.getReceiveBufferSize()], dSocket.getReceiveBufferSize());
+					channel = DatagramChannel.open();
+					channel.connect(new InetSocketAddress(InetAddress.getByName(this.ipAddress), datagramPort));
 				} catch (SocketException e) {
 					this.logger.severe("Internal/UnknownClient: Failed to connect to server; a SocketException has occurred. (Message: " + e.getMessage() + ")");
 					this.onConnectionFailed("Failed to connect to server; a SocketException has occurred. (Message: " + e.getMessage() + ")");
 					e.printStackTrace();
+					return;
 				} catch (UnknownHostException e) {
 					logger.severe("Internal/UnknownClient: Failed to connect to server; an UnknownHostException has occurred.  (Message: " + e.getMessage() + ")");
 					this.onConnectionFailed("Failed to connect to server; an UnknownHostException has occurred. (Message: " + e.getMessage() + ")");
 					e.printStackTrace();
 					return;
+				} catch (IOException e) {
+					this.logger.severe("Internal/UnknownClient: Failed to connect to server; an IOException has occurred. (Message: " + e.getMessage() + ")");
+					this.onConnectionFailed("Failed to connect to server; an IOException has occurred. (Message: " + e.getMessage() + ")");
+					e.printStackTrace();
+					return;
 				}
 				if (this.protocol == Protocol.UDP) {
 					UDPClient udpImpl = (UDPClient)this.clientImpl;
-					udpImpl.setConnection(dSocket, dPacket, dPacket2, udpWriter, dataOutputStream);
+					udpImpl.setConnection(channel);
 				} else {
 					DualstackClient dualImpl = (DualstackClient)this.clientImpl;
-					dualImpl.setConnection(dSocket, dPacket, dPacket2, udpWriter, dataOutputStream);
+					dualImpl.setConnection(channel);
 				}
 				logger.info("Internal/UnknownClient: Connection to " + ipAddress + ":" + port + " succeeded.");
 				this.clientImpl.handleConnection();
@@ -255,6 +494,63 @@ public abstract class UnknownClient implements Runnable{
 	}
 
 	
+	/**
+	 * Internal method
+	 * Handles a datagram of the reliable channel and every packet that it made available, in the order they must be handled
+	 * @param datagram The datagram
+	 */
+	private void receiveReliable(InternalPacket11ReliableDatagram datagram) throws ProtocolViolationException, IOException {
+		if (this.reliableChannel == null) {
+			throw new ProtocolViolationException("Reliable datagram received, but reliable packets were not agreed to.");
+		}
+		
+		this.reliableChannel.receive(datagram, currentMillis(), this.reliableDelivered);
+		try {
+			for (byte[] payload : this.reliableDelivered) {
+				DataInputStream packetStream = new DataInputStream(new ByteArrayInputStream(payload));
+				int id = this.wireFormat.readId(packetStream);
+				if (id == -11) {
+					throw new ProtocolViolationException("Reliable datagram nested in a reliable datagram.");
+				}
+				this.handlePacketReceive(id, packetStream);
+			}
+		} finally {
+			this.reliableDelivered.clear();
+		}
+		// Acknowledge it without waiting for the next packet to be queued
+		this.signalWriter();
+	}
+	
+	/**
+	 * Internal method
+	 * Adds a fragment the server sent and handles the packet in its datagram once every fragment has arrived
+	 * @param fragment The fragment
+	 */
+	private void receiveFragment(InternalPacket12Fragment fragment) throws ProtocolViolationException, IOException {
+		if (this.fragmentAssembler == null) {
+			throw new ProtocolViolationException("Fragment received, but fragmentation was not agreed to.");
+		}
+		
+		byte[] data = this.fragmentAssembler.add(fragment.getGroup(), fragment.getIndex(), fragment.getCount(), fragment.getData(), currentMillis());
+		if (data == null) {
+			return;
+		}
+		DataInputStream packetStream = new DataInputStream(new ByteArrayInputStream(data));
+		int id = this.wireFormat.readId(packetStream);
+		if (id == -12) {
+			throw new ProtocolViolationException("Fragment nested in a fragment.");
+		}
+		this.handlePacketReceive(id, packetStream);
+	}
+	
+	/**
+	 * Internal method
+	 * @return The time the reliable channel is updated with, in milliseconds
+	 */
+	static long currentMillis() {
+		return System.nanoTime() / 1000000L;
+	}
+	
 	/**
 	 * Internal method.
 	 * Handles receiving of packets
@@ -264,6 +560,34 @@ public abstract class UnknownClient implements Runnable{
 	 */
 	protected void handlePacketReceive(int id, DataInputStream inputStream) throws ProtocolViolationException, IOException {
 		switch (id) {
+		case -12: {
+			InternalPacket12Fragment fragment = (InternalPacket12Fragment) this.clientRepository.getPacket(-12);
+			try {
+				fragment.read(inputStream);
+				this.receiveFragment(fragment);
+			} finally {
+				this.clientRepository.freePacket(fragment);
+			}
+			return;
+		}
+		case -11: {
+			InternalPacket11ReliableDatagram datagram = (InternalPacket11ReliableDatagram) this.clientRepository.getPacket(-11);
+			try {
+				datagram.read(inputStream);
+				this.receiveReliable(datagram);
+			} finally {
+				this.clientRepository.freePacket(datagram);
+			}
+			return;
+		}
+		case -10: {
+			// Only sent to clients that use the binary object format: every object of a zone that changed during one replication tick
+			int count = inputStream.readInt();
+			for (int i = 0; i < count; i++) {
+				this.readDistributedObject(inputStream, true);
+			}
+			return;
+		}
 		case -9: {
 			InternalPacket9LeaveZone zonePacket = (InternalPacket9LeaveZone) this.clientRepository.getPacket(-9);
 			zonePacket.read(inputStream);
@@ -272,6 +596,10 @@ public abstract class UnknownClient implements Runnable{
 			return;
 		}
 		case -8: {
+			if (this.binaryObjects) {
+				this.readDistributedObject(inputStream, true);
+				return;
+			}
 			InternalPacket8DistributedObjectEdit dObjPacket = (InternalPacket8DistributedObjectEdit) this.clientRepository.getPacket(-8);
 			dObjPacket.read(inputStream);
 			this.editDistributedObject(dObjPacket);
@@ -282,11 +610,15 @@ public abstract class UnknownClient implements Runnable{
 			InternalPacket7DestroyDistributedObject dObjPacket = (InternalPacket7DestroyDistributedObject) this.clientRepository.getPacket(-7);
 			dObjPacket.read(inputStream);
 			this.onDistributedObjectDestroyed(dObjPacket.getClientZoneId(), dObjPacket.getDObjectId());
-			this.dObjManager.removeDistributedObject(dObjPacket.getDObjectId());
+			this.getObjectManager(dObjPacket.getClientZoneId()).removeDistributedObject(dObjPacket.getDObjectId());
 			this.clientRepository.freePacket(dObjPacket);
 			return;
 		}
 		case -6: {
+			if (this.binaryObjects) {
+				this.readDistributedObject(inputStream, false);
+				return;
+			}
 			InternalPacket6DistributedObjectCreation dObjPacket = (InternalPacket6DistributedObjectCreation) this.clientRepository.getPacket(-6);
 			dObjPacket.read(inputStream);
 			parseDistributedObject(dObjPacket);
@@ -296,6 +628,9 @@ public abstract class UnknownClient implements Runnable{
 		case -3: {
 			this.lastReceivedKeepAlive = System.currentTimeMillis();
 			this.queuePacket(this.keepAlivePacket);
+			// Keep alives arrive even when nothing else does, so pools that went idle shrink too
+			this.clientRepository.trimPools();
+			this.bufferPool.trim();
 			return;
 		}
 		case -2: {
@@ -319,6 +654,32 @@ public abstract class UnknownClient implements Runnable{
 		}
 	}
 
+	/**
+	 * Reads a DistributedObject sent in the binary format straight into the object, creating it if it doesn't exist yet.
+	 * An edit only holds the fields that changed since the last one, every other field keeps its value.
+	 * @param inputStream The stream the packet is read from
+	 * @param edit True for an InternalPacket8DistributedObjectEdit, which updates the object if it exists, false for an InternalPacket6DistributedObjectCreation, which always creates it
+	 * @throws IOException If the object could not be read
+	 */
+	private void readDistributedObject(DataInputStream inputStream, boolean edit) throws IOException {
+		String name = inputStream.readUTF();
+		long id = inputStream.readLong();
+		int zId = inputStream.readInt();
+		
+		DistributedObject dObject = edit ? this.getObjectManager(zId).getDistributedObject(id) : null;
+		if (dObject == null) {
+			dObject = this.clientRepository.createDistributedObject(name);
+			dObject.setId(id);
+			dObject.setZoneId(zId);
+			ObjectCodec.readFields(inputStream, dObject);
+			this.getObjectManager(zId).addDistributedObject(dObject);
+			this.onDistributedObjectReceived(zId, id);
+			return;
+		}
+		ObjectCodec.readFields(inputStream, dObject);
+		this.onDistributedObjectUpdated(zId, id);
+	}
+	
 	private void parseDistributedObject(InternalPacket6DistributedObjectCreation dObjPacket) {
 		String[] text = dObjPacket.getObjectText().split(";");
 		
@@ -339,6 +700,9 @@ public abstract class UnknownClient implements Runnable{
 		this.onDistributedObjectReceived(dObject.getZoneId(), dObject.getId());
 	}
 	
+	/**
+	 * Applies an edit sent as text. Like binary edits it only holds the fields that changed, so only those are set.
+	 */
 	private void editDistributedObject(InternalPacket8DistributedObjectEdit dObjPacket) {
 	   String[] text = dObjPacket.getDObjectText().split(";");
 		
@@ -376,7 +740,9 @@ public abstract class UnknownClient implements Runnable{
 		
 		for (int index = 0; index < numByteArrays; index++) {
 			position++;
-			dObject.setByteArrayValue(text[position].split("=")[0], text[position].split("=")[1].getBytes());
+			String value = text[position].split("=")[1];
+			// The text format never carries an array's contents, only whether it was cleared
+			dObject.setByteArrayValue(text[position].split("=")[0], value.equals("null") ? null : value.getBytes());
 		}
 		
 		position++;
@@ -477,6 +843,15 @@ public abstract class UnknownClient implements Runnable{
 		this.clientRepository.registerPacket(id, packet);
 	}
 	
+	/**
+	 * Registers this packet for use on the network, created by a factory instead of through reflection, such as its constructor reference (Packet1Chat::new). All packets must be registered in order to be sent/received 
+	 * @param id The id this packet will have
+	 * @param factory Creates a new instance of the packet
+	 */
+	public void registerPacket(int id, Supplier<? extends Packet> factory) {
+		this.clientRepository.registerPacket(id, factory);
+	}
+	
 	/**
 	 * Disconnects the client from the server
 	 */
@@ -500,16 +875,102 @@ public abstract class UnknownClient implements Runnable{
 	 * @param packet The packet to be sent
 	 */
 	public void queuePacket(Packet packet) {
+		boolean queued;
 		if (packet.getPriority() == PACKET_PRIORITY.INTERNAL) {
-			this.internalsToBeSent.add(packet);
+			queued = this.internalsToBeSent.offer(packet);
 		} else if (packet.getPriority() == PACKET_PRIORITY.HIGH) {
-			this.highsToBeSent.add(packet);
+			queued = this.highsToBeSent.offer(packet);
 		} else {
-			this.lowsToBeSent.add(packet);
+			queued = this.lowsToBeSent.offer(packet);
+		}
+		
+		if (!queued) {
+			this.logger.warning("Internal/UnknownClient: Too many packets are waiting to be sent, dropping packet with id '" + packet.getId() + "'.");
+			this.clientRepository.freePacket(packet);
+			return;
 		}
+		
+		this.signalWriter();
+	}
+	
+	/**
+	 * Internal method
+	 * Wakes the writing thread if it is waiting for packets to send
+	 */
+	protected void signalWriter() {
+		if (this.writerSignalled) {
+			// The writing thread hasn't woken up yet, it will see this packet when it does
+			return;
+		}
+		
+		this.writerLock.lock();
+		try {
+			this.writerSignalled = true;
+			this.writerCondition.signalAll();
+		} finally {
+			this.writerLock.unlock();
+		}
+	}
+	
+	/**
+	 * Internal method
+	 * Blocks the writing thread until a packet is queued or the timeout elapses
+	 * @param timeout The maximum time to wait in milliseconds
+	 */
+	protected void awaitQueuedPacket(long timeout) {
+		this.writerLock.lock();
+		try {
+			if (!this.writerSignalled) {
+				try {
+					this.writerCondition.await(timeout, TimeUnit.MILLISECONDS);
+				} catch (InterruptedException e) {
+					this.logger.warning("Internal/UnknownClient: InterruptedEception occurred while waiting for packets to send. Ignoring.");
+				}
+			}
+			this.writerSignalled = false;
+		} finally {
+			this.writerLock.unlock();
+		}
+	}
+	
+	/**
+	 * Internal method.
+	 * Starts one of the connection's threads, a virtual thread if the client is configured to use them
+	 * @param runnable What the thread runs
+	 * @param name The thread's name
+	 */
+	protected void startThread(Runnable runnable, String name) {
+		Threads.start(runnable, name, this.useVirtualThreads);
 	}
 	
     
+	/**
+	 * Internal method.
+	 * Writes a packet preceded by its length to a framed TCP stream in a single write. Only called by the writing thread.
+	 * @param packet The packet to write
+	 * @param outputStream The server's TCP stream
+	 * @throws IOException If the packet could not be written
+	 */
+	protected void writeFrame(Packet packet, DataOutputStream outputStream) throws IOException {
+		this.frameWriter.startFrame();
+		this.wireFormat.writePacket(packet, this.frameOutputStream);
+		this.frameWriter.writeFrame(outputStream, this.wireFormat);
+	}
+	
+	/**
+	 * Internal method.
+	 * Handles every complete frame an assembler holds
+	 * @param assembler The assembler the server's TCP stream is read into
+	 * @throws ProtocolViolationException If the server sent an unknown packet
+	 * @throws IOException If a frame is invalid or its packet could not be read
+	 */
+	protected void handleFrames(FrameAssembler assembler) throws ProtocolViolationException, IOException {
+		DataInputStream frame;
+		while ((frame = assembler.nextFrame()) != null) {
+			this.handlePacketReceive(this.wireFormat.readId(frame), frame);
+		}
+	}
+	
 	/**
 	 * Gives you a packet object
 	 * @param id The id if the packet you'd like to get
@@ -524,6 +985,15 @@ public abstract class UnknownClient implements Runnable{
 		this.clientRepository.registerDistributedObject(type, dobject);
 	}
 	
+	/**
+	 * Registers a DistributedObject type that is created by a factory instead of through reflection, such as its constructor reference
+	 * @param type The type name the server sends the object with
+	 * @param factory Creates a new instance of the object
+	 */
+	public void registerDistributedObject(String type, Supplier<? extends DistributedObject> factory) {
+		this.clientRepository.registerDistributedObject(type, factory);
+	}
+	
 	public DistributedObject createDistributedObject(String type) {
 		return this.clientRepository.createDistributedObject(type);
 	}
@@ -546,4 +1016,24 @@ public abstract class UnknownClient implements Runnable{
 	public ObjectManager getGeneralObjectManager() {
 		return this.getObjectManager(-1);
 	}
+	
+	/**
+	 * Collects a packet behind room for its length, which is filled in once the packet has been written.
+	 * Room is kept for the longest prefix, a shorter one is written right before the packet and the bytes in front of it are skipped.
+	 */
+	private static class FrameWriter extends ByteArrayOutputStream {
+		
+		private static final int MAX_PREFIX_SIZE = 5;
+		
+		public void startFrame() {
+			this.count = MAX_PREFIX_SIZE;
+		}
+		
+		public void writeFrame(OutputStream out, WireFormat format) throws IOException {
+			int length = this.count - MAX_PREFIX_SIZE;
+			int start = MAX_PREFIX_SIZE - format.getLengthSize(length);
+			format.putLength(this.buf, start, length);
+			out.write(this.buf, start, this.count - start);
+		}
+	}
 }
@@ -13,6 +13,7 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownet.client.distributed;
 
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
@@ -37,6 +38,10 @@ public abstract class DistributedObject {
 	private long  id;
 	private int zId = -1;
 	
+	// Where the ObjectManager holding the object keeps it among the objects of its zone, so that it can be removed without a search
+	ArrayList<DistributedObject> zoneMembers = null;
+	int zoneSlot = -1;
+	
 	public void setId(long id) {
 		this.id = id;
 	}
@@ -192,7 +197,7 @@ public abstract class DistributedObject {
 	}
 	
 	public void setBooleanValue(String title, boolean value) {
-		synchronized (this.long_values) {
+		synchronized (this.boolean_values) {
 			this.boolean_values.put(title, value);
 		}
 	}
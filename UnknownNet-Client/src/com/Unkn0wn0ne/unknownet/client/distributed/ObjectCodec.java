@@ -0,0 +1,110 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.distributed;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+
+import com.Unkn0wn0ne.unknownet.client.errors.ProtocolViolationException;
+
+/**
+ * ObjectCodec - Reads DistributedObjects sent in the binary format, which the client asks for in its handshake.
+ * An object is its type, id and zone id followed by its fields. Each field is a type tag, the field's name and the value's raw bytes, and the fields end with {@link #TAG_END}.
+ * A byte array or string field that the server set to null is sent as {@link #TAG_NULL}, the field's name and the field's type tag.
+ * @author Unkn0wn0ne
+ */
+public final class ObjectCodec {
+
+	public static final byte TAG_END = 0;
+	public static final byte TAG_BYTE = 1;
+	public static final byte TAG_BYTE_ARRAY = 2;
+	public static final byte TAG_STRING = 3;
+	public static final byte TAG_INTEGER = 4;
+	public static final byte TAG_DOUBLE = 5;
+	public static final byte TAG_FLOAT = 6;
+	public static final byte TAG_SHORT = 7;
+	public static final byte TAG_LONG = 8;
+	public static final byte TAG_BOOLEAN = 9;
+	public static final byte TAG_NULL = 10;
+
+	// No byte array can be longer than the largest frame the server sends
+	private static final int MAX_BYTE_ARRAY_LENGTH = 1024 * 1024;
+
+	private ObjectCodec() {
+
+	}
+
+	/**
+	 * Reads an object's fields into it, the object's type, id and zone id must already have been read
+	 * @param in The stream to read from
+	 * @param dObject The object to set the fields on
+	 * @throws IOException If the stream could not be read or holds a field of an unknown type
+	 * @throws ProtocolViolationException If a byte array's length is negative or larger than any frame
+	 */
+	public static void readFields(DataInputStream in, DistributedObject dObject) throws IOException {
+		byte tag;
+		while ((tag = in.readByte()) != TAG_END) {
+			String name = in.readUTF();
+			switch (tag) {
+			case TAG_BYTE:
+				dObject.setByteValue(name, in.readByte());
+				break;
+			case TAG_BYTE_ARRAY: {
+				int length = in.readInt();
+				if (length < 0 || length > MAX_BYTE_ARRAY_LENGTH) {
+					throw new ProtocolViolationException("Byte array field '" + name + "' of DistributedObject '" + dObject.getObjectType() + "' has an invalid length of " + length);
+				}
+				byte[] array = new byte[length];
+				in.readFully(array);
+				dObject.setByteArrayValue(name, array);
+				break;
+			}
+			case TAG_STRING:
+				dObject.setStringValue(name, in.readUTF());
+				break;
+			case TAG_INTEGER:
+				dObject.setIntegerValue(name, in.readInt());
+				break;
+			case TAG_DOUBLE:
+				dObject.setDoubleValue(name, in.readDouble());
+				break;
+			case TAG_FLOAT:
+				dObject.setFloatValue(name, in.readFloat());
+				break;
+			case TAG_SHORT:
+				dObject.setShortValue(name, in.readShort());
+				break;
+			case TAG_LONG:
+				dObject.setLongValue(name, in.readLong());
+				break;
+			case TAG_BOOLEAN:
+				dObject.setBooleanValue(name, in.readBoolean());
+				break;
+			case TAG_NULL: {
+				byte type = in.readByte();
+				if (type == TAG_BYTE_ARRAY) {
+					dObject.setByteArrayValue(name, null);
+				} else if (type == TAG_STRING) {
+					dObject.setStringValue(name, null);
+				} else {
+					throw new IOException("Null field '" + name + "' of type " + type + " in DistributedObject '" + dObject.getObjectType() + "'");
+				}
+				break;
+			}
+			default:
+				throw new IOException("Unknown field type " + tag + " in DistributedObject '" + dObject.getObjectType() + "'");
+			}
+		}
+	}
+}
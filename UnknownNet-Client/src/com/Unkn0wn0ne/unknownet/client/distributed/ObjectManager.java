@@ -17,54 +17,123 @@ import java.util.ArrayList;
 import java.util.HashMap;
 
 import com.Unkn0wn0ne.unknownet.client.UnknownClient;
+import com.Unkn0wn0ne.unknownet.client.util.LongObjectMap;
 
+/**
+ * ObjectManager - Holds the DistributedObjects a client has been sent, by id and by zone.
+ * Looking an object up never locks. Each zone's objects are also kept in a list of their own, so leaving a zone only touches the objects that were in it.
+ * @author Unkn0wn0ne
+ */
 public class ObjectManager {
 
-	private HashMap<Long, DistributedObject> distributedObjects = new HashMap<Long, DistributedObject>();
+	private final LongObjectMap<DistributedObject> distributedObjects = new LongObjectMap<DistributedObject>();
+	// The objects of each zone, only changed while holding the lock on the manager
+	private final HashMap<Integer, ArrayList<DistributedObject>> zones = new HashMap<Integer, ArrayList<DistributedObject>>();
+	// Counts every change, so that leaveZone can tell whether objects came or went while the client was being told
+	private int changes = 0;
 	
-	public void addDistributedObject(DistributedObject dobject) {
-		synchronized (this.distributedObjects) {
-			this.distributedObjects.put(dobject.getId(), dobject);
+	public synchronized void addDistributedObject(DistributedObject dobject) {
+		DistributedObject previous = this.distributedObjects.put(dobject.getId(), dobject);
+		if (previous == dobject) {
+			return;
 		}
+		if (previous != null) {
+			this.removeFromZone(previous);
+		}
+		
+		ArrayList<DistributedObject> members = this.zones.get(dobject.getZoneId());
+		if (members == null) {
+			members = new ArrayList<DistributedObject>();
+			this.zones.put(dobject.getZoneId(), members);
+		}
+		dobject.zoneMembers = members;
+		dobject.zoneSlot = members.size();
+		members.add(dobject);
+		this.changes++;
 	}
 	
-	public void removeDistributedObject(long l) {
-		synchronized (this.distributedObjects) {
-			this.distributedObjects.remove(l);
+	public synchronized void removeDistributedObject(long l) {
+		DistributedObject dobject = this.distributedObjects.remove(l);
+		if (dobject != null) {
+			this.removeFromZone(dobject);
 		}
 	}
 	
 	public DistributedObject getDistributedObject(long id) {
-		synchronized (this.distributedObjects) {
-			return this.distributedObjects.get(id);
-		}
+		return this.distributedObjects.get(id);
 	}
 	
-	public void clearObjects() {
-		synchronized (this.distributedObjects) {
-			this.distributedObjects.clear();
+	public synchronized void clearObjects() {
+		for (ArrayList<DistributedObject> members : this.zones.values()) {
+			for (DistributedObject dobject : members) {
+				dobject.zoneMembers = null;
+				dobject.zoneSlot = -1;
+			}
 		}
+		this.distributedObjects.clear();
+		this.zones.clear();
+		this.changes++;
 	}
 
 	public void leaveZone(int id, UnknownClient unknownClient) {
-		ArrayList<Long> ids = new ArrayList<Long>();
-		
-		synchronized (this.distributedObjects) {
-			for (DistributedObject dObj : this.distributedObjects.values()) {
-				if (dObj.getZoneId() == id) {
-					ids.add(dObj.getId());
-					continue;
-				}
+		Long[] ids;
+		int changes;
+		synchronized (this) {
+			ArrayList<DistributedObject> members = this.zones.get(id);
+			ids = new Long[members == null ? 0 : members.size()];
+			for (int i = 0; i < ids.length; i++) {
+				ids[i] = members.get(i).getId();
 			}
+			changes = this.changes;
 		}
 		
-		Long[] longs = new Long[ids.size()];
-		unknownClient.onZoneLeave(id, ids.toArray(longs));
+		// The objects can still be looked up while the client is told about them
+		unknownClient.onZoneLeave(id, ids);
 		
-		for (long did : longs) {
-			synchronized (this.distributedObjects) {
-				this.distributedObjects.remove(did);
+		synchronized (this) {
+			if (changes == this.changes) {
+				// Nothing came or went meanwhile, the whole zone goes at once
+				ArrayList<DistributedObject> members = this.zones.remove(id);
+				if (members == null) {
+					return;
+				}
+				for (DistributedObject dobject : members) {
+					this.distributedObjects.remove(dobject.getId());
+					dobject.zoneMembers = null;
+					dobject.zoneSlot = -1;
+				}
+				this.changes++;
+				return;
+			}
+			
+			// Only the objects the client was told about are removed, not any that arrived while it was being told
+			for (Long did : ids) {
+				DistributedObject dobject = this.distributedObjects.get(did);
+				if (dobject != null && dobject.getZoneId() == id) {
+					this.removeDistributedObject(did);
+				}
 			}
 		}
 	}
+	
+	/**
+	 * Takes an object out of its zone's list by moving the zone's last object into its slot
+	 */
+	private void removeFromZone(DistributedObject dobject) {
+		ArrayList<DistributedObject> members = dobject.zoneMembers;
+		if (members == null) {
+			return;
+		}
+		DistributedObject last = members.remove(members.size() - 1);
+		if (last != dobject) {
+			members.set(dobject.zoneSlot, last);
+			last.zoneSlot = dobject.zoneSlot;
+		}
+		if (members.isEmpty() && this.zones.get(dobject.getZoneId()) == members) {
+			this.zones.remove(dobject.getZoneId());
+		}
+		dobject.zoneMembers = null;
+		dobject.zoneSlot = -1;
+		this.changes++;
+	}
 }
@@ -13,11 +13,15 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownet.client.net;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Logger;
 
 import com.Unkn0wn0ne.unknownet.client.distributed.DistributedObject;
 import com.Unkn0wn0ne.unknownet.client.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownet.client.util.ConstructorFactory;
 import com.Unkn0wn0ne.unknownet.client.util.ObjectPool;
 
 /**
@@ -26,8 +30,18 @@ import com.Unkn0wn0ne.unknownet.client.util.ObjectPool;
  */
 public class ClientRepository {
 	private Logger logger = Logger.getLogger("UnknownNet");
-	private ConcurrentHashMap<Integer, ObjectPool<Packet>> registeredPacketPools = new ConcurrentHashMap<Integer, ObjectPool<Packet>>();
-	private ConcurrentHashMap<String, Class<? extends DistributedObject>> registeredDistributedObjects = new ConcurrentHashMap<String, Class<? extends DistributedObject>>();
+	
+	// Ids up to this one are looked up in an array, larger ones in a map
+	private static final int MAX_INDEXED_ID = 65535;
+	
+	// The pools of the internal packets by their negated id and your packets by their id.
+	// Registering a packet replaces the array, so looking a packet up never takes a lock.
+	private volatile ObjectPool<Packet>[] internalPacketPools = newPools(16);
+	private volatile ObjectPool<Packet>[] packetPools = newPools(16);
+	private ConcurrentHashMap<Integer, ObjectPool<Packet>> largeIdPacketPools = new ConcurrentHashMap<Integer, ObjectPool<Packet>>();
+	
+	private volatile int poolSize = 1024;
+	private ConcurrentHashMap<String, Supplier<? extends DistributedObject>> registeredDistributedObjects = new ConcurrentHashMap<String, Supplier<? extends DistributedObject>>();
 	
 	/**
 	 * Called by UnknownClient, registers the internal UnknownNet packets for use with communication to an UnknownNet server
@@ -36,15 +50,17 @@ public class ClientRepository {
 		this.logger.info("Internal/ClientRepository: Init");
 		
 		// Register our internal packets
-		registerPacket(-1, InternalPacket1Kick.class);
-		registerPacket(-2, InternalPacket2Handshake.class);
-		registerPacket(-3, InternalPacket3KeepAlive.class);
+		registerPacket(-1, new InternalPacketFactory(-1));
+		registerPacket(-2, new InternalPacketFactory(-2));
+		registerPacket(-3, new InternalPacketFactory(-3));
 		// TODO: registerPacket(-4, InternalPacket4AdministrativeAction.class);
-		registerPacket(-5, InternalPacket5Hello.class);
-		registerPacket(-6, InternalPacket6DistributedObjectCreation.class);
-		registerPacket(-7, InternalPacket7DestroyDistributedObject.class);
-		registerPacket(-8, InternalPacket8DistributedObjectEdit.class);
-		registerPacket(-9, InternalPacket9LeaveZone.class);
+		registerPacket(-5, new InternalPacketFactory(-5));
+		registerPacket(-6, new InternalPacketFactory(-6));
+		registerPacket(-7, new InternalPacketFactory(-7));
+		registerPacket(-8, new InternalPacketFactory(-8));
+		registerPacket(-9, new InternalPacketFactory(-9));
+		registerPacket(-11, new InternalPacketFactory(-11));
+		registerPacket(-12, new InternalPacketFactory(-12));
 	}
 	
 	/**
@@ -53,15 +69,12 @@ public class ClientRepository {
 	 * @param packet The class of the packet you'd like to register
 	 */
 	public void registerPacket(int id, Class<? extends Packet> packet){
-		this.logger.info("Internal/ClientRepository: Registering packet with id '" + id + "' to class '" + packet.getName() + "'");
-		Packet nPacket;
 		try {
-			nPacket = packet.newInstance();
-			ObjectPool<Packet> packetPool = new ObjectPool<Packet>();
-			packetPool.setType(nPacket);
-			this.registeredPacketPools.put(id, packetPool);
-		} catch (InstantiationException e) {
-			this.logger.severe("Failed to register packet id '" + id + "' An InstantiationException has occurred.");
+			Supplier<Packet> factory = new ConstructorFactory<Packet>(packet);
+			this.logger.info("Internal/ClientRepository: Registering packet with id '" + id + "' to class '" + packet.getName() + "'");
+			this.addPacketPool(id, factory);
+		} catch (NoSuchMethodException e) {
+			this.logger.severe("Failed to register packet id '" + id + "' A NoSuchMethodException has occurred.");
 			e.printStackTrace();
 		} catch (IllegalAccessException e) {
 			this.logger.severe("Failed to register packet id '" + id + "' An IllegalAccessException has occurred.");
@@ -69,6 +82,47 @@ public class ClientRepository {
 		}
 	}
 	
+	/**
+	 * Registers a packet that is created by a factory, such as its constructor reference, instead of through reflection. This only needs to be called once per packet class you have
+	 * @param id The id that you'd like to register your packet to.
+	 * @param factory Creates a new instance of the packet
+	 */
+	public synchronized void registerPacket(int id, Supplier<? extends Packet> factory) {
+		this.logger.info("Internal/ClientRepository: Registering packet with id '" + id + "' to a factory");
+		this.addPacketPool(id, factory);
+	}
+	
+	private synchronized void addPacketPool(int id, Supplier<? extends Packet> factory) {
+		ObjectPool<Packet> pool = new ObjectPool<Packet>(factory);
+		pool.setMaximumSize(this.poolSize);
+		
+		int index = id < 0 ? -id : id;
+		if (index < 0 || index > MAX_INDEXED_ID) {
+			this.largeIdPacketPools.put(id, pool);
+			return;
+		}
+		
+		ObjectPool<Packet>[] pools = id < 0 ? this.internalPacketPools : this.packetPools;
+		if (index >= pools.length) {
+			int length = pools.length;
+			while (length <= index) {
+				length <<= 1;
+			}
+			ObjectPool<Packet>[] grown = newPools(length);
+			System.arraycopy(pools, 0, grown, 0, pools.length);
+			pools = grown;
+		} else {
+			pools = pools.clone();
+		}
+		pools[index] = pool;
+		
+		if (id < 0) {
+			this.internalPacketPools = pools;
+		} else {
+			this.packetPools = pools;
+		}
+	}
+	
 	/**
 	 * Returns a packet from the id you've specified
 	 * @param id The id of the packet object you'd like to get
@@ -76,50 +130,146 @@ public class ClientRepository {
 	 * @throws ProtocolViolationException If there was an issue retrieving the packet
 	 */
 	public Packet getPacket(int id) {
-		if (this.registeredPacketPools.get(id) == null) {
+		ObjectPool<Packet> pool = this.getPacketPool(id);
+		if (pool == null) {
 			this.logger.severe("Internal/ClientRepository: Protocol violation, attempted to access a packet with a non-existant id '" + id + "' disconnecting. (Did you register the packet using UnknownClient.registerPacket?)");
 			throw new ProtocolViolationException("A protocol violation has occurred. Attempted to access a packet with a non-existant id '" + id + "' (Did you register the packet using UnknownClient.registerPacket?)");
 		}
-		try {
-			return this.registeredPacketPools.get(id).getObject();
-		} catch (InstantiationException e) {
-			this.logger.severe("Internal/ClientRepository: Failed to allocate packet id '" + id + "', an InstantiationException has occurrred.");
-			e.printStackTrace();
-		} catch (IllegalAccessException e) {
-			this.logger.severe("Internal/ClientRepository: Failed to allocate packet id '" + id + "', an IllegalAccessException has occurrred.");
-			e.printStackTrace();
-		}
-		return null;
+		return pool.getObject();
 	}
 
 	public void freePacket(Packet packet) {
-		this.registeredPacketPools.get(packet.getId()).freeObject(packet);
+		ObjectPool<Packet> pool = this.getPacketPool(packet.getId());
+		if (pool != null) {
+			pool.freeObject(packet);
+		}
+	}
+	
+	/**
+	 * Sets the most freed packets of each id kept in the shared part of its pool, for the packets registered so far and those registered later
+	 * @param size The most packets to keep per id, 0 turns pooling off
+	 */
+	public synchronized void setPoolSize(int size) {
+		this.poolSize = size;
+		for (ObjectPool<Packet> pool : this.getPacketPools()) {
+			pool.setMaximumSize(size);
+		}
+	}
+	
+	/**
+	 * Releases the packets that sat unused in each pool since the last trim, so pools shrink again after a spike in traffic
+	 * @return The number of packets released
+	 */
+	public int trimPools() {
+		int released = 0;
+		for (ObjectPool<Packet> pool : this.getPacketPools()) {
+			released += pool.trim();
+		}
+		return released;
+	}
+	
+	/**
+	 * @return The pools of every registered packet, internal ones included
+	 */
+	public List<ObjectPool<Packet>> getPacketPools() {
+		List<ObjectPool<Packet>> list = new ArrayList<ObjectPool<Packet>>();
+		for (ObjectPool<Packet> pool : this.internalPacketPools) {
+			if (pool != null) {
+				list.add(pool);
+			}
+		}
+		for (ObjectPool<Packet> pool : this.packetPools) {
+			if (pool != null) {
+				list.add(pool);
+			}
+		}
+		list.addAll(this.largeIdPacketPools.values());
+		return list;
 	}
 	
 	public void registerDistributedObject(String type, Class<? extends DistributedObject> dobject) {
 		this.logger.info("Internal/ClientRepository: Registering DistributedObject type '" + type + "' to class '" + dobject.getName());
-		this.registeredDistributedObjects.put(type, dobject);
+		try {
+			this.registeredDistributedObjects.put(type, new ConstructorFactory<DistributedObject>(dobject));
+		} catch (NoSuchMethodException e) {
+			this.logger.severe("Failed to register DistributedObject type '" + type + "' A NoSuchMethodException has occurred.");
+			e.printStackTrace();
+		} catch (IllegalAccessException e) {
+			this.logger.severe("Failed to register DistributedObject type '" + type + "' An IllegalAccessException has occurred.");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Registers a DistributedObject type that is created by a factory, such as its constructor reference, instead of through reflection
+	 * @param type The type name the server sends the object with
+	 * @param factory Creates a new instance of the object
+	 */
+	public void registerDistributedObject(String type, Supplier<? extends DistributedObject> factory) {
+		this.logger.info("Internal/ClientRepository: Registering DistributedObject type '" + type + "'");
+		this.registeredDistributedObjects.put(type, factory);
 	}
 	
 	public ObjectPool<Packet> getPacketPool(int id) {
-		return this.registeredPacketPools.get(id);
+		ObjectPool<Packet>[] pools = id < 0 ? this.internalPacketPools : this.packetPools;
+		int index = id < 0 ? -id : id;
+		if (index >= 0 && index < pools.length) {
+			return pools[index];
+		}
+		return this.largeIdPacketPools.get(id);
 	}
 	
 	public DistributedObject createDistributedObject(String type) {
-		if (this.registeredDistributedObjects.get(type) == null) {
+		Supplier<? extends DistributedObject> factory = this.registeredDistributedObjects.get(type);
+		if (factory == null) {
 			this.logger.severe("Internal/ClientRepository: Protocol violation, attempted to access a DistributedObject with a non-existant type '" + type + "' disconnecting. (Did you register the DistributedObject using UnknownClient.registerDistributedObject?)");
 			throw new ProtocolViolationException("A protocol violation has occurred. Attempted to access a DistributedObject with a non-existant type '" + type + "' (Did you register the DistributedObject using UnknownClient.registerDistributedObject?)");
 		}
+		return factory.get();
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ObjectPool<Packet>[] newPools(int length) {
+		return (ObjectPool<Packet>[]) new ObjectPool<?>[length];
+	}
+	
+	/**
+	 * Creates the internal packets with plain constructor calls
+	 */
+	private static class InternalPacketFactory implements Supplier<Packet> {
 		
-		try {
-			return this.registeredDistributedObjects.get(type).newInstance();
-		} catch (InstantiationException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		} catch (IllegalAccessException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+		private final int id;
+		
+		InternalPacketFactory(int id) {
+			this.id = id;
+		}
+		
+		@Override
+		public Packet get() {
+			switch (this.id) {
+			case -1:
+				return new InternalPacket1Kick();
+			case -2:
+				return new InternalPacket2Handshake();
+			case -3:
+				return new InternalPacket3KeepAlive();
+			case -5:
+				return new InternalPacket5Hello();
+			case -6:
+				return new InternalPacket6DistributedObjectCreation();
+			case -7:
+				return new InternalPacket7DestroyDistributedObject();
+			case -8:
+				return new InternalPacket8DistributedObjectEdit();
+			case -9:
+				return new InternalPacket9LeaveZone();
+			case -11:
+				return new InternalPacket11ReliableDatagram();
+			case -12:
+				return new InternalPacket12Fragment();
+			default:
+				throw new IllegalArgumentException("No internal packet has the id " + this.id);
+			}
 		}
-		return null;
 	}
 }
@@ -0,0 +1,146 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * InternalPacket11ReliableDatagram - A datagram sent by a {@link com.Unkn0wn0ne.unknownet.client.util.ReliableChannel}, only if the server agreed to it in the handshake.
+ * Every one carries its own sequence number and acknowledges the newest datagram received from the other side, along with a bitfield of the 32 before it.
+ * Unless it only carries acknowledgements, it also holds one RELIABLE_UDP or RELIABLE_ORDERED_UDP packet, id included, and that packet's number on its sub-channel.
+ */
+public class InternalPacket11ReliableDatagram extends Packet {
+
+	private int sequence = 0;
+	private int ack = 0;
+	private int ackBits = 0;
+	private byte channel = 0;
+	private int messageId = 0;
+	private byte[] payload = null;
+	
+	/**
+	 * @param vars The sequence number, the acknowledged sequence number, the acknowledgement bitfield, the sub-channel, the message id and the encoded packet
+	 */
+	@Override
+	public void setVariables(Object... vars) {
+		this.setHeader((Integer)vars[0], (Integer)vars[1], (Integer)vars[2]);
+		this.setMessage((Byte)vars[3], (Integer)vars[4], (byte[])vars[5]);
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * @param sequence The datagram's sequence number
+	 * @param ack The newest sequence number received from the other side
+	 * @param ackBits Bit n is set if the datagram ack - 1 - n was received
+	 */
+	public void setHeader(int sequence, int ack, int ackBits) {
+		this.sequence = sequence;
+		this.ack = ack;
+		this.ackBits = ackBits;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * @param channel One of the ReliableChannel.CHANNEL_ constants
+	 * @param messageId The packet's number on its sub-channel, ignored for acknowledgements
+	 * @param payload The encoded packet, null for acknowledgements
+	 */
+	public void setMessage(byte channel, int messageId, byte[] payload) {
+		this.channel = channel;
+		this.messageId = messageId;
+		this.payload = payload;
+	}
+
+	@Override
+	public int getId() {
+		return -11;
+	}
+
+	@Override
+	public void write(DataOutputStream dataStream) throws IOException {
+		dataStream.writeInt(this.sequence);
+		dataStream.writeInt(this.ack);
+		dataStream.writeInt(this.ackBits);
+		dataStream.writeByte(this.channel);
+		if (this.payload == null) {
+			return;
+		}
+		if (this.payload.length > 0xFFFF) {
+			throw new IOException("Packet is too large to be sent reliably (" + this.payload.length + " bytes)");
+		}
+		dataStream.writeInt(this.messageId);
+		dataStream.writeShort(this.payload.length);
+		dataStream.write(this.payload);
+	}
+
+	@Override
+	public void read(DataInputStream dataStream) throws IOException {
+		this.sequence = dataStream.readInt();
+		this.ack = dataStream.readInt();
+		this.ackBits = dataStream.readInt();
+		this.channel = dataStream.readByte();
+		if (this.channel == 0) {
+			return;
+		}
+		this.messageId = dataStream.readInt();
+		this.payload = new byte[dataStream.readUnsignedShort()];
+		dataStream.readFully(this.payload);
+	}
+	
+	public int getSequence() {
+		return this.sequence;
+	}
+	
+	public int getAck() {
+		return this.ack;
+	}
+	
+	public int getAckBits() {
+		return this.ackBits;
+	}
+	
+	public byte getChannel() {
+		return this.channel;
+	}
+	
+	public int getMessageId() {
+		return this.messageId;
+	}
+	
+	public byte[] getPayload() {
+		return this.payload;
+	}
+
+	@Override
+	public PACKET_PRIORITY getPriority() {
+		return PACKET_PRIORITY.INTERNAL;
+	}
+
+	@Override
+	public PACKET_PROTOCOL getProtocol() {
+		return PACKET_PROTOCOL.UDP;
+	}
+
+	@Override
+	public void clearVariables() {
+		this.sequence = 0;
+		this.ack = 0;
+		this.ackBits = 0;
+		this.channel = 0;
+		this.messageId = 0;
+		this.payload = null;
+	}
+}
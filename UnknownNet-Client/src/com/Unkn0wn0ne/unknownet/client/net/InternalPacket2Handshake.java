@@ -16,12 +16,49 @@ package com.Unkn0wn0ne.unknownet.client.net;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 public class InternalPacket2Handshake extends Packet{
 
+	/**
+	 * Asks the server to prefix every packet sent over TCP after the handshake with its length
+	 */
+	public static final int FLAG_LENGTH_FRAMING = 1;
+	
+	/**
+	 * Asks the server to send DistributedObjects in the binary format instead of as text
+	 */
+	public static final int FLAG_BINARY_OBJECTS = 2;
+	
+	/**
+	 * Asks the server to acknowledge RELIABLE_UDP and RELIABLE_ORDERED_UDP packets and send its own again until they arrive
+	 */
+	public static final int FLAG_RELIABLE_UDP = 4;
+	
+	/**
+	 * Asks the server to split datagrams larger than its MTU into fragments and to put the client's fragments back together
+	 */
+	public static final int FLAG_FRAGMENTATION = 8;
+	
+	/**
+	 * The client asks for, or the server accepts, packet ids, frame lengths and the client id of datagrams being sent as varints after the handshake
+	 */
+	public static final int FLAG_COMPACT_HEADERS = 16;
+	
+	// Options are sent as one more login parameter, so servers without options can still read the handshake and just pass it to their callback
+	private static final String OPTIONS = "\u0000UnknownNet-Options:";
+	// The same, when the client has no login data of its own
+	private static final String OPTIONS_NO_LOGIN = "\u0000UnknownNet-Options-NoLogin:";
+	
+	// Bits of the response from a server that understood the options. Servers without options only ever send 0 or 1.
+	private static final int RESPONSE_ACCEPTED = 1;
+	private static final int RESPONSE_WITH_OPTIONS = 2;
+	
 	private String protocolVersion;
 	private boolean response = false;
 	private String[] loginParams = null;
+	private int requestedFlags = 0;
+	private int acceptedFlags = 0;
 	
 	@Override
 	public int getId() {
@@ -31,11 +68,20 @@ public class InternalPacket2Handshake extends Packet{
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
 		dataStream.writeUTF(this.protocolVersion);
-		if (loginParams == null) {
+		String[] params = this.loginParams;
+		if (this.requestedFlags != 0) {
+			if (params == null) {
+				params = new String[] { OPTIONS_NO_LOGIN + this.requestedFlags };
+			} else {
+				params = Arrays.copyOf(params, params.length + 1);
+				params[params.length - 1] = OPTIONS + this.requestedFlags;
+			}
+		}
+		if (params == null) {
 			dataStream.writeInt(-1);
 		} else {
-			dataStream.writeInt(this.loginParams.length);
-			for (String s : this.loginParams) {
+			dataStream.writeInt(params.length);
+			for (String s : params) {
 				dataStream.writeUTF(s);
 			}
 		}
@@ -43,7 +89,11 @@ public class InternalPacket2Handshake extends Packet{
 
 	@Override
 	public void read(DataInputStream dataStream) throws IOException {
-		this.response = dataStream.readBoolean();
+		int response = dataStream.readUnsignedByte();
+		this.response = (response & RESPONSE_ACCEPTED) != 0;
+		if ((response & RESPONSE_WITH_OPTIONS) != 0) {
+			this.acceptedFlags = dataStream.readInt();
+		}
 	}
 
 	@Override
@@ -64,6 +114,21 @@ public class InternalPacket2Handshake extends Packet{
 	public boolean getResponse() {
 		return this.response;
 	}
+	
+	/**
+	 * Sets the options to ask the server for, a combination of the FLAG_ constants. 0 sends the same handshake as servers without options expect.
+	 * Servers without options see the options as one more login parameter and never accept any of them.
+	 */
+	public void setRequestedFlags(int flags) {
+		this.requestedFlags = flags;
+	}
+	
+	/**
+	 * Gets the options the server accepted, only valid once the response has been read
+	 */
+	public int getAcceptedFlags() {
+		return this.acceptedFlags;
+	}
 
 	@Override
 	public PACKET_PROTOCOL getProtocol() {
@@ -75,5 +140,7 @@ public class InternalPacket2Handshake extends Packet{
 		this.protocolVersion = null;
 		this.response = false;
 		this.loginParams = null;
+		this.requestedFlags = 0;
+		this.acceptedFlags = 0;
 	}
 }
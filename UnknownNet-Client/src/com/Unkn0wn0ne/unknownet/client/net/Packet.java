@@ -16,6 +16,7 @@ package com.Unkn0wn0ne.unknownet.client.net;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.Unkn0wn0ne.unknownet.client.util.PoolableObject;
 
@@ -45,6 +46,38 @@ public abstract class Packet implements PoolableObject {
 	 */
 	public abstract void read(DataInputStream dataStream) throws IOException;
 	
+	/**
+	 * Called when the packet's data is written straight into a buffer, as it is for UDP datagrams.
+	 * By default this calls {@link #write(DataOutputStream)} with a stream over the buffer. Packets that override it should override {@link #read(ByteBuffer)} to match.
+	 * @param buffer The buffer to write the data to, from its position
+	 * @throws IOException If an IO error occurred while writing data
+	 * @throws java.nio.BufferOverflowException If the data does not fit in the buffer
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		PacketBufferStreams streams = PacketBufferStreams.open(buffer);
+		try {
+			this.write(streams.dataOutputStream);
+		} finally {
+			streams.close();
+		}
+	}
+	
+	/**
+	 * Called when the packet's data is read straight from a buffer.
+	 * By default this calls {@link #read(DataInputStream)} with a stream over the buffer.
+	 * @param buffer The buffer to read the data from, between its position and limit
+	 * @throws IOException If the data is truncated or malformed
+	 * @throws java.nio.BufferUnderflowException If the data is truncated and the packet reads the buffer directly
+	 */
+	public void read(ByteBuffer buffer) throws IOException {
+		PacketBufferStreams streams = PacketBufferStreams.open(buffer);
+		try {
+			this.read(streams.dataInputStream);
+		} finally {
+			streams.close();
+		}
+	}
+	
 	/**
 	 * Gets the PACKET_PRIORITY of the packet. This can range from High or Normal for implementation packets and internal UnknownNet packets carry the INTERNAL priority.
 	 * @return A value from the PACKET_PRIORITY enum
@@ -62,10 +95,30 @@ public abstract class Packet implements PoolableObject {
 		this.write(dataStream);
 	}
 	
+	/**
+	 * Internal method. Do not call.
+	 * Writes the packet id and then calls {@link #write(ByteBuffer)}
+	 */
+	public void _write(ByteBuffer buffer) throws IOException {
+		buffer.putInt(this.getId());
+		this.write(buffer);
+	}
+	
 	public enum PACKET_PROTOCOL {
 		TCP,
 		
-		UDP
+		UDP,
+		
+		/**
+		 * Sent over UDP and sent again until the server acknowledges it, then handled as soon as it arrives.
+		 * If the server did not agree to acknowledge packets in the handshake it's sent over TCP in the 'Dualstack (TCP + UDP)' configuration, and over plain UDP in the 'UDP' one.
+		 */
+		RELIABLE_UDP,
+		
+		/**
+		 * Like {@link #RELIABLE_UDP}, but handled in the order it was sent, after every earlier RELIABLE_ORDERED_UDP packet
+		 */
+		RELIABLE_ORDERED_UDP
 	}
 	
 	/**
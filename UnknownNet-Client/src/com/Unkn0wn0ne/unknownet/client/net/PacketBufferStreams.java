@@ -0,0 +1,63 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.nio.ByteBuffer;
+
+import com.Unkn0wn0ne.unknownet.client.util.ByteBufferInputStream;
+import com.Unkn0wn0ne.unknownet.client.util.ByteBufferOutputStream;
+
+/**
+ * Internal class. Do not use.
+ * The streams {@link Packet#write(ByteBuffer)} and {@link Packet#read(ByteBuffer)} hand to packets that only implement the stream methods.
+ * Every thread reuses one set, a packet that writes or reads another packet from inside its own stream methods is given a new set for the nested one.
+ */
+final class PacketBufferStreams {
+
+	private static final ThreadLocal<PacketBufferStreams> STREAMS = new ThreadLocal<PacketBufferStreams>() {
+		@Override
+		protected PacketBufferStreams initialValue() {
+			return new PacketBufferStreams();
+		}
+	};
+
+	private final ByteBufferOutputStream output = new ByteBufferOutputStream();
+	private final ByteBufferInputStream input = new ByteBufferInputStream();
+	final DataOutputStream dataOutputStream = new DataOutputStream(this.output);
+	final DataInputStream dataInputStream = new DataInputStream(this.input);
+	private boolean inUse = false;
+
+	/**
+	 * Takes the thread's streams, which must be given back with {@link #close()}
+	 * @param buffer The buffer the streams read and write
+	 */
+	static PacketBufferStreams open(ByteBuffer buffer) {
+		PacketBufferStreams streams = STREAMS.get();
+		if (streams.inUse) {
+			streams = new PacketBufferStreams();
+		}
+		streams.inUse = true;
+		streams.output.setBuffer(buffer);
+		streams.input.setBuffer(buffer);
+		return streams;
+	}
+
+	void close() {
+		this.output.setBuffer(null);
+		this.input.setBuffer(null);
+		this.inUse = false;
+	}
+}
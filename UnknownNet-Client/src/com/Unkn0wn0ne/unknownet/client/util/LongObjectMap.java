@@ -0,0 +1,245 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.util;
+
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * LongObjectMap - A map from primitive long keys to objects that never boxes its keys.
+ * Changes are made in place under a lock. Lookups never take the lock: they read the table optimistically and only retry, holding the lock, if a change was made while they read.
+ * Removal shifts the entries that follow back into the freed slot, so the table never fills with deleted markers however often objects come and go.
+ * @author Unkn0wn0ne
+ */
+public class LongObjectMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * An open addressing table, a slot is empty when its value is null. Replaced by a larger or smaller table when the map grows or shrinks.
+	 */
+	private static class Table {
+		final long[] keys;
+		final Object[] values;
+		final int mask;
+
+		Table(int capacity) {
+			this.keys = new long[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+		}
+	}
+
+	private final StampedLock lock = new StampedLock();
+	private volatile Table table = new Table(MIN_CAPACITY);
+	// Only changed while holding the write lock
+	private volatile int size = 0;
+
+	/**
+	 * Gets the value stored for a key. Safe to call from any thread, and doesn't lock unless the map is changed while it reads.
+	 * @param key The key to look up
+	 * @return The value, or null if there is none
+	 */
+	public V get(long key) {
+		long stamp = this.lock.tryOptimisticRead();
+		if (stamp != 0) {
+			V value = find(this.table, key);
+			if (this.lock.validate(stamp)) {
+				return value;
+			}
+		}
+
+		stamp = this.lock.readLock();
+		try {
+			return find(this.table, key);
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Stores a value for a key, replacing any value already stored for it
+	 * @param key The key
+	 * @param value The value, may not be null
+	 * @return The value that was replaced, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value) {
+		if (value == null) {
+			throw new NullPointerException("LongObjectMap does not accept null values");
+		}
+
+		long stamp = this.lock.writeLock();
+		try {
+			Table table = this.table;
+			int index = hash(key) & table.mask;
+			while (table.values[index] != null) {
+				if (table.keys[index] == key) {
+					Object previous = table.values[index];
+					table.values[index] = value;
+					return (V) previous;
+				}
+				index = (index + 1) & table.mask;
+			}
+
+			if ((this.size + 1) * 2 > table.keys.length) {
+				// Kept at most half full so that probes stay short
+				table = this.resize(table.keys.length << 1);
+				index = hash(key) & table.mask;
+				while (table.values[index] != null) {
+					index = (index + 1) & table.mask;
+				}
+			}
+			table.keys[index] = key;
+			table.values[index] = value;
+			this.size++;
+			return null;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes the value stored for a key
+	 * @param key The key
+	 * @return The value that was removed, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key) {
+		long stamp = this.lock.writeLock();
+		try {
+			Table table = this.table;
+			int index = hash(key) & table.mask;
+			while (table.values[index] != null) {
+				if (table.keys[index] == key) {
+					Object previous = table.values[index];
+					this.deleteAt(table, index);
+					this.size--;
+					if (this.size * 8 < table.keys.length && table.keys.length > MIN_CAPACITY) {
+						this.resize(table.keys.length >> 1);
+					}
+					return (V) previous;
+				}
+				index = (index + 1) & table.mask;
+			}
+			return null;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Removes every value
+	 */
+	public void clear() {
+		long stamp = this.lock.writeLock();
+		try {
+			this.table = new Table(MIN_CAPACITY);
+			this.size = 0;
+		} finally {
+			this.lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * @return Every key in the map when it was called, in no particular order
+	 */
+	public long[] keys() {
+		long stamp = this.lock.readLock();
+		try {
+			Table table = this.table;
+			long[] keys = new long[this.size];
+			int count = 0;
+			for (int i = 0; i < table.values.length; i++) {
+				if (table.values[i] != null) {
+					keys[count++] = table.keys[i];
+				}
+			}
+			return keys;
+		} finally {
+			this.lock.unlockRead(stamp);
+		}
+	}
+
+	public int size() {
+		return this.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size == 0;
+	}
+
+	/**
+	 * Looks a key up in a table that may be changing underneath it. The probe is bounded, so a torn read can't loop forever, and the caller validates the result.
+	 */
+	@SuppressWarnings("unchecked")
+	private static <V> V find(Table table, long key) {
+		int index = hash(key) & table.mask;
+		for (int probes = 0; probes <= table.mask; probes++) {
+			Object value = table.values[index];
+			if (value == null) {
+				return null;
+			}
+			if (table.keys[index] == key) {
+				return (V) value;
+			}
+			index = (index + 1) & table.mask;
+		}
+		return null;
+	}
+
+	/**
+	 * Empties a slot and moves back any following entry whose probe passed through it, so that no lookup stops early at the gap
+	 */
+	private void deleteAt(Table table, int index) {
+		int gap = index;
+		int next = (gap + 1) & table.mask;
+		while (table.values[next] != null) {
+			int home = hash(table.keys[next]) & table.mask;
+			// The entry can fill the gap if its home slot isn't between the gap and where it sits now
+			if (((next - home) & table.mask) >= ((next - gap) & table.mask)) {
+				table.keys[gap] = table.keys[next];
+				table.values[gap] = table.values[next];
+				gap = next;
+			}
+			next = (next + 1) & table.mask;
+		}
+		table.values[gap] = null;
+	}
+
+	private Table resize(int capacity) {
+		Table old = this.table;
+		Table table = new Table(capacity);
+		for (int i = 0; i < old.values.length; i++) {
+			Object value = old.values[i];
+			if (value != null) {
+				int index = hash(old.keys[i]) & table.mask;
+				while (table.values[index] != null) {
+					index = (index + 1) & table.mask;
+				}
+				table.keys[index] = old.keys[i];
+				table.values[index] = value;
+			}
+		}
+		this.table = table;
+		return table;
+	}
+
+	/**
+	 * Spreads sequential keys, such as object ids, across the table
+	 */
+	private static int hash(long key) {
+		long h = key * 0x9E3779B97F4A7C15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
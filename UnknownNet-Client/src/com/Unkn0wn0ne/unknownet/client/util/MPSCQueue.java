@@ -0,0 +1,163 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.util;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * MPSCQueue - A bounded, lock-free queue that any number of threads may add to while a single thread takes from it.
+ * Every slot of the ring carries a sequence number that tells producers whether the slot is free and tells the consumer whether the slot has been published, so neither side ever blocks the other.
+ * @author Unkn0wn0ne
+ */
+public class MPSCQueue<E> {
+
+	private final AtomicReferenceArray<E> buffer;
+	private final AtomicLongArray sequences;
+	private final int mask;
+	private final int capacity;
+
+	private final AtomicLong tail = new AtomicLong(0);
+	// Only written by the consumer, volatile so that size() can be read from any thread
+	private volatile long head = 0;
+
+	/**
+	 * Creates a new queue
+	 * @param capacity The maximum number of elements the queue can hold. This is rounded up to the next power of two.
+	 */
+	public MPSCQueue(int capacity) {
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		this.capacity = size;
+		this.mask = size - 1;
+		this.buffer = new AtomicReferenceArray<E>(size);
+		this.sequences = new AtomicLongArray(size);
+		for (int i = 0; i < size; i++) {
+			this.sequences.set(i, i);
+		}
+	}
+
+	/**
+	 * Adds an element to the queue. Safe to call from any thread.
+	 * @param element The element to add
+	 * @return False if the queue is full and the element was not added
+	 */
+	public boolean offer(E element) {
+		if (element == null) {
+			throw new NullPointerException("MPSCQueue does not accept null elements");
+		}
+
+		long position;
+		int index;
+		while (true) {
+			position = this.tail.get();
+			index = (int) (position & this.mask);
+			long difference = this.sequences.get(index) - position;
+			if (difference == 0) {
+				if (this.tail.compareAndSet(position, position + 1)) {
+					break;
+				}
+			} else if (difference < 0) {
+				// The consumer hasn't taken the element a full lap ago yet
+				return false;
+			}
+			// Another producer claimed this slot first, try the next one
+		}
+
+		this.buffer.lazySet(index, element);
+		this.sequences.lazySet(index, position + 1);
+		return true;
+	}
+
+	/**
+	 * Takes the oldest element from the queue. Must only be called by the consumer thread.
+	 * @return The element, or null if the queue is empty
+	 */
+	public E poll() {
+		long position = this.head;
+		int index = (int) (position & this.mask);
+		if (this.sequences.get(index) != position + 1) {
+			return null;
+		}
+
+		E element = this.buffer.get(index);
+		this.buffer.lazySet(index, null);
+		this.sequences.lazySet(index, position + this.capacity);
+		this.head = position + 1;
+		return element;
+	}
+
+	/**
+	 * Moves every element that has been published so far into the collection. Must only be called by the consumer thread.
+	 * This is cheaper than calling {@link #poll()} repeatedly as the head of the queue is only published once.
+	 * @param collection The collection to add the elements to
+	 * @return The number of elements that were moved
+	 */
+	public int drainTo(Collection<? super E> collection) {
+		return this.drainTo(collection, Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Moves up to maxElements elements into the collection. Must only be called by the consumer thread.
+	 * @param collection The collection to add the elements to
+	 * @param maxElements The maximum number of elements to move
+	 * @return The number of elements that were moved
+	 */
+	public int drainTo(Collection<? super E> collection, int maxElements) {
+		long position = this.head;
+		int drained = 0;
+		while (drained < maxElements) {
+			int index = (int) (position & this.mask);
+			if (this.sequences.get(index) != position + 1) {
+				break;
+			}
+
+			collection.add(this.buffer.get(index));
+			this.buffer.lazySet(index, null);
+			this.sequences.lazySet(index, position + this.capacity);
+			position++;
+			drained++;
+		}
+		this.head = position;
+		return drained;
+	}
+
+	/**
+	 * @return True if the consumer would not get an element from {@link #poll()} right now
+	 */
+	public boolean isEmpty() {
+		long position = this.head;
+		return this.sequences.get((int) (position & this.mask)) != position + 1;
+	}
+
+	/**
+	 * @return An estimate of the number of elements in the queue
+	 */
+	public int size() {
+		long size = this.tail.get() - this.head;
+		if (size < 0) {
+			return 0;
+		}
+		return (int) Math.min(size, this.capacity);
+	}
+
+	public int capacity() {
+		return this.capacity;
+	}
+}
@@ -0,0 +1,471 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.util;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.List;
+
+import com.Unkn0wn0ne.unknownet.client.net.InternalPacket11ReliableDatagram;
+
+/**
+ * ReliableChannel - Delivers the packets of one UDP connection that must arrive, without waiting on a TCP stream.
+ * Every datagram the channel sends is numbered and acknowledges the newest datagram received from the other side, along with a bitfield of the 32 before it, so acknowledgements ride along with the packets going the other way.
+ * A packet is sent again in a new datagram once none of the datagrams carrying it has been acknowledged within the retransmission timeout, which follows the measured round trip time. Only the packets that are missing are sent again.
+ * Packets are sent on one of two sub-channels. The unordered one hands packets out as soon as they arrive, the ordered one holds them back until every earlier packet has arrived. Both drop duplicates.
+ * Internal class, one is created for each connection that agreed to it in the handshake. The receiving and sending threads may differ, but only the sending thread may transmit.
+ * @author Unkn0wn0ne
+ */
+public class ReliableChannel {
+
+	public static final byte CHANNEL_ACK = 0;
+	public static final byte CHANNEL_UNORDERED = 1;
+	public static final byte CHANNEL_ORDERED = 2;
+	
+	// How far a sub-channel's newest packet may get ahead of its oldest unacknowledged one, newer packets wait to be sent
+	private static final int WINDOW = 512;
+	// How many sent datagrams are remembered to match acknowledgements against
+	private static final int HISTORY = 1024;
+	// How many acknowledgements may wait for the next update, in pairs of sequence number and bitfield
+	private static final int MAX_QUEUED_ACKS = 64;
+	
+	// Milliseconds to wait for an acknowledgement before the first round trip has been measured
+	private static final double INITIAL_TIMEOUT = 200;
+	private static final double MIN_TIMEOUT = 20;
+	private static final double MAX_TIMEOUT = 2000;
+	// Milliseconds a packet may go unacknowledged before the connection is considered lost
+	private static final long GIVE_UP = 20000;
+	
+	// Marks a packet of the unordered sub-channel that has already been handed out
+	private static final byte[] DELIVERED = new byte[0];
+	
+	private final SubChannel unordered = new SubChannel(CHANNEL_UNORDERED);
+	private final SubChannel ordered = new SubChannel(CHANNEL_ORDERED);
+	
+	private int sequence = 0;
+	private final int[] sentSequences = new int[HISTORY];
+	private final Message[] sentMessages = new Message[HISTORY];
+	private final long[] sentTimes = new long[HISTORY];
+	
+	private boolean receivedAny = false;
+	private int remoteSequence = -1;
+	private int receivedBits = 0;
+	// Set when a packet arrives, cleared once a datagram has acknowledged it
+	private boolean ackPending = false;
+	// The received datagrams no datagram has acknowledged yet, the newest one and the bitfield of the 32 before it
+	private boolean remoteUnreported = false;
+	private int unreportedBits = 0;
+	// Acknowledgements for datagrams that would have left the bitfield before being acknowledged, sent by the next update
+	private final int[] queuedAcks = new int[MAX_QUEUED_ACKS * 2];
+	private int queuedAckCount = 0;
+	
+	private double smoothedRoundTrip = -1;
+	private double roundTripVariance = 0;
+	private double timeout = INITIAL_TIMEOUT;
+	private long retransmissions = 0;
+	
+	private final InternalPacket11ReliableDatagram datagram = new InternalPacket11ReliableDatagram();
+	private final ByteArrayOutputStream writer = new ByteArrayOutputStream();
+	private final DataOutputStream outputStream = new DataOutputStream(this.writer);
+	private final WireFormat wireFormat;
+	
+	public ReliableChannel() {
+		this(WireFormat.V1);
+	}
+	
+	/**
+	 * @param wireFormat The format the connection's datagrams are written in
+	 */
+	public ReliableChannel(WireFormat wireFormat) {
+		this.wireFormat = wireFormat;
+	}
+	
+	/**
+	 * Sends an encoded packet
+	 * @param payload The packet, id included. It must not be changed afterwards, it may be sent again.
+	 * @param inOrder True to send it on the ordered sub-channel
+	 * @param now The current time in milliseconds
+	 * @param transmitter Sends the datagrams
+	 * @throws IOException If a datagram could not be sent
+	 */
+	public synchronized void send(byte[] payload, boolean inOrder, long now, Transmitter transmitter) throws IOException {
+		SubChannel subChannel = inOrder ? this.ordered : this.unordered;
+		Message message = new Message(subChannel.type, subChannel.nextId++, payload);
+		if (!subChannel.waiting.isEmpty() || !subChannel.fitsWindow(message)) {
+			// Packets never overtake the ones waiting before them
+			subChannel.waiting.add(message);
+			return;
+		}
+		subChannel.unacknowledged.add(message);
+		this.transmit(message, now, transmitter);
+	}
+	
+	/**
+	 * Sends again every packet whose retransmission timeout has passed, sends packets that were waiting for room in the window and acknowledges packets that arrived since the last datagram was sent.
+	 * Should be called whenever {@link #getNextDeadline(long)} has passed.
+	 * @param now The current time in milliseconds
+	 * @param transmitter Sends the datagrams
+	 * @return False if a packet has gone unacknowledged for so long that the connection should be considered lost
+	 * @throws IOException If a datagram could not be sent
+	 */
+	public synchronized boolean update(long now, Transmitter transmitter) throws IOException {
+		if (!this.update(this.unordered, now, transmitter) || !this.update(this.ordered, now, transmitter)) {
+			return false;
+		}
+		
+		for (int i = 0; i < this.queuedAckCount; i++) {
+			this.transmitAck(this.queuedAcks[i * 2], this.queuedAcks[i * 2 + 1], transmitter);
+		}
+		this.queuedAckCount = 0;
+		if (this.ackPending) {
+			this.transmitAck(this.remoteSequence, this.receivedBits, transmitter);
+			this.ackPending = false;
+			this.remoteUnreported = false;
+			this.unreportedBits = 0;
+		}
+		return true;
+	}
+	
+	private void transmitAck(int ack, int ackBits, Transmitter transmitter) throws IOException {
+		this.datagram.setHeader(this.sequence, ack, ackBits);
+		this.datagram.setMessage(CHANNEL_ACK, 0, null);
+		transmitter.transmit(this.encode());
+	}
+	
+	private boolean update(SubChannel subChannel, long now, Transmitter transmitter) throws IOException {
+		subChannel.removeAcknowledged();
+		while (!subChannel.waiting.isEmpty() && subChannel.fitsWindow(subChannel.waiting.peek())) {
+			Message message = subChannel.waiting.poll();
+			subChannel.unacknowledged.add(message);
+			this.transmit(message, now, transmitter);
+		}
+		
+		for (Message message : subChannel.unacknowledged) {
+			if (message.acknowledged) {
+				continue;
+			}
+			if (now - message.firstSent > GIVE_UP) {
+				return false;
+			}
+			if (now >= message.lastSent + this.getTimeout(message)) {
+				this.retransmissions++;
+				this.transmit(message, now, transmitter);
+			}
+		}
+		return true;
+	}
+	
+	/**
+	 * Handles a datagram from the other side
+	 * @param received The datagram
+	 * @param now The current time in milliseconds
+	 * @param delivered The packets that can be handed out because of it, id included, are added to this list in the order they must be handled
+	 * @return False if the datagram was not valid and was ignored
+	 */
+	public synchronized boolean receive(InternalPacket11ReliableDatagram received, long now, List<byte[]> delivered) {
+		SubChannel subChannel;
+		switch (received.getChannel()) {
+		case CHANNEL_ACK:
+			this.acknowledge(received.getAck(), received.getAckBits(), now);
+			return true;
+		case CHANNEL_UNORDERED:
+			subChannel = this.unordered;
+			break;
+		case CHANNEL_ORDERED:
+			subChannel = this.ordered;
+			break;
+		default:
+			return false;
+		}
+		
+		if (!subChannel.accept(received.getMessageId(), received.getPayload(), delivered)) {
+			// Too far ahead to be held, leave it unacknowledged so it's sent again later
+			return false;
+		}
+		this.acknowledge(received.getAck(), received.getAckBits(), now);
+		this.markReceived(received.getSequence());
+		this.ackPending = true;
+		return true;
+	}
+	
+	/**
+	 * @param now The current time in milliseconds
+	 * @return The number of milliseconds until {@link #update(long, Transmitter)} has something to do, 0 if it has something to do now, or Long.MAX_VALUE if it has nothing to do until more packets are sent or received
+	 */
+	public synchronized long getNextDeadline(long now) {
+		if (this.ackPending || this.queuedAckCount > 0) {
+			return 0;
+		}
+		long deadline = Math.min(this.getNextDeadline(this.unordered), this.getNextDeadline(this.ordered));
+		return deadline == Long.MAX_VALUE ? deadline : Math.max(0, deadline - now);
+	}
+	
+	private long getNextDeadline(SubChannel subChannel) {
+		Message oldest = subChannel.unacknowledged.peek();
+		if (oldest != null && oldest.acknowledged) {
+			// Acknowledged since the last update, there may be room for waiting packets now
+			return 0;
+		}
+		
+		long deadline = Long.MAX_VALUE;
+		for (Message message : subChannel.unacknowledged) {
+			if (!message.acknowledged) {
+				deadline = Math.min(deadline, message.lastSent + this.getTimeout(message));
+			}
+		}
+		return deadline;
+	}
+	
+	/**
+	 * @return The smoothed round trip time in milliseconds, or -1 if none has been measured yet
+	 */
+	public synchronized double getRoundTripTime() {
+		return this.smoothedRoundTrip;
+	}
+	
+	/**
+	 * @return The number of times a packet has been sent again
+	 */
+	public synchronized long getRetransmissions() {
+		return this.retransmissions;
+	}
+	
+	/**
+	 * @return The number of packets sent that have not been acknowledged yet, including those waiting for room in the window
+	 */
+	public synchronized int getUnacknowledgedCount() {
+		return this.unordered.countUnacknowledged() + this.ordered.countUnacknowledged();
+	}
+	
+	private long getTimeout(Message message) {
+		// Back off exponentially while a packet keeps going missing
+		double backoff = this.timeout * (1 << Math.min(message.transmissions - 1, 6));
+		return (long) Math.min(backoff, MAX_TIMEOUT);
+	}
+	
+	private void transmit(Message message, long now, Transmitter transmitter) throws IOException {
+		int slot = this.sequence & (HISTORY - 1);
+		this.sentSequences[slot] = this.sequence;
+		this.sentMessages[slot] = message;
+		this.sentTimes[slot] = now;
+		
+		this.datagram.setHeader(this.sequence, this.remoteSequence, this.receivedBits);
+		this.datagram.setMessage(message.channel, message.id, message.payload);
+		this.sequence++;
+		if (message.transmissions == 0) {
+			message.firstSent = now;
+		}
+		message.lastSent = now;
+		message.transmissions++;
+		// The datagram acknowledges everything received so far
+		this.ackPending = false;
+		this.remoteUnreported = false;
+		this.unreportedBits = 0;
+		transmitter.transmit(this.encode());
+	}
+	
+	private byte[] encode() throws IOException {
+		this.writer.reset();
+		this.wireFormat.writePacket(this.datagram, this.outputStream);
+		return this.writer.toByteArray();
+	}
+	
+	private void acknowledge(int ack, int ackBits, long now) {
+		this.acknowledge(ack, now);
+		for (int i = 0; i < 32; i++) {
+			if ((ackBits & (1 << i)) != 0) {
+				this.acknowledge(ack - 1 - i, now);
+			}
+		}
+	}
+	
+	private void acknowledge(int sequence, long now) {
+		int slot = sequence & (HISTORY - 1);
+		if (this.sentSequences[slot] != sequence || this.sentMessages[slot] == null) {
+			// Already acknowledged, or too old to be remembered
+			return;
+		}
+		// Every datagram is timed the first time it's acknowledged, timing only the newest would favour the ones that arrived quickly
+		this.measureRoundTrip(now - this.sentTimes[slot]);
+		this.sentMessages[slot].acknowledged = true;
+		this.sentMessages[slot] = null;
+	}
+	
+	private void measureRoundTrip(long sample) {
+		// Smoothed the same way as TCP's retransmission timer (RFC 6298)
+		if (this.smoothedRoundTrip < 0) {
+			this.smoothedRoundTrip = sample;
+			this.roundTripVariance = sample / 2.0;
+		} else {
+			this.roundTripVariance = 0.75 * this.roundTripVariance + 0.25 * Math.abs(this.smoothedRoundTrip - sample);
+			this.smoothedRoundTrip = 0.875 * this.smoothedRoundTrip + 0.125 * sample;
+		}
+		this.timeout = Math.max(MIN_TIMEOUT, Math.min(MAX_TIMEOUT, this.smoothedRoundTrip + 4 * this.roundTripVariance));
+	}
+	
+	private void markReceived(int sequence) {
+		if (!this.receivedAny) {
+			this.receivedAny = true;
+			this.remoteSequence = sequence;
+			this.remoteUnreported = true;
+			return;
+		}
+		
+		int ahead = sequence - this.remoteSequence;
+		if (ahead > 0) {
+			// Bit n of the window is the datagram remoteSequence - n, the ones past bit 32 leave the bitfield
+			long unreported = ((long) this.unreportedBits << 1) | (this.remoteUnreported ? 1 : 0);
+			if (ahead > 32 || (unreported >>> (33 - ahead)) != 0) {
+				// Acknowledge them before they're forgotten
+				this.queueAck(this.remoteSequence, this.receivedBits);
+				this.remoteUnreported = false;
+				this.unreportedBits = 0;
+			}
+			
+			if (ahead > 32) {
+				this.receivedBits = 0;
+				this.unreportedBits = 0;
+			} else {
+				this.receivedBits = (int) (((long) this.receivedBits << ahead) | (1L << (ahead - 1)));
+				this.unreportedBits = (int) (((long) this.unreportedBits << ahead) | (this.remoteUnreported ? 1L << (ahead - 1) : 0));
+			}
+			this.remoteSequence = sequence;
+			this.remoteUnreported = true;
+		} else if (ahead < -32) {
+			// Arrived too late to fit in the bitfield, acknowledge it on its own
+			this.queueAck(sequence, 0);
+		} else if (ahead < 0) {
+			int bit = 1 << (-ahead - 1);
+			this.receivedBits |= bit;
+			this.unreportedBits |= bit;
+		}
+	}
+	
+	private void queueAck(int ack, int ackBits) {
+		if (this.queuedAckCount == MAX_QUEUED_ACKS) {
+			// The packets are sent again and acknowledged then
+			return;
+		}
+		this.queuedAcks[this.queuedAckCount * 2] = ack;
+		this.queuedAcks[this.queuedAckCount * 2 + 1] = ackBits;
+		this.queuedAckCount++;
+	}
+	
+	/**
+	 * Sends the datagrams of a ReliableChannel, prefixed with whatever the connection needs
+	 */
+	public interface Transmitter {
+		
+		/**
+		 * @param datagram The encoded {@link InternalPacket11ReliableDatagram}, id included
+		 * @throws IOException If the datagram could not be sent
+		 */
+		void transmit(byte[] datagram) throws IOException;
+	}
+	
+	private static class Message {
+		
+		final byte channel;
+		final int id;
+		final byte[] payload;
+		
+		long firstSent = 0;
+		long lastSent = 0;
+		int transmissions = 0;
+		boolean acknowledged = false;
+		
+		Message(byte channel, int id, byte[] payload) {
+			this.channel = channel;
+			this.id = id;
+			this.payload = payload;
+		}
+	}
+	
+	private static class SubChannel {
+		
+		final byte type;
+		
+		// Sending: the next id, the packets sent in id order until they are acknowledged, and the packets waiting for room in the window
+		int nextId = 0;
+		final ArrayDeque<Message> unacknowledged = new ArrayDeque<Message>();
+		final ArrayDeque<Message> waiting = new ArrayDeque<Message>();
+		
+		// Receiving: the id of the oldest packet that hasn't arrived, and the packets after it that have, by id modulo the window
+		int nextExpected = 0;
+		final byte[][] held = new byte[WINDOW][];
+		
+		SubChannel(byte type) {
+			this.type = type;
+		}
+		
+		boolean fitsWindow(Message message) {
+			this.removeAcknowledged();
+			Message oldest = this.unacknowledged.peek();
+			return oldest == null || message.id - oldest.id < WINDOW;
+		}
+		
+		void removeAcknowledged() {
+			while (!this.unacknowledged.isEmpty() && this.unacknowledged.peek().acknowledged) {
+				this.unacknowledged.poll();
+			}
+		}
+		
+		int countUnacknowledged() {
+			int count = this.waiting.size();
+			for (Message message : this.unacknowledged) {
+				if (!message.acknowledged) {
+					count++;
+				}
+			}
+			return count;
+		}
+		
+		/**
+		 * @return False if the packet is too far ahead to be held
+		 */
+		boolean accept(int id, byte[] payload, List<byte[]> delivered) {
+			int offset = id - this.nextExpected;
+			if (offset < 0) {
+				// Already handed out, its acknowledgement must have been lost
+				return true;
+			}
+			if (offset >= WINDOW) {
+				return false;
+			}
+			
+			int slot = id & (WINDOW - 1);
+			if (this.held[slot] != null) {
+				return true;
+			}
+			if (this.type == CHANNEL_ORDERED) {
+				this.held[slot] = payload;
+			} else {
+				delivered.add(payload);
+				this.held[slot] = DELIVERED;
+			}
+			
+			while (this.held[this.nextExpected & (WINDOW - 1)] != null) {
+				slot = this.nextExpected & (WINDOW - 1);
+				if (this.type == CHANNEL_ORDERED) {
+					delivered.add(this.held[slot]);
+				}
+				this.held[slot] = null;
+				this.nextExpected++;
+			}
+			return true;
+		}
+	}
+}
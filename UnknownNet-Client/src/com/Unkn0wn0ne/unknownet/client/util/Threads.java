@@ -0,0 +1,110 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.client.util;
+
+import java.lang.reflect.Method;
+
+/**
+ * Threads - Creates the threads UnknownNet runs connections on, either platform threads or virtual threads.
+ * Virtual threads only exist on Java 21 and later. UnknownNet is built for Java 8, so they are looked up when this class loads and platform threads are used wherever they are missing.
+ * @author Unkn0wn0ne
+ */
+public final class Threads {
+
+	// Thread.ofVirtual(), Thread.Builder.name(String), Thread.Builder.unstarted(Runnable) and Thread.isVirtual(), or null before Java 21
+	private static final Method OF_VIRTUAL;
+	private static final Method BUILDER_NAME;
+	private static final Method BUILDER_UNSTARTED;
+	private static final Method IS_VIRTUAL;
+
+	static {
+		Method ofVirtual = null;
+		Method name = null;
+		Method unstarted = null;
+		Method isVirtual = null;
+		try {
+			Class<?> builder = Class.forName("java.lang.Thread$Builder");
+			ofVirtual = Thread.class.getMethod("ofVirtual");
+			name = builder.getMethod("name", String.class);
+			unstarted = builder.getMethod("unstarted", Runnable.class);
+			isVirtual = Thread.class.getMethod("isVirtual");
+		} catch (Exception e) {
+			ofVirtual = null;
+		}
+		OF_VIRTUAL = ofVirtual;
+		BUILDER_NAME = name;
+		BUILDER_UNSTARTED = unstarted;
+		IS_VIRTUAL = isVirtual;
+	}
+
+	private Threads() {
+
+	}
+
+	/**
+	 * Checks if this Java version can create virtual threads
+	 * @return True on Java 21 and later
+	 */
+	public static boolean isVirtualThreadSupported() {
+		return OF_VIRTUAL != null;
+	}
+
+	/**
+	 * Checks if a thread is a virtual thread
+	 * @param thread The thread to check
+	 * @return True if the thread is virtual, always false before Java 21
+	 */
+	public static boolean isVirtual(Thread thread) {
+		if (IS_VIRTUAL == null) {
+			return false;
+		}
+		try {
+			return (Boolean) IS_VIRTUAL.invoke(thread);
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Creates a thread without starting it
+	 * @param runnable What the thread runs
+	 * @param name The thread's name
+	 * @param virtual True for a virtual thread. A platform thread is created if virtual threads are not supported.
+	 * @return The thread
+	 */
+	public static Thread newThread(Runnable runnable, String name, boolean virtual) {
+		if (virtual && OF_VIRTUAL != null) {
+			try {
+				Object builder = BUILDER_NAME.invoke(OF_VIRTUAL.invoke(null), name);
+				return (Thread) BUILDER_UNSTARTED.invoke(builder, runnable);
+			} catch (Exception e) {
+				// Fall back to a platform thread
+			}
+		}
+		return new Thread(runnable, name);
+	}
+
+	/**
+	 * Creates and starts a thread
+	 * @param runnable What the thread runs
+	 * @param name The thread's name
+	 * @param virtual True for a virtual thread. A platform thread is started if virtual threads are not supported.
+	 * @return The thread, which has been started
+	 */
+	public static Thread start(Runnable runnable, String name, boolean virtual) {
+		Thread thread = newThread(runnable, name, virtual);
+		thread.start();
+		return thread;
+	}
+}
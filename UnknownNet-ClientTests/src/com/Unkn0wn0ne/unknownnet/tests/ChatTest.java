@@ -84,10 +84,15 @@ public class ChatTest extends UnknownClient{
 		    	return;
 		    }
 		    
+		    if (msg.length() > Packet1ChatMessage.MAX_MESSAGE_LENGTH) {
+		    	System.out.println("Messages can be at most " + Packet1ChatMessage.MAX_MESSAGE_LENGTH + " characters long");
+		    	continue;
+		    }
+		    
 		    try {
 		    	// Send message to server
-				Packet chatPacket = this.createPacket(1);
-				chatPacket.setVariables(msg);
+				Packet1ChatMessage chatPacket = (Packet1ChatMessage) this.createPacket(1);
+				Packet1ChatMessageCodec.builder(chatPacket).setMessage(msg);
 				this.queuePacket(chatPacket);
 			} catch (ProtocolViolationException e) {
 				e.printStackTrace();
@@ -26,6 +26,10 @@ public class DistributedTest extends UnknownClient{
 		this.registerDistributedObject("DistributedClient", DistributedClient.class);
 		this.registerDistributedObject("DistributedPlayer", DistributedPlayer.class);
 		this.registerPacket(2, Packet2PlayerZone.class);
+		// The test server supports handshake options, so ask for all of them
+		this.setUseFraming(true);
+		this.setUseCompactHeaders(true);
+		this.setUseBinaryObjects(true);
 		String[] str = new String[1];
 		str[0] = "d";
 		//this.connectUDP("127.0.0.1", 4334, 4334, str);
@@ -36,11 +40,11 @@ public class DistributedTest extends UnknownClient{
 				
 				if (msg != null && msg.trim().equalsIgnoreCase("!joinPlayers")) {
 					Packet2PlayerZone playerZone = (Packet2PlayerZone) this.createPacket(2);
-					playerZone.setVariables(true);
+					Packet2PlayerZoneCodec.builder(playerZone).setIsJoining(true);
 					this.queuePacket(playerZone);
 				} else if (msg != null && msg.trim().equalsIgnoreCase("!leavePlayers")) {
 					Packet2PlayerZone playerZone = (Packet2PlayerZone) this.createPacket(2);
-					playerZone.setVariables(false);
+					Packet2PlayerZoneCodec.builder(playerZone).setIsJoining(false);
 					this.queuePacket(playerZone);
 				}
 				Thread.sleep(100);
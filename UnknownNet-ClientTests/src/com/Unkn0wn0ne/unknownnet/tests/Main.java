@@ -18,6 +18,7 @@ public class Main {
 	public static void main(String[] args) {
 		new ChatTest();
 		//new DistributedTest(false, "unknownserver-dev");
+		//new ObjectManagerBenchmark();
 	}
 
 }
@@ -0,0 +1,191 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.tests;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+
+import com.Unkn0wn0ne.unknownet.client.UnknownClient;
+import com.Unkn0wn0ne.unknownet.client.distributed.DistributedObject;
+import com.Unkn0wn0ne.unknownet.client.distributed.ObjectManager;
+import com.Unkn0wn0ne.unknownet.client.net.Packet;
+
+/**
+ * Compares the client's ObjectManager with the synchronized HashMap it used to keep, for a client holding many objects across a few zones.
+ * Lookups are timed while every object is held, then one zone is left, which used to check every object the client held.
+ */
+public class ObjectManagerBenchmark {
+
+	private static final int OBJECTS = 50000;
+	private static final int ZONES = 50;
+	private static final int LOOKUPS = 2000000;
+	private static final int LEAVES = 20;
+
+	// Keeps the looked up objects alive so that lookups can't be optimized away
+	private int found = 0;
+
+	public ObjectManagerBenchmark() {
+		BenchmarkClient client = new BenchmarkClient();
+		DistributedObject[] objects = new DistributedObject[OBJECTS];
+		for (int i = 0; i < OBJECTS; i++) {
+			objects[i] = new DistributedClient();
+			objects[i].setId(Long.MIN_VALUE + 1 + i);
+			objects[i].setZoneId(i % ZONES);
+		}
+
+		for (int round = 0; round < 3; round++) {
+			// The first rounds warm up the JIT and are not reported
+			boolean report = round == 2;
+
+			ObjectManager manager = new ObjectManager();
+			HashMapObjectManager legacy = new HashMapObjectManager();
+			for (DistributedObject object : objects) {
+				manager.addDistributedObject(object);
+				legacy.addDistributedObject(object);
+			}
+
+			long start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				if (manager.getDistributedObject(objects[i % OBJECTS].getId()) != null) {
+					this.found++;
+				}
+			}
+			long lookup = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < LOOKUPS; i++) {
+				if (legacy.getDistributedObject(objects[i % OBJECTS].getId()) != null) {
+					this.found++;
+				}
+			}
+			long legacyLookup = System.nanoTime() - start;
+
+			long leave = 0;
+			long legacyLeave = 0;
+			for (int i = 0; i < LEAVES; i++) {
+				if (i > 0) {
+					manager = new ObjectManager();
+					legacy = new HashMapObjectManager();
+					for (DistributedObject object : objects) {
+						manager.addDistributedObject(object);
+						legacy.addDistributedObject(object);
+					}
+				}
+				start = System.nanoTime();
+				manager.leaveZone(0, client);
+				leave += System.nanoTime() - start;
+
+				start = System.nanoTime();
+				legacy.leaveZone(0, client);
+				legacyLeave += System.nanoTime() - start;
+			}
+
+			if (report) {
+				System.out.println("ObjectManagerBenchmark: " + OBJECTS + " objects in " + ZONES + " zones, " + this.found + " lookups");
+				System.out.println("ObjectManagerBenchmark: HashMap,       lookup " + (legacyLookup / LOOKUPS) + " ns, leave a zone of " + (OBJECTS / ZONES) + " objects " + (legacyLeave / LEAVES / 1000) + " us");
+				System.out.println("ObjectManagerBenchmark: ObjectManager, lookup " + (lookup / LOOKUPS) + " ns, leave a zone of " + (OBJECTS / ZONES) + " objects " + (leave / LEAVES / 1000) + " us");
+			}
+		}
+	}
+
+	/**
+	 * The ObjectManager as it was before it kept its objects by zone
+	 */
+	private static class HashMapObjectManager {
+
+		private HashMap<Long, DistributedObject> distributedObjects = new HashMap<Long, DistributedObject>();
+
+		public void addDistributedObject(DistributedObject dobject) {
+			synchronized (this.distributedObjects) {
+				this.distributedObjects.put(dobject.getId(), dobject);
+			}
+		}
+
+		public DistributedObject getDistributedObject(long id) {
+			synchronized (this.distributedObjects) {
+				return this.distributedObjects.get(id);
+			}
+		}
+
+		public void leaveZone(int id, UnknownClient unknownClient) {
+			ArrayList<Long> ids = new ArrayList<Long>();
+			synchronized (this.distributedObjects) {
+				for (DistributedObject dObj : this.distributedObjects.values()) {
+					if (dObj.getZoneId() == id) {
+						ids.add(dObj.getId());
+					}
+				}
+			}
+
+			Long[] longs = new Long[ids.size()];
+			unknownClient.onZoneLeave(id, ids.toArray(longs));
+
+			for (long did : longs) {
+				synchronized (this.distributedObjects) {
+					this.distributedObjects.remove(did);
+				}
+			}
+		}
+	}
+
+	/**
+	 * A client that is never connected, only needed to be told about the zone it leaves
+	 */
+	private static class BenchmarkClient extends UnknownClient {
+
+		public BenchmarkClient() {
+			super(false, "unknownserver-dev");
+		}
+
+		@Override
+		public void onDistributedObjectReceived(int zoneId, long id) {
+
+		}
+
+		@Override
+		public void onDistributedObjectUpdated(int zoneId, long id) {
+
+		}
+
+		@Override
+		public void onDistributedObjectDestroyed(int zoneId, long dObjectId) {
+
+		}
+
+		@Override
+		public void onZoneLeave(long zoneId, Long[] dObjectIds) {
+
+		}
+
+		@Override
+		public void onConnectionSuccess() {
+
+		}
+
+		@Override
+		public void onConnectionFailed(String reason) {
+
+		}
+
+		@Override
+		public void onClientKicked(String reason) {
+
+		}
+
+		@Override
+		public void onPacketReceived(Packet packet) {
+
+		}
+	}
+}
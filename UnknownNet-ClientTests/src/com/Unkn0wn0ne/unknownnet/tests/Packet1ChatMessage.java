@@ -16,12 +16,19 @@ package com.Unkn0wn0ne.unknownnet.tests;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketCodec;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketField;
 
+@PacketCodec
 public class Packet1ChatMessage extends Packet{
 
-	private String smsg, rmsg;
+	public static final int MAX_MESSAGE_LENGTH = 1024;
+
+	@PacketField(maxLength = MAX_MESSAGE_LENGTH)
+	String message;
 	
 	@Override
 	public int getId() {
@@ -30,26 +37,36 @@ public class Packet1ChatMessage extends Packet{
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		dataStream.writeUTF(smsg);
+		Packet1ChatMessageCodec.write(this, dataStream);
 	}
 
 	@Override
 	public void read(DataInputStream dataStream) throws IOException {
-		this.rmsg = dataStream.readUTF();
+		Packet1ChatMessageCodec.read(this, dataStream);
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		Packet1ChatMessageCodec.write(this, buffer);
+	}
+
+	@Override
+	public void read(ByteBuffer buffer) throws IOException {
+		Packet1ChatMessageCodec.read(this, buffer);
 	}
 
 	@Override
 	public void setVariables(Object... vars) {
-		this.smsg = (String)vars[0];
+		Packet1ChatMessageCodec.setVariables(this, vars);
 	}
 
 	@Override
 	public PACKET_PRIORITY getPriority() {
 		return PACKET_PRIORITY.HIGH;
 	}
-	
+
 	public String getMessage() {
-		return this.rmsg;
+		return this.message;
 	}
 
 	@Override
@@ -59,8 +76,6 @@ public class Packet1ChatMessage extends Packet{
 
 	@Override
 	public void clearVariables() {
-		this.smsg = null;
-		this.rmsg = null;
+		Packet1ChatMessageCodec.clear(this);
 	}
-
-}
\ No newline at end of file
+}
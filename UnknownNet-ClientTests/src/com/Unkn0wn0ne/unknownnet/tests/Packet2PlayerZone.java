@@ -16,21 +16,21 @@ package com.Unkn0wn0ne.unknownnet.tests;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
 import com.Unkn0wn0ne.unknownet.client.net.Packet;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketCodec;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketField;
 
+@PacketCodec(maxSize = 1)
 public class Packet2PlayerZone extends Packet{
 
-	private boolean isJoining = false;
+	@PacketField
+	boolean isJoining = false;
 	
 	@Override
 	public void setVariables(Object... vars) {
-		this.isJoining = (boolean) vars[0];
-	}
-
-	@Override
-	public void clearVariables() {
-		this.isJoining = false;
+		Packet2PlayerZoneCodec.setVariables(this, vars);
 	}
 
 	@Override
@@ -40,12 +40,22 @@ public class Packet2PlayerZone extends Packet{
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		dataStream.writeBoolean(this.isJoining);
+		Packet2PlayerZoneCodec.write(this, dataStream);
 	}
 
 	@Override
 	public void read(DataInputStream dataStream) throws IOException {
-		
+		Packet2PlayerZoneCodec.read(this, dataStream);
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		Packet2PlayerZoneCodec.write(this, buffer);
+	}
+
+	@Override
+	public void read(ByteBuffer buffer) throws IOException {
+		Packet2PlayerZoneCodec.read(this, buffer);
 	}
 
 	@Override
@@ -58,4 +68,13 @@ public class Packet2PlayerZone extends Packet{
 		return PACKET_PROTOCOL.TCP;
 	}
 
+	@Override
+	public void clearVariables() {
+		Packet2PlayerZoneCodec.clear(this);
+	}
+	
+	public boolean isJoining() {
+		return this.isJoining;
+	}
+
 }
@@ -0,0 +1,88 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+/**
+ * A {@link PacketField} the processor has checked, with everything the codec needs to write it
+ * @author Unkn0wn0ne
+ */
+final class CodecField {
+
+	enum Shape {
+		PRIMITIVE,
+		STRING,
+		ARRAY;
+	}
+
+	private final String name;
+	private final Shape shape;
+	// The primitive type, or the type of the array's elements, null for Strings
+	private final WireType type;
+	private final int maxLength;
+
+	CodecField(String name, Shape shape, WireType type, int maxLength) {
+		this.name = name;
+		this.shape = shape;
+		this.type = type;
+		this.maxLength = maxLength;
+	}
+
+	String getName() {
+		return this.name;
+	}
+
+	Shape getShape() {
+		return this.shape;
+	}
+
+	WireType getType() {
+		return this.type;
+	}
+
+	/**
+	 * @return The most characters or elements, or -1 for no limit
+	 */
+	int getMaxLength() {
+		return this.maxLength;
+	}
+
+	/**
+	 * @return The field's type as it's written in source
+	 */
+	String getTypeName() {
+		switch (this.shape) {
+		case STRING:
+			return "String";
+		case ARRAY:
+			return this.type.getName() + "[]";
+		default:
+			return this.type.getName();
+		}
+	}
+
+	/**
+	 * @return The most bytes the field takes on the wire, or -1 if it's unbounded
+	 */
+	long getMaxSize() {
+		switch (this.shape) {
+		case STRING:
+			// Modified UTF-8 takes up to three bytes a character, after the length
+			return this.maxLength < 0 ? -1 : 2 + Math.min(3L * this.maxLength, 65535);
+		case ARRAY:
+			return this.maxLength < 0 ? -1 : 4 + (long) this.type.getSize() * this.maxLength;
+		default:
+			return this.type.getSize();
+		}
+	}
+}
@@ -0,0 +1,402 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+import java.util.List;
+
+/**
+ * Writes the source of a packet's codec
+ * @author Unkn0wn0ne
+ */
+final class CodecWriter {
+
+	private final String packageName;
+	private final String packetName;
+	private final String codecName;
+	private final List<CodecField> fields;
+	private final StringBuilder source = new StringBuilder();
+
+	/**
+	 * @param packageName The package of the packet and its codec
+	 * @param packetName The packet's qualified name
+	 * @param codecName The codec's simple name
+	 * @param fields The fields to send, in order
+	 */
+	CodecWriter(String packageName, String packetName, String codecName, List<CodecField> fields) {
+		this.packageName = packageName;
+		this.packetName = packetName;
+		this.codecName = codecName;
+		this.fields = fields;
+	}
+
+	String getQualifiedName() {
+		return this.packageName.isEmpty() ? this.codecName : this.packageName + "." + this.codecName;
+	}
+
+	/**
+	 * @return The codec's source
+	 */
+	String write() {
+		if (!this.packageName.isEmpty()) {
+			this.line(0, "package " + this.packageName + ";");
+			this.line(0, "");
+		}
+		this.line(0, "import java.io.DataInputStream;");
+		this.line(0, "import java.io.DataOutputStream;");
+		this.line(0, "import java.io.IOException;");
+		this.line(0, "import java.io.UTFDataFormatException;");
+		this.line(0, "import java.nio.BufferUnderflowException;");
+		this.line(0, "import java.nio.ByteBuffer;");
+		this.line(0, "");
+		this.line(0, "/**");
+		this.line(0, " * Writes, reads and clears the fields of {@link " + this.packetName + "}.");
+		this.line(0, " * Generated by " + PacketCodecProcessor.class.getName() + ", do not edit.");
+		this.line(0, " */");
+		this.line(0, "public final class " + this.codecName + " {");
+		this.line(0, "");
+		this.line(1, "/**");
+		this.line(1, " * The most bytes the packet's data takes, its id excluded, or -1 if a String or array field has no maxLength");
+		this.line(1, " */");
+		this.line(1, "public static final int MAX_SIZE = " + this.getMaxSize() + ";");
+		this.line(0, "");
+		this.line(1, "private " + this.codecName + "() {");
+		this.line(1, "}");
+
+		this.writeStreamWrite();
+		this.writeStreamRead();
+		this.writeBufferWrite();
+		this.writeBufferRead();
+		this.writeClear();
+		this.writeSetVariables();
+		this.writeBuilder();
+		this.writeHelpers();
+
+		this.line(0, "}");
+		return this.source.toString();
+	}
+
+	private void writeStreamWrite() {
+		this.method("Writes the packet's fields to a stream", "void write(" + this.packetName + " packet, DataOutputStream out) throws IOException");
+		for (CodecField field : this.fields) {
+			String value = "packet." + field.getName();
+			switch (field.getShape()) {
+			case PRIMITIVE:
+				this.line(2, field.getType().streamWrite(value));
+				break;
+			case STRING:
+				this.line(2, "out.writeUTF(" + value + " == null ? \"\" : " + value + ");");
+				break;
+			case ARRAY:
+				this.line(2, "if (" + value + " == null) {");
+				this.line(3, "out.writeInt(-1);");
+				this.line(2, "} else {");
+				this.line(3, "out.writeInt(" + value + ".length);");
+				if (field.getType() == WireType.BYTE) {
+					this.line(3, "out.write(" + value + ");");
+				} else {
+					this.line(3, "for (int i = 0; i < " + value + ".length; i++) {");
+					this.line(4, field.getType().streamWrite(value + "[i]"));
+					this.line(3, "}");
+				}
+				this.line(2, "}");
+				break;
+			}
+		}
+		this.line(1, "}");
+	}
+
+	private void writeStreamRead() {
+		this.method("Reads the packet's fields from a stream", "void read(" + this.packetName + " packet, DataInputStream in) throws IOException");
+		for (CodecField field : this.fields) {
+			String value = "packet." + field.getName();
+			switch (field.getShape()) {
+			case PRIMITIVE:
+				this.line(2, value + " = " + field.getType().streamRead() + ";");
+				break;
+			case STRING:
+				this.line(2, value + " = checkString(\"" + field.getName() + "\", in.readUTF(), " + field.getMaxLength() + ");");
+				break;
+			case ARRAY:
+				this.readArray(field, "in.readInt()", null);
+				if (field.getType() == WireType.BYTE) {
+					this.line(3, "in.readFully(" + value + ");");
+				} else {
+					this.line(3, "for (int i = 0; i < " + value + ".length; i++) {");
+					this.line(4, value + "[i] = " + field.getType().streamRead() + ";");
+					this.line(3, "}");
+				}
+				this.line(2, "}");
+				break;
+			}
+		}
+		this.line(1, "}");
+	}
+
+	private void writeBufferWrite() {
+		this.method("Writes the packet's fields into a buffer", "void write(" + this.packetName + " packet, ByteBuffer buffer) throws IOException");
+		for (CodecField field : this.fields) {
+			String value = "packet." + field.getName();
+			switch (field.getShape()) {
+			case PRIMITIVE:
+				this.line(2, field.getType().bufferWrite(value));
+				break;
+			case STRING:
+				this.line(2, "putString(buffer, " + value + " == null ? \"\" : " + value + ");");
+				break;
+			case ARRAY:
+				this.line(2, "if (" + value + " == null) {");
+				this.line(3, "buffer.putInt(-1);");
+				this.line(2, "} else {");
+				this.line(3, "buffer.putInt(" + value + ".length);");
+				if (field.getType() == WireType.BYTE) {
+					this.line(3, "buffer.put(" + value + ");");
+				} else {
+					this.line(3, "for (int i = 0; i < " + value + ".length; i++) {");
+					this.line(4, field.getType().bufferWrite(value + "[i]"));
+					this.line(3, "}");
+				}
+				this.line(2, "}");
+				break;
+			}
+		}
+		this.line(1, "}");
+	}
+
+	private void writeBufferRead() {
+		this.method("Reads the packet's fields from a buffer", "void read(" + this.packetName + " packet, ByteBuffer buffer) throws IOException");
+		for (CodecField field : this.fields) {
+			String value = "packet." + field.getName();
+			switch (field.getShape()) {
+			case PRIMITIVE:
+				this.line(2, value + " = " + field.getType().bufferRead() + ";");
+				break;
+			case STRING:
+				this.line(2, value + " = checkString(\"" + field.getName() + "\", getString(buffer), " + field.getMaxLength() + ");");
+				break;
+			case ARRAY:
+				this.readArray(field, "buffer.getInt()", "buffer.remaining() / " + field.getType().getSize());
+				if (field.getType() == WireType.BYTE) {
+					this.line(3, "buffer.get(" + value + ");");
+				} else {
+					this.line(3, "for (int i = 0; i < " + value + ".length; i++) {");
+					this.line(4, value + "[i] = " + field.getType().bufferRead() + ";");
+					this.line(3, "}");
+				}
+				this.line(2, "}");
+				break;
+			}
+		}
+		this.line(1, "}");
+	}
+
+	/**
+	 * Opens the block reading an array, reusing the field's array when it's already the right length
+	 * @param available An expression for the most elements that could follow, or null if it isn't known
+	 */
+	private void readArray(CodecField field, String readLength, String available) {
+		String value = "packet." + field.getName();
+		this.line(2, "int " + field.getName() + "Length = " + readLength + ";");
+		this.line(2, "if (" + field.getName() + "Length < 0) {");
+		this.line(3, value + " = null;");
+		this.line(2, "} else {");
+		this.line(3, "checkLength(\"" + field.getName() + "\", " + field.getName() + "Length, " + field.getMaxLength() + ");");
+		if (available != null) {
+			this.line(3, "if (" + field.getName() + "Length > " + available + ") {");
+			this.line(4, "throw new BufferUnderflowException();");
+			this.line(3, "}");
+		}
+		this.line(3, "if (" + value + " == null || " + value + ".length != " + field.getName() + "Length) {");
+		this.line(4, value + " = new " + field.getType().getName() + "[" + field.getName() + "Length];");
+		this.line(3, "}");
+	}
+
+	private void writeClear() {
+		this.method("Clears the packet's fields before it goes back into its pool", "void clear(" + this.packetName + " packet)");
+		for (CodecField field : this.fields) {
+			this.line(2, "packet." + field.getName() + " = " + (field.getShape() == CodecField.Shape.PRIMITIVE ? field.getType().getZero() : "null") + ";");
+		}
+		this.line(1, "}");
+	}
+
+	private void writeSetVariables() {
+		this.method("Sets the packet's fields in the order they're sent, for callers of setVariables. The builder sets them without boxing.", "void setVariables(" + this.packetName + " packet, Object... vars)");
+		for (int i = 0; i < this.fields.size(); i++) {
+			CodecField field = this.fields.get(i);
+			String cast = field.getShape() == CodecField.Shape.PRIMITIVE ? field.getType().getBoxedName() : field.getTypeName();
+			this.line(2, "if (vars.length > " + i + ") {");
+			this.line(3, "packet." + field.getName() + " = (" + cast + ") vars[" + i + "];");
+			this.writeLengthCheck(3, field, "packet." + field.getName());
+			this.line(2, "}");
+		}
+		this.line(1, "}");
+	}
+
+	private void writeBuilder() {
+		this.method("Starts setting the fields of a packet, usually one just taken from its pool", "Builder builder(" + this.packetName + " packet)");
+		this.line(2, "return new Builder(packet);");
+		this.line(1, "}");
+		this.line(0, "");
+		this.line(1, "/**");
+		this.line(1, " * Sets the fields of a packet without boxing them. The packet is changed in place, so there's nothing to build");
+		this.line(1, " */");
+		this.line(1, "public static final class Builder {");
+		this.line(0, "");
+		this.line(2, "private final " + this.packetName + " packet;");
+		this.line(0, "");
+		this.line(2, "private Builder(" + this.packetName + " packet) {");
+		this.line(3, "this.packet = packet;");
+		this.line(2, "}");
+		for (CodecField field : this.fields) {
+			String name = field.getName();
+			this.line(0, "");
+			this.line(2, "public Builder set" + Character.toUpperCase(name.charAt(0)) + name.substring(1) + "(" + field.getTypeName() + " " + name + ") {");
+			this.writeLengthCheck(3, field, name);
+			this.line(3, "this.packet." + name + " = " + name + ";");
+			this.line(3, "return this;");
+			this.line(2, "}");
+		}
+		this.line(1, "}");
+	}
+
+	/**
+	 * Writes a check that a String or array being set is no longer than its maxLength.
+	 * Values are checked when they're set rather than on every write, so fields assigned directly must keep to their maxLength themselves.
+	 */
+	private void writeLengthCheck(int indent, CodecField field, String value) {
+		if (field.getShape() == CodecField.Shape.PRIMITIVE || field.getMaxLength() < 0) {
+			return;
+		}
+		String length = field.getShape() == CodecField.Shape.STRING ? value + ".length()" : value + ".length";
+		this.line(indent, "if (" + value + " != null) {");
+		this.line(indent + 1, "requireLength(\"" + field.getName() + "\", " + length + ", " + field.getMaxLength() + ");");
+		this.line(indent, "}");
+	}
+
+	private void writeHelpers() {
+		this.line(0, "");
+		this.line(1, "private static void requireLength(String field, int length, int maxLength) {");
+		this.line(2, "if (length > maxLength) {");
+		this.line(3, "throw new IllegalArgumentException(\"Field '\" + field + \"' is \" + length + \" long, more than its maxLength of \" + maxLength);");
+		this.line(2, "}");
+		this.line(1, "}");
+		this.line(0, "");
+		this.line(1, "private static int checkLength(String field, int length, int maxLength) throws IOException {");
+		this.line(2, "if (maxLength >= 0 && length > maxLength) {");
+		this.line(3, "throw new IOException(\"Field '\" + field + \"' is \" + length + \" long, more than its maxLength of \" + maxLength);");
+		this.line(2, "}");
+		this.line(2, "return length;");
+		this.line(1, "}");
+		this.line(0, "");
+		this.line(1, "private static String checkString(String field, String value, int maxLength) throws IOException {");
+		this.line(2, "if (value == null) {");
+		this.line(3, "return \"\";");
+		this.line(2, "}");
+		this.line(2, "checkLength(field, value.length(), maxLength);");
+		this.line(2, "return value;");
+		this.line(1, "}");
+		this.line(0, "");
+		this.line(1, "/**");
+		this.line(1, " * Puts a String in the modified UTF-8 DataOutputStream.writeUTF writes");
+		this.line(1, " */");
+		this.line(1, "private static void putString(ByteBuffer buffer, String value) throws IOException {");
+		this.line(2, "int length = 0;");
+		this.line(2, "for (int i = 0; i < value.length(); i++) {");
+		this.line(3, "char c = value.charAt(i);");
+		this.line(3, "length += c != 0 && c < 0x80 ? 1 : c < 0x800 ? 2 : 3;");
+		this.line(2, "}");
+		this.line(2, "if (length > 65535) {");
+		this.line(3, "throw new UTFDataFormatException(\"String is \" + length + \" bytes long, more than 65535\");");
+		this.line(2, "}");
+		this.line(2, "buffer.putShort((short) length);");
+		this.line(2, "for (int i = 0; i < value.length(); i++) {");
+		this.line(3, "char c = value.charAt(i);");
+		this.line(3, "if (c != 0 && c < 0x80) {");
+		this.line(4, "buffer.put((byte) c);");
+		this.line(3, "} else if (c < 0x800) {");
+		this.line(4, "buffer.put((byte) (0xC0 | (c >> 6)));");
+		this.line(4, "buffer.put((byte) (0x80 | (c & 0x3F)));");
+		this.line(3, "} else {");
+		this.line(4, "buffer.put((byte) (0xE0 | (c >> 12)));");
+		this.line(4, "buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));");
+		this.line(4, "buffer.put((byte) (0x80 | (c & 0x3F)));");
+		this.line(3, "}");
+		this.line(2, "}");
+		this.line(1, "}");
+		this.line(0, "");
+		this.line(1, "/**");
+		this.line(1, " * Gets a String in the modified UTF-8 DataInputStream.readUTF reads");
+		this.line(1, " */");
+		this.line(1, "private static String getString(ByteBuffer buffer) throws IOException {");
+		this.line(2, "int length = buffer.getShort() & 0xFFFF;");
+		this.line(2, "if (length > buffer.remaining()) {");
+		this.line(3, "throw new BufferUnderflowException();");
+		this.line(2, "}");
+		this.line(2, "int end = buffer.position() + length;");
+		this.line(2, "char[] chars = new char[length];");
+		this.line(2, "int count = 0;");
+		this.line(2, "while (buffer.position() < end) {");
+		this.line(3, "int a = buffer.get() & 0xFF;");
+		this.line(3, "if (a < 0x80) {");
+		this.line(4, "chars[count++] = (char) a;");
+		this.line(3, "} else if ((a & 0xE0) == 0xC0 && buffer.position() < end) {");
+		this.line(4, "int b = buffer.get() & 0xFF;");
+		this.line(4, "if ((b & 0xC0) != 0x80) {");
+		this.line(5, "throw new UTFDataFormatException(\"Malformed String\");");
+		this.line(4, "}");
+		this.line(4, "chars[count++] = (char) (((a & 0x1F) << 6) | (b & 0x3F));");
+		this.line(3, "} else if ((a & 0xF0) == 0xE0 && buffer.position() + 1 < end) {");
+		this.line(4, "int b = buffer.get() & 0xFF;");
+		this.line(4, "int c = buffer.get() & 0xFF;");
+		this.line(4, "if ((b & 0xC0) != 0x80 || (c & 0xC0) != 0x80) {");
+		this.line(5, "throw new UTFDataFormatException(\"Malformed String\");");
+		this.line(4, "}");
+		this.line(4, "chars[count++] = (char) (((a & 0x0F) << 12) | ((b & 0x3F) << 6) | (c & 0x3F));");
+		this.line(3, "} else {");
+		this.line(4, "throw new UTFDataFormatException(\"Malformed String\");");
+		this.line(3, "}");
+		this.line(2, "}");
+		this.line(2, "return new String(chars, 0, count);");
+		this.line(1, "}");
+	}
+
+	/**
+	 * Opens a public static method
+	 */
+	private void method(String comment, String signature) {
+		this.line(0, "");
+		this.line(1, "/**");
+		this.line(1, " * " + comment);
+		this.line(1, " */");
+		this.line(1, "public static " + signature + " {");
+	}
+
+	private void line(int indent, String text) {
+		for (int i = 0; i < indent; i++) {
+			this.source.append('\t');
+		}
+		this.source.append(text).append('\n');
+	}
+
+	private long getMaxSize() {
+		long size = 0;
+		for (CodecField field : this.fields) {
+			long fieldSize = field.getMaxSize();
+			if (fieldSize < 0) {
+				return -1;
+			}
+			size += fieldSize;
+		}
+		return Math.min(size, Integer.MAX_VALUE);
+	}
+}
@@ -0,0 +1,37 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * PacketCodec - Marks a packet whose data is written, read and cleared by generated code.
+ * The fields annotated with {@link PacketField} are sent in the order they are declared. For a packet named Packet1ChatMessage the processor generates Packet1ChatMessageCodec in the same package,
+ * which the packet's write, read, setVariables and clearVariables methods call, and whose builder sets the fields without boxing them.
+ * Works with the server's and the client's packets alike, the generated code only uses java.io and java.nio.
+ * @author Unkn0wn0ne
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.TYPE)
+public @interface PacketCodec {
+
+	/**
+	 * The most bytes the packet's data may take, its id excluded. The packet fails to compile if its fields could take more, or if any of them is unbounded.
+	 * @return The most bytes, or -1 to leave the size unchecked
+	 */
+	int maxSize() default -1;
+}
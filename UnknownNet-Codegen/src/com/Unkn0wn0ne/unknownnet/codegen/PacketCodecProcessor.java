@@ -0,0 +1,193 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.processing.AbstractProcessor;
+import javax.annotation.processing.RoundEnvironment;
+import javax.annotation.processing.SupportedAnnotationTypes;
+import javax.lang.model.SourceVersion;
+import javax.lang.model.element.Element;
+import javax.lang.model.element.ElementKind;
+import javax.lang.model.element.Modifier;
+import javax.lang.model.element.NestingKind;
+import javax.lang.model.element.TypeElement;
+import javax.lang.model.element.VariableElement;
+import javax.lang.model.type.ArrayType;
+import javax.lang.model.type.TypeMirror;
+import javax.tools.Diagnostic;
+
+/**
+ * PacketCodecProcessor - Generates the codec of every {@link PacketCodec} packet while it's compiled.
+ * Nothing is looked up by reflection at runtime, the generated code sets and reads the packet's fields directly.
+ * @author Unkn0wn0ne
+ */
+@SupportedAnnotationTypes({"com.Unkn0wn0ne.unknownnet.codegen.PacketCodec", "com.Unkn0wn0ne.unknownnet.codegen.PacketField"})
+public class PacketCodecProcessor extends AbstractProcessor {
+
+	@Override
+	public SourceVersion getSupportedSourceVersion() {
+		return SourceVersion.latestSupported();
+	}
+
+	@Override
+	public boolean process(Set<? extends TypeElement> annotations, RoundEnvironment round) {
+		for (Element element : round.getElementsAnnotatedWith(PacketField.class)) {
+			if (element.getEnclosingElement().getAnnotation(PacketCodec.class) == null) {
+				this.error(element, "@PacketField is only sent in a class annotated with @PacketCodec");
+			}
+		}
+
+		for (Element element : round.getElementsAnnotatedWith(PacketCodec.class)) {
+			if (element.getKind() != ElementKind.CLASS) {
+				this.error(element, "@PacketCodec only applies to packet classes");
+				continue;
+			}
+			TypeElement type = (TypeElement) element;
+			if (type.getNestingKind() != NestingKind.TOP_LEVEL && type.getNestingKind() != NestingKind.MEMBER) {
+				this.error(type, "@PacketCodec packets must be top level or member classes");
+				continue;
+			}
+			if (type.getModifiers().contains(Modifier.PRIVATE)) {
+				this.error(type, "@PacketCodec packets must not be private, their codec needs to see them");
+				continue;
+			}
+
+			List<CodecField> fields = this.getFields(type);
+			if (fields == null || !this.checkSize(type, fields)) {
+				continue;
+			}
+
+			String packageName = this.processingEnv.getElementUtils().getPackageOf(type).getQualifiedName().toString();
+			CodecWriter codec = new CodecWriter(packageName, type.getQualifiedName().toString(), getCodecName(type, packageName), fields);
+			try {
+				Writer writer = this.processingEnv.getFiler().createSourceFile(codec.getQualifiedName(), type).openWriter();
+				try {
+					writer.write(codec.write());
+				} finally {
+					writer.close();
+				}
+			} catch (IOException e) {
+				this.error(type, "Failed to write " + codec.getQualifiedName() + ": " + e.getMessage());
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Checks every field annotated with {@link PacketField}, in the order they're declared
+	 * @return The fields, or null if any of them can't be sent
+	 */
+	private List<CodecField> getFields(TypeElement type) {
+		List<CodecField> fields = new ArrayList<CodecField>();
+		boolean valid = true;
+		for (Element member : type.getEnclosedElements()) {
+			PacketField annotation = member.getAnnotation(PacketField.class);
+			if (annotation == null || member.getKind() != ElementKind.FIELD) {
+				continue;
+			}
+			CodecField field = this.getField((VariableElement) member, annotation);
+			if (field == null) {
+				valid = false;
+			} else {
+				fields.add(field);
+			}
+		}
+		return valid ? fields : null;
+	}
+
+	private CodecField getField(VariableElement member, PacketField annotation) {
+		String name = member.getSimpleName().toString();
+		Set<Modifier> modifiers = member.getModifiers();
+		if (modifiers.contains(Modifier.PRIVATE) || modifiers.contains(Modifier.FINAL) || modifiers.contains(Modifier.STATIC)) {
+			this.error(member, "@PacketField '" + name + "' must not be private, final or static, its codec sets it directly");
+			return null;
+		}
+		int maxLength = annotation.maxLength();
+		if (maxLength < -1) {
+			this.error(member, "@PacketField '" + name + "' has a negative maxLength");
+			return null;
+		}
+
+		TypeMirror mirror = member.asType();
+		WireType primitive = WireType.of(mirror.getKind());
+		if (primitive != null) {
+			if (maxLength != -1) {
+				this.error(member, "@PacketField '" + name + "' is a primitive, maxLength only applies to Strings and arrays");
+				return null;
+			}
+			return new CodecField(name, CodecField.Shape.PRIMITIVE, primitive, -1);
+		}
+		if (mirror.toString().equals("java.lang.String")) {
+			if (maxLength > 65535) {
+				this.error(member, "@PacketField '" + name + "' has a maxLength over the 65535 characters a String can be sent with");
+				return null;
+			}
+			return new CodecField(name, CodecField.Shape.STRING, null, maxLength);
+		}
+		if (mirror instanceof ArrayType) {
+			WireType component = WireType.of(((ArrayType) mirror).getComponentType().getKind());
+			if (component != null) {
+				return new CodecField(name, CodecField.Shape.ARRAY, component, maxLength);
+			}
+		}
+		this.error(member, "@PacketField '" + name + "' is a " + mirror + ", only primitives, Strings and arrays of primitives can be sent");
+		return null;
+	}
+
+	/**
+	 * Checks that the fields fit in the packet's {@link PacketCodec#maxSize()}
+	 * @return False if they may not
+	 */
+	private boolean checkSize(TypeElement type, List<CodecField> fields) {
+		int maxSize = type.getAnnotation(PacketCodec.class).maxSize();
+		if (maxSize < 0) {
+			return true;
+		}
+		long size = 0;
+		for (CodecField field : fields) {
+			long fieldSize = field.getMaxSize();
+			if (fieldSize < 0) {
+				this.error(type, "@PacketCodec packet has a maxSize of " + maxSize + " bytes, but its field '" + field.getName() + "' has no maxLength");
+				return false;
+			}
+			size += fieldSize;
+		}
+		if (size > maxSize) {
+			this.error(type, "@PacketCodec packet has a maxSize of " + maxSize + " bytes, but its fields may take " + size);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * @return The codec's name, Packet1ChatMessageCodec for Packet1ChatMessage and Outer_InnerCodec for a member class
+	 */
+	private static String getCodecName(TypeElement type, String packageName) {
+		String name = type.getQualifiedName().toString();
+		if (!packageName.isEmpty()) {
+			name = name.substring(packageName.length() + 1);
+		}
+		return name.replace('.', '_') + "Codec";
+	}
+
+	private void error(Element element, String message) {
+		this.processingEnv.getMessager().printMessage(Diagnostic.Kind.ERROR, message, element);
+	}
+}
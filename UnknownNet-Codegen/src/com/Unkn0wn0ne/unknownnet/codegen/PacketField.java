@@ -0,0 +1,37 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * PacketField - A field of a {@link PacketCodec} packet that is sent over the network.
+ * Fields may be any primitive, a String or an array of a primitive, and must not be private, final or static, since the generated codec sets them directly.
+ * A null String is sent as an empty one, a null array is sent as a length of -1 and read back as null.
+ * @author Unkn0wn0ne
+ */
+@Retention(RetentionPolicy.SOURCE)
+@Target(ElementType.FIELD)
+public @interface PacketField {
+
+	/**
+	 * The most characters of a String or elements of an array. The codec's builder and setVariables refuse longer values with an IllegalArgumentException,
+	 * and reading refuses them with an IOException. Writing doesn't check, so a field assigned directly must keep to its maxLength.
+	 * @return The most characters or elements, or -1 for no limit
+	 */
+	int maxLength() default -1;
+}
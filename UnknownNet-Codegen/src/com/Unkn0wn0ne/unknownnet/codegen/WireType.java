@@ -0,0 +1,134 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.codegen;
+
+import javax.lang.model.type.TypeKind;
+
+/**
+ * The primitive types a {@link PacketField} may be, or be an array of, and how each is written to a stream and a buffer
+ * @author Unkn0wn0ne
+ */
+enum WireType {
+	BOOLEAN(TypeKind.BOOLEAN, "boolean", "Boolean", 1, "false"),
+	BYTE(TypeKind.BYTE, "byte", "Byte", 1, "0"),
+	SHORT(TypeKind.SHORT, "short", "Short", 2, "0"),
+	CHAR(TypeKind.CHAR, "char", "Char", 2, "0"),
+	INT(TypeKind.INT, "int", "Int", 4, "0"),
+	LONG(TypeKind.LONG, "long", "Long", 8, "0"),
+	FLOAT(TypeKind.FLOAT, "float", "Float", 4, "0"),
+	DOUBLE(TypeKind.DOUBLE, "double", "Double", 8, "0");
+
+	private final TypeKind kind;
+	private final String name;
+	private final String suffix;
+	private final int size;
+	private final String zero;
+
+	private WireType(TypeKind kind, String name, String suffix, int size, String zero) {
+		this.kind = kind;
+		this.name = name;
+		this.suffix = suffix;
+		this.size = size;
+		this.zero = zero;
+	}
+
+	/**
+	 * @return The type of a primitive kind, or null if it isn't one
+	 */
+	static WireType of(TypeKind kind) {
+		for (WireType type : values()) {
+			if (type.kind == kind) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * @return The bytes a value takes on the wire
+	 */
+	int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @return The type as it's written in source
+	 */
+	String getName() {
+		return this.name;
+	}
+
+	/**
+	 * @return The value a cleared field is set to
+	 */
+	String getZero() {
+		return this.zero;
+	}
+
+	/**
+	 * @return The boxed type, used to unbox setVariables' arguments
+	 */
+	String getBoxedName() {
+		switch (this) {
+		case INT:
+			return "Integer";
+		case CHAR:
+			return "Character";
+		default:
+			return this.suffix;
+		}
+	}
+
+	/**
+	 * @return A statement writing the value to a DataOutputStream named out
+	 */
+	String streamWrite(String value) {
+		return "out.write" + this.suffix + "(" + value + ");";
+	}
+
+	/**
+	 * @return An expression reading a value from a DataInputStream named in
+	 */
+	String streamRead() {
+		return "in.read" + this.suffix + "()";
+	}
+
+	/**
+	 * @return A statement putting the value into a ByteBuffer named buffer
+	 */
+	String bufferWrite(String value) {
+		switch (this) {
+		case BOOLEAN:
+			return "buffer.put((byte) (" + value + " ? 1 : 0));";
+		case BYTE:
+			return "buffer.put(" + value + ");";
+		default:
+			return "buffer.put" + this.suffix + "(" + value + ");";
+		}
+	}
+
+	/**
+	 * @return An expression getting a value from a ByteBuffer named buffer
+	 */
+	String bufferRead() {
+		switch (this) {
+		case BOOLEAN:
+			return "buffer.get() != 0";
+		case BYTE:
+			return "buffer.get()";
+		default:
+			return "buffer.get" + this.suffix + "()";
+		}
+	}
+}
@@ -66,10 +66,27 @@ public class ConfigurationManager {
 			 .setUseSSL(Boolean.parseBoolean(sProps.getProperty("server.useSSL", "false").trim()))
 			 .setMaxClients(Integer.parseInt(sProps.getProperty("server.maxClients", "1000").trim()))
 			 .setProtocol(Protocol.valueOf(sProps.getProperty("server.protocol", "TCP").trim()))
+			 .setFlushWindow(Integer.parseInt(sProps.getProperty("server.flushwindow", "0").trim()))
+			 .setOutboundQueueCapacity(Integer.parseInt(sProps.getProperty("server.queuecapacity", "4096").trim()))
+			 .setUseVirtualThreads(Boolean.parseBoolean(sProps.getProperty("server.virtualthreads", "false").trim()))
+			 .setOutputBufferSize(Integer.parseInt(sProps.getProperty("server.outputbuffer", "65536").trim()))
+			 .setOutputFlushThreshold(Integer.parseInt(sProps.getProperty("server.flushthreshold", "32768").trim()))
+			 .setReplicationRate(Integer.parseInt(sProps.getProperty("server.replicationrate", "0").trim()))
+			 .setPacketPoolSize(Integer.parseInt(sProps.getProperty("server.packetpoolsize", "1024").trim()))
+			 .setUseCompactHeaders(Boolean.parseBoolean(sProps.getProperty("server.compactheaders", "true").trim()))
 			 .setTCPNoDelay(Boolean.parseBoolean(sProps.getProperty("tcp.nodelay", "true").trim()))
 			 .setIPTOS(Integer.parseInt(sProps.getProperty("tcp.iptos", "10").trim()))
 			 .setTCPKeepAlive(Boolean.parseBoolean(sProps.getProperty("tcp.keepalive", "true").trim()))
-			 .setAuthServerPort(Integer.parseInt(sProps.getProperty("udp.authport", "4333").trim()));
+			 .setUseNIO(Boolean.parseBoolean(sProps.getProperty("tcp.nio", "false").trim()))
+			 .setSelectorThreads(Integer.parseInt(sProps.getProperty("tcp.selectorthreads", "2").trim()))
+			 .setHandlerThreads(Integer.parseInt(sProps.getProperty("tcp.handlerthreads", "4").trim()))
+			 .setUseFraming(Boolean.parseBoolean(sProps.getProperty("tcp.framing", "true").trim()))
+			 .setAuthServerPort(Integer.parseInt(sProps.getProperty("udp.authport", "4333").trim()))
+			 .setUDPReceiveRingSize(Integer.parseInt(sProps.getProperty("udp.receivering", "128").trim()))
+			 .setUDPWorkerCount(Integer.parseInt(sProps.getProperty("udp.workers", "1").trim()))
+			 .setMTU(Integer.parseInt(sProps.getProperty("udp.mtu", "1200").trim()))
+			 .setReassemblyBudget(Integer.parseInt(sProps.getProperty("udp.reassemblybudget", "1048576").trim()))
+			 .setReassemblyTimeout(Integer.parseInt(sProps.getProperty("udp.reassemblytimeout", "5000").trim()));
 			UnknownLogger.log(Level.INFO, LogType.CORE, "Internal/ConfigurationManager: Successfully loaded configuration file");
 		} catch (Exception e) {
 			UnknownLogger.log(Level.SEVERE, LogType.CORE, "Internal/ConfigurationManager: Failed to load configuration file, an Exception has occurred. Using defaults", e);
@@ -90,20 +107,54 @@ public class ConfigurationManager {
 			fWriter.write("# server.useSSL - Use SSL over TCP to protect user information and help prevent data stream manipulation. \n");
 			fWriter.write("# server.maxClients - The number of clients that can be concurrently connected to the server. \n");
 			fWriter.write("# server.protocol - The protocol that the server will be using. This can ethier be TCP or UDP or dualstack. \n");
+			fWriter.write("# server.flushwindow - Milliseconds a NORMAL priority packet may wait to be sent along with other packets. 0 sends every packet immediately. \n");
+			fWriter.write("# server.queuecapacity - The number of packets of each priority that may be waiting to be sent to a client before it is ejected for falling behind. \n");
+			fWriter.write("# server.virtualthreads - Run each client on virtual threads instead of platform threads. Requires Java 21 or later. \n");
+			fWriter.write("# server.outputbuffer - The most bytes buffered for a TCP connection before they are written to its socket. \n");
+			fWriter.write("# server.flushthreshold - Buffered bytes that are written to a TCP connection's socket without waiting for the rest of the writer's pass. \n");
+			fWriter.write("# server.replicationrate - Times a second the changed fields of DistributedObjects are sent to their zones. 0 only sends them when a zone's updateObject is called. \n");
+			fWriter.write("# server.packetpoolsize - The most freed packets of each id kept for reuse, besides the 64 each thread keeps. 0 creates a new packet every time. \n");
 			
 			fWriter.write("server.port=4334\n");
 			fWriter.write("server.protocolversion=unknownserver-dev\n");
 			fWriter.write("server.useSSL=false\n");
 			fWriter.write("server.maxClients=1000\n");
 			fWriter.write("server.protocol=TCP\n");
+			fWriter.write("server.flushwindow=0\n");
+			fWriter.write("server.queuecapacity=4096\n");
+			fWriter.write("server.virtualthreads=false\n");
+			fWriter.write("server.outputbuffer=65536\n");
+			fWriter.write("server.flushthreshold=32768\n");
+			fWriter.write("server.replicationrate=0\n");
+			fWriter.write("server.packetpoolsize=1024\n");
+			fWriter.write("# server.compactheaders - Allow clients that ask for it to send packet ids and lengths as varints instead of ints. \n");
+			fWriter.write("server.compactheaders=true\n");
 			
 			fWriter.write("# TCP Connection Specific Settings\n");
 			fWriter.write("tcp.nodelay=true\n");
 			fWriter.write("tcp.iptos=10\n");
 			fWriter.write("tcp.keepalive=false\n");
+			fWriter.write("# tcp.nio - Service TCP clients with a pool of selector threads instead of a thread per client. Not supported with SSL. \n");
+			fWriter.write("# tcp.selectorthreads - The number of selector threads used when tcp.nio is enabled. \n");
+			fWriter.write("# tcp.handlerthreads - The number of threads that run handshakes and packet handlers when tcp.nio is enabled. \n");
+			fWriter.write("tcp.nio=false\n");
+			fWriter.write("tcp.selectorthreads=2\n");
+			fWriter.write("tcp.handlerthreads=4\n");
+			fWriter.write("# tcp.framing - Allow clients that ask for it to prefix every packet with its length, so that every packet that has arrived can be handled at once. \n");
+			fWriter.write("tcp.framing=true\n");
 			
 			fWriter.write("# UDP specific settings\n");
+			fWriter.write("# udp.receivering - The number of received datagrams that may be waiting to be decoded. Each one reserves 64KB of memory. \n");
+			fWriter.write("# udp.workers - The number of sockets receiving datagrams in parallel on the same port, each with its own receive ring. Requires SO_REUSEPORT. \n");
 			fWriter.write("udp.authport=4334\n");
+			fWriter.write("udp.receivering=128\n");
+			fWriter.write("udp.workers=1\n");
+			fWriter.write("# udp.mtu - The largest datagram sent, in bytes. Larger ones are split into fragments for clients that support it. \n");
+			fWriter.write("# udp.reassemblybudget - The most bytes of fragments held for each client while its datagrams are put back together. \n");
+			fWriter.write("# udp.reassemblytimeout - Milliseconds the fragments of a client's datagram may take to arrive before it is discarded. \n");
+			fWriter.write("udp.mtu=1200\n");
+			fWriter.write("udp.reassemblybudget=1048576\n");
+			fWriter.write("udp.reassemblytimeout=5000\n");
 			
 			fWriter.write("# END OF CONFIGURATION FILE.\n");
 			fWriter.flush();
@@ -150,6 +201,74 @@ public class ConfigurationManager {
 		return this.config.getAuthServerPort();
 	}
 
+	public boolean useNIO() {
+		return this.config.isUsingNIO();
+	}
+	
+	public int getSelectorThreads() {
+		return this.config.getSelectorThreads();
+	}
+	
+	public int getHandlerThreads() {
+		return this.config.getHandlerThreads();
+	}
+
+	public boolean useVirtualThreads() {
+		return this.config.isUsingVirtualThreads();
+	}
+
+	public boolean useFraming() {
+		return this.config.isUsingFraming();
+	}
+
+	public boolean useCompactHeaders() {
+		return this.config.isUsingCompactHeaders();
+	}
+
+	public int getReplicationRate() {
+		return this.config.getReplicationRate();
+	}
+
+	public int getFlushWindow() {
+		return this.config.getFlushWindow();
+	}
+
+	public int getOutboundQueueCapacity() {
+		return this.config.getOutboundQueueCapacity();
+	}
+
+	public int getOutputBufferSize() {
+		return this.config.getOutputBufferSize();
+	}
+
+	public int getOutputFlushThreshold() {
+		return this.config.getOutputFlushThreshold();
+	}
+
+	public int getUDPReceiveRingSize() {
+		return this.config.getUDPReceiveRingSize();
+	}
+
+	public int getUDPWorkerCount() {
+		return this.config.getUDPWorkerCount();
+	}
+
+	public int getMTU() {
+		return this.config.getMTU();
+	}
+
+	public int getReassemblyBudget() {
+		return this.config.getReassemblyBudget();
+	}
+
+	public int getReassemblyTimeout() {
+		return this.config.getReassemblyTimeout();
+	}
+
+	public int getPacketPoolSize() {
+		return this.config.getPacketPoolSize();
+	}
+
 	public void setConfiguration(ServerConfigurationBuilder config) {
 		this.config = config;
 	}
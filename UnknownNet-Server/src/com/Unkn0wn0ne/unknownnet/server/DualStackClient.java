@@ -13,14 +13,15 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server;
 
-import java.io.ByteArrayOutputStream;
-import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
 import java.util.logging.Level;
 
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
 import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket11ReliableDatagram;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket12Fragment;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket1Kick;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet;
@@ -32,7 +33,6 @@ public class DualStackClient extends UnknownClient {
 
 	private String[] loginData = null;
 	private int hellosReceived = 0;
-	private DataOutputStream udpOutputStream = null;
 	
 	protected DualStackClient(Socket socket, UnknownServer server) {
 		super(socket, server, Protocol.DUALSTACK);
@@ -41,6 +41,16 @@ public class DualStackClient extends UnknownClient {
 	@Override
 	protected void processPacket(Packet packet) {
 		switch (packet.getId()) {
+		case -12: {
+			this.receiveFragment((InternalPacket12Fragment) packet);
+			this.server.getRepository().freePacket(packet);
+			return;
+		}
+		case -11: {
+			this.receiveReliable((InternalPacket11ReliableDatagram) packet);
+			this.server.getRepository().freePacket(packet);
+			return;
+		}
 		case -5: {
 			this.hellosReceived++;
 			if (this.hellosReceived > 3) {
@@ -95,9 +105,12 @@ public class DualStackClient extends UnknownClient {
 	@Override
 	protected void authenticateClient() throws IOException,ProtocolViolationException {
 		InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake)this.server.getRepository().getPacket(-2);
-		handshakePacket.read(dataInputStream);
+		try {
+			handshakePacket.read(dataInputStream);
 			String version = handshakePacket.getVersion();
 			loginData = handshakePacket.getLoginData();
+			// Before the server's callback, which may already send the client DistributedObjects
+			this.acceptHandshakeFlags(handshakePacket);
 			if (!version.equalsIgnoreCase(this.server.getProtocolVersion())) {
 				handshakePacket.setVariables(false);
 				handshakePacket._write(dataOutputStream);
@@ -116,20 +129,24 @@ public class DualStackClient extends UnknownClient {
 				handshakePacket.setVariables(true);
 				handshakePacket._write(dataOutputStream);
 				dataOutputStream.writeInt(this.clientId);
+				dataOutputStream.writeInt(this.getSessionToken());
+				this.startFraming(handshakePacket);
 			}
+		} finally {
+			this.server.getRepository().freePacket(handshakePacket);
+		}
 	}
 
 	@Override
 	protected void handleConnection() {
-		this.udpWriter = new ByteArrayOutputStream();
-		this.udpOutputStream = new DataOutputStream(this.udpWriter);
+		// On virtual threads a separate reader blocks on the socket, so this thread only has to wait for packets to send
+		boolean hasReader = this.isUsingVirtualThreads();
+		if (hasReader) {
+			this.startReader();
+		}
 		
 		while (!this.connection.isClosed()) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				
-			}
+			boolean flushNormal = this.awaitWriterSignal(this.getReliableWait(hasReader ? WRITER_IDLE_WAIT : this.isInputAvailable() ? 0 : INPUT_POLL_INTERVAL));
 			
 			while (!this.datagramsToBeProcessed.isEmpty()) {
 				this.udpActive = true;
@@ -137,97 +154,76 @@ public class DualStackClient extends UnknownClient {
 				this.processPacket(packet);
 			}
 			
-			try {
-				if (dataInputStream.available() > 0) {
-					Packet packet = this.server.getRepository().getPacket(dataInputStream.readInt());
-					packet.read(this.dataInputStream);
-					this.processPacket(packet);
+			if (!hasReader) {
+				try {
+					this.readAvailablePackets();
+				} catch (IOException e) {
+					this.eject("Networking Error: " + e.getMessage(), false);
+				} catch (ProtocolViolationException e) {
+					this.eject("Protocol Error: " + e.getMessage(), false);
 				}
-			} catch (IOException e) {
-				this.eject("Networking Error: " + e.getMessage(), false);
-			} catch (ProtocolViolationException e) {
-				this.eject("Protocol Error: " + e.getMessage(), false);
 			}
 			
-			while (!this.highPriorityToBeSent.isEmpty()) {
-				Packet highPacket = this.highPriorityToBeSent.poll();
-				if (highPacket.getProtocol() == PACKET_PROTOCOL.TCP) {
-					try {
-						highPacket._write(this.dataOutputStream);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					}
-				} else {
-					try {
-						sendPacket(highPacket);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					}
-				}
-				highPacket.setRecipentCount(highPacket.getRecipentCount() - 1);
-				if (highPacket.getRecipentCount() == 0) {
-	 				this.server.getRepository().freePacket(highPacket);
-				}
+			for (Packet highPacket : this.takeBatch(this.highPriorityToBeSent)) {
+				this.sendQueuedPacket(highPacket);
 			}
 			
-			while (!this.internalsToBeSent.isEmpty()) {
-				Packet internalPacket = this.internalsToBeSent.poll();
+			List<Packet> internals = this.takeBatch(this.internalsToBeSent);
+			for (int i = 0; i < internals.size(); i++) {
+				Packet internalPacket = internals.get(i);
+				boolean isKick = internalPacket instanceof InternalPacket1Kick;
+				this.sendQueuedPacket(internalPacket);
 				
-				if (internalPacket.getProtocol() == PACKET_PROTOCOL.TCP) {
-					try { 
-						internalPacket._write(this.dataOutputStream);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					} 
-				} else {
-					try {
-						sendPacket(internalPacket);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					}
-				}
-				
-				if (internalPacket instanceof InternalPacket1Kick) {
-						return;
-				}
-				
-				internalPacket.setRecipentCount(internalPacket.getRecipentCount() - 1);
-				if (internalPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(internalPacket);
+				if (isKick) {
+					// Nothing is sent after the kick, the packets still queued are released once the writer stops
+					this.releaseBatch(internals, i + 1);
+					this.flushOutputStream();
+					return;
 				}
 			}
 			
-			while (!this.lowPriorityToBeSent.isEmpty()) {
-				Packet lowPacket = this.lowPriorityToBeSent.poll();
-				
-				if (lowPacket.getProtocol() == PACKET_PROTOCOL.TCP) {
-					try {
-						lowPacket._write(this.dataOutputStream);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					}
-				} else {
-					try {
-						sendPacket(lowPacket);
-					} catch (IOException e) {
-						this.eject("IOException occurred while sending data to stream.", false);
-					}
-				}
-				
-				lowPacket.setRecipentCount(lowPacket.getRecipentCount() - 1);
-				if (lowPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(lowPacket);
+			if (flushNormal) {
+				for (Packet lowPacket : this.takeBatch(this.lowPriorityToBeSent)) {
+					this.sendQueuedPacket(lowPacket);
 				}
 			}
+			
+			this.updateReliableChannel();
+			this.flushOutputStream();
 		} 
 	}
+	
+	/**
+	 * Sends a queued packet over the transport it belongs on, then releases it whether or not it could be sent
+	 * @param packet The packet to send
+	 */
+	private void sendQueuedPacket(Packet packet) {
+		try {
+			if (this.isSentOverTCP(packet)) {
+				this.writePacket(packet);
+			} else {
+				this.sendPacketDatagram(packet);
+			}
+		} catch (IOException e) {
+			this.eject("IOException occurred while sending data to stream.", false);
+		} finally {
+			this.onPacketSent(packet);
+		}
+	}
+
+	private boolean isInputAvailable() {
+		try {
+			return this.dataInputStream.available() > 0;
+		} catch (IOException e) {
+			// Let the read report the error
+			return true;
+		}
+	}
 
-	private void sendPacket(Packet p) throws IOException {
-		this.udpWriter.reset();
-		p._write(this.udpOutputStream);
-		this.datagram.setData(this.udpWriter.toByteArray());
-		this.datagram.setLength(this.datagram.getData().length);
-		this.server.sendDatagram(this.datagram);
+	
+	private boolean isSentOverTCP(Packet p) {
+		// Packets that must arrive fall back to TCP for clients that did not agree to acknowledge them over UDP
+		return p.getProtocol() == PACKET_PROTOCOL.TCP || (isReliable(p) && this.reliableChannel == null);
 	}
 
 	@Override
@@ -237,5 +233,6 @@ public class DualStackClient extends UnknownClient {
 		} catch (IOException e) {
 			
 		}
+		this.signalWriter(true);
 	}
 }
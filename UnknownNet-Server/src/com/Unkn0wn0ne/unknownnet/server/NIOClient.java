@@ -0,0 +1,571 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+
+import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
+import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.FrameAssembler;
+import com.Unkn0wn0ne.unknownnet.server.util.MPSCQueue;
+import com.Unkn0wn0ne.unknownnet.server.util.OutputStatistics;
+
+/**
+ * NIOClient - A TCP client whose {@link SocketChannel} is owned by a {@link SelectorLoop} instead of a dedicated thread.
+ * Incoming bytes are buffered until a whole packet has arrived, so a slow client never blocks the other clients on the same loop. Framed connections are assembled with a {@link FrameAssembler} instead.
+ * Packets are handled exactly like {@link TCPClient} handles them, including the handshake and the {@link UnknownServer#onPacketReceived(UnknownClient, Packet)} callback.
+ * The selector thread only reads, decodes and writes. The handshake and every decoded packet are handed to the server's handler threads, one at a time and in order, so a slow callback never holds up the other clients on the loop.
+ * @author Unkn0wn0ne
+ */
+public class NIOClient extends TCPClient {
+
+	private static final int MAX_BUFFERED_INPUT = 1024 * 1024;
+	private static final int MAX_BUFFERED_OUTPUT = 4 * 1024 * 1024;
+
+	private SocketChannel channel;
+	private SelectorLoop loop;
+	private SelectionKey key = null;
+
+	private InputBuffer inputBuffer = new InputBuffer();
+	private OutputBuffer outputBuffer = new OutputBuffer();
+	private ByteBuffer readBuffer = ByteBuffer.allocate(8192);
+
+	private boolean handshakeComplete = false;
+	// Set while a handler thread completes the handshake, nothing is decoded or written until it's done
+	private volatile boolean handshakePending = false;
+	// Only touched by the selector thread: whether input goes to the frame assembler, whether the input that arrived during the handshake is still to be decoded and whether the client has closed its end
+	private boolean assembling = false;
+	private boolean decodeAfterHandshake = false;
+	private boolean reachedEnd = false;
+	private boolean isStarted = false;
+	private volatile boolean isClosing = false;
+	private volatile boolean isClosed = false;
+	private AtomicBoolean serviceRequested = new AtomicBoolean(false);
+	
+	// Decoded packets waiting for a handler thread, only the handler task takes them
+	private MPSCQueue<Packet> receivedPackets;
+	private AtomicBoolean handlerScheduled = new AtomicBoolean(false);
+	// Set once every packet the client sent has been decoded, the handler ejects the client after handling them
+	private volatile boolean endOfStream = false;
+	private Runnable handlerTask = new Runnable() {
+		@Override
+		public void run() {
+			handleReceivedPackets();
+		}
+	};
+
+	protected NIOClient(SocketChannel channel, UnknownServer server, SelectorLoop loop) {
+		super(channel.socket(), server);
+		this.channel = channel;
+		this.loop = loop;
+		this.dataInputStream = new DataInputStream(this.inputBuffer);
+		this.dataOutputStream = new DataOutputStream(this.outputBuffer);
+		this.receivedPackets = new MPSCQueue<Packet>(server.getConfigurationManager().getOutboundQueueCapacity());
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Hands the client to its selector loop instead of starting a thread for it.
+	 */
+	@Override
+	protected void start() {
+		this.prepareKeepAlive();
+		this.isStarted = true;
+		this.loop.register(this);
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Called on the selector thread to register the client's channel.
+	 */
+	protected void register(Selector selector) throws IOException {
+		this.channel.configureBlocking(false);
+		this.key = this.channel.register(selector, SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Called on the selector thread when the channel has bytes to be read.
+	 */
+	protected void handleRead() {
+		int read = 0;
+		try {
+			do {
+				this.readBuffer.clear();
+				read = this.channel.read(this.readBuffer);
+				if (read > 0) {
+					this.readBuffer.flip();
+					if (this.assembling) {
+						this.frameAssembler.append(this.readBuffer);
+					} else {
+						this.inputBuffer.append(this.readBuffer);
+					}
+				}
+			} while (read > 0 && this.bufferedInput() < MAX_BUFFERED_INPUT);
+		} catch (IOException e) {
+			this.eject("Networking Error: " + e.getMessage(), false);
+			return;
+		}
+
+		this.decodePackets();
+
+		if (read == -1 && !this.hasBeenEjected) {
+			this.reachedEnd = true;
+			this.endStream();
+			return;
+		}
+
+		if (this.bufferedInput() >= MAX_BUFFERED_INPUT) {
+			this.eject("Protocol Error: Packet exceeds the maximum packet size.", false);
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Called on the selector thread when the channel can accept more bytes after a partial write.
+	 */
+	protected void handleWrite() {
+		this.flushOutput();
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Called on the selector thread every pass of the loop to write the client's queued packets.
+	 */
+	protected void service() {
+		this.serviceRequested.set(false);
+		if (this.isClosed || this.key == null) {
+			return;
+		}
+		
+		if (this.handshakePending) {
+			// The handler thread is writing the handshake's response, it asks for service once it's done
+			return;
+		}
+		
+		if (this.decodeAfterHandshake) {
+			this.decodeAfterHandshake = false;
+			if (this.framing) {
+				// Anything the client sent after its handshake is already framed
+				this.assembling = true;
+				this.inputBuffer.drainTo(this.frameAssembler);
+			}
+			this.decodePackets();
+			if (this.reachedEnd) {
+				this.endStream();
+			}
+		}
+
+		if (this.isClosing || this.hasBeenEjected) {
+			this.closeNow();
+			return;
+		}
+
+		if (!this.writeQueuedPackets(this.awaitWriterSignal(0))) {
+			// A kick packet has been written, this client is finished.
+			this.closeNow();
+			return;
+		}
+		this.flushOutput();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Asks the selector loop to write this client's packets on its next pass instead of on its next sweep of every client.
+	 */
+	@Override
+	protected void signalWriter(boolean immediate) {
+		super.signalWriter(immediate);
+		if (immediate && this.isStarted && this.serviceRequested.compareAndSet(false, true)) {
+			this.loop.requestService(this);
+		}
+	}
+
+	private int bufferedInput() {
+		return this.assembling ? this.frameAssembler.size() : this.inputBuffer.size();
+	}
+	
+	/**
+	 * The client has closed its end, once the handshake is done and every packet it sent has been handled it's ejected
+	 */
+	private void endStream() {
+		if (this.handshakePending || this.decodeAfterHandshake) {
+			// Decoding is waiting for the handshake, service() ends the stream afterwards
+			return;
+		}
+		if (this.key != null && this.key.isValid()) {
+			// The channel would be reported readable on every select from now on
+			this.key.interestOps(this.key.interestOps() & ~SelectionKey.OP_READ);
+		}
+		this.endOfStream = true;
+		this.scheduleHandler();
+	}
+
+	/**
+	 * Decodes every complete packet currently buffered. A partially received packet is left in the buffer until the rest of it arrives.
+	 */
+	private void decodePackets() {
+		if (this.handshakePending) {
+			// Until the handshake is complete it isn't known whether what follows is framed
+			return;
+		}
+		if (this.assembling) {
+			this.decodeFrames();
+			return;
+		}
+		
+		while (!this.hasBeenEjected && this.inputBuffer.hasEnough()) {
+			this.inputBuffer.mark(0);
+			Packet packet = null;
+			try {
+				int id = this.wireFormat.readId(this.dataInputStream);
+				if (!this.handshakeComplete && id != -2) {
+					this.eject("Security Violation: First packet was not Handshake packet.", false);
+					return;
+				}
+				packet = this.server.getRepository().getPacket(id);
+				packet.read(this.dataInputStream);
+			} catch (EOFException e) {
+				// The rest of the packet hasn't arrived yet, the buffer remembers how much of it is known to be missing
+				if (packet != null) {
+					this.server.getRepository().freePacket(packet);
+				}
+				this.inputBuffer.reset();
+				break;
+			} catch (IOException e) {
+				this.eject("Networking Error: " + e.getMessage(), false);
+				return;
+			} catch (ProtocolViolationException e) {
+				this.eject("Protocol Error: " + e.getMessage(), false);
+				return;
+			}
+
+			if (!this.handshakeComplete) {
+				this.handshakeComplete = true;
+				this.handOffHandshake((InternalPacket2Handshake) packet);
+				break;
+			}
+			this.processPacket(packet);
+		}
+		this.inputBuffer.compact();
+	}
+	
+	/**
+	 * Completes the handshake on a handler thread, the server's callback may take as long as it needs. The rest of the input is decoded once it's done.
+	 */
+	private void handOffHandshake(final InternalPacket2Handshake handshakePacket) {
+		this.handshakePending = true;
+		this.decodeAfterHandshake = true;
+		this.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					completeHandshake(handshakePacket);
+				} catch (IOException e) {
+					eject("Protocol Error", false);
+				} catch (RuntimeException e) {
+					handleHandlerError(e);
+				} finally {
+					server.getRepository().freePacket(handshakePacket);
+					handshakePending = false;
+					signalWriter(true);
+				}
+			}
+		});
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Called on the selector thread for every decoded packet, hands it to a handler thread
+	 */
+	@Override
+	protected void processPacket(Packet packet) {
+		if (!this.receivedPackets.offer(packet)) {
+			this.server.getRepository().freePacket(packet);
+			this.eject("Networking Error: Too many packets are waiting to be handled.", false);
+			return;
+		}
+		this.scheduleHandler();
+	}
+	
+	private void scheduleHandler() {
+		if (this.handlerScheduled.compareAndSet(false, true)) {
+			this.execute(this.handlerTask);
+		}
+	}
+	
+	private void execute(Runnable task) {
+		try {
+			this.server.getHandlerExecutor().execute(task);
+		} catch (RejectedExecutionException e) {
+			// The server is shutting down, run it here rather than lose the packets
+			task.run();
+		}
+	}
+	
+	/**
+	 * Runs on a handler thread and handles every packet received so far, in order. Only one handler task runs for a client at a time.
+	 */
+	private void handleReceivedPackets() {
+		while (true) {
+			Packet packet;
+			while ((packet = this.receivedPackets.poll()) != null) {
+				if (this.isClosed) {
+					this.server.getRepository().freePacket(packet);
+					continue;
+				}
+				try {
+					super.processPacket(packet);
+				} catch (RuntimeException e) {
+					this.handleHandlerError(e);
+				}
+			}
+			if (this.endOfStream && !this.hasBeenEjected) {
+				this.eject("Networking Error: Connection closed by client.", true);
+			}
+			
+			this.handlerScheduled.set(false);
+			// A packet queued after the last poll but before the flag was cleared would otherwise wait for the next one
+			if (this.receivedPackets.isEmpty() || !this.handlerScheduled.compareAndSet(false, true)) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * An exception escaped one of the server's callbacks. Only this client is ejected, like an exception on its selector thread.
+	 */
+	private void handleHandlerError(RuntimeException e) {
+		UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/NIOClient: Uncaught exception while handling client " + this.getId() + ", ejecting client for triggering this.", e);
+		this.server.getSeverGuard().logSecurityViolation(VIOLATION_TYPE.SYSTEM_ERROR_TRIGRERED, this);
+		this.eject("Internal Server Error", false);
+	}
+
+	private void decodeFrames() {
+		try {
+			this.processFrames();
+		} catch (IOException e) {
+			this.eject("Networking Error: " + e.getMessage(), false);
+		} catch (ProtocolViolationException e) {
+			this.eject("Protocol Error: " + e.getMessage(), false);
+		}
+	}
+
+	private void flushOutput() {
+		int remaining = 0;
+		try {
+			remaining = this.outputBuffer.writeTo(this.channel, this.server.getOutputStatistics());
+		} catch (IOException e) {
+			this.eject("IOException occurred while sending data to stream.", false);
+			return;
+		}
+
+		if (remaining > MAX_BUFFERED_OUTPUT) {
+			this.eject("Networking Error: Client is not reading data fast enough.", false);
+			return;
+		}
+
+		if (this.key != null && this.key.isValid()) {
+			// Only ask to be told about writability while the socket's send buffer is full, otherwise the selector would spin.
+			int read = this.reachedEnd ? 0 : SelectionKey.OP_READ;
+			int ops = remaining > 0 ? read | SelectionKey.OP_WRITE : read;
+			if (this.key.interestOps() != ops) {
+				this.key.interestOps(ops);
+			}
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Writes out whatever can be written without blocking and closes the channel.
+	 */
+	protected void closeNow() {
+		if (this.isClosed) {
+			return;
+		}
+		this.isClosed = true;
+
+		this.writeQueuedPackets();
+		try {
+			this.outputBuffer.writeTo(this.channel, this.server.getOutputStatistics());
+		} catch (IOException e) {
+
+		}
+
+		if (this.key != null) {
+			this.key.cancel();
+		}
+
+		try {
+			this.channel.close();
+		} catch (IOException e) {
+
+		}
+
+		// Whatever could not be written before closing is released, the client will never send it
+		this.releaseQueuedPackets();
+	}
+
+	protected boolean isClosed() {
+		return this.isClosed;
+	}
+
+	@Override
+	protected void shutdown() {
+		if (!this.isStarted) {
+			// Never handed to a selector loop (i.e. rejected by ServerGuard), the channel is still blocking
+			this.closeNow();
+			return;
+		}
+		this.isClosing = true;
+		this.signalWriter(true);
+	}
+
+	/**
+	 * A growable input buffer that a {@link DataInputStream} can read from and be rewound on when a packet is incomplete.
+	 * It remembers how many bytes the incomplete packet is known to need, so the packet isn't decoded again every time a few more bytes arrive.
+	 */
+	private static class InputBuffer extends ByteArrayInputStream {
+
+		// The bytes from the mark that the last incomplete packet needs at least
+		private int needed = 0;
+
+		public InputBuffer() {
+			super(new byte[8192], 0, 0);
+		}
+
+		@Override
+		public synchronized int read() {
+			this.expect(1);
+			return super.read();
+		}
+
+		@Override
+		public synchronized int read(byte[] b, int off, int len) {
+			this.expect(len);
+			return super.read(b, off, len);
+		}
+
+		@Override
+		public void mark(int readAheadLimit) {
+			super.mark(readAheadLimit);
+			this.needed = 0;
+		}
+
+		private void expect(int length) {
+			if (this.pos + length > this.count) {
+				this.needed = Math.max(this.needed, this.pos + length - this.mark);
+			}
+		}
+
+		/**
+		 * @return True if there are unread bytes and at least as many as the last incomplete packet needed
+		 */
+		public boolean hasEnough() {
+			int size = this.size();
+			return size > 0 && size >= this.needed;
+		}
+
+		public void append(ByteBuffer src) {
+			int length = src.remaining();
+			if (this.count + length > this.buf.length) {
+				byte[] newBuf = new byte[Math.max(this.buf.length * 2, this.count + length)];
+				System.arraycopy(this.buf, 0, newBuf, 0, this.count);
+				this.buf = newBuf;
+			}
+			src.get(this.buf, this.count, length);
+			this.count += length;
+		}
+
+		/**
+		 * Discards the bytes that have already been read
+		 */
+		public void compact() {
+			if (this.pos == 0) {
+				return;
+			}
+			System.arraycopy(this.buf, this.pos, this.buf, 0, this.count - this.pos);
+			this.count -= this.pos;
+			this.pos = 0;
+			this.mark = 0;
+		}
+
+		public int size() {
+			return this.count - this.pos;
+		}
+
+		/**
+		 * Moves every unread byte into a frame assembler
+		 */
+		public void drainTo(FrameAssembler assembler) {
+			assembler.append(ByteBuffer.wrap(this.buf, this.pos, this.count - this.pos));
+			this.pos = 0;
+			this.count = 0;
+			this.mark = 0;
+			this.needed = 0;
+		}
+	}
+
+	/**
+	 * An output buffer that can write its contents to a non-blocking channel, keeping whatever the channel didn't accept.
+	 */
+	private static class OutputBuffer extends ByteArrayOutputStream {
+
+		// The first byte the channel hasn't accepted yet
+		private int start = 0;
+
+		public OutputBuffer() {
+			super(8192);
+		}
+
+		/**
+		 * @return The number of bytes still waiting to be written
+		 */
+		public synchronized int writeTo(SocketChannel channel, OutputStatistics statistics) throws IOException {
+			if (this.count == this.start) {
+				return 0;
+			}
+
+			ByteBuffer buffer = ByteBuffer.wrap(this.buf, this.start, this.count - this.start);
+			int written = channel.write(buffer);
+			statistics.recordWrite(written);
+			this.start += written;
+			if (this.start == this.count) {
+				this.start = 0;
+				this.count = 0;
+			} else if (this.start > this.buf.length / 2) {
+				// Only moved once most of the buffer has been written, so a slow client costs one copy per half a buffer instead of one per write
+				System.arraycopy(this.buf, this.start, this.buf, 0, this.count - this.start);
+				this.count -= this.start;
+				this.start = 0;
+			}
+			return this.count - this.start;
+		}
+	}
+}
@@ -0,0 +1,187 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.logging.Level;
+
+import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
+import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+
+/**
+ * SelectorLoop - Services the sockets of many {@link NIOClient}s from a single thread using a java.nio {@link Selector}.
+ * An UnknownServer running with NIO enabled owns a small pool of these and spreads its clients across them.
+ * @author Unkn0wn0ne
+ */
+class SelectorLoop implements Runnable {
+
+	private UnknownServer server;
+	private Selector selector;
+	private int id;
+	private Thread thread;
+
+	private volatile boolean isRunning = true;
+
+	private Queue<NIOClient> pendingRegistrations = new ConcurrentLinkedQueue<NIOClient>();
+	private Queue<NIOClient> serviceRequests = new ConcurrentLinkedQueue<NIOClient>();
+	
+	// Every client is serviced at least this often (in milliseconds) so that flush windows and closing clients are noticed
+	private static final long SWEEP_INTERVAL = 25;
+	private long lastSweep = 0;
+
+	// Only touched by the selector thread
+	private List<NIOClient> clients = new ArrayList<NIOClient>();
+
+	protected SelectorLoop(UnknownServer server, int id) throws IOException {
+		this.server = server;
+		this.id = id;
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Starts the selector thread
+	 */
+	protected void start() {
+		this.thread = new Thread(this, "Server-Selector-Thread-" + this.id);
+		this.thread.start();
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Hands a client over to this loop. The client's channel is registered on the selector thread.
+	 * @param client The client to be serviced by this loop
+	 */
+	protected void register(NIOClient client) {
+		this.pendingRegistrations.add(client);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Asks the loop to service a client as soon as possible, because packets have been queued for it
+	 * @param client The client that has packets waiting to be written
+	 */
+	protected void requestService(NIOClient client) {
+		this.serviceRequests.add(client);
+		if (Thread.currentThread() != this.thread) {
+			this.selector.wakeup();
+		}
+	}
+
+	protected void shutdown() {
+		this.isRunning = false;
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		while (this.isRunning) {
+			try {
+				this.selector.select(SWEEP_INTERVAL);
+			} catch (IOException e) {
+				UnknownLogger.log(Level.WARNING, LogType.NETWORKING, "Internal/SelectorLoop: IOException occurred while selecting, continuing on...", e);
+			}
+
+			this.registerPendingClients();
+
+			Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+			while (keys.hasNext()) {
+				SelectionKey key = keys.next();
+				keys.remove();
+
+				NIOClient client = (NIOClient) key.attachment();
+				try {
+					if (key.isValid() && key.isReadable()) {
+						client.handleRead();
+					}
+
+					if (key.isValid() && key.isWritable()) {
+						client.handleWrite();
+					}
+				} catch (RuntimeException e) {
+					this.handleClientError(client, e);
+				}
+			}
+
+			NIOClient requested;
+			while ((requested = this.serviceRequests.poll()) != null) {
+				this.service(requested);
+			}
+
+			long now = System.currentTimeMillis();
+			if (now - this.lastSweep < SWEEP_INTERVAL) {
+				continue;
+			}
+			this.lastSweep = now;
+
+			for (int i = this.clients.size() - 1; i >= 0; i--) {
+				NIOClient client = this.clients.get(i);
+				this.service(client);
+
+				if (client.isClosed()) {
+					this.clients.remove(i);
+				}
+			}
+		}
+
+		for (NIOClient client : this.clients) {
+			client.closeNow();
+		}
+
+		try {
+			this.selector.close();
+		} catch (IOException e) {
+
+		}
+	}
+
+	private void service(NIOClient client) {
+		try {
+			client.service();
+		} catch (RuntimeException e) {
+			this.handleClientError(client, e);
+		}
+	}
+
+	private void registerPendingClients() {
+		NIOClient client;
+		while ((client = this.pendingRegistrations.poll()) != null) {
+			try {
+				client.register(this.selector);
+				this.clients.add(client);
+			} catch (IOException e) {
+				client.eject("Networking Error: " + e.getMessage(), false);
+				client.closeNow();
+			}
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * An exception escaped one of the client's handlers. Only that client is ejected, the rest of the clients on this loop keep running.
+	 */
+	private void handleClientError(NIOClient client, RuntimeException e) {
+		UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/SelectorLoop: Uncaught exception while servicing client " + client.getId() + ", ejecting client for triggering this.", e);
+		this.server.getSeverGuard().logSecurityViolation(VIOLATION_TYPE.SYSTEM_ERROR_TRIGRERED, client);
+		client.closeNow();
+	}
+}
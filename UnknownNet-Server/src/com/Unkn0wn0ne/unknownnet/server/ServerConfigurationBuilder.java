@@ -27,10 +27,35 @@ public class ServerConfigurationBuilder {
 	private int IP_TOS = 10;
 	private boolean KEEP_ALIVE = false;
 	
+	// NIO settings
+	private boolean useNIO = false;
+	private int selectorThreads = 2;
+	private int handlerThreads = 4;
+	private boolean useFraming = true;
+	
+	// Threading settings
+	private boolean useVirtualThreads = false;
+	
+	// Distributed object settings
+	private int replicationRate = 0;
+	
+	// Output settings
+	private int flushWindow = 0;
+	private int outboundQueueCapacity = 4096;
+	private int outputBufferSize = 65536;
+	private int outputFlushThreshold = 32768;
+	private int packetPoolSize = 1024;
+	private boolean useCompactHeaders = true;
+	
 	private Protocol protocol = Protocol.TCP;
 	
 	// UDP settings
 	private int authServerPort = 4334;
+	private int udpReceiveRingSize = 128;
+	private int udpWorkerCount = 1;
+	private int mtu = 1200;
+	private int reassemblyBudget = 1048576;
+	private int reassemblyTimeout = 5000;
 	
 	public ServerConfigurationBuilder() {
 		
@@ -82,6 +107,57 @@ public class ServerConfigurationBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets how many datagrams may be waiting to be decoded before the server stops reading from its UDP socket. Each slot reserves 64KB of memory.
+	 * The size is rounded up to the next power of two.
+	 */
+	public ServerConfigurationBuilder setUDPReceiveRingSize(int slots) {
+		this.udpReceiveRingSize = slots;
+		return this;
+	}
+	
+	/**
+	 * Sets how many sockets receive and decode datagrams in parallel. Each one has its own receive ring (see {@link #setUDPReceiveRingSize(int)}) and two threads.
+	 * More than one worker requires SO_REUSEPORT (Java 9 or later on Linux, macOS or BSD), otherwise the server falls back to a single worker.
+	 */
+	public ServerConfigurationBuilder setUDPWorkerCount(int workers) {
+		this.udpWorkerCount = workers;
+		return this;
+	}
+	
+	/**
+	 * Sets the largest datagram the server sends, in bytes. Larger ones are split into fragments for clients that agreed to it in their handshake, so they aren't fragmented by IP or dropped on the way.
+	 * The default of 1200 fits the path MTU of almost every network, IPv6 included. Values below 256 are treated as 256.
+	 */
+	public ServerConfigurationBuilder setMTU(int mtu) {
+		this.mtu = mtu;
+		return this;
+	}
+	
+	/**
+	 * Sets the most bytes of fragments held for each client while its datagrams are put back together. The oldest unfinished datagrams are discarded when it is exceeded.
+	 */
+	public ServerConfigurationBuilder setReassemblyBudget(int bytes) {
+		this.reassemblyBudget = bytes;
+		return this;
+	}
+	
+	/**
+	 * Sets how many milliseconds the fragments of a client's datagram may take to arrive before the datagram is discarded
+	 */
+	public ServerConfigurationBuilder setReassemblyTimeout(int timeout) {
+		this.reassemblyTimeout = timeout;
+		return this;
+	}
+	
+	/**
+	 * Sets the most freed packets of each id kept for reuse in the shared pool, each thread also keeps up to 64 of its own. 0 turns pooling off
+	 */
+	public ServerConfigurationBuilder setPacketPoolSize(int size) {
+		this.packetPoolSize = size;
+		return this;
+	}
+	
 	public ServerConfigurationBuilder setIPTOS(int iptos) {
 		this.IP_TOS = iptos;
 		return this;
@@ -92,6 +168,105 @@ public class ServerConfigurationBuilder {
 		return this;
 	}
 	
+	/**
+	 * Sets whether TCP clients should be serviced by a small pool of selector threads instead of one thread per client.
+	 * NIO is currently only supported when SSL is disabled.
+	 */
+	public ServerConfigurationBuilder setUseNIO(boolean useNIO) {
+		this.useNIO = useNIO;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of selector threads that service TCP clients when NIO is enabled
+	 */
+	public ServerConfigurationBuilder setSelectorThreads(int selectorThreads) {
+		this.selectorThreads = selectorThreads;
+		return this;
+	}
+	
+	/**
+	 * Sets the number of threads that run the handshakes and packet handlers of TCP clients when NIO is enabled, so a slow handler never holds up a selector thread.
+	 * Each client's packets are still handled one at a time, in the order they arrived.
+	 */
+	public ServerConfigurationBuilder setHandlerThreads(int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+		return this;
+	}
+	
+	/**
+	 * Sets whether TCP clients that ask for it in their handshake may use length prefixed framing.
+	 * Every packet of a framed connection is preceded by its length, so the server reads whatever has arrived and handles every complete packet at once without ever blocking on a partial one.
+	 */
+	public ServerConfigurationBuilder setUseFraming(boolean useFraming) {
+		this.useFraming = useFraming;
+		return this;
+	}
+	
+	/**
+	 * Sets whether clients that ask for it in their handshake may use the compact wire format.
+	 * Packet ids, frame lengths and the client id at the start of each datagram are then sent as varints instead of ints, which saves 3 to 6 bytes on most packets. Clients that don't ask for it keep using the original format either way.
+	 */
+	public ServerConfigurationBuilder setUseCompactHeaders(boolean useCompactHeaders) {
+		this.useCompactHeaders = useCompactHeaders;
+		return this;
+	}
+	
+	/**
+	 * Sets whether each client's connection, handshake and packet handlers run on virtual threads instead of platform threads.
+	 * Virtual TCP and DUALSTACK clients also block on their socket in a separate reader instead of checking it every few milliseconds, so a server can hold many thousands of mostly idle connections.
+	 * Virtual threads require Java 21 or later, older versions keep using platform threads. NIO clients are serviced by their selector threads either way, only their handler threads become virtual.
+	 */
+	public ServerConfigurationBuilder setUseVirtualThreads(boolean useVirtualThreads) {
+		this.useVirtualThreads = useVirtualThreads;
+		return this;
+	}
+	
+	/**
+	 * Sets how many times a second the changed fields of every DistributedObject are sent to the clients of its zone, without {@link com.Unkn0wn0ne.unknownnet.server.distributed.ClientZone#updateObject(long)} having to be called.
+	 * Each zone sends one packet per tick to clients that use the binary object format, however many of its objects changed and however often. 0 (the default) only sends objects when updateObject is called.
+	 */
+	public ServerConfigurationBuilder setReplicationRate(int replicationRate) {
+		this.replicationRate = replicationRate;
+		return this;
+	}
+	
+	/**
+	 * Sets how long (in milliseconds) packets with {@link com.Unkn0wn0ne.unknownnet.server.net.Packet.PACKET_PRIORITY#NORMAL} priority may wait to be sent with other packets.
+	 * HIGH and INTERNAL packets are always sent immediately. 0 (the default) sends every packet immediately.
+	 */
+	public ServerConfigurationBuilder setFlushWindow(int flushWindow) {
+		this.flushWindow = flushWindow;
+		return this;
+	}
+	
+	/**
+	 * Sets how many packets of each priority may be waiting to be sent to a single client. A client that falls this far behind is ejected.
+	 * The capacity is rounded up to the next power of two.
+	 */
+	public ServerConfigurationBuilder setOutboundQueueCapacity(int capacity) {
+		this.outboundQueueCapacity = capacity;
+		return this;
+	}
+	
+	/**
+	 * Sets the most bytes that may be buffered for a TCP connection before they are written to its socket.
+	 * Every packet a client's writer sends in one pass is gathered into this buffer and written at once.
+	 */
+	public ServerConfigurationBuilder setOutputBufferSize(int bytes) {
+		this.outputBufferSize = bytes;
+		return this;
+	}
+	
+	/**
+	 * Sets how many buffered bytes cause a TCP connection's buffer to be written before its writer has finished its pass.
+	 * Lower values start sending large bursts sooner, higher values make fewer writes.
+	 */
+	public ServerConfigurationBuilder setOutputFlushThreshold(int bytes) {
+		this.outputFlushThreshold = bytes;
+		return this;
+	}
+	
 	public int getServerPort() {
 		return this.serverPort;
 	}
@@ -127,4 +302,72 @@ public class ServerConfigurationBuilder {
 	public boolean getTCPKeepAlive() {
 		return this.KEEP_ALIVE;
 	}
-}
\ No newline at end of file
+
+	public boolean isUsingNIO() {
+		return this.useNIO;
+	}
+	
+	public int getSelectorThreads() {
+		return this.selectorThreads;
+	}
+	
+	public int getHandlerThreads() {
+		return this.handlerThreads;
+	}
+	
+	public boolean isUsingFraming() {
+		return this.useFraming;
+	}
+	
+	public boolean isUsingCompactHeaders() {
+		return this.useCompactHeaders;
+	}
+	
+	public boolean isUsingVirtualThreads() {
+		return this.useVirtualThreads;
+	}
+	
+	public int getReplicationRate() {
+		return this.replicationRate;
+	}
+	
+	public int getFlushWindow() {
+		return this.flushWindow;
+	}
+	
+	public int getOutboundQueueCapacity() {
+		return this.outboundQueueCapacity;
+	}
+	
+	public int getOutputBufferSize() {
+		return this.outputBufferSize;
+	}
+	
+	public int getOutputFlushThreshold() {
+		return this.outputFlushThreshold;
+	}
+	
+	public int getUDPReceiveRingSize() {
+		return this.udpReceiveRingSize;
+	}
+	
+	public int getUDPWorkerCount() {
+		return this.udpWorkerCount;
+	}
+	
+	public int getMTU() {
+		return this.mtu;
+	}
+	
+	public int getReassemblyBudget() {
+		return this.reassemblyBudget;
+	}
+	
+	public int getReassemblyTimeout() {
+		return this.reassemblyTimeout;
+	}
+	
+	public int getPacketPoolSize() {
+		return this.packetPoolSize;
+	}
+}
@@ -15,6 +15,7 @@ package com.Unkn0wn0ne.unknownnet.server;
 
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
 import java.util.logging.Level;
 
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
@@ -102,11 +103,27 @@ public class TCPClient extends UnknownClient {
 
 	@Override
 	protected void authenticateClient() throws IOException, ProtocolViolationException {
-		String[] loginData = null;
 		InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake)this.server.getRepository().getPacket(-2);
-		handshakePacket.read(dataInputStream);
+		try {
+			handshakePacket.read(dataInputStream);
+			this.completeHandshake(handshakePacket);
+		} finally {
+			this.server.getRepository().freePacket(handshakePacket);
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Verifies the protocol version and login data of a handshake that has already been read from the client and writes the response
+	 * @param handshakePacket The handshake packet the client sent
+	 * @throws IOException If the response could not be written
+	 */
+	protected void completeHandshake(InternalPacket2Handshake handshakePacket) throws IOException {
+		String[] loginData = null;
 			String version = handshakePacket.getVersion();
 			loginData = handshakePacket.getLoginData();
+			// Before the server's callback, which may already send the client DistributedObjects
+			this.acceptHandshakeFlags(handshakePacket);
 			if (!version.equalsIgnoreCase(this.server.getProtocolVersion())) {
 				handshakePacket.setVariables(false);
 				handshakePacket._write(dataOutputStream);
@@ -124,76 +141,105 @@ public class TCPClient extends UnknownClient {
 				server.freeClientFromSandbox(this);
 				handshakePacket.setVariables(true);
 				handshakePacket._write(dataOutputStream);
+				this.startFraming(handshakePacket);
 			}
 	}
 
 	@Override
 	protected void handleConnection() {
+		// On virtual threads a separate reader blocks on the socket, so this thread only has to wait for packets to send
+		boolean hasReader = this.isUsingVirtualThreads();
+		if (hasReader) {
+			this.startReader();
+		}
+		
 		while (!this.connection.isClosed()) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				
-			}
+			boolean flushNormal = this.awaitWriterSignal(hasReader ? WRITER_IDLE_WAIT : this.isInputAvailable() ? 0 : INPUT_POLL_INTERVAL);
 			
-			try {
-				if (dataInputStream.available() > 0) {
-					int id = dataInputStream.readInt();
-					Packet packet = this.server.getRepository().getPacket(id);
-					packet.read(this.dataInputStream);
-					this.processPacket(packet);
-				}
-			} catch (IOException e) {
-				this.eject("Networking Error: " + e.getMessage(), false);
-			} catch (ProtocolViolationException e) {
-				this.eject("Protocol Error: " + e.getMessage(), false);
-			}
-			
-			while (!this.highPriorityToBeSent.isEmpty()) {
+			if (!hasReader) {
 				try {
-					Packet highPacket = this.highPriorityToBeSent.poll();
-					highPacket._write(this.dataOutputStream);
-					highPacket.setRecipentCount(highPacket.getRecipentCount() - 1);
-					if (highPacket.getRecipentCount() == 0) {
-						this.server.getRepository().freePacket(highPacket);
-					}
+					this.readAvailablePackets();
 				} catch (IOException e) {
-					this.eject("IOException occurred while sending data to stream.", false);
+					this.eject("Networking Error: " + e.getMessage(), false);
+				} catch (ProtocolViolationException e) {
+					this.eject("Protocol Error: " + e.getMessage(), false);
 				}
 			}
 			
-			while (!this.internalsToBeSent.isEmpty()) {
-				Packet internalPacket = this.internalsToBeSent.poll();
-				
-				try { 
-					internalPacket._write(this.dataOutputStream);
-				} catch (IOException e) {
-					this.eject("IOException occurred while sending data to stream.", false);
-				} 
-				
-				if (internalPacket instanceof InternalPacket1Kick) {
-						return;
-				}
-				
-				internalPacket.setRecipentCount(internalPacket.getRecipentCount() - 1);
-				if (internalPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(internalPacket);
-				}
+			if (!this.writeQueuedPackets(flushNormal)) {
+				return;
+			}
+		} 
+	}
+	
+	private boolean isInputAvailable() {
+		try {
+			return this.dataInputStream.available() > 0;
+		} catch (IOException e) {
+			// Let the read report the error
+			return true;
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Writes every queued packet to the client's output stream in priority order
+	 * @return False if a kick packet was written and the connection should stop being serviced
+	 */
+	protected boolean writeQueuedPackets() {
+		return this.writeQueuedPackets(true);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Writes the queued packets to the client's output stream in priority order and flushes them to the socket together
+	 * @param flushNormal Whether NORMAL priority packets should be written, or left queued until their flush window closes
+	 * @return False if a kick packet was written and the connection should stop being serviced
+	 */
+	protected boolean writeQueuedPackets(boolean flushNormal) {
+		for (Packet highPacket : this.takeBatch(this.highPriorityToBeSent)) {
+			try {
+				this.writePacket(highPacket);
+			} catch (IOException e) {
+				this.eject("IOException occurred while sending data to stream.", false);
+			} finally {
+				this.onPacketSent(highPacket);
+			}
+		}
+		
+		List<Packet> internals = this.takeBatch(this.internalsToBeSent);
+		for (int i = 0; i < internals.size(); i++) {
+			Packet internalPacket = internals.get(i);
+			boolean isKick = internalPacket instanceof InternalPacket1Kick;
+			try { 
+				this.writePacket(internalPacket);
+			} catch (IOException e) {
+				this.eject("IOException occurred while sending data to stream.", false);
+			} finally {
+				this.onPacketSent(internalPacket);
 			}
 			
-			while (!this.lowPriorityToBeSent.isEmpty()) {
+			if (isKick) {
+				// Nothing is written after the kick, the packets still queued are released once the writer stops
+				this.releaseBatch(internals, i + 1);
+				this.flushOutputStream();
+				return false;
+			}
+		}
+		
+		if (flushNormal) {
+			for (Packet lowPacket : this.takeBatch(this.lowPriorityToBeSent)) {
 				try {
-					Packet lowPacket = this.lowPriorityToBeSent.poll();
-					lowPacket._write(this.dataOutputStream);
-					lowPacket.setRecipentCount(lowPacket.getRecipentCount() - 1);
-					if (lowPacket.getRecipentCount() == 0) {
-						this.server.getRepository().freePacket(lowPacket);
-					}
+					this.writePacket(lowPacket);
 				} catch (IOException e) {
 					this.eject("IOException occurred while sending data to stream.", false);
+				} finally {
+					this.onPacketSent(lowPacket);
 				}
 			}
-		} 
+		}
+		this.flushOutputStream();
+		return true;
 	}
 
 	@Override
@@ -202,5 +248,6 @@ public class TCPClient extends UnknownClient {
 			this.connection.close();
 		} catch (IOException e) {
 		}
+		this.signalWriter(true);
 	}
 }
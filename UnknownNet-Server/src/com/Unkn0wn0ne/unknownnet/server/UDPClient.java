@@ -17,6 +17,7 @@ import java.io.ByteArrayOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.net.Socket;
+import java.util.List;
 import java.util.logging.Level;
 
 import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
@@ -24,6 +25,8 @@ import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
 import com.Unkn0wn0ne.unknownnet.server.VIOLATION_TYPE;
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
 import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket11ReliableDatagram;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket12Fragment;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket1Kick;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet;
@@ -60,6 +63,16 @@ public class UDPClient extends UnknownClient {
 		}
 
 		switch (uPacket.getId()) {
+			case -12: {
+				this.receiveFragment((InternalPacket12Fragment) uPacket);
+				this.server.getRepository().freePacket(uPacket);
+				return;
+			}
+			case -11: {
+				this.receiveReliable((InternalPacket11ReliableDatagram) uPacket);
+				this.server.getRepository().freePacket(uPacket);
+				return;
+			}
 			case -5: {
 				this.hellosReceived++;
 				if (this.hellosReceived > 3) {
@@ -114,19 +127,26 @@ public class UDPClient extends UnknownClient {
 	@Override
 	protected void authenticateClient() throws IOException, ProtocolViolationException {
 		InternalPacket2Handshake handshakePacket = (InternalPacket2Handshake)this.server.getRepository().getPacket(-2);
-		handshakePacket.read(dataInputStream);
-		String version = handshakePacket.getVersion();
-		this.loginData = handshakePacket.getLoginData();
-		if (!version.equalsIgnoreCase(this.server.getProtocolVersion())) {
-			handshakePacket.setVariables(false);
-			handshakePacket._write(dataOutputStream);
-			this.eject("Protocol Error: Protocol version mismatch. (Server = " + this.server.getProtocolVersion() + " You = " + version + ") Have you updated your client?", false);
-			return;
-		} else {
-			server.freeClientFromSandbox(this);
-			handshakePacket.setVariables(true);
-			handshakePacket._write(dataOutputStream);
-			dataOutputStream.writeInt(this.clientId);
+		try {
+			handshakePacket.read(dataInputStream);
+			String version = handshakePacket.getVersion();
+			this.loginData = handshakePacket.getLoginData();
+			if (!version.equalsIgnoreCase(this.server.getProtocolVersion())) {
+				handshakePacket.setVariables(false);
+				handshakePacket._write(dataOutputStream);
+				this.eject("Protocol Error: Protocol version mismatch. (Server = " + this.server.getProtocolVersion() + " You = " + version + ") Have you updated your client?", false);
+				return;
+			} else {
+				server.freeClientFromSandbox(this);
+				this.acceptHandshakeFlags(handshakePacket);
+				handshakePacket.setVariables(true);
+				handshakePacket._write(dataOutputStream);
+				dataOutputStream.writeInt(this.clientId);
+				dataOutputStream.writeInt(this.getSessionToken());
+				this.startFraming(handshakePacket);
+			}
+		} finally {
+			this.server.getRepository().freePacket(handshakePacket);
 		}
 	}
 
@@ -140,12 +160,8 @@ public class UDPClient extends UnknownClient {
 		
 		this.connection = null;
 		
-		while (!this.udpActive) {
-			try {
-				Thread.sleep(20);
-			} catch (InterruptedException e) {
-				
-			}
+		while (!this.udpActive && !this.hasBeenEjected) {
+			this.awaitWriterSignal(WRITER_IDLE_WAIT);
 			
 			if (this.datagramsToBeProcessed.isEmpty()) {
 				continue;
@@ -166,11 +182,8 @@ public class UDPClient extends UnknownClient {
 		this.udpWriter = new ByteArrayOutputStream();
 		this.dataOutputStream = new DataOutputStream(this.udpWriter);
 		while (!this.hasBeenEjected) {
-			try {
-				Thread.sleep(25);
-			} catch (InterruptedException e) {
-				
-			}
+			// Datagrams are handed to this client by the server's receive thread, so there is no socket to poll here
+			boolean flushNormal = this.awaitWriterSignal(this.getReliableWait(WRITER_IDLE_WAIT));
 			
 			while (!this.datagramsToBeProcessed.isEmpty()) {
 				this.processPacket(this.datagramsToBeProcessed.poll());
@@ -182,63 +195,56 @@ public class UDPClient extends UnknownClient {
 			}
 			this.udpWriter.reset();
 			
-			while (!this.highPriorityToBeSent.isEmpty()) {
-				Packet highPacket = this.highPriorityToBeSent.poll();
+			for (Packet highPacket : this.takeBatch(this.highPriorityToBeSent)) {
 				try {
-					this.sendPacket(highPacket);
+					this.sendPacketDatagram(highPacket);
 				} catch (IOException e) {
 					this.eject("IOException occurred while sending data to stream.", false);
-				}
-				highPacket.setRecipentCount(highPacket.getRecipentCount() - 1);
-				if (highPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(highPacket);
+				} finally {
+					this.onPacketSent(highPacket);
 				}
 			}
 			
-			while (!this.internalsToBeSent.isEmpty()) {
-				Packet internalPacket = this.internalsToBeSent.poll();
+			List<Packet> internals = this.takeBatch(this.internalsToBeSent);
+			for (int i = 0; i < internals.size(); i++) {
+				Packet internalPacket = internals.get(i);
+				boolean isKick = internalPacket instanceof InternalPacket1Kick;
 				try {
-					this.sendPacket(internalPacket);
+					this.sendPacketDatagram(internalPacket);
 				} catch (IOException e) {
 					this.eject("IOException occurred while sending data to stream.", false);
+				} finally {
+					this.onPacketSent(internalPacket);
 				}
 
-				if (internalPacket instanceof InternalPacket1Kick) {
-						return;
-				}
-				
-				internalPacket.setRecipentCount(internalPacket.getRecipentCount() - 1);
-				if (internalPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(internalPacket);
+				if (isKick) {
+					// Nothing is sent after the kick, the packets still queued are released once the writer stops
+					this.releaseBatch(internals, i + 1);
+					return;
 				}
 			}
 			
 			
-			while (!this.lowPriorityToBeSent.isEmpty()) {
-				Packet lowPacket = this.lowPriorityToBeSent.poll();
-				try {
-					this.sendPacket(lowPacket);
-				} catch (IOException e) {
-					this.eject("IOException occurred while sending data to stream.", false);
-				}
-				lowPacket.setRecipentCount(lowPacket.getRecipentCount() - 1);
-				if (lowPacket.getRecipentCount() == 0) {
-					this.server.getRepository().freePacket(lowPacket);
+			if (flushNormal) {
+				for (Packet lowPacket : this.takeBatch(this.lowPriorityToBeSent)) {
+					try {
+						this.sendPacketDatagram(lowPacket);
+					} catch (IOException e) {
+						this.eject("IOException occurred while sending data to stream.", false);
+					} finally {
+						this.onPacketSent(lowPacket);
+					}
 				}
 			}
+			
+			this.updateReliableChannel();
 		}
 	}
 	
-	private void sendPacket(Packet p) throws IOException {
-		this.udpWriter.reset();
-		p._write(dataOutputStream);
-		this.datagram.setData(this.udpWriter.toByteArray());
-		this.datagram.setLength(this.datagram.getData().length);
-		this.server.sendDatagram(this.datagram);
-	}
 
 	@Override
 	protected void shutdown() {
 		this.hasBeenEjected = true;
+		this.signalWriter(true);
 	}
 }
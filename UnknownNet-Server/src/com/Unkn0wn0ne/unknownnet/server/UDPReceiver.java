@@ -0,0 +1,247 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
+
+/**
+ * UDPReceiver - Owns one of the server's UDP sockets.
+ * The receive thread reads datagrams straight into a ring of preallocated direct buffers and the director thread decodes them where they lie and hands the packets to their clients.
+ * Neither thread allocates a buffer per datagram and a datagram's slot is never reused until the director has finished with it.
+ * When the server runs several receivers they all bind the same port with SO_REUSEPORT. The kernel picks the socket by hashing the sender's address, so every datagram from one client goes through the same receiver and stays in order.
+ * @author Unkn0wn0ne
+ */
+class UDPReceiver {
+
+	// Large enough for any UDP datagram
+	private static final int SLOT_SIZE = 65536;
+	// How long the receive thread waits for the director to free a slot when the ring is full
+	private static final long FULL_RING_WAIT = 100000;
+	// How long the director sleeps when the ring is empty, unless it is woken by a new datagram
+	private static final long EMPTY_RING_WAIT = 10000000;
+
+	private UnknownServer server;
+	private int port;
+	private int worker;
+	private boolean reusePort;
+
+	private DatagramChannel channel = null;
+
+	private final ByteBuffer[] slots;
+	private final InetSocketAddress[] senders;
+	private final int mask;
+
+	// Written only by the receive thread
+	private volatile long published = 0;
+	// Written only by the director thread
+	private volatile long consumed = 0;
+
+	private Thread directorThread = null;
+	private volatile boolean directorWaiting = false;
+
+	/**
+	 * @param server The server the datagrams are for
+	 * @param port The port to receive datagrams on
+	 * @param ringSize The number of datagrams that may be waiting to be decoded. This is rounded up to the next power of two.
+	 * @param worker The number of this receiver, used to name its threads
+	 * @param reusePort True if other receivers will bind the same port
+	 */
+	protected UDPReceiver(UnknownServer server, int port, int ringSize, int worker, boolean reusePort) {
+		this.server = server;
+		this.port = port;
+		this.worker = worker;
+		this.reusePort = reusePort;
+
+		int size = 2;
+		while (size < ringSize) {
+			size <<= 1;
+		}
+		this.mask = size - 1;
+		this.slots = new ByteBuffer[size];
+		this.senders = new InetSocketAddress[size];
+
+		ByteBuffer memory = ByteBuffer.allocateDirect(size * SLOT_SIZE);
+		for (int i = 0; i < size; i++) {
+			memory.limit((i + 1) * SLOT_SIZE);
+			memory.position(i * SLOT_SIZE);
+			this.slots[i] = memory.slice();
+		}
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Binds the UDP socket and starts the receive and director threads
+	 * @throws IOException If the socket could not be bound
+	 */
+	protected void start() throws IOException {
+		this.channel = DatagramChannel.open();
+		if (this.reusePort) {
+			SocketOption<Boolean> option = getReusePortOption();
+			if (option == null) {
+				throw new IOException("SO_REUSEPORT is not supported");
+			}
+			this.channel.setOption(option, true);
+		}
+		this.channel.bind(new InetSocketAddress(this.port));
+
+		this.directorThread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				UDPReceiver.this.handleDirectorLoop();
+			}
+		}, "Server-UDP-Director-Thread-" + this.worker);
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				UDPReceiver.this.handleReceiveLoop();
+			}
+		}, "Server-UDP-Receive-Thread-" + this.worker).start();
+		this.directorThread.start();
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Sends a datagram from the server's UDP socket
+	 */
+	protected void send(ByteBuffer data, InetSocketAddress target) throws IOException {
+		this.channel.send(data, target);
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Checks if several receivers can share a port on this platform
+	 * @return True if SO_REUSEPORT is supported for datagram sockets
+	 */
+	protected static boolean isReusePortSupported() {
+		SocketOption<Boolean> option = getReusePortOption();
+		if (option == null) {
+			return false;
+		}
+		try {
+			DatagramChannel channel = DatagramChannel.open();
+			boolean supported = channel.supportedOptions().contains(option);
+			channel.close();
+			return supported;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * StandardSocketOptions.SO_REUSEPORT only exists on Java 9 and later, so it is looked up when the server starts
+	 * @return The option, or null if this Java version does not have it
+	 */
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> getReusePortOption() {
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class.getField("SO_REUSEPORT").get(null);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	private void handleReceiveLoop() {
+		while (this.channel.isOpen()) {
+			long position = this.published;
+			while (position - this.consumed > this.mask) {
+				// Every slot is waiting to be decoded, leave new datagrams in the socket's buffer until one frees up
+				LockSupport.parkNanos(FULL_RING_WAIT);
+			}
+
+			int index = (int) (position & this.mask);
+			ByteBuffer slot = this.slots[index];
+			slot.clear();
+			try {
+				this.senders[index] = (InetSocketAddress) this.channel.receive(slot);
+			} catch (ClosedChannelException e) {
+				break;
+			} catch (IOException e) {
+				continue;
+			}
+			slot.flip();
+			this.published = position + 1;
+
+			if (this.directorWaiting) {
+				LockSupport.unpark(this.directorThread);
+			}
+		}
+	}
+
+	private void handleDirectorLoop() {
+		while (this.channel.isOpen()) {
+			long position = this.consumed;
+			if (position == this.published) {
+				this.directorWaiting = true;
+				if (position == this.published) {
+					LockSupport.parkNanos(EMPTY_RING_WAIT);
+				}
+				this.directorWaiting = false;
+				continue;
+			}
+
+			int index = (int) (position & this.mask);
+			this.decode(this.slots[index], this.senders[index]);
+			this.senders[index] = null;
+			this.consumed = position + 1;
+		}
+	}
+
+	/**
+	 * Decodes a datagram in the format [clientId][sessionToken][packetId][packet data] and hands the packet to its client.
+	 * Clients that agreed to compact headers send the client id and packet id as varints, which the first byte of the datagram tells apart.
+	 */
+	private void decode(ByteBuffer slot, InetSocketAddress sender) {
+		if (!slot.hasRemaining()) {
+			// Empty datagram, ignore
+			return;
+		}
+		WireFormat format = WireFormat.ofDatagram(slot);
+		int clientId;
+		int token;
+		Packet packet;
+		try {
+			clientId = format.getClientId(slot);
+			token = slot.getInt();
+			packet = this.server.getRepository().readPacket(slot, format);
+		} catch (BufferUnderflowException e) {
+			// Truncated datagram, ignore
+			return;
+		} catch (IOException e) {
+			// Truncated or malformed datagram, ignore
+			return;
+		} catch (ProtocolViolationException e) {
+			// Unknown packet id, ignore
+			return;
+		}
+
+		if (!this.server.deliverDatagram(clientId, token, sender, packet)) {
+			// Unauthorized client, ignore
+			this.server.getRepository().freePacket(packet);
+		}
+	}
+
+}
@@ -17,23 +17,42 @@ package com.Unkn0wn0ne.unknownnet.server;
 import java.io.ByteArrayOutputStream;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.LinkedList;
-import java.util.Queue;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 import java.util.logging.Level;
 
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
 import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+import com.Unkn0wn0ne.unknownnet.server.net.EncodedPacket;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket11ReliableDatagram;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket12Fragment;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket1Kick;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket3KeepAlive;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet.PACKET_PRIORITY;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet.PACKET_PROTOCOL;
 import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.BufferPool;
+import com.Unkn0wn0ne.unknownnet.server.util.ByteBufferOutputStream;
+import com.Unkn0wn0ne.unknownnet.server.util.CoalescingOutputStream;
+import com.Unkn0wn0ne.unknownnet.server.util.FragmentAssembler;
+import com.Unkn0wn0ne.unknownnet.server.util.FrameAssembler;
+import com.Unkn0wn0ne.unknownnet.server.util.MPSCQueue;
+import com.Unkn0wn0ne.unknownnet.server.util.PooledBuffer;
 import com.Unkn0wn0ne.unknownnet.server.util.Protocol;
+import com.Unkn0wn0ne.unknownnet.server.util.ReliableChannel;
+import com.Unkn0wn0ne.unknownnet.server.util.Threads;
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
 
 /**
  * UnknownClient - A client object in the UnknownNet network.
@@ -58,24 +77,65 @@ public abstract class UnknownClient implements Runnable {
 	protected DataInputStream dataInputStream;
 	protected DataOutputStream dataOutputStream;
 	
+	// True once the client and server have agreed in the handshake to prefix every TCP packet with its length
+	protected boolean framing = false;
+	protected FrameAssembler frameAssembler = null;
+	private ByteArrayOutputStream frameWriter = null;
+	private DataOutputStream frameOutputStream = null;
 	
-	protected Queue<Packet> internalsToBeSent = new LinkedList<Packet>();
-	protected Queue<Packet> highPriorityToBeSent = new LinkedList<Packet>();
-	protected Queue<Packet> lowPriorityToBeSent = new LinkedList<Packet>();
+	// Switched to V2 once the client and server have agreed in the handshake to send ids and lengths as varints
+	protected WireFormat wireFormat = WireFormat.V1;
+	
+	// True once the client and server have agreed in the handshake to send DistributedObjects in the binary format
+	protected boolean binaryObjects = false;
+	
+	// Set up in the handshake once the client and server agree to acknowledge RELIABLE_UDP and RELIABLE_ORDERED_UDP packets
+	protected ReliableChannel reliableChannel = null;
+	private final List<byte[]> reliableDelivered = new ArrayList<byte[]>();
+	private final ReliableChannel.Transmitter reliableTransmitter = new ReliableChannel.Transmitter() {
+		@Override
+		public void transmit(byte[] datagram) throws IOException {
+			UnknownClient.this.sendDatagram(datagram);
+		}
+	};
+	
+	// Set up in the handshake once the client and server agree to split datagrams larger than the MTU into fragments
+	protected FragmentAssembler fragmentAssembler = null;
+	private int nextFragmentGroup = 0;
+	// The smallest MTU the server uses, whatever it's configured with
+	private static final int MIN_MTU = 256;
+	
+	// The largest framed packet a client may send
+	protected static final int MAX_FRAME_SIZE = 1024 * 1024;
+	
+	
+	// Filled by any thread through queuePacket, drained only by the thread that writes to this client
+	protected MPSCQueue<Packet> internalsToBeSent;
+	protected MPSCQueue<Packet> highPriorityToBeSent;
+	protected MPSCQueue<Packet> lowPriorityToBeSent;
+	protected List<Packet> sendBatch = new ArrayList<Packet>();
+	// Set once the client's writer has stopped for good, packets queued after that are released straight away
+	private volatile boolean writerStopped = false;
+	private final Object stoppedQueueLock = new Object();
 	
 	protected int missedKeepAlives = -1;
 	private InternalPacket3KeepAlive keepAlivePacket = null;
 	
 	private Object tag;
 	protected int clientId;
+	private int sessionToken = 0;
 	protected int port;
 	
-	protected Queue<Packet> datagramsToBeProcessed = new LinkedList<Packet>();
+	protected MPSCQueue<Packet> datagramsToBeProcessed;
 	private Protocol protocol = null;
 	
-	protected DatagramPacket datagram = null;
+	// Where the client's datagrams come from and are sent to, set once its first datagram arrives
+	private volatile InetSocketAddress datagramAddress = null;
 	private InetAddress addr = null;
 	protected ByteArrayOutputStream udpWriter = null;
+	// Encodes packets into buffers leased from the server's buffer pool, only used by the thread that writes to this client
+	private ByteBufferOutputStream datagramWriter = null;
+	private DataOutputStream datagramOutputStream = null;
 	protected boolean udpActive = false;
 	
 	protected float sendKeepAlives = 0;
@@ -83,6 +143,19 @@ public abstract class UnknownClient implements Runnable {
 	
 	protected int privilegeLevel = -1000;
 	
+	// How often a blocking socket is checked for incoming data while the writer has nothing to do
+	protected static final long INPUT_POLL_INTERVAL = 25;
+	// How long a writer with its own reader thread waits for packets before checking its connection is still open
+	protected static final long WRITER_IDLE_WAIT = 1000;
+	
+	// Wakes the thread that sends this client's packets as soon as something is queued for it.
+	// A lock rather than a monitor, so that a virtual thread waiting on it doesn't hold on to its carrier thread.
+	private final ReentrantLock writerLock = new ReentrantLock();
+	private final Condition writerCondition = this.writerLock.newCondition();
+	private volatile boolean writerSignalled = false;
+	private long flushDeadline = 0;
+	private long flushWindow = 0;
+	
 	/**
 	 * Internal constructor. Should not be called
 	 * @param socket
@@ -95,31 +168,38 @@ public abstract class UnknownClient implements Runnable {
 		this.server = server;
 		this.addr = connection.getInetAddress();
 		this.port = connection.getPort();
+		this.flushWindow = server.getConfigurationManager().getFlushWindow() * 1000000L;
+		
+		int queueCapacity = server.getConfigurationManager().getOutboundQueueCapacity();
+		this.internalsToBeSent = new MPSCQueue<Packet>(queueCapacity);
+		this.highPriorityToBeSent = new MPSCQueue<Packet>(queueCapacity);
+		this.lowPriorityToBeSent = new MPSCQueue<Packet>(queueCapacity);
+		this.datagramsToBeProcessed = new MPSCQueue<Packet>(queueCapacity);
 		
 		if (this.protocol == Protocol.UDP || this.protocol == Protocol.DUALSTACK) {
-			byte[] buffer;
-			try {
-				buffer = new byte[socket.getReceiveBufferSize()];
-				this.datagram = new DatagramPacket(buffer, buffer.length);
-				this.datagram.setAddress(this.addr);
-			} catch (SocketException e) {
-			}
+			this.datagramWriter = new ByteBufferOutputStream(server.getBufferPool());
+			this.datagramOutputStream = new DataOutputStream(this.datagramWriter);
 		}
 	}
 
 	
-	@Override 
+	@Override
 	public void run() {
 		try {
-			this.keepAlivePacket = (InternalPacket3KeepAlive)this.server.getRepository().getPacket(-3);
-		} catch (ProtocolViolationException e2) {
-			UnknownLogger.log(Level.WARNING, LogType.NETWORKING, "Internal/UnknownClient: ProtocolViolationException occurred while creating keep alive packet, this should never happen.");
-			this.keepAlivePacket = new InternalPacket3KeepAlive();
+			this.handleClient();
+		} finally {
+			// However the connection ended, nothing will send the packets still queued for it
+			this.releaseQueuedPackets();
 		}
-		
+	}
+	
+	private void handleClient() {
+		this.prepareKeepAlive();
+
 			try {
 				dataInputStream = new DataInputStream(this.connection.getInputStream());
-				dataOutputStream = new DataOutputStream(this.connection.getOutputStream());
+				ConfigurationManager config = this.server.getConfigurationManager();
+				dataOutputStream = new DataOutputStream(new CoalescingOutputStream(this.connection.getOutputStream(), config.getOutputBufferSize(), config.getOutputFlushThreshold(), this.server.getOutputStatistics()));
 			} catch (IOException e1) {
 				
 			}
@@ -138,6 +218,7 @@ public abstract class UnknownClient implements Runnable {
 			
 			try {
 				this.authenticateClient();
+				this.dataOutputStream.flush();
 			} catch (ProtocolViolationException e1) {
 				this.eject("Protocol Error: A protocol violation has occurred. Message: " + e1.getMessage(), false);
 				return;
@@ -149,9 +230,16 @@ public abstract class UnknownClient implements Runnable {
 			this.handleConnection();
 	}
 	
-	
 
-	
+	/**
+	 * Internal method. Do not call
+	 * Allocates the keep alive packet this client will be sent every keep alive interval
+	 */
+	protected void prepareKeepAlive() {
+		// Kept for the client's whole life and retained each time it is queued, so it is not taken from the pool it would never go back to
+		this.keepAlivePacket = new InternalPacket3KeepAlive();
+	}
+
 	/**
 	 * Ejects the client from the server, removing it from the server's client list and sending the InternalPacket1Kick that kicks the client from the server. It stops various functions to allow the client to die.
 	 * @param msg The message to kick the client for.
@@ -169,7 +257,12 @@ public abstract class UnknownClient implements Runnable {
 			InternalPacket1Kick ejectPacket = (InternalPacket1Kick)this.server.getRepository().getPacket(-1);
 			ejectPacket.setVariables(msg);
 			if (this.clientState == -1) {
-				ejectPacket._write(dataOutputStream);
+				try {
+					ejectPacket._write(dataOutputStream);
+					dataOutputStream.flush();
+				} finally {
+					this.server.getRepository().freePacket(ejectPacket);
+				}
 				return;
 			}
 			this.queuePacket(ejectPacket);
@@ -226,13 +319,53 @@ public abstract class UnknownClient implements Runnable {
 	 * Starts the client thread.
 	 */
 	protected void start() {
-		new Thread(this, "Client-" + this.getId()).start();
+		Threads.start(this, "Client-" + this.getId(), this.isUsingVirtualThreads());
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Checks if this client runs on virtual threads
+	 * @return True if the server is configured to use virtual threads and this Java version supports them
+	 */
+	protected boolean isUsingVirtualThreads() {
+		return this.server.getConfigurationManager().useVirtualThreads() && Threads.isVirtualThreadSupported();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Starts a thread that blocks reading packets from the client's socket and handles them as they arrive, leaving the client's own thread to only write.
+	 * Used when the client runs on virtual threads, where a blocked reader costs almost nothing.
+	 */
+	protected void startReader() {
+		Threads.start(new Runnable() {
+			@Override
+			public void run() {
+				UnknownClient.this.handleReadLoop();
+			}
+		}, "Client-" + this.getId() + "-Reader", true);
+	}
+	
+	private void handleReadLoop() {
+		while (!this.hasBeenEjected && !this.connection.isClosed()) {
+			try {
+				this.readPackets();
+			} catch (IOException e) {
+				if (!this.connection.isClosed()) {
+					this.eject("Networking Error: " + e.getMessage(), false);
+				}
+				return;
+			} catch (ProtocolViolationException e) {
+				this.eject("Protocol Error: " + e.getMessage(), false);
+				return;
+			}
+		}
 	}
 	
 	/**
 	 * Queues a packet to be sent as soon as possible.
-	 * Note: If you are sending the packet to more than one client you MUST specify the number of clients you are sending it to by setting {@link Packet#setRecipentCount(int) }
-	 * The packet will be cleared and put back into the pool after all clients it had been sent to have sent it.
+	 * Note: If you are sending the packet to more than one client you MUST take a reference for every client beyond the first with {@link Packet#retain()}, or set them all at once with {@link Packet#setRecipentCount(int) }
+	 * The packet will be cleared and put back into the pool after all clients it had been sent to have sent it and released their reference.
+	 * This method is safe to call from any thread. If the client has more packets waiting than the server's outbound queue capacity it is not keeping up and will be ejected.
 	 * @param p The packet to be sent
 	 */
 	public void queuePacket(Packet p) {
@@ -240,19 +373,582 @@ public abstract class UnknownClient implements Runnable {
 			return;
 		}
 		
+		boolean queued;
+		boolean immediate = true;
 		if (p.getPriority() == PACKET_PRIORITY.INTERNAL) {
-			this.internalsToBeSent.add(p);
-			return;
+			queued = this.internalsToBeSent.offer(p);
 		} else if (p.getPriority() == PACKET_PRIORITY.HIGH) {
-			this.highPriorityToBeSent.add(p);
-			return;
+			queued = this.highPriorityToBeSent.offer(p);
 		} else {
-			this.lowPriorityToBeSent.add(p);
+			queued = this.lowPriorityToBeSent.offer(p);
+			immediate = this.flushWindow == 0;
 		}
+		
+		if (!queued) {
+			this.handleQueueOverflow(p);
+			return;
+		}
+		if (this.writerStopped) {
+			// Queued after the writer stopped, nothing will send it
+			this.releaseQueuedPackets();
+			return;
+		}
+		this.signalWriter(immediate);
 	}
 
 	protected void queueUDPPacketProcess(Packet packet) {
-		this.datagramsToBeProcessed.add(packet);
+		if (!this.datagramsToBeProcessed.offer(packet)) {
+			// Datagrams may be lost anyway, drop it rather than falling further behind
+			this.server.getRepository().freePacket(packet);
+			return;
+		}
+		if (this.writerStopped) {
+			this.releaseQueuedPackets();
+			return;
+		}
+		this.signalWriter(true);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Releases the packets of a batch that will not be written, from the given one on
+	 * @param batch The batch taken with {@link #takeBatch(MPSCQueue)}
+	 * @param from The index of the first packet to release
+	 */
+	protected void releaseBatch(List<Packet> batch, int from) {
+		for (int i = from; i < batch.size(); i++) {
+			this.onPacketSent(batch.get(i));
+		}
+		batch.clear();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Called once the client's writer will write nothing more, whether the client was kicked, ejected or shut down.
+	 * Releases the client's reference to every packet still waiting to be sent, so packets shared with other clients are still freed, and frees the datagrams waiting to be processed. Packets queued later are released as soon as they are queued.
+	 */
+	protected void releaseQueuedPackets() {
+		this.writerStopped = true;
+		// Once the writer has stopped its queues may be drained by whichever thread queues the next packet, but only by one at a time
+		synchronized (this.stoppedQueueLock) {
+			this.releaseQueue(this.internalsToBeSent);
+			this.releaseQueue(this.highPriorityToBeSent);
+			this.releaseQueue(this.lowPriorityToBeSent);
+			Packet packet;
+			while ((packet = this.datagramsToBeProcessed.poll()) != null) {
+				this.server.getRepository().freePacket(packet);
+			}
+		}
+	}
+	
+	private void releaseQueue(MPSCQueue<Packet> queue) {
+		Packet packet;
+		while ((packet = queue.poll()) != null) {
+			this.onPacketSent(packet);
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Takes every packet currently waiting in one of the client's queues, so they can be written without touching the queue for each one.
+	 * The returned list is reused by the next call.
+	 * @param queue The queue to take the packets from
+	 * @return The packets, oldest first
+	 */
+	protected List<Packet> takeBatch(MPSCQueue<Packet> queue) {
+		this.sendBatch.clear();
+		queue.drainTo(this.sendBatch);
+		return this.sendBatch;
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Decides which of the options a client asked for in its handshake are used for the connection and records them in the handshake's response.
+	 * Must be called before {@link UnknownServer#handleNewConnection(UnknownClient, String[])} and before the response is written. Length framing and the compact wire format start with the first packet after the response.
+	 * Binary DistributedObjects are accepted from any client that asks for them.
+	 * @param handshakePacket The handshake packet the client sent
+	 */
+	protected void acceptHandshakeFlags(InternalPacket2Handshake handshakePacket) {
+		int flags = 0;
+		if (this.protocol != Protocol.UDP && this.server.getConfigurationManager().useFraming()) {
+			flags |= handshakePacket.getRequestedFlags() & InternalPacket2Handshake.FLAG_LENGTH_FRAMING;
+		}
+		flags |= handshakePacket.getRequestedFlags() & InternalPacket2Handshake.FLAG_BINARY_OBJECTS;
+		if (this.server.getConfigurationManager().useCompactHeaders()) {
+			flags |= handshakePacket.getRequestedFlags() & InternalPacket2Handshake.FLAG_COMPACT_HEADERS;
+		}
+		if (this.protocol == Protocol.UDP || this.protocol == Protocol.DUALSTACK) {
+			flags |= handshakePacket.getRequestedFlags() & InternalPacket2Handshake.FLAG_RELIABLE_UDP;
+			flags |= handshakePacket.getRequestedFlags() & InternalPacket2Handshake.FLAG_FRAGMENTATION;
+		}
+		handshakePacket.setAcceptedFlags(flags);
+		this.binaryObjects = (flags & InternalPacket2Handshake.FLAG_BINARY_OBJECTS) != 0;
+		if ((flags & InternalPacket2Handshake.FLAG_RELIABLE_UDP) != 0) {
+			this.reliableChannel = new ReliableChannel(WireFormat.fromFlags(flags));
+		}
+		if ((flags & InternalPacket2Handshake.FLAG_FRAGMENTATION) != 0) {
+			ConfigurationManager config = this.server.getConfigurationManager();
+			this.fragmentAssembler = new FragmentAssembler(config.getReassemblyBudget(), config.getReassemblyTimeout());
+		}
+	}
+	
+	/**
+	 * Checks if the client is sent DistributedObjects in the binary format, which it asked for in its handshake
+	 * @return True if the client uses the binary format, false if it is sent objects as text
+	 */
+	public boolean usesBinaryObjects() {
+		return this.binaryObjects;
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Switches the connection to the compact wire format and to length prefixed framing if they were accepted in the handshake. Called once the response has been written.
+	 * @param handshakePacket The handshake packet the client sent
+	 */
+	protected void startFraming(InternalPacket2Handshake handshakePacket) {
+		this.wireFormat = WireFormat.fromFlags(handshakePacket.getAcceptedFlags());
+		if ((handshakePacket.getAcceptedFlags() & InternalPacket2Handshake.FLAG_LENGTH_FRAMING) == 0) {
+			return;
+		}
+		this.frameAssembler = new FrameAssembler(MAX_FRAME_SIZE, this.wireFormat);
+		this.frameWriter = new ByteArrayOutputStream();
+		this.frameOutputStream = new DataOutputStream(this.frameWriter);
+		this.framing = true;
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Writes a packet to the client's TCP stream, preceded by its length if the connection is framed
+	 * @param p The packet to write
+	 * @throws IOException If the packet could not be written
+	 */
+	protected void writePacket(Packet p) throws IOException {
+		if (!this.framing) {
+			this.wireFormat.writePacket(p, this.dataOutputStream);
+			return;
+		}
+		
+		if (p instanceof EncodedPacket) {
+			// The encoded bytes start with a 4 byte id, which the compact format writes as a varint
+			byte[] data = ((EncodedPacket) p).getEncodedBytes();
+			this.wireFormat.writeLength(this.dataOutputStream, data.length - 4 + this.wireFormat.getIdSize(p.getId()));
+			this.wireFormat.writePacket(p, this.dataOutputStream);
+			return;
+		}
+		
+		this.frameWriter.reset();
+		this.wireFormat.writePacket(p, this.frameOutputStream);
+		this.wireFormat.writeLength(this.dataOutputStream, this.frameWriter.size());
+		this.frameWriter.writeTo(this.dataOutputStream);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Sends encoded bytes to the client in a single datagram, or as fragments if they are larger than the MTU and the client agreed to put them back together
+	 * @param data The datagram
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected void sendDatagram(byte[] data) throws IOException {
+		PooledBuffer buffer = this.server.getBufferPool().lease(data.length);
+		try {
+			buffer.getBuffer().put(data).flip();
+			this.sendDatagram(buffer.getBuffer());
+		} finally {
+			buffer.release();
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Sends encoded bytes to the client in a single datagram, or as fragments if they are larger than the MTU and the client agreed to put them back together
+	 * @param data The datagram, from its position to its limit. The position is moved to the limit if it is sent whole.
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected void sendDatagram(ByteBuffer data) throws IOException {
+		InetSocketAddress target = this.datagramAddress;
+		if (target == null) {
+			// Nothing is sent until the client's first datagram shows where it is
+			return;
+		}
+		int mtu = Math.max(MIN_MTU, this.server.getConfigurationManager().getMTU());
+		if (this.fragmentAssembler == null || data.remaining() <= mtu) {
+			this.server.sendDatagram(data, target);
+			return;
+		}
+		
+		int size = mtu - InternalPacket12Fragment.HEADER_SIZE;
+		int length = data.remaining();
+		int count = (length + size - 1) / size;
+		int group = this.nextFragmentGroup++;
+		for (int index = 0; index < count; index++) {
+			int offset = index * size;
+			PooledBuffer fragment = this.server.getBufferPool().lease(mtu);
+			try {
+				InternalPacket12Fragment.putFragment(fragment.getBuffer(), this.wireFormat, group, index, count, data, data.position() + offset, Math.min(size, length - offset));
+				fragment.getBuffer().flip();
+				this.server.sendDatagram(fragment.getBuffer(), target);
+			} finally {
+				fragment.release();
+			}
+		}
+		this.server.getFragmentStatistics().recordFragmented(count);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Encodes a packet into a pooled buffer and sends it in a datagram of its own, through the reliable channel if it must arrive and the client agreed to acknowledge it
+	 * @param p The packet
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected void sendPacketDatagram(Packet p) throws IOException {
+		if (p instanceof EncodedPacket && this.wireFormat == WireFormat.V1) {
+			// Already encoded, send the shared bytes as they are. Compact clients have the body copied behind a varint id below
+			byte[] data = ((EncodedPacket) p).getEncodedBytes();
+			if (this.isSentReliably(p)) {
+				this.sendReliable(p, data);
+			} else {
+				this.sendDatagram(data);
+			}
+			return;
+		}
+		
+		PooledBuffer encoded = this.encodeDatagram(p);
+		try {
+			if (this.isSentReliably(p)) {
+				// The reliable channel keeps the bytes until they're acknowledged, so they can't stay in a pooled buffer
+				byte[] data = new byte[encoded.getBuffer().remaining()];
+				encoded.getBuffer().get(data);
+				this.sendReliable(p, data);
+			} else {
+				this.sendDatagram(encoded.getBuffer());
+			}
+		} finally {
+			encoded.release();
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Writes a packet straight into a leased buffer, or through the growing stream if it's larger than any pooled buffer
+	 * @param p The packet
+	 * @return The encoded packet, flipped, which the caller must release
+	 * @throws IOException If the packet could not be written
+	 */
+	private PooledBuffer encodeDatagram(Packet p) throws IOException {
+		PooledBuffer encoded = this.server.getBufferPool().lease(BufferPool.MAX_SIZE);
+		boolean written = false;
+		try {
+			this.wireFormat.putPacket(p, encoded.getBuffer());
+			written = true;
+		} catch (BufferOverflowException e) {
+			// Larger than any pooled buffer, written again below
+		} finally {
+			if (!written) {
+				encoded.release();
+			}
+		}
+		if (written) {
+			encoded.getBuffer().flip();
+			return encoded;
+		}
+		
+		this.datagramWriter.begin(BufferPool.MAX_SIZE * 2);
+		this.wireFormat.writePacket(p, this.datagramOutputStream);
+		return this.datagramWriter.finish();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Adds a fragment the client sent and processes the packet in its datagram once every fragment has arrived
+	 * @param fragment The fragment
+	 */
+	protected void receiveFragment(InternalPacket12Fragment fragment) {
+		if (this.fragmentAssembler == null) {
+			this.eject("Protocol Error: Fragment received, but fragmentation was not agreed to.", false);
+			return;
+		}
+		
+		long expired = this.fragmentAssembler.getExpiredCount();
+		byte[] data = this.fragmentAssembler.add(fragment.getGroup(), fragment.getIndex(), fragment.getCount(), fragment.getData(), currentMillis());
+		this.server.getFragmentStatistics().recordReceived(data == null ? 0 : 1, this.fragmentAssembler.getExpiredCount() - expired);
+		if (data == null) {
+			return;
+		}
+		
+		ByteBuffer buffer = ByteBuffer.wrap(data);
+		if (this.wireFormat.startsWithId(buffer, -12)) {
+			this.eject("Protocol Error: Fragment nested in a fragment.", false);
+			return;
+		}
+		Packet received;
+		try {
+			received = this.server.getRepository().readPacket(buffer, this.wireFormat);
+		} catch (IOException e) {
+			this.eject("Protocol Error: Malformed fragmented packet.", false);
+			return;
+		} catch (ProtocolViolationException e) {
+			this.eject("Protocol Error: " + e.getMessage(), false);
+			return;
+		}
+		this.processPacket(received);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * @param p The packet
+	 * @return True if the packet must arrive and the client agreed to acknowledge it, so it's sent through {@link #sendReliable(Packet, byte[])}
+	 */
+	protected boolean isSentReliably(Packet p) {
+		return this.reliableChannel != null && isReliable(p);
+	}
+	
+	/**
+	 * @param p The packet
+	 * @return True if the packet's protocol is RELIABLE_UDP or RELIABLE_ORDERED_UDP
+	 */
+	protected static boolean isReliable(Packet p) {
+		return p.getProtocol() == PACKET_PROTOCOL.RELIABLE_UDP || p.getProtocol() == PACKET_PROTOCOL.RELIABLE_ORDERED_UDP;
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Sends a packet through the client's reliable channel, it's sent again until the client acknowledges it
+	 * @param p The packet
+	 * @param data The packet encoded, id included. It must not be changed afterwards.
+	 * @throws IOException If the datagram could not be sent
+	 */
+	protected void sendReliable(Packet p, byte[] data) throws IOException {
+		this.reliableChannel.send(data, p.getProtocol() == PACKET_PROTOCOL.RELIABLE_ORDERED_UDP, currentMillis(), this.reliableTransmitter);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Sends again the reliable packets that have not been acknowledged in time and acknowledges the ones the client sent.
+	 * Ejects the client if it has stopped acknowledging packets.
+	 */
+	protected void updateReliableChannel() {
+		if (this.reliableChannel == null) {
+			return;
+		}
+		try {
+			if (!this.reliableChannel.update(currentMillis(), this.reliableTransmitter)) {
+				this.eject("Networking Error: Reliable packets were not acknowledged in time.", false);
+			}
+		} catch (IOException e) {
+			this.eject("IOException occurred while sending data to stream.", false);
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * @param timeout How long the writer would wait otherwise, in milliseconds
+	 * @return How long the writer may wait before the reliable channel needs to be updated, in milliseconds
+	 */
+	protected long getReliableWait(long timeout) {
+		if (this.reliableChannel == null) {
+			return timeout;
+		}
+		return Math.min(timeout, this.reliableChannel.getNextDeadline(currentMillis()));
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Handles a datagram of the client's reliable channel and processes every packet that it made available, in the order they must be handled
+	 * @param packet The datagram
+	 */
+	protected void receiveReliable(InternalPacket11ReliableDatagram packet) {
+		if (this.reliableChannel == null) {
+			this.eject("Protocol Error: Reliable datagram received, but reliable packets were not agreed to.", false);
+			return;
+		}
+		
+		this.reliableChannel.receive(packet, currentMillis(), this.reliableDelivered);
+		try {
+			for (byte[] payload : this.reliableDelivered) {
+				ByteBuffer buffer = ByteBuffer.wrap(payload);
+				if (this.wireFormat.startsWithId(buffer, -11)) {
+					this.eject("Protocol Error: Reliable datagram nested in a reliable datagram.", false);
+					return;
+				}
+				this.processPacket(this.server.getRepository().readPacket(buffer, this.wireFormat));
+			}
+		} catch (IOException e) {
+			this.eject("Protocol Error: Malformed reliable packet.", false);
+		} catch (ProtocolViolationException e) {
+			this.eject("Protocol Error: " + e.getMessage(), false);
+		} finally {
+			this.reliableDelivered.clear();
+		}
+	}
+	
+	private static long currentMillis() {
+		return System.nanoTime() / 1000000L;
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Reads the packets that have arrived on the client's blocking TCP stream without waiting for more.
+	 * A framed connection handles every complete packet that has arrived, an unframed one handles the next packet.
+	 * @throws IOException If the stream could not be read or a frame is invalid
+	 * @throws ProtocolViolationException If the client sent an unknown packet
+	 */
+	protected void readAvailablePackets() throws IOException, ProtocolViolationException {
+		if (!this.framing) {
+			if (this.dataInputStream.available() > 0) {
+				Packet packet = this.server.getRepository().getPacket(this.wireFormat.readId(this.dataInputStream));
+				packet.read(this.dataInputStream);
+				this.processPacket(packet);
+			}
+			return;
+		}
+		
+		this.frameAssembler.readAvailable(this.dataInputStream);
+		this.processFrames();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Waits until packets arrive on the client's blocking TCP stream and handles them.
+	 * A framed connection handles every complete packet that arrived together, an unframed one handles the next packet.
+	 * @throws IOException If the stream could not be read, has ended or a frame is invalid
+	 * @throws ProtocolViolationException If the client sent an unknown packet
+	 */
+	protected void readPackets() throws IOException, ProtocolViolationException {
+		if (!this.framing) {
+			Packet packet = this.server.getRepository().getPacket(this.wireFormat.readId(this.dataInputStream));
+			packet.read(this.dataInputStream);
+			this.processPacket(packet);
+			return;
+		}
+		
+		if (this.frameAssembler.read(this.dataInputStream) == -1) {
+			throw new EOFException("Connection closed by client.");
+		}
+		this.processFrames();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Handles every complete frame the client's frame assembler holds
+	 * @throws IOException If a frame is invalid or its packet could not be read
+	 * @throws ProtocolViolationException If the client sent an unknown packet
+	 */
+	protected void processFrames() throws IOException, ProtocolViolationException {
+		DataInputStream frame;
+		while (!this.hasBeenEjected && (frame = this.frameAssembler.nextFrame()) != null) {
+			Packet packet = this.server.getRepository().getPacket(this.wireFormat.readId(frame));
+			try {
+				packet.read(frame);
+			} catch (IOException e) {
+				this.server.getRepository().freePacket(packet);
+				throw e;
+			}
+			if (frame.available() > 0) {
+				this.server.getRepository().freePacket(packet);
+				throw new IOException("Packet " + packet.getId() + " is shorter than its frame");
+			}
+			this.processPacket(packet);
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Writes everything the writer has buffered to the client's socket
+	 */
+	protected void flushOutputStream() {
+		try {
+			this.dataOutputStream.flush();
+		} catch (IOException e) {
+			this.eject("IOException occurred while sending data to stream.", false);
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Called once the client is finished with a packet it was queued, releases the client's reference so the packet is freed once no other client is still waiting to send it
+	 * @param p The packet that was sent
+	 */
+	protected void onPacketSent(Packet p) {
+		p.release();
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Called when a packet could not be queued because the client already has a full queue of packets waiting to be sent.
+	 * @param p The packet that could not be queued
+	 */
+	private void handleQueueOverflow(Packet p) {
+		this.onPacketSent(p);
+		this.eject("Networking Error: Too many packets are waiting to be sent to you.", false);
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Tells the client's writer that there is work waiting for it.
+	 * @param immediate True if the writer should wake up now, false if it may wait until the flush window closes.
+	 */
+	protected void signalWriter(boolean immediate) {
+		if (immediate && this.writerSignalled) {
+			// Already signalled, the writer will see this packet when it wakes up
+			return;
+		}
+		
+		this.writerLock.lock();
+		try {
+			if (immediate) {
+				this.writerSignalled = true;
+			} else if (this.flushDeadline != 0) {
+				// The writer already knows when to flush
+				return;
+			} else {
+				this.flushDeadline = System.nanoTime() + this.flushWindow;
+				if (this.flushDeadline == 0) {
+					this.flushDeadline = 1;
+				}
+			}
+			this.writerCondition.signalAll();
+		} finally {
+			this.writerLock.unlock();
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Waits until the writer is signalled, the flush window closes or the timeout elapses, whichever comes first.
+	 * @param timeout The maximum time in milliseconds to wait. 0 checks without waiting.
+	 * @return True if NORMAL priority packets should be sent now, false if they are still inside their flush window.
+	 */
+	protected boolean awaitWriterSignal(long timeout) {
+		long end = System.nanoTime() + timeout * 1000000L;
+		this.writerLock.lock();
+		try {
+			while (!this.writerSignalled) {
+				long wakeAt = end;
+				if (this.flushDeadline != 0 && this.flushDeadline - end < 0) {
+					wakeAt = this.flushDeadline;
+				}
+				
+				long remaining = wakeAt - System.nanoTime();
+				if (remaining <= 0) {
+					break;
+				}
+				
+				try {
+					this.writerCondition.awaitNanos(remaining);
+				} catch (InterruptedException e) {
+					break;
+				}
+			}
+			
+			boolean flushNormal = this.writerSignalled || this.flushDeadline == 0 || this.flushDeadline - System.nanoTime() <= 0;
+			this.writerSignalled = false;
+			if (flushNormal) {
+				this.flushDeadline = 0;
+			}
+			return flushNormal;
+		} finally {
+			this.writerLock.unlock();
+		}
 	}
 	
 	
@@ -267,7 +963,7 @@ public abstract class UnknownClient implements Runnable {
 		if (this.missedKeepAlives > 3) {
 			this.eject("Client Timeout: Missed 3 keep alives.", false);
 		}
-		this.queuePacket(this.keepAlivePacket);
+		this.queuePacket(this.keepAlivePacket.retain());
 	}
 	
 	
@@ -303,6 +999,32 @@ public abstract class UnknownClient implements Runnable {
 	protected void setId(int id) {
 		this.clientId = id;
 	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Gets the random token the client must send with every datagram to prove it owns its client id
+	 * @return The client's session token
+	 */
+	protected int getSessionToken() {
+		return this.sessionToken;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Sets the client's session token, which is sent to the client in the handshake reply
+	 * @param token The token
+	 */
+	protected void setSessionToken(int token) {
+		this.sessionToken = token;
+	}
+	
+	/**
+	 * Gets the protocol the client is connected with
+	 * @return The client's protocol
+	 */
+	public Protocol getProtocol() {
+		return this.protocol;
+	}
 
 	public InetAddress getAddress() {
 		return this.addr;
@@ -311,7 +1033,10 @@ public abstract class UnknownClient implements Runnable {
 	protected void setUDP(int port) {
 		if (this.udpActive) return;
 		this.port = port;
-		this.datagram.setPort(port);
+		InetSocketAddress address = this.datagramAddress;
+		if (address == null || address.getPort() != port) {
+			this.datagramAddress = new InetSocketAddress(this.addr, port);
+		}
 	}
 	
 	protected abstract void processPacket(Packet packet);
@@ -323,7 +1048,8 @@ public abstract class UnknownClient implements Runnable {
 	protected abstract void shutdown();
 
 	public int getUDP() {
-		return this.datagram.getPort();
+		InetSocketAddress address = this.datagramAddress;
+		return address == null ? -1 : address.getPort();
 	}
 
 	public UnknownServer getServer() {
@@ -13,30 +13,46 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server;
 
-import java.io.ByteArrayInputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketException;
-import java.util.LinkedList;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.List;
-import java.util.Queue;
+import java.util.Set;
+import java.util.WeakHashMap;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 import javax.net.ServerSocketFactory;
 import javax.net.ssl.SSLServerSocketFactory;
 
+import com.Unkn0wn0ne.unknownnet.server.distributed.ClientZone;
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
 import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+import com.Unkn0wn0ne.unknownnet.server.net.EncodedPacket;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet;
 import com.Unkn0wn0ne.unknownnet.server.net.ServerRepository;
 import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.BufferPool;
+import com.Unkn0wn0ne.unknownnet.server.util.IntObjectMap;
+import com.Unkn0wn0ne.unknownnet.server.util.FragmentStatistics;
+import com.Unkn0wn0ne.unknownnet.server.util.ObjectPool;
+import com.Unkn0wn0ne.unknownnet.server.util.OutputStatistics;
 import com.Unkn0wn0ne.unknownnet.server.util.Protocol;
+import com.Unkn0wn0ne.unknownnet.server.util.Threads;
 import com.Unkn0wn0ne.unknownnet.server.util.UnknownExceptionHandler;
 
 /**
@@ -60,9 +76,22 @@ public abstract class UnknownServer implements Runnable {
 	
 	private long sleep = 50;
 	
-	private Queue<DatagramPacket> datagramsToBeProcessed = new LinkedList<DatagramPacket>();
+	private UDPReceiver[] udpReceivers = null;
+	// Authenticated UDP and DUALSTACK clients by client id, so a datagram can be routed without searching every client
+	private IntObjectMap<UnknownClient> udpSessions = new IntObjectMap<UnknownClient>();
+	private SecureRandom sessionTokenGenerator = new SecureRandom();
 	
-	private DatagramSocket uServerSocket = null;
+	// Zones replicated on every tick, held weakly so that zones the server no longer uses can be collected
+	private final Set<ClientZone> replicatedZones = Collections.newSetFromMap(new WeakHashMap<ClientZone, Boolean>());
+	
+	private OutputStatistics outputStatistics = new OutputStatistics();
+	private FragmentStatistics fragmentStatistics = new FragmentStatistics();
+	private BufferPool bufferPool = new BufferPool();
+	
+	private SelectorLoop[] selectorLoops = null;
+	// Runs the handshakes and packet handlers of NIO clients, so the selector threads only move bytes
+	private ExecutorService handlerExecutor = null;
+	private int nextSelectorLoop = 0;
 
 	/**
 	 * Creates an UnknownServer with the main thread loop being called every 50 milliseconds
@@ -94,6 +123,7 @@ public abstract class UnknownServer implements Runnable {
 		this.configManager.setUseFileSystem(useFileSystem);
 		this.configManager.load();
 		this.maxClients = this.configManager.getMaxClients();
+		this.serverRepository.setPoolSize(this.configManager.getPacketPoolSize());
 		
 		Thread.setDefaultUncaughtExceptionHandler(new UnknownExceptionHandler(this));
 		
@@ -102,7 +132,8 @@ public abstract class UnknownServer implements Runnable {
 			@Override
 			public void run() {
 				UnknownLogger.log(Level.INFO, LogType.CORE, "Internal/UnknownServer: Caught shutdown signal, shutting down server.");
-				shutdown(false);
+				// The JVM is already exiting, calling System.exit from a shutdown hook would block forever
+				ejectAllClients();
 			}
 		};
 		
@@ -117,6 +148,13 @@ public abstract class UnknownServer implements Runnable {
 	public void startServer() {
 		this.serverRepository.init();
 		this.isRunning = true;
+		if (this.configManager.useVirtualThreads()) {
+			if (Threads.isVirtualThreadSupported()) {
+				UnknownLogger.log(Level.INFO, LogType.CORE, "Internal/UnknownServer: Clients will run on virtual threads.");
+			} else {
+				UnknownLogger.log(Level.WARNING, LogType.CORE, "Internal/UnknownServer: Virtual threads require Java 21 or later, clients will run on platform threads.");
+			}
+		}
 		new Thread(this, "Server-Connection-Thread").start();
 		new Thread(new Runnable() {
 			@Override
@@ -124,6 +162,14 @@ public abstract class UnknownServer implements Runnable {
 				doKeepAliveLoop();
 			}	
 		}, "Server-KeepAlive-Thread").start();
+		if (this.configManager.getReplicationRate() > 0) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					doReplicationLoop();
+				}
+			}, "Server-Replication-Thread").start();
+		}
 		while (this.isRunning) {
 			try {
 				Thread.sleep(this.sleep);
@@ -136,7 +182,7 @@ public abstract class UnknownServer implements Runnable {
 	
 	/**
 	 * Internal method. Do not call
-	 * Runs a loop that sends a keep alive packet to a client every 30 seconds
+	 * Runs a loop that sends a keep alive packet to a client every 30 seconds and trims the packet pools
 	 */
 	private void doKeepAliveLoop() {
 		while (this.isRunning) {
@@ -151,13 +197,67 @@ public abstract class UnknownServer implements Runnable {
 					
 					if (client.hasBeenEjected()) {
 						this.connectedClients.remove(client);
+						this.udpSessions.remove(client.getId(), client);
 					}
 					client.sendKeepAlive();
 				}
 			}
+			this.serverRepository.trimPools();
+			this.bufferPool.trim();
 		}
 	}
 
+	/**
+	 * Internal method. Do not call
+	 * Runs a replication tick on every registered zone at the configured replication rate
+	 */
+	private void doReplicationLoop() {
+		long interval = 1000000000L / this.configManager.getReplicationRate();
+		long nextTick = System.nanoTime() + interval;
+		while (this.isRunning) {
+			long wait = nextTick - System.nanoTime();
+			if (wait > 0) {
+				try {
+					Thread.sleep(wait / 1000000, (int) (wait % 1000000));
+				} catch (InterruptedException e) {
+				}
+			}
+			nextTick += interval;
+			long now = System.nanoTime();
+			if (nextTick < now) {
+				// A tick ran long, don't try to catch up on the ticks it missed
+				nextTick = now + interval;
+			}
+			
+			ClientZone[] zones;
+			synchronized (this.replicatedZones) {
+				zones = this.replicatedZones.toArray(new ClientZone[this.replicatedZones.size()]);
+			}
+			for (ClientZone zone : zones) {
+				try {
+					zone.replicate();
+				} catch (RuntimeException e) {
+					UnknownLogger.log(Level.SEVERE, LogType.CORE, "Internal/UnknownServer: Failed to replicate zone, an Exception has occurred", e);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Registers a zone to be replicated on every tick, called when its first client is added
+	 * @return True if the server replicates zones on a tick, false if objects are only sent when updateObject is called
+	 */
+	public boolean registerReplicatedZone(ClientZone zone) {
+		if (this.configManager.getReplicationRate() <= 0) {
+			return false;
+		}
+		synchronized (this.replicatedZones) {
+			this.replicatedZones.add(zone);
+		}
+		return true;
+	}
+
 	/**
 	 * Called to keep the server main thread alive by default every 50 milliseconds, but this can be adjusted by using the UnknownServer(long sleepMain) constructor or {@link UnknownServer#setMainThreadSleep(long)}
 	 */
@@ -166,6 +266,13 @@ public abstract class UnknownServer implements Runnable {
 	@Override
 	public void run() {
 		if (this.configManager.getProtocol().equalsIgnoreCase("TCP")) {
+			if (this.configManager.useNIO()) {
+				if (!this.configManager.useSSL()) {
+					this.runNIOServer();
+					return;
+				}
+				UnknownLogger.log(Level.WARNING, LogType.CORE, "Internal/UnknownServer: NIO is not supported with SSL, falling back to a thread per client.");
+			}
 		    UnknownLogger.log(Level.INFO, LogType.CORE, "Internal/UnknownServer: Starting TCP Server on port: " + this.configManager.getServerPort());
 			ServerSocket serv_socket = null;
 			if (!configManager.useSSL()) {
@@ -247,47 +354,7 @@ public abstract class UnknownServer implements Runnable {
 				UnknownLogger.log(Level.WARNING, LogType.NETWORKING, "Internal/UnknownServer: SSL is currently not supported with UnknownNet's UDP implementation.");
 			}
 			
-			new Thread(
-				new Runnable() {
-					@Override
-					public void run() {
-						byte[] buffer = null;
-						
-						try {
-							UnknownServer.this.uServerSocket = new DatagramSocket(UnknownServer.this.configManager.getServerPort());
-							buffer = new byte[UnknownServer.this.uServerSocket.getReceiveBufferSize()];
-						} catch (SocketException e) {
-							UnknownLogger.log(Level.SEVERE, LogType.CORE, "Internal/UnknownServer: Fatal: Failed to create UDP server. A socket exception has occurred. \nShutting down server...", e);
-							System.exit(1);
-							return;
-						}
-						while (!UnknownServer.this.uServerSocket.isClosed()) {
-							DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-							try {
-								Thread.sleep(10);
-							} catch (InterruptedException e) {
-								
-							}
-							
-							try {
-								UnknownServer.this.uServerSocket.receive(packet);
-								UnknownServer.this.datagramsToBeProcessed.add(packet);
-							} catch (IOException e) {
-							
-							}
-						}
-					}
-					
-				}, "Server-UDP-Receive-Thread").start();
-			
-			
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					UnknownServer.this.handleUDPReceiveLoop();
-				}
-				
-			}, "Server-UDP-Director-Thread").start();
+			this.startUDPReceivers(this.configManager.getServerPort());
 			
 			while (!serv_socket.isClosed()) {
 				try {
@@ -332,48 +399,7 @@ public abstract class UnknownServer implements Runnable {
 			}
 			
 			
-			new Thread(
-					new Runnable() {
-						@Override
-						public void run() {
-							byte[] buffer = null;
-							
-							try {
-								UnknownServer.this.uServerSocket = new DatagramSocket(UnknownServer.this.configManager.getAuthServerPort());
-								buffer = new byte[UnknownServer.this.uServerSocket.getReceiveBufferSize()];
-							} catch (SocketException e) {
-								UnknownLogger.log(Level.SEVERE, LogType.CORE, "Internal/UnknownServer: Fatal: Failed to create UDP server. A socket exception has occurred. \nShutting down server...", e);
-								System.exit(1);
-								return;
-							}
-							
-							while (!UnknownServer.this.uServerSocket.isClosed()) {
-								DatagramPacket packet = new DatagramPacket(buffer, buffer.length);
-								try {
-									Thread.sleep(10);
-								} catch (InterruptedException e) {
-									
-								}
-								
-								try {
-									UnknownServer.this.uServerSocket.receive(packet);
-									UnknownServer.this.datagramsToBeProcessed.add(packet);
-								} catch (IOException e) {
-								
-								}
-							}
-						}
-						
-					}, "Server-UDP-Receive-Thread").start();
-			
-			new Thread(new Runnable() {
-				@Override
-				public void run() {
-					UnknownServer.this.handleUDPReceiveLoop();
-				}
-				
-			}, "Server-UDP-Director-Thread").start();
-
+			this.startUDPReceivers(this.configManager.getAuthServerPort());
 			
 			while (!serv_socket.isClosed() && this.isRunning ) {
 				try {
@@ -405,79 +431,122 @@ public abstract class UnknownServer implements Runnable {
 		}
 	}
 
-
-	
-	private void handleUDPReceiveLoop() {	
-		Packet uPacket = null;
-		ByteArrayInputStream bufferInputStream = null;
-		DataInputStream dataStream = null;
+	/**
+	 * Internal method. Do not call
+	 * Runs the TCP server with NIO, accepting clients on a {@link ServerSocketChannel} and handing them to a pool of {@link SelectorLoop}s
+	 */
+	private void runNIOServer() {
+		UnknownLogger.log(Level.INFO, LogType.CORE, "Internal/UnknownServer: Starting TCP Server (NIO, " + this.configManager.getSelectorThreads() + " selector threads) on port: " + this.configManager.getServerPort());
+		UnknownLogger.log(Level.WARNING, LogType.SECURITY_WARNING, "Internal/UnknownServer: Server not configured to use SSL. This can pose as a security issue on production servers");
 		
-		while (this.isRunning) {
-			try {
-				Thread.sleep(15);
-			} catch (InterruptedException e1) {
-				
-			}
-			
-			boolean wasRead = false;
+		ServerSocketChannel serv_channel = null;
+		try {
+			serv_channel = ServerSocketChannel.open();
+			serv_channel.socket().bind(new InetSocketAddress(this.configManager.getServerPort()));
 			
-			while (!this.datagramsToBeProcessed.isEmpty()) {
-				wasRead = false;
-				DatagramPacket packet = this.datagramsToBeProcessed.poll();
-				if (bufferInputStream != null) {
-					try {			
-						bufferInputStream.close();
-						dataStream.close();
-					} catch (IOException e) {
-						
-					}
-					
-					bufferInputStream = null;
-					dataStream = null;
-					uPacket = null;
+			final boolean virtual = this.configManager.useVirtualThreads();
+			final AtomicInteger handlerCount = new AtomicInteger(0);
+			this.handlerExecutor = Executors.newFixedThreadPool(Math.max(1, this.configManager.getHandlerThreads()), new ThreadFactory() {
+				@Override
+				public Thread newThread(Runnable runnable) {
+					return Threads.newThread(runnable, "Server-Handler-Thread-" + handlerCount.getAndIncrement(), virtual);
 				}
-				bufferInputStream = new ByteArrayInputStream(packet.getData());
-				dataStream = new DataInputStream(bufferInputStream);;
-				try {
-					int clientId = dataStream.readInt();
-					int p_id = dataStream.readInt();
-					
-					uPacket = this.serverRepository.getPacket(p_id);
-					uPacket.read(dataStream);
-					
-					synchronized (this.connectedClients) {
-						for (int i = 0; i < this.connectedClients.size(); i++) {
-							UnknownClient client = this.connectedClients.get(i);
-							// Check by id, IP, and port in order to avoid malicious attacks, not perfect but the best we've got
-							if (client.getId() == clientId) {
-								if (client.udpActive && client.getUDP() != packet.getPort()) {
-									continue;
-								}
-								if (client.getAddress().getHostAddress().equalsIgnoreCase(packet.getAddress().getHostAddress())) {
-									client.setUDP(packet.getPort());
-									client.queueUDPPacketProcess(uPacket);
-									wasRead = true;
-									break;
-								} else {
-									wasRead = true;
-									// Attempted attack, we'll just ignore
-									break;
-								}
-							} 
-						}
-						
-						if (!wasRead) {
-							// Unauthorized client, ignore
-						}
-					}
-				} catch (IOException e) {
-					
-				} catch (ProtocolViolationException e) {
-					
+			});
+			this.selectorLoops = new SelectorLoop[Math.max(1, this.configManager.getSelectorThreads())];
+			for (int i = 0; i < this.selectorLoops.length; i++) {
+				this.selectorLoops[i] = new SelectorLoop(this, i);
+				this.selectorLoops[i].start();
+			}
+		} catch (IOException e) {
+			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/UnknownServer: Failed to create server socket channel, an IOException ocurred. \nShutting down server...", e);
+			System.exit(1);
+		}
+		
+		while (serv_channel.isOpen() && this.isRunning) {
+			try {
+				SocketChannel channel = serv_channel.accept();
+				Socket socket = channel.socket();
+				socket.setTcpNoDelay(this.configManager.getTCPNoDelay());
+				socket.setKeepAlive(this.configManager.getKeepAlive());
+				socket.setTrafficClass(this.configManager.getTrafficClass());
+				
+				if (this.numClients >= this.maxClients) {
+					// Server is completely full, silently disconnect the client
+					this.silentlyDisconnect(socket, "The server is full.");
+					continue;
+				} else if (!this.isAllowingClients) {
+					this.silentlyDisconnect(socket, "The server is currently not accepting new connections at the moment.");
+					continue;
 				}
+				UnknownLogger.log(Level.INFO, LogType.NETWORKING, "Internal/UnknownServer: Client connection from '" + socket.getInetAddress().getHostAddress() + ":" + socket.getPort() + "'");
+				this.handleNewClient(channel);
+			} catch (IOException e) {
+				UnknownLogger.log(Level.WARNING, LogType.NETWORKING, "Internal/UnknownServer: Failed to accept client, an IOException has occurred. Continuing on...", e);
+			}
+		}
+		
+		for (SelectorLoop loop : this.selectorLoops) {
+			loop.shutdown();
+		}
+		this.handlerExecutor.shutdown();
+		
+		try {
+			serv_channel.close();
+		} catch (IOException e) {
+			UnknownLogger.log(Level.WARNING, LogType.CORE, "Internal/UnknownServer: Failed to close server socket channel, aborting...");
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Binds the server's UDP sockets and starts receiving datagrams on them
+	 * @param port The port to receive datagrams on
+	 */
+	private void startUDPReceivers(int port) {
+		int workers = Math.max(1, this.configManager.getUDPWorkerCount());
+		if (workers > 1 && !UDPReceiver.isReusePortSupported()) {
+			UnknownLogger.log(Level.WARNING, LogType.CORE, "Internal/UnknownServer: SO_REUSEPORT is not supported on this platform, receiving UDP datagrams on a single socket.");
+			workers = 1;
+		}
+		
+		this.udpReceivers = new UDPReceiver[workers];
+		for (int i = 0; i < workers; i++) {
+			this.udpReceivers[i] = new UDPReceiver(this, port, this.configManager.getUDPReceiveRingSize(), i, workers > 1);
+			try {
+				this.udpReceivers[i].start();
+			} catch (IOException e) {
+				UnknownLogger.log(Level.SEVERE, LogType.CORE, "Internal/UnknownServer: Fatal: Failed to create UDP server. An IOException has occurred. \nShutting down server...", e);
+				System.exit(1);
 			}
 		}
 	}
+	
+	/**
+	 * Internal method. Do not call
+	 * Hands a packet received over UDP to the client that sent it
+	 * @param clientId The client id the datagram claims to be from
+	 * @param token The session token the datagram carries
+	 * @param sender The address the datagram actually came from
+	 * @param packet The decoded packet
+	 * @return False if no authenticated client could have sent the datagram, the packet is then still owned by the caller
+	 */
+	protected boolean deliverDatagram(int clientId, int token, InetSocketAddress sender, Packet packet) {
+		UnknownClient client = this.udpSessions.get(clientId);
+		// Check by id, token, IP, and port in order to avoid malicious attacks
+		if (client == null || client.getSessionToken() != token) {
+			return false;
+		}
+		if (client.udpActive && client.getUDP() != sender.getPort()) {
+			return false;
+		}
+		if (!client.getAddress().equals(sender.getAddress())) {
+			// Attempted attack, we'll just ignore
+			return false;
+		}
+		client.setUDP(sender.getPort());
+		client.queueUDPPacketProcess(packet);
+		return true;
+	}
 
 	/**
 	 * Internal method. Do not call.
@@ -509,8 +578,11 @@ public abstract class UnknownServer implements Runnable {
 		
 	}
 
-	protected void sendDatagram(DatagramPacket packet) throws IOException {
-		this.uServerSocket.send(packet);
+	protected void sendDatagram(ByteBuffer data, InetSocketAddress target) throws IOException {
+		int length = data.remaining();
+		// Every receiver is bound to the same port, spread the sends so they don't all contend for one socket
+		this.udpReceivers[(target.getPort() & 0x7FFFFFFF) % this.udpReceivers.length].send(data, target);
+		this.outputStatistics.recordWrite(length);
 	}
 	
 	/**
@@ -538,12 +610,44 @@ public abstract class UnknownServer implements Runnable {
 		
 		this.numSessionClients++;
 		client.setId(this.numSessionClients);
+		if (protocol != Protocol.TCP) {
+			client.setSessionToken(this.sessionTokenGenerator.nextInt());
+		}
 		client.start();
 	}
 	
+	/**
+	 * Internal Method. Do not call
+	 * Handles a new NIO connection, assigning it to the next selector loop
+	 * @param channel The accepted channel of the client
+	 */
+	private void handleNewClient(SocketChannel channel) {
+		SelectorLoop loop = this.selectorLoops[this.nextSelectorLoop];
+		this.nextSelectorLoop = (this.nextSelectorLoop + 1) % this.selectorLoops.length;
+		
+		UnknownClient client = new NIOClient(channel, this, loop);
+		
+		if (!serverGuard.verifyClient(client)) {
+			return;
+		}
+		
+		this.numSessionClients++;
+		client.setId(this.numSessionClients);
+		client.start();
+	}
+	
+	
+	/**
+	 * Internal method. Do not call
+	 * @return The executor that runs the handshakes and packet handlers of NIO clients, or null if NIO is not in use
+	 */
+	protected Executor getHandlerExecutor() {
+		return this.handlerExecutor;
+	}
 	
 	/**
 	 * Called when a client has connected to the server
+	 * Called on the client's own thread, or on one of the handler threads when NIO is enabled. It may block without holding up other clients.
 	 * @param client The UnknownClient instance for this client
 	 * @param loginData The custom array of login data sent by the client for authentication, may be null depending on your client-side implementation
 	 * @return True to allow the client to join the server and leave the authentication sandbox, false to kick the client for failing authentication
@@ -572,6 +676,9 @@ public abstract class UnknownServer implements Runnable {
 		synchronized (this.connectedClients) {
 			this.connectedClients.add(unknownClient);
 		}
+		if (unknownClient.getProtocol() != Protocol.TCP) {
+			this.udpSessions.put(unknownClient.getId(), unknownClient);
+		}
 	}
 
 	/**
@@ -583,6 +690,47 @@ public abstract class UnknownServer implements Runnable {
 		return this.serverRepository;
 	}
 
+	/**
+	 * Internal method. Do not call
+	 * @return The configuration the server is running with
+	 */
+	protected ConfigurationManager getConfigurationManager() {
+		return this.configManager;
+	}
+	
+	/**
+	 * Gets the server's socket write counters, which can be used to measure how well output is being batched
+	 * @return The output statistics for every client of this server
+	 */
+	public OutputStatistics getOutputStatistics() {
+		return this.outputStatistics;
+	}
+	
+	/**
+	 * Gets the server's fragmentation counters, which show how often datagrams are larger than the MTU and how many of the clients' fragmented datagrams never arrive whole
+	 * @return The fragment statistics for every client of this server
+	 */
+	public FragmentStatistics getFragmentStatistics() {
+		return this.fragmentStatistics;
+	}
+	
+	/**
+	 * Gets the direct buffers that datagrams are encoded into and sent from, whose counters show how many are leased and how much memory the pool holds
+	 * @return The buffer pool shared by every client of this server
+	 */
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+	
+	/**
+	 * Gets the pool that the packets with the given id are taken from and freed to, whose counters show how often packets are reused instead of created
+	 * @param id The packet id
+	 * @return The pool of the packet, or null if no packet is registered with the id
+	 */
+	public ObjectPool<Packet> getPacketPool(int id) {
+		return this.serverRepository.getPacketPool(id);
+	}
+	
 	/**
 	 * Gets the protocol version that the server is using.
 	 * @return The protocol version that the server is using
@@ -601,6 +749,7 @@ public abstract class UnknownServer implements Runnable {
 		synchronized (this.connectedClients) {
 			this.connectedClients.remove(unknownClient);
 		}
+		this.udpSessions.remove(unknownClient.getId(), unknownClient);
 		this.onClientLeave(unknownClient);
 	}
 	
@@ -613,6 +762,7 @@ public abstract class UnknownServer implements Runnable {
 	/**
 	 * Called when a packet has been received
 	 * Note that after this method has finished processing the packet will be cleared and reinserted into the pool. The packet cannot be saved after this method. You can copy the values for further processing if you wish.
+	 * A client's packets are handled one at a time in the order they arrived, on the client's own thread, or on one of the handler threads when NIO is enabled.
 	 * @param client The client the packet was received from
 	 * @param packet The packet that was received 
 	 */
@@ -627,6 +777,15 @@ public abstract class UnknownServer implements Runnable {
 		this.serverRepository.registerPacket(id, packet);
 	}
 	
+	/**
+	 * Registers a packet that is created by a factory instead of through reflection, such as its constructor reference (Packet1Chat::new). This only has to be called once per packet type
+	 * @param id The packet id for the packet type you'd like to register
+	 * @param factory Creates a new instance of the packet
+	 */
+	public void registerPacket(int id, Supplier<? extends Packet> factory) {
+		this.serverRepository.registerPacket(id, factory);
+	}
+	
 	/**
 	 * Gets a list of all the clients currently connected.
 	 * @return A list of all the clients currently connected
@@ -647,6 +806,35 @@ public abstract class UnknownServer implements Runnable {
 		return this.serverRepository.getPacket(id);
 	}
 
+	/**
+	 * Sends a packet to many clients, encoding it only once. Every client is sent the same bytes.
+	 * The packet is freed as soon as it has been encoded, so it must not be used or queued again afterwards. There is no need to call {@link Packet#setRecipentCount(int)}.
+	 * Each client holds one reference to the encoded bytes until it has sent them. A client that leaves before then releases its reference when its queues are torn down, and one that has already left releases it straight away.
+	 * @param packet The packet to send
+	 * @param clients The clients to send it to
+	 */
+	public void broadcast(Packet packet, Collection<UnknownClient> clients) {
+		UnknownClient[] recipients = clients.toArray(new UnknownClient[0]);
+		if (recipients.length == 0) {
+			this.serverRepository.freePacket(packet);
+			return;
+		}
+		
+		EncodedPacket encoded;
+		try {
+			encoded = new EncodedPacket(packet, recipients.length, this.bufferPool);
+		} catch (IOException e) {
+			UnknownLogger.log(Level.SEVERE, LogType.NETWORKING, "Internal/UnknownServer: Failed to encode packet with id '" + packet.getId() + "' for broadcast, an IOException has occurred.", e);
+			this.serverRepository.freePacket(packet);
+			return;
+		}
+		this.serverRepository.freePacket(packet);
+		
+		for (UnknownClient client : recipients) {
+			client.queuePacket(encoded);
+		}
+	}
+
 	/**
 	 * Gets the {@link ServerGuard} instance for the server
 	 * @return The server guard instance for this server
@@ -699,6 +887,15 @@ public abstract class UnknownServer implements Runnable {
 	}
 
 	public void shutdown(boolean b) {
+		this.ejectAllClients();
+		if (b) {
+			System.exit(1);
+		} else {
+			System.exit(0);
+		}
+	}
+	
+	private void ejectAllClients() {
 		this.isRunning = false;
 		synchronized (this.connectedClients) {
 			if (this.connectedClients.size() > 0) {
@@ -708,11 +905,6 @@ public abstract class UnknownServer implements Runnable {
 				}
 			}
 		}
-		if (b) {
-			System.exit(1);
-		} else {
-			System.exit(0);
-		}
 	}
 	
 	public void setMainThreadSleep(long time) {
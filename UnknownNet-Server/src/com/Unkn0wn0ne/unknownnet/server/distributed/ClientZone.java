@@ -13,16 +13,32 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server.distributed;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket6DistributedObjectCreation;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket7DestroyDistributedObject;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket8DistributedObjectEdit;
 import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket9LeaveZone;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket10DistributedObjectBatchEdit;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
 import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
 
+/**
+ * ClientZone - A group of clients that are sent the same DistributedObjects.
+ * By default every client in the zone is sent every object. Zones that are large open areas can give clients and objects positions with an interest radius, see {@link #setInterestRadius(float)}, after which a client is only sent the positioned objects within that radius of it.
+ * Objects entering a client's radius are created on it and objects leaving it are destroyed on it. Clients and objects without a position still see, and are seen by, everything in the zone.
+ * @author Unkn0wn0ne
+ */
 public class ClientZone {
 
 	private List<UnknownClient> clients = new ArrayList<UnknownClient>();
@@ -30,6 +46,24 @@ public class ClientZone {
 	private int id = 0;
 	private long objCount = Long.MIN_VALUE; 
 	
+	// Batches are split before they grow past this, so that each stays well inside a datagram
+	private static final int MAX_BATCH_SIZE = 8192;
+	
+	// Set once the zone has been registered with a server that replicates on a fixed tick
+	private volatile boolean replicating = false;
+	// Objects changed since the last tick, each added once however many of its fields changed
+	private final Object replicationLock = new Object();
+	private List<DistributedObject> pendingReplication = new ArrayList<DistributedObject>();
+	private List<DistributedObject> spareReplication = new ArrayList<DistributedObject>();
+	
+	// Interest management, null until setInterestRadius is called. Guarded by the clients lock.
+	private float interestRadius = 0;
+	private SpatialGrid<DistributedObject> objectGrid = null;
+	private SpatialGrid<UnknownClient> clientGrid = null;
+	// The positioned objects each positioned client has been sent, and the positioned clients each positioned object has been sent to
+	private Map<UnknownClient, Set<DistributedObject>> interests = null;
+	private Map<DistributedObject, Set<UnknownClient>> observers = null;
+	
 	public ClientZone(int id) {
 		this.id = id;
 	}
@@ -39,49 +73,162 @@ public class ClientZone {
 		object.setId(this.objCount);
 		object.setZoneId(this.id);
 		this.objManager.addDistributedObject(object);
+		object.setZone(this);
 		sendObjectToClients(object);
 	}
+	
+	/**
+	 * Spawns an object at a position, it is only sent to the clients within the interest radius of it and to clients without a position
+	 * @throws IllegalStateException If the zone has no interest radius
+	 */
+	public void spawnDistributedObject(DistributedObject object, float x, float y) {
+		synchronized (this.clients) {
+			this.requireInterest();
+			this.objCount++;
+			object.setId(this.objCount);
+			object.setZoneId(this.id);
+			this.objManager.addDistributedObject(object);
+			object.setZone(this);
+			
+			this.objectGrid.put(object, x, y);
+			Set<UnknownClient> inRange = new HashSet<UnknownClient>();
+			this.clientGrid.query(x, y, this.interestRadius, inRange);
+			for (UnknownClient client : inRange) {
+				this.interests.get(client).add(object);
+			}
+			this.observers.put(object, inRange);
+			this.broadcastObject(-6, object.getEncodedBytes(), this.getRecipients(object));
+		}
+	}
 
 	private void sendObjectToClients(DistributedObject object) {
-		InternalPacket6DistributedObjectCreation objCreationPacket = null;
-		
+		this.broadcastObject(-6, object.getEncodedBytes());
+	}
+	
+	/**
+	 * Sends an object to every client in the zone, in the binary format to clients that asked for it and as text, converted once, to the others
+	 * @param packetId -6 to create the object, -8 to update it
+	 * @param encoded The object, or its changed fields, in the binary format
+	 */
+	private void broadcastObject(int packetId, byte[] encoded) {
 		synchronized (this.clients) {
-			for (int i = 0; i < this.clients.size(); i++) {
-				UnknownClient client = this.clients.get(i);
-				if (objCreationPacket == null) {
-					try {
-						objCreationPacket = (InternalPacket6DistributedObjectCreation) client.getServer().createPacket(-6);
-						objCreationPacket.setRecipentCount(this.clients.size());
-						objCreationPacket.setVariables(object.toString());
-					} catch (ProtocolViolationException e) {
-						objCreationPacket = new InternalPacket6DistributedObjectCreation();
-					}
+			this.broadcastObject(packetId, encoded, this.clients);
+		}
+	}
+	
+	/**
+	 * Sends an object to some of the clients in the zone, in the binary format to clients that asked for it and as text, converted once, to the others
+	 * Must be called with the clients lock held.
+	 */
+	private void broadcastObject(int packetId, byte[] encoded, List<UnknownClient> recipients) {
+		if (recipients.isEmpty()) {
+			return;
+		}
+		
+		int binaryClients = 0;
+		for (UnknownClient client : recipients) {
+			if (client.usesBinaryObjects()) {
+				binaryClients++;
+			}
+		}
+		
+		UnknownServer server = recipients.get(0).getServer();
+		if (binaryClients == recipients.size()) {
+			server.broadcast(createObjectPacket(server, packetId, encoded, true), recipients);
+		} else if (binaryClients == 0) {
+			server.broadcast(createObjectPacket(server, packetId, encoded, false), recipients);
+		} else {
+			List<UnknownClient> binary = new ArrayList<UnknownClient>(binaryClients);
+			List<UnknownClient> text = new ArrayList<UnknownClient>(recipients.size() - binaryClients);
+			for (UnknownClient client : recipients) {
+				if (client.usesBinaryObjects()) {
+					binary.add(client);
+				} else {
+					text.add(client);
 				}
-				client.queuePacket(objCreationPacket);
+			}
+			server.broadcast(createObjectPacket(server, packetId, encoded, true), binary);
+			server.broadcast(createObjectPacket(server, packetId, encoded, false), text);
+		}
+	}
+	
+	/**
+	 * Creates a packet holding an object
+	 * @param server The server to create the packet with
+	 * @param packetId -6 to create the object, -8 to update it
+	 * @param encoded The object, or its changed fields, in the binary format
+	 * @param binary True to send the binary format, false to convert it to text
+	 * @return The packet
+	 */
+	static Packet createObjectPacket(UnknownServer server, int packetId, byte[] encoded, boolean binary) {
+		Packet packet = null;
+		try {
+			packet = server.createPacket(packetId);
+		} catch (ProtocolViolationException e) {
+			packet = packetId == -6 ? new InternalPacket6DistributedObjectCreation() : new InternalPacket8DistributedObjectEdit();
+		}
+		
+		if (binary) {
+			packet.setVariables(encoded);
+		} else {
+			try {
+				packet.setVariables(ObjectCodec.toText(encoded));
+			} catch (IOException e) {
+				// Encoded by ObjectCodec, it can't be malformed
+				packet.setVariables("");
+			} catch (ProtocolViolationException e) {
+				packet.setVariables("");
 			}
 		}
+		return packet;
+	}
+	
+	/**
+	 * Sends a packet to every client in the zone. The packet is encoded once no matter how many clients are in the zone.
+	 * The packet is freed once it has been encoded and must not be used afterwards.
+	 * @param packet The packet to send
+	 */
+	public void broadcast(Packet packet) {
+		synchronized (this.clients) {
+			if (this.clients.isEmpty()) {
+				return;
+			}
+			this.clients.get(0).getServer().broadcast(packet, this.clients);
+		}
 	}
 	
 	public void destroyObject(long id) {
 		synchronized (this.clients) {
-			this.objManager.removeDistributedObject(id);
-			
-			InternalPacket7DestroyDistributedObject objDestroyPacket = null;
-			
-			for (int i = 0; i < this.clients.size(); i++) {
-				UnknownClient client = this.clients.get(i);
-				if (objDestroyPacket == null) {
-					try {
-						objDestroyPacket = (InternalPacket7DestroyDistributedObject) client.getServer().createPacket(-7);
-					} catch (ProtocolViolationException e) {
-						objDestroyPacket = new InternalPacket7DestroyDistributedObject();
+			DistributedObject object = this.objManager.removeDistributedObject(id);
+			List<UnknownClient> recipients = this.clients;
+			if (object != null) {
+				object.setZone(null);
+				if (this.objectGrid != null && this.objectGrid.contains(object)) {
+					recipients = this.getRecipients(object);
+					this.objectGrid.remove(object);
+					for (UnknownClient client : this.observers.remove(object)) {
+						this.interests.get(client).remove(object);
 					}
-					objDestroyPacket.setRecipentCount(this.clients.size());
-					objDestroyPacket.setVariables(id, this.id);
 				}
-				client.queuePacket(objDestroyPacket);
 			}
+			
+			if (recipients.isEmpty()) {
+				return;
+			}
+			UnknownServer server = recipients.get(0).getServer();
+			server.broadcast(this.createDestroyPacket(server, id), recipients);
+		}
+	}
+	
+	private Packet createDestroyPacket(UnknownServer server, long id) {
+		InternalPacket7DestroyDistributedObject objDestroyPacket = null;
+		try {
+			objDestroyPacket = (InternalPacket7DestroyDistributedObject) server.createPacket(-7);
+		} catch (ProtocolViolationException e) {
+			objDestroyPacket = new InternalPacket7DestroyDistributedObject();
 		}
+		objDestroyPacket.setVariables(id, this.id);
+		return objDestroyPacket;
 	}
 
 	public void addClient(UnknownClient client) {
@@ -92,12 +239,52 @@ public class ClientZone {
 			}
 			this.clients.add(client);
 		}
+		if (!this.replicating && client.getServer().registerReplicatedZone(this)) {
+			this.replicating = true;
+		}
 		this.objManager.prepareClient(client);
 	}
 	
+	/**
+	 * Adds a client at a position, it is only sent the objects within the interest radius of it and objects without a position
+	 * @throws IllegalStateException If the zone has no interest radius
+	 */
+	public void addClient(UnknownClient client, float x, float y) {
+		synchronized (this.clients) {
+			this.requireInterest();
+			if (this.clients.contains(client)) {
+				this.setClientPosition(client, x, y);
+				return;
+			}
+			this.clients.add(client);
+			
+			this.clientGrid.put(client, x, y);
+			Set<DistributedObject> inRange = new HashSet<DistributedObject>();
+			this.objectGrid.query(x, y, this.interestRadius, inRange);
+			for (DistributedObject object : inRange) {
+				this.observers.get(object).add(client);
+			}
+			this.interests.put(client, inRange);
+			
+			for (DistributedObject object : this.objManager.getDistributedObjects()) {
+				if (inRange.contains(object) || !this.objectGrid.contains(object)) {
+					client.queuePacket(createObjectPacket(client.getServer(), -6, object.getEncodedBytes(), client.usesBinaryObjects()));
+				}
+			}
+		}
+		if (!this.replicating && client.getServer().registerReplicatedZone(this)) {
+			this.replicating = true;
+		}
+	}
+	
 	public void removeClient(UnknownClient client) {
 		synchronized (this.clients) {
 			this.clients.remove(client);
+			if (this.clientGrid != null && this.clientGrid.remove(client)) {
+				for (DistributedObject object : this.interests.remove(client)) {
+					this.observers.get(object).remove(client);
+				}
+			}
 		}
 		
 		try {
@@ -109,25 +296,294 @@ public class ClientZone {
 		}
 	}
 	
+	/**
+	 * Sends the fields of an object that have changed since it was last updated to every client in the zone. Nothing is sent if no field has changed.
+	 * @param id The id of the object
+	 */
 	public void updateObject(long id) {
-		this.objManager.getDistributedObject(id).computeUpdate();
+		DistributedObject object = this.objManager.getDistributedObject(id);
+		byte[] delta = object.computeDelta();
+		if (delta == null) {
+			return;
+		}
 		synchronized (this.clients) {
-			InternalPacket8DistributedObjectEdit objEditPacket = null;
+			this.broadcastObject(-8, delta, this.getRecipients(object));
+		}
+	}
+	
+	/**
+	 * Turns on interest management: clients and objects given a position are only sent to each other when they are within this radius.
+	 * Must be called before any client or object is given a position, and can't be turned off afterwards.
+	 * @param radius How far from a client objects are sent to it, in the same units as the positions
+	 */
+	public void setInterestRadius(float radius) {
+		synchronized (this.clients) {
+			if (this.objectGrid != null) {
+				throw new IllegalStateException("The interest radius of zone " + this.id + " has already been set");
+			}
+			// With cells as wide as the radius, a client's interest is never more than the 3x3 cells around it
+			this.objectGrid = new SpatialGrid<DistributedObject>(radius);
+			this.clientGrid = new SpatialGrid<UnknownClient>(radius);
+			this.interests = new HashMap<UnknownClient, Set<DistributedObject>>();
+			this.observers = new HashMap<DistributedObject, Set<UnknownClient>>();
+			this.interestRadius = radius;
+		}
+	}
+	
+	/**
+	 * Moves an object. Clients it comes within the interest radius of are sent it, and clients it leaves the radius of are told it was destroyed.
+	 * An object that had no position stops being sent to clients that aren't within the radius.
+	 * @param id The id of the object
+	 * @throws IllegalStateException If the zone has no interest radius
+	 */
+	public void setObjectPosition(long id, float x, float y) {
+		DistributedObject object = this.objManager.getDistributedObject(id);
+		if (object == null) {
+			return;
+		}
+		synchronized (this.clients) {
+			this.requireInterest();
+			Set<UnknownClient> previous = this.observers.get(object);
+			if (previous == null) {
+				// Without a position it was sent to every client
+				previous = new HashSet<UnknownClient>(this.clientGrid.values());
+			}
+			this.objectGrid.put(object, x, y);
+			Set<UnknownClient> inRange = new HashSet<UnknownClient>();
+			this.clientGrid.query(x, y, this.interestRadius, inRange);
+			this.observers.put(object, inRange);
+			
+			List<UnknownClient> entering = new ArrayList<UnknownClient>();
+			for (UnknownClient client : inRange) {
+				if (!previous.remove(client)) {
+					entering.add(client);
+				}
+				this.interests.get(client).add(object);
+			}
+			// Whoever is left in previous has left the radius
+			for (UnknownClient client : previous) {
+				this.interests.get(client).remove(object);
+			}
+			
+			this.broadcastObject(-6, object.getEncodedBytes(), entering);
+			if (!previous.isEmpty()) {
+				UnknownServer server = previous.iterator().next().getServer();
+				server.broadcast(this.createDestroyPacket(server, id), previous);
+			}
+		}
+	}
+	
+	/**
+	 * Moves a client. Objects that come within its interest radius are sent to it, and objects that leave the radius are destroyed on it.
+	 * A client that had no position stops being sent the objects that aren't within the radius.
+	 * @throws IllegalStateException If the zone has no interest radius
+	 */
+	public void setClientPosition(UnknownClient client, float x, float y) {
+		synchronized (this.clients) {
+			this.requireInterest();
+			if (!this.clients.contains(client)) {
+				return;
+			}
+			Set<DistributedObject> previous = this.interests.get(client);
+			if (previous == null) {
+				// Without a position it was sent every object
+				previous = new HashSet<DistributedObject>(this.objectGrid.values());
+			}
+			this.clientGrid.put(client, x, y);
+			Set<DistributedObject> inRange = new HashSet<DistributedObject>();
+			this.objectGrid.query(x, y, this.interestRadius, inRange);
+			this.interests.put(client, inRange);
 			
-			for (int i = 0; i < this.clients.size(); i++) {
-				UnknownClient client = this.clients.get(i);
-				if (objEditPacket == null) {
-					try {
-						objEditPacket = (InternalPacket8DistributedObjectEdit) client.getServer().createPacket(-8);
-					} catch (ProtocolViolationException e) {
-						objEditPacket = new InternalPacket8DistributedObjectEdit();
+			UnknownServer server = client.getServer();
+			for (DistributedObject object : inRange) {
+				if (!previous.remove(object)) {
+					client.queuePacket(createObjectPacket(server, -6, object.getEncodedBytes(), client.usesBinaryObjects()));
+				}
+				this.observers.get(object).add(client);
+			}
+			for (DistributedObject object : previous) {
+				this.observers.get(object).remove(client);
+				client.queuePacket(this.createDestroyPacket(server, object.getId()));
+			}
+		}
+	}
+	
+	private void requireInterest() {
+		if (this.objectGrid == null) {
+			throw new IllegalStateException("Zone " + this.id + " has no interest radius, positions can only be used after setInterestRadius has been called");
+		}
+	}
+	
+	/**
+	 * Gets the clients that can see an object: all of them for an object without a position, otherwise those within the interest radius and those without a position.
+	 * Must be called with the clients lock held.
+	 */
+	private List<UnknownClient> getRecipients(DistributedObject object) {
+		if (this.objectGrid == null || !this.objectGrid.contains(object)) {
+			return this.clients;
+		}
+		List<UnknownClient> recipients = new ArrayList<UnknownClient>(this.observers.get(object));
+		if (this.clientGrid.size() < this.clients.size()) {
+			for (UnknownClient client : this.clients) {
+				if (!this.clientGrid.contains(client)) {
+					recipients.add(client);
+				}
+			}
+		}
+		return recipients;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * @return True if objects of this zone are sent on the server's replication tick as soon as their fields change
+	 */
+	boolean isReplicating() {
+		return this.replicating;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Adds an object to the next tick, called by the object the first time one of its fields changes after a tick
+	 */
+	void queueReplication(DistributedObject object) {
+		synchronized (this.replicationLock) {
+			this.pendingReplication.add(object);
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Runs one replication tick: the changed fields of every object changed since the last tick are sent to the zone's clients.
+	 * Clients that use the binary object format get all of them in one InternalPacket10DistributedObjectBatchEdit, the others get an InternalPacket8DistributedObjectEdit per object.
+	 */
+	public void replicate() {
+		List<DistributedObject> objects;
+		synchronized (this.replicationLock) {
+			if (this.pendingReplication.isEmpty()) {
+				return;
+			}
+			objects = this.pendingReplication;
+			this.pendingReplication = this.spareReplication;
+		}
+		
+		List<DistributedObject> changed = new ArrayList<DistributedObject>(objects.size());
+		List<byte[]> deltas = new ArrayList<byte[]>(objects.size());
+		for (int i = 0; i < objects.size(); i++) {
+			DistributedObject object = objects.get(i);
+			// Cleared before the changes are taken, so a field that changes from here on queues the object for the next tick
+			object.clearReplicationQueued();
+			if (object.getZone() != this) {
+				// Destroyed since it changed
+				continue;
+			}
+			byte[] delta = object.computeDelta();
+			if (delta != null) {
+				changed.add(object);
+				deltas.add(delta);
+			}
+		}
+		objects.clear();
+		synchronized (this.replicationLock) {
+			this.spareReplication = objects;
+		}
+		
+		if (!deltas.isEmpty()) {
+			this.broadcastDeltas(changed, deltas);
+		}
+	}
+	
+	private void broadcastDeltas(List<DistributedObject> changed, List<byte[]> deltas) {
+		synchronized (this.clients) {
+			if (this.clients.isEmpty()) {
+				return;
+			}
+			if (this.objectGrid != null && this.objectGrid.size() > 0) {
+				this.broadcastVisibleDeltas(changed, deltas);
+				return;
+			}
+			
+			List<UnknownClient> binary = new ArrayList<UnknownClient>(this.clients.size());
+			List<UnknownClient> text = new ArrayList<UnknownClient>();
+			for (UnknownClient client : this.clients) {
+				if (client.usesBinaryObjects()) {
+					binary.add(client);
+				} else {
+					text.add(client);
+				}
+			}
+			
+			UnknownServer server = this.clients.get(0).getServer();
+			if (!binary.isEmpty()) {
+				ByteArrayOutputStream batch = new ByteArrayOutputStream(Math.min(MAX_BATCH_SIZE, deltas.size() * 32));
+				int count = 0;
+				for (int i = 0; i < deltas.size(); i++) {
+					byte[] delta = deltas.get(i);
+					if (count > 0 && batch.size() + delta.length > MAX_BATCH_SIZE) {
+						server.broadcast(createBatchPacket(server, count, batch.toByteArray()), binary);
+						batch.reset();
+						count = 0;
 					}
-					
-					objEditPacket.setRecipentCount(this.clients.size());
-					objEditPacket.setVariables(this.objManager.getDistributedObject(id).toString());
+					batch.write(delta, 0, delta.length);
+					count++;
 				}
-				client.queuePacket(objEditPacket);
+				server.broadcast(createBatchPacket(server, count, batch.toByteArray()), binary);
 			}
+			if (!text.isEmpty()) {
+				for (int i = 0; i < deltas.size(); i++) {
+					server.broadcast(createObjectPacket(server, -8, deltas.get(i), false), text);
+				}
+			}
+		}
+	}
+	
+	/**
+	 * Sends each client only the deltas of the objects it can see, so every binary client gets a batch of its own
+	 * Must be called with the clients lock held.
+	 */
+	private void broadcastVisibleDeltas(List<DistributedObject> changed, List<byte[]> deltas) {
+		UnknownServer server = this.clients.get(0).getServer();
+		Map<UnknownClient, ByteArrayOutputStream> batches = new LinkedHashMap<UnknownClient, ByteArrayOutputStream>();
+		Map<UnknownClient, Integer> counts = new HashMap<UnknownClient, Integer>();
+		List<UnknownClient> text = new ArrayList<UnknownClient>();
+		for (int i = 0; i < deltas.size(); i++) {
+			byte[] delta = deltas.get(i);
+			text.clear();
+			for (UnknownClient client : this.getRecipients(changed.get(i))) {
+				if (!client.usesBinaryObjects()) {
+					text.add(client);
+					continue;
+				}
+				ByteArrayOutputStream batch = batches.get(client);
+				Integer count = counts.get(client);
+				if (batch == null) {
+					batch = new ByteArrayOutputStream(256);
+					batches.put(client, batch);
+					count = 0;
+				} else if (batch.size() + delta.length > MAX_BATCH_SIZE) {
+					client.queuePacket(createBatchPacket(server, count, batch.toByteArray()));
+					batch.reset();
+					count = 0;
+				}
+				batch.write(delta, 0, delta.length);
+				counts.put(client, count + 1);
+			}
+			if (!text.isEmpty()) {
+				server.broadcast(createObjectPacket(server, -8, delta, false), text);
+			}
+		}
+		for (Map.Entry<UnknownClient, ByteArrayOutputStream> entry : batches.entrySet()) {
+			entry.getKey().queuePacket(createBatchPacket(server, counts.get(entry.getKey()), entry.getValue().toByteArray()));
+		}
+	}
+	
+	private static Packet createBatchPacket(UnknownServer server, int count, byte[] objects) {
+		Packet packet = null;
+		try {
+			packet = server.createPacket(-10);
+		} catch (ProtocolViolationException e) {
+			packet = new InternalPacket10DistributedObjectBatchEdit();
 		}
+		packet.setVariables(count, objects);
+		return packet;
 	}
-}
\ No newline at end of file
+}
@@ -13,30 +13,87 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server.distributed;
 
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
 
 /**
  * This class is the basis for UnknownNet's distributed networking system
  * DistributedObjects hold various variable types (bytes and byte arrays, strings, integers, floats, shorts, longs, and booleans) that when altered can be flagged to be distributed to all clients that the object is of interest to.
+ * Objects with many instances should declare their fields in an {@link ObjectSchema}, which stores them in primitive arrays instead of a map per type.
+ * When the server has a replication rate, changed fields are sent on their zone's next tick without {@link ClientZone#updateObject(long)} having to be called.
  * @author John <Unkn0wn0ne>
  */
 public abstract class DistributedObject {
 
-	private Map<String, Byte> byte_values = new HashMap<String, Byte>();
-	private Map<String, byte[]> byte_array_values = new HashMap<String, byte[]>();
-	private Map<String, String> string_values = new HashMap<String, String>();
-	private Map<String, Integer> integer_values = new HashMap<String, Integer>();
-	private Map<String, Double> double_values = new HashMap<String, Double>();
-	private Map<String, Float> float_values = new HashMap<String, Float>();
-	private Map<String, Short> short_values = new HashMap<String, Short>();
-	private Map<String, Long> long_values = new HashMap<String, Long>();
-	private Map<String, Boolean> boolean_values = new HashMap<String, Boolean>();
+	// Only used by objects created without a schema
+	private final Map<String, Byte> byte_values;
+	private final Map<String, byte[]> byte_array_values;
+	private final Map<String, String> string_values;
+	private final Map<String, Integer> integer_values;
+	private final Map<String, Double> double_values;
+	private final Map<String, Float> float_values;
+	private final Map<String, Short> short_values;
+	private final Map<String, Long> long_values;
+	private final Map<String, Boolean> boolean_values;
 	
 	private long id;
 	private int zId = -1;
-	private String data = "";
+	
+	// The full snapshot sent to clients that join the zone, taken again whenever it is needed after fields have changed
+	private final Object updateLock = new Object();
+	private byte[] encoded = null;
+	
+	// Fields changed since the last update was sent, each name mapped to a mask of the ObjectCodec type tags it was changed under
+	private final Map<String, Integer> dirtyFields;
+	
+	// Every field of an object created with a schema, null for objects without one
+	private final SchemaFields fields;
+	
+	// The zone the object was spawned in, and whether it is waiting for the zone's next replication tick
+	private volatile ClientZone zone = null;
+	private volatile int replicationQueued = 0;
+	private static final AtomicIntegerFieldUpdater<DistributedObject> REPLICATION_QUEUED = AtomicIntegerFieldUpdater.newUpdater(DistributedObject.class, "replicationQueued");
+	
+	/**
+	 * Creates an object that stores its fields by name. Fields of any name and type can be set.
+	 */
+	protected DistributedObject() {
+		this.byte_values = new HashMap<String, Byte>();
+		this.byte_array_values = new HashMap<String, byte[]>();
+		this.string_values = new HashMap<String, String>();
+		this.integer_values = new HashMap<String, Integer>();
+		this.double_values = new HashMap<String, Double>();
+		this.float_values = new HashMap<String, Float>();
+		this.short_values = new HashMap<String, Short>();
+		this.long_values = new HashMap<String, Long>();
+		this.boolean_values = new HashMap<String, Boolean>();
+		this.dirtyFields = new HashMap<String, Integer>();
+		this.fields = null;
+	}
+	
+	/**
+	 * Creates an object whose fields are declared by a schema and stored in primitive arrays. Only the schema's fields can be set, by name or by their index in the schema.
+	 * @param schema The schema shared by every object of this type. No fields can be added to it once an object has been created with it.
+	 */
+	protected DistributedObject(ObjectSchema schema) {
+		this.byte_values = null;
+		this.byte_array_values = null;
+		this.string_values = null;
+		this.integer_values = null;
+		this.double_values = null;
+		this.float_values = null;
+		this.short_values = null;
+		this.long_values = null;
+		this.boolean_values = null;
+		this.dirtyFields = null;
+		this.fields = new SchemaFields(schema, this);
+	}
 	
 	protected void setId(long id) {
 		this.id = id;
@@ -49,162 +106,358 @@ public abstract class DistributedObject {
 	public abstract String getObjectType();
 	
 	public void setByteValue(String title, byte b) {
+		if (this.fields != null) {
+			this.fields.setByte(this.fields.getField(title, ObjectCodec.TAG_BYTE), b);
+			return;
+		}
+		Byte previous;
 		synchronized (this.byte_values) {
-			this.byte_values.put(title, b);
+			previous = this.byte_values.put(title, b);
+		}
+		if (previous == null || previous.byteValue() != b) {
+			this.markDirty(title, ObjectCodec.TAG_BYTE);
 		}
 	}
 	
 	public byte getByteValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getByte(this.fields.getField(title, ObjectCodec.TAG_BYTE));
+		}
 		synchronized (this.byte_values) {
 			return this.byte_values.get(title);
 		}
 	}
 	
+	public void setByteValue(int field, byte b) {
+		this.getSchemaFields().setByte(field, b);
+	}
+	
+	public byte getByteValue(int field) {
+		return this.getSchemaFields().getByte(field);
+	}
+	
 	public Set<String> getByteValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_BYTE);
+		}
 		synchronized (this.byte_values) {
 			return this.byte_values.keySet();
 		}
 	}
 	
 	public void setByteArrayValue(String title, byte[] array) {
+		if (this.fields != null) {
+			this.fields.setByteArray(this.fields.getField(title, ObjectCodec.TAG_BYTE_ARRAY), array);
+			return;
+		}
 		synchronized (this.byte_array_values) {
 			this.byte_array_values.put(title, array);
 		}
+		// The array may have been changed in place, so it is always sent again
+		this.markDirty(title, ObjectCodec.TAG_BYTE_ARRAY);
 	}
 
 	public byte[] getByteArrayValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getByteArray(this.fields.getField(title, ObjectCodec.TAG_BYTE_ARRAY));
+		}
 		synchronized (this.byte_array_values) {
 			return this.byte_array_values.get(title);
 		}
 	}
 	
+	public void setByteArrayValue(int field, byte[] array) {
+		this.getSchemaFields().setByteArray(field, array);
+	}
+	
+	public byte[] getByteArrayValue(int field) {
+		return this.getSchemaFields().getByteArray(field);
+	}
+	
 	public Set<String> getByteArrayValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_BYTE_ARRAY);
+		}
 		synchronized (this.byte_array_values) {
 			return this.byte_array_values.keySet();
 		}
 	}
 	
 	public void setStringValue(String title, String value) {
+		if (this.fields != null) {
+			this.fields.setString(this.fields.getField(title, ObjectCodec.TAG_STRING), value);
+			return;
+		}
+		String previous;
 		synchronized (this.string_values) {
-			this.string_values.put(title, value);
+			previous = this.string_values.put(title, value);
+		}
+		if (previous == null || !previous.equals(value)) {
+			this.markDirty(title, ObjectCodec.TAG_STRING);
 		}
 	}
 	
 	public String getStringValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getString(this.fields.getField(title, ObjectCodec.TAG_STRING));
+		}
 		synchronized (this.string_values) {
 			return this.string_values.get(title);
 		}
 	}
 	
+	public void setStringValue(int field, String value) {
+		this.getSchemaFields().setString(field, value);
+	}
+	
+	public String getStringValue(int field) {
+		return this.getSchemaFields().getString(field);
+	}
+	
 	public Set<String> getStringValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_STRING);
+		}
 		synchronized (this.string_values) {
 			return this.string_values.keySet();
 		}
 	}
 	
 	public void setIntegerValue(String title, int value) {
+		if (this.fields != null) {
+			this.fields.setInteger(this.fields.getField(title, ObjectCodec.TAG_INTEGER), value);
+			return;
+		}
+		Integer previous;
 		synchronized (this.integer_values) {
-			this.integer_values.put(title, value);
+			previous = this.integer_values.put(title, value);
+		}
+		if (previous == null || previous.intValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_INTEGER);
 		}
 	}
 	
 	public int getIntegerValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getInteger(this.fields.getField(title, ObjectCodec.TAG_INTEGER));
+		}
 		synchronized (this.integer_values) {
 			return this.integer_values.get(title);
 		}
 	}
 	
+	public void setIntegerValue(int field, int value) {
+		this.getSchemaFields().setInteger(field, value);
+	}
+	
+	public int getIntegerValue(int field) {
+		return this.getSchemaFields().getInteger(field);
+	}
+	
 	public Set<String> getIntegerValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_INTEGER);
+		}
 		synchronized (this.integer_values) {
 			return this.integer_values.keySet();
 		}
 	}
 	
 	public void setDoubleValue(String title, double value) {
+		if (this.fields != null) {
+			this.fields.setDouble(this.fields.getField(title, ObjectCodec.TAG_DOUBLE), value);
+			return;
+		}
+		Double previous;
 		synchronized (this.double_values) {
-			this.double_values.put(title, value);
+			previous = this.double_values.put(title, value);
+		}
+		if (previous == null || previous.doubleValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_DOUBLE);
 		}
 	}
 	
 	public double getDoubleValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getDouble(this.fields.getField(title, ObjectCodec.TAG_DOUBLE));
+		}
 		synchronized (this.double_values) {
 			return this.double_values.get(title);
 		}
 	}
 	
+	public void setDoubleValue(int field, double value) {
+		this.getSchemaFields().setDouble(field, value);
+	}
+	
+	public double getDoubleValue(int field) {
+		return this.getSchemaFields().getDouble(field);
+	}
+	
 	public Set<String> getDoubleValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_DOUBLE);
+		}
 		synchronized (this.double_values) {
 			return this.double_values.keySet();
 		}
 	}
 	
 	public void setFloatValue(String title, float value) {
+		if (this.fields != null) {
+			this.fields.setFloat(this.fields.getField(title, ObjectCodec.TAG_FLOAT), value);
+			return;
+		}
+		Float previous;
 		synchronized (this.float_values) {
-			this.float_values.put(title, value);
+			previous = this.float_values.put(title, value);
+		}
+		if (previous == null || previous.floatValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_FLOAT);
 		}
 	}
 	
 	public float getFloatValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getFloat(this.fields.getField(title, ObjectCodec.TAG_FLOAT));
+		}
 		synchronized (this.float_values) {
 			return this.float_values.get(title);
 		}
 	}
 	
+	public void setFloatValue(int field, float value) {
+		this.getSchemaFields().setFloat(field, value);
+	}
+	
+	public float getFloatValue(int field) {
+		return this.getSchemaFields().getFloat(field);
+	}
+	
 	public Set<String> getFloatValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_FLOAT);
+		}
 		synchronized (this.float_values) {
 			return this.float_values.keySet();
 		}
 	}
 	
 	public void setShortValue(String title, short value) {
+		if (this.fields != null) {
+			this.fields.setShort(this.fields.getField(title, ObjectCodec.TAG_SHORT), value);
+			return;
+		}
+		Short previous;
 		synchronized (this.short_values) {
-			this.short_values.put(title, value);
+			previous = this.short_values.put(title, value);
+		}
+		if (previous == null || previous.shortValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_SHORT);
 		}
 	}
 	
 	public short getShortValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getShort(this.fields.getField(title, ObjectCodec.TAG_SHORT));
+		}
 		synchronized (this.short_values) {
 			return this.short_values.get(title);
 		}
 	}
 	
+	public void setShortValue(int field, short value) {
+		this.getSchemaFields().setShort(field, value);
+	}
+	
+	public short getShortValue(int field) {
+		return this.getSchemaFields().getShort(field);
+	}
+	
 	public Set<String> getShortValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_SHORT);
+		}
 		synchronized (this.short_values) {
 			return this.short_values.keySet();
 		}
 	}
 	
 	public void setLongValue(String title, long value) {
+		if (this.fields != null) {
+			this.fields.setLong(this.fields.getField(title, ObjectCodec.TAG_LONG), value);
+			return;
+		}
+		Long previous;
 		synchronized (this.long_values) {
-			this.long_values.put(title, value);
+			previous = this.long_values.put(title, value);
+		}
+		if (previous == null || previous.longValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_LONG);
 		}
 	}
 	
 	public long getLongValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getLong(this.fields.getField(title, ObjectCodec.TAG_LONG));
+		}
 		synchronized (this.long_values) {
 			return this.long_values.get(title);
 		}
 	}
 	
+	public void setLongValue(int field, long value) {
+		this.getSchemaFields().setLong(field, value);
+	}
+	
+	public long getLongValue(int field) {
+		return this.getSchemaFields().getLong(field);
+	}
+	
 	public Set<String> getLongValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_LONG);
+		}
 		synchronized (this.long_values) {
 			return this.long_values.keySet();
 		}
 	}
 	
 	public void setBooleanValue(String title, boolean value) {
-		synchronized (this.long_values) {
-			this.boolean_values.put(title, value);
+		if (this.fields != null) {
+			this.fields.setBoolean(this.fields.getField(title, ObjectCodec.TAG_BOOLEAN), value);
+			return;
+		}
+		Boolean previous;
+		synchronized (this.boolean_values) {
+			previous = this.boolean_values.put(title, value);
+		}
+		if (previous == null || previous.booleanValue() != value) {
+			this.markDirty(title, ObjectCodec.TAG_BOOLEAN);
 		}
 	}
 	
 	public boolean getBooleanValue(String title) {
+		if (this.fields != null) {
+			return this.fields.getBoolean(this.fields.getField(title, ObjectCodec.TAG_BOOLEAN));
+		}
 		synchronized (this.boolean_values) {
 			return this.boolean_values.get(title);
 		}
 	}
 	
+	public void setBooleanValue(int field, boolean value) {
+		this.getSchemaFields().setBoolean(field, value);
+	}
+	
+	public boolean getBooleanValue(int field) {
+		return this.getSchemaFields().getBoolean(field);
+	}
+	
 	public Set<String> getBooleanValueKeys() {
+		if (this.fields != null) {
+			return this.fields.getNames(ObjectCodec.TAG_BOOLEAN);
+		}
 		synchronized (this.boolean_values) {
 			return this.boolean_values.keySet();
 		}
@@ -214,129 +467,290 @@ public abstract class DistributedObject {
 		this.zId  = id;
 	}
 	
+	public int getZoneId() {
+		return this.zId;
+	}
+	
+	/**
+	 * Takes a full snapshot of every field, which is what clients are sent when the object is created or when they join its zone.
+	 * Every field counts as sent afterwards, so the next {@link #computeDelta()} only holds fields changed after this.
+	 */
 	public void computeUpdate() {
-	StringBuilder strBuilder = new StringBuilder();
-		
-		strBuilder.append("name=");
-		strBuilder.append(this.getObjectType());
-		strBuilder.append(";");
-		
-		strBuilder.append("id= ");
-		strBuilder.append(this.id);
-		strBuilder.append(";");
-		
-		strBuilder.append("zId=");
-		strBuilder.append(this.zId);
-		strBuilder.append(";");
-		
-		strBuilder.append("numBytes=");
-		strBuilder.append(this.getByteValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getByteValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getByteValue(str));
-			strBuilder.append(";");
+		if (this.fields != null) {
+			this.fields.clearDirty();
+		} else {
+			synchronized (this.dirtyFields) {
+				this.dirtyFields.clear();
+			}
 		}
-		
-		strBuilder.append("numByteArrays=");
-		strBuilder.append(this.getByteArrayValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getByteArrayValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getByteArrayValue(str));
-			strBuilder.append(";");
+		byte[] encoded = ObjectCodec.encode(this);
+		synchronized (this.updateLock) {
+			this.encoded = encoded;
 		}
-		
-		strBuilder.append("numStrings=");
-		strBuilder.append(this.getStringValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getStringValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getStringValue(str));
-			strBuilder.append(";");
+	}
+	
+	/**
+	 * Encodes only the fields that have changed since the last update and marks them as sent
+	 * @return The changed fields in the binary format, or null if no field has changed
+	 */
+	public byte[] computeDelta() {
+		byte[] delta = ObjectCodec.encodeDelta(this);
+		if (delta != null) {
+			synchronized (this.updateLock) {
+				// Clients that join from now on need the new values
+				this.encoded = null;
+			}
 		}
-		
-		strBuilder.append("numIntegers=");
-		strBuilder.append(this.getIntegerValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getIntegerValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getIntegerValue(str));
-			strBuilder.append(";");
+		return delta;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Gets a full snapshot of the object in the binary format, taking a new one if fields have changed since the last
+	 * @return The encoded object, which must not be modified
+	 */
+	public byte[] getEncodedBytes() {
+		synchronized (this.updateLock) {
+			if (this.encoded == null) {
+				this.encoded = ObjectCodec.encode(this);
+			}
+			return this.encoded;
 		}
-		
-		strBuilder.append("numDoubles=");
-		strBuilder.append(this.getDoubleValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getDoubleValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getDoubleValue(str));
-			strBuilder.append(";");
+	}
+	
+	private SchemaFields getSchemaFields() {
+		if (this.fields == null) {
+			throw new IllegalStateException("Fields can only be accessed by index on objects created with an ObjectSchema");
 		}
-		
-		strBuilder.append("numFloats=");
-		strBuilder.append(this.getFloatValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getFloatValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getFloatValue(str));
-			strBuilder.append(";");
+		return this.fields;
+	}
+	
+	private void markDirty(String title, byte tag) {
+		synchronized (this.dirtyFields) {
+			Integer tags = this.dirtyFields.get(title);
+			this.dirtyFields.put(title, (tags == null ? 0 : tags) | (1 << tag));
 		}
-		
-		strBuilder.append("numShorts=");
-		strBuilder.append(this.getShortValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getShortValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getShortValue(str));
-			strBuilder.append(";");
+		this.fieldChanged();
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Queues the object to be replicated on its zone's next tick, once however many of its fields change before then
+	 */
+	void fieldChanged() {
+		ClientZone zone = this.zone;
+		if (zone != null && zone.isReplicating() && this.replicationQueued == 0 && REPLICATION_QUEUED.compareAndSet(this, 0, 1)) {
+			zone.queueReplication(this);
 		}
+	}
 	
-		strBuilder.append("numLongs=");
-		strBuilder.append(this.getLongValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getLongValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getLongValue(str));
-			strBuilder.append(";");
+	/**
+	 * Internal method. Do not call.
+	 * Sets the zone the object has been spawned in, or null once it has been destroyed
+	 */
+	void setZone(ClientZone zone) {
+		this.zone = zone;
+	}
+	
+	ClientZone getZone() {
+		return this.zone;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Lets the object be queued again, called by its zone before it takes the object's changes
+	 */
+	void clearReplicationQueued() {
+		this.replicationQueued = 0;
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Writes every field changed since the last update with its type tag and name, and marks them as sent
+	 * @return The number of fields written
+	 */
+	int writeDirtyFields(DataOutputStream out) throws IOException {
+		if (this.fields != null) {
+			return this.fields.writeDirtyFields(out);
 		}
 		
-		strBuilder.append("numBooleans=");
-		strBuilder.append(this.getBooleanValueKeys().size());
-		strBuilder.append(";");
-		
-		for (String str : this.getBooleanValueKeys()) {
-			strBuilder.append(str);
-			strBuilder.append("=");
-			strBuilder.append(this.getBooleanValue(str));
-			strBuilder.append(";");
+		String[] names;
+		int[] tags;
+		synchronized (this.dirtyFields) {
+			if (this.dirtyFields.isEmpty()) {
+				return 0;
+			}
+			names = new String[this.dirtyFields.size()];
+			tags = new int[names.length];
+			int index = 0;
+			for (Map.Entry<String, Integer> entry : this.dirtyFields.entrySet()) {
+				names[index] = entry.getKey();
+				tags[index] = entry.getValue();
+				index++;
+			}
+			this.dirtyFields.clear();
 		}
 		
-		synchronized (this.data) {
-			this.data = strBuilder.toString();
+		int written = 0;
+		for (int index = 0; index < names.length; index++) {
+			for (byte tag = ObjectCodec.TAG_BYTE; tag <= ObjectCodec.TAG_BOOLEAN; tag++) {
+				if ((tags[index] & (1 << tag)) != 0) {
+					this.writeField(out, tag, names[index]);
+					written++;
+				}
+			}
+		}
+		return written;
+	}
+	
+	/**
+	 * Writes one field with its type tag and name. Byte arrays and strings that are null are written as null fields, so clients see them being cleared.
+	 */
+	private void writeField(DataOutputStream out, byte tag, String name) throws IOException {
+		switch (tag) {
+		case ObjectCodec.TAG_BYTE:
+			writeFieldHeader(out, tag, name);
+			out.writeByte(this.getByteValue(name));
+			return;
+		case ObjectCodec.TAG_BYTE_ARRAY: {
+			byte[] array = this.getByteArrayValue(name);
+			if (array == null) {
+				ObjectCodec.writeNullField(out, tag, name);
+				return;
+			}
+			writeFieldHeader(out, tag, name);
+			out.writeInt(array.length);
+			out.write(array);
+			return;
+		}
+		case ObjectCodec.TAG_STRING: {
+			String value = this.getStringValue(name);
+			if (value == null) {
+				ObjectCodec.writeNullField(out, tag, name);
+				return;
+			}
+			writeFieldHeader(out, tag, name);
+			out.writeUTF(value);
+			return;
+		}
+		case ObjectCodec.TAG_INTEGER:
+			writeFieldHeader(out, tag, name);
+			out.writeInt(this.getIntegerValue(name));
+			return;
+		case ObjectCodec.TAG_DOUBLE:
+			writeFieldHeader(out, tag, name);
+			out.writeDouble(this.getDoubleValue(name));
+			return;
+		case ObjectCodec.TAG_FLOAT:
+			writeFieldHeader(out, tag, name);
+			out.writeFloat(this.getFloatValue(name));
+			return;
+		case ObjectCodec.TAG_SHORT:
+			writeFieldHeader(out, tag, name);
+			out.writeShort(this.getShortValue(name));
+			return;
+		case ObjectCodec.TAG_LONG:
+			writeFieldHeader(out, tag, name);
+			out.writeLong(this.getLongValue(name));
+			return;
+		default:
+			writeFieldHeader(out, tag, name);
+			out.writeBoolean(this.getBooleanValue(name));
+			return;
+		}
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Writes every field with its type tag and name, one map at a time
+	 */
+	void writeFields(DataOutputStream out) throws IOException {
+		if (this.fields != null) {
+			this.fields.writeFields(out);
+			return;
+		}
+		synchronized (this.byte_values) {
+			for (Map.Entry<String, Byte> entry : this.byte_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_BYTE, entry.getKey());
+				out.writeByte(entry.getValue());
+			}
+		}
+		synchronized (this.byte_array_values) {
+			for (Map.Entry<String, byte[]> entry : this.byte_array_values.entrySet()) {
+				if (entry.getValue() == null) {
+					ObjectCodec.writeNullField(out, ObjectCodec.TAG_BYTE_ARRAY, entry.getKey());
+					continue;
+				}
+				writeFieldHeader(out, ObjectCodec.TAG_BYTE_ARRAY, entry.getKey());
+				out.writeInt(entry.getValue().length);
+				out.write(entry.getValue());
+			}
 		}
+		synchronized (this.string_values) {
+			for (Map.Entry<String, String> entry : this.string_values.entrySet()) {
+				if (entry.getValue() == null) {
+					ObjectCodec.writeNullField(out, ObjectCodec.TAG_STRING, entry.getKey());
+					continue;
+				}
+				writeFieldHeader(out, ObjectCodec.TAG_STRING, entry.getKey());
+				out.writeUTF(entry.getValue());
+			}
+		}
+		synchronized (this.integer_values) {
+			for (Map.Entry<String, Integer> entry : this.integer_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_INTEGER, entry.getKey());
+				out.writeInt(entry.getValue());
+			}
+		}
+		synchronized (this.double_values) {
+			for (Map.Entry<String, Double> entry : this.double_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_DOUBLE, entry.getKey());
+				out.writeDouble(entry.getValue());
+			}
+		}
+		synchronized (this.float_values) {
+			for (Map.Entry<String, Float> entry : this.float_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_FLOAT, entry.getKey());
+				out.writeFloat(entry.getValue());
+			}
+		}
+		synchronized (this.short_values) {
+			for (Map.Entry<String, Short> entry : this.short_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_SHORT, entry.getKey());
+				out.writeShort(entry.getValue());
+			}
+		}
+		synchronized (this.long_values) {
+			for (Map.Entry<String, Long> entry : this.long_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_LONG, entry.getKey());
+				out.writeLong(entry.getValue());
+			}
+		}
+		synchronized (this.boolean_values) {
+			for (Map.Entry<String, Boolean> entry : this.boolean_values.entrySet()) {
+				writeFieldHeader(out, ObjectCodec.TAG_BOOLEAN, entry.getKey());
+				out.writeBoolean(entry.getValue());
+			}
+		}
+	}
+	
+	private static void writeFieldHeader(DataOutputStream out, byte tag, String name) throws IOException {
+		out.writeByte(tag);
+		out.writeUTF(name);
 	}
 	
+	/**
+	 * Gets a full snapshot of the object in the text format
+	 */
 	@Override
 	public String toString() {
-		synchronized (this.data) {
-			return this.data;
+		try {
+			return ObjectCodec.toText(this.getEncodedBytes());
+		} catch (IOException e) {
+			// The object was encoded by ObjectCodec, it can't be malformed
+			return "";
+		} catch (ProtocolViolationException e) {
+			return "";
 		}
 	}
-}
\ No newline at end of file
+}
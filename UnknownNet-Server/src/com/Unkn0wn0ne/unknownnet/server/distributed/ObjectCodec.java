@@ -0,0 +1,198 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.distributed;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+
+/**
+ * ObjectCodec - Writes DistributedObjects in the binary format sent to clients that asked for it in their handshake.
+ * An object is its type, id and zone id followed by its fields, either all of them or only those that changed since the last update. Each field is a type tag, the field's name and the value's raw bytes, and the fields end with {@link #TAG_END}.
+ * A byte array or string field that is null is written as {@link #TAG_NULL}, the field's name and the field's type tag.
+ * The older text format ("name=...;id=...;") is produced from the binary form for clients that didn't ask for it. Each of its sections carries its own count, so it can hold only the changed fields too.
+ * @author Unkn0wn0ne
+ */
+public final class ObjectCodec {
+
+	public static final byte TAG_END = 0;
+	public static final byte TAG_BYTE = 1;
+	public static final byte TAG_BYTE_ARRAY = 2;
+	public static final byte TAG_STRING = 3;
+	public static final byte TAG_INTEGER = 4;
+	public static final byte TAG_DOUBLE = 5;
+	public static final byte TAG_FLOAT = 6;
+	public static final byte TAG_SHORT = 7;
+	public static final byte TAG_LONG = 8;
+	public static final byte TAG_BOOLEAN = 9;
+	public static final byte TAG_NULL = 10;
+
+	private static final String[] TYPE_NAMES = { null, "byte", "byte array", "string", "integer", "double", "float", "short", "long", "boolean" };
+
+	// The sections of the text format, in the order they are written, indexed by type tag
+	private static final String[] TEXT_SECTIONS = { null, "numBytes", "numByteArrays", "numStrings", "numIntegers", "numDoubles", "numFloats", "numShorts", "numLongs", "numBooleans" };
+
+	private ObjectCodec() {
+
+	}
+
+	/**
+	 * Gets the name of a field type, for use in messages
+	 * @param tag One of the TAG_ constants
+	 * @return The type's name
+	 */
+	public static String getTypeName(byte tag) {
+		return TYPE_NAMES[tag];
+	}
+
+	/**
+	 * Writes a byte array or string field whose value is null
+	 * @param type The field's type, TAG_BYTE_ARRAY or TAG_STRING
+	 * @param name The field's name
+	 */
+	static void writeNullField(DataOutputStream out, byte type, String name) throws IOException {
+		out.writeByte(TAG_NULL);
+		out.writeUTF(name);
+		out.writeByte(type);
+	}
+
+	/**
+	 * Encodes an object and every one of its fields
+	 * @param object The object to encode
+	 * @return The encoded object, the body of an InternalPacket6DistributedObjectCreation or InternalPacket8DistributedObjectEdit
+	 */
+	public static byte[] encode(DistributedObject object) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(object.getObjectType());
+			out.writeLong(object.getId());
+			out.writeInt(object.getZoneId());
+			object.writeFields(out);
+			out.writeByte(TAG_END);
+		} catch (IOException e) {
+			// ByteArrayOutputStream never throws
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Encodes an object with only the fields that have changed since its last update, and marks them as sent
+	 * @param object The object to encode
+	 * @return The encoded object, the body of an InternalPacket8DistributedObjectEdit, or null if no field has changed
+	 */
+	public static byte[] encodeDelta(DistributedObject object) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(32);
+		DataOutputStream out = new DataOutputStream(bytes);
+		try {
+			out.writeUTF(object.getObjectType());
+			out.writeLong(object.getId());
+			out.writeInt(object.getZoneId());
+			if (object.writeDirtyFields(out) == 0) {
+				return null;
+			}
+			out.writeByte(TAG_END);
+		} catch (IOException e) {
+			// ByteArrayOutputStream never throws
+		}
+		return bytes.toByteArray();
+	}
+
+	/**
+	 * Converts an encoded object, full or only its changed fields, to the text format
+	 * @param encoded An object encoded by {@link #encode(DistributedObject)} or {@link #encodeDelta(DistributedObject)}
+	 * @return The object as text
+	 * @throws IOException If the encoded object is malformed
+	 * @throws ProtocolViolationException If a byte array's length is negative or runs past the end of the encoded object
+	 */
+	public static String toText(byte[] encoded) throws IOException, ProtocolViolationException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(encoded));
+
+		StringBuilder strBuilder = new StringBuilder();
+		strBuilder.append("name=").append(in.readUTF()).append(";");
+		strBuilder.append("id= ").append(in.readLong()).append(";");
+		strBuilder.append("zId=").append(in.readInt()).append(";");
+
+		// The text format groups fields by type, in sections ordered by type tag
+		List<List<String>> sections = new ArrayList<List<String>>(TEXT_SECTIONS.length);
+		for (int i = 0; i < TEXT_SECTIONS.length; i++) {
+			sections.add(new ArrayList<String>());
+		}
+
+		byte tag;
+		while ((tag = in.readByte()) != TAG_END) {
+			if (tag < TAG_BYTE || tag > TAG_NULL) {
+				throw new IOException("Unknown field type " + tag);
+			}
+			String name = in.readUTF();
+			if (tag == TAG_NULL) {
+				byte type = in.readByte();
+				if (type != TAG_BYTE_ARRAY && type != TAG_STRING) {
+					throw new IOException("Null field of type " + type);
+				}
+				// Written the way the text format has always written null values
+				sections.get(type).add(name + "=null");
+				continue;
+			}
+			sections.get(tag).add(name + "=" + readTextValue(tag, in));
+		}
+
+		for (int tagIndex = TAG_BYTE; tagIndex <= TAG_BOOLEAN; tagIndex++) {
+			List<String> fields = sections.get(tagIndex);
+			strBuilder.append(TEXT_SECTIONS[tagIndex]).append("=").append(fields.size()).append(";");
+			for (String field : fields) {
+				strBuilder.append(field).append(";");
+			}
+		}
+		return strBuilder.toString();
+	}
+
+	private static String readTextValue(byte tag, DataInputStream in) throws IOException, ProtocolViolationException {
+		switch (tag) {
+		case TAG_BYTE:
+			return String.valueOf(in.readByte());
+		case TAG_BYTE_ARRAY: {
+			int length = in.readInt();
+			// The stream reads from an array, so every remaining byte is available
+			if (length < 0 || length > in.available()) {
+				throw new ProtocolViolationException("Byte array of " + length + " bytes in an encoded object with " + in.available() + " bytes left");
+			}
+			byte[] array = new byte[length];
+			in.readFully(array);
+			// The text format has never carried the contents of byte arrays
+			return String.valueOf(array);
+		}
+		case TAG_STRING:
+			return in.readUTF();
+		case TAG_INTEGER:
+			return String.valueOf(in.readInt());
+		case TAG_DOUBLE:
+			return String.valueOf(in.readDouble());
+		case TAG_FLOAT:
+			return String.valueOf(in.readFloat());
+		case TAG_SHORT:
+			return String.valueOf(in.readShort());
+		case TAG_LONG:
+			return String.valueOf(in.readLong());
+		default:
+			return String.valueOf(in.readBoolean());
+		}
+	}
+}
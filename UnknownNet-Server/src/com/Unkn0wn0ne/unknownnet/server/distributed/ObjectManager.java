@@ -16,8 +16,6 @@ package com.Unkn0wn0ne.unknownnet.server.distributed;
 import java.util.HashMap;
 
 import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
-import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket6DistributedObjectCreation;
-import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
 
 public class ObjectManager {
 
@@ -30,9 +28,9 @@ public class ObjectManager {
 		}
 	}
 
-	public void removeDistributedObject(long id) {
+	public DistributedObject removeDistributedObject(long id) {
 		synchronized (this.distributedObjects) {
-			this.distributedObjects.remove(id);
+			return this.distributedObjects.remove(id);
 		}
 	}
 	
@@ -42,6 +40,12 @@ public class ObjectManager {
 		}
 	}
 	
+	public DistributedObject[] getDistributedObjects() {
+		synchronized (this.distributedObjects) {
+			return this.distributedObjects.values().toArray(new DistributedObject[this.distributedObjects.size()]);
+		}
+	}
+	
 	public void prepareClient(UnknownClient client) {
 		Object[] objs = null;
 		synchronized (this.distributedObjects) {
@@ -49,14 +53,8 @@ public class ObjectManager {
 		}
 		
 		for (int i = 0; i < objs.length; i++) {
-			Object o = objs[i];
-			try {
-				InternalPacket6DistributedObjectCreation objPacket = (InternalPacket6DistributedObjectCreation) client.getServer().createPacket(-6);
-				objPacket.setVariables(o.toString());
-				client.queuePacket(objPacket);
-			} catch (ProtocolViolationException e) {
-				
-			}
+			DistributedObject o = (DistributedObject) objs[i];
+			client.queuePacket(ClientZone.createObjectPacket(client.getServer(), -6, o.getEncodedBytes(), client.usesBinaryObjects()));
 		}
 	}
 }
\ No newline at end of file
@@ -0,0 +1,188 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.distributed;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * ObjectSchema - Declares the fields every DistributedObject of a type has, so that they can be stored in primitive arrays instead of maps.
+ * Each field is given an index in the order it is declared. Objects created with a schema can be read and written through those indexes, which skips the name lookup and never boxes a value.
+ * The name based methods keep working on objects with a schema, but only for declared fields. One schema is shared by every object of a type and can't be changed once the first of them has been created.
+ * Fields of objects with a schema aren't locked. Like the fields of any plain Java object, a value set on one thread is only certain to be seen by another once the two have synchronized.
+ * <pre>
+ * public static final ObjectSchema SCHEMA = new ObjectSchema().addFloatField("x").addFloatField("y").addIntegerField("health");
+ * public static final int X = SCHEMA.getField("x");
+ * </pre>
+ * @author Unkn0wn0ne
+ */
+public final class ObjectSchema {
+
+	private final Map<String, Integer> fieldIndexes = new HashMap<String, Integer>();
+	private final List<String> names = new ArrayList<String>();
+	private final List<Byte> types = new ArrayList<Byte>();
+	private final List<Integer> slots = new ArrayList<Integer>();
+	// The number of fields of each type, indexed by ObjectCodec type tag
+	private final int[] slotCounts = new int[ObjectCodec.TAG_BOOLEAN + 1];
+
+	// Filled in when the first object is created with the schema, after which it can't change
+	private boolean sealed = false;
+	private Map<String, Integer> sealedIndexes;
+	private String[] fieldNames;
+	private byte[] fieldTypes;
+	private int[] fieldSlots;
+	private List<Set<String>> namesByType;
+
+	public ObjectSchema addByteField(String name) {
+		return this.addField(name, ObjectCodec.TAG_BYTE);
+	}
+
+	public ObjectSchema addByteArrayField(String name) {
+		return this.addField(name, ObjectCodec.TAG_BYTE_ARRAY);
+	}
+
+	public ObjectSchema addStringField(String name) {
+		return this.addField(name, ObjectCodec.TAG_STRING);
+	}
+
+	public ObjectSchema addIntegerField(String name) {
+		return this.addField(name, ObjectCodec.TAG_INTEGER);
+	}
+
+	public ObjectSchema addDoubleField(String name) {
+		return this.addField(name, ObjectCodec.TAG_DOUBLE);
+	}
+
+	public ObjectSchema addFloatField(String name) {
+		return this.addField(name, ObjectCodec.TAG_FLOAT);
+	}
+
+	public ObjectSchema addShortField(String name) {
+		return this.addField(name, ObjectCodec.TAG_SHORT);
+	}
+
+	public ObjectSchema addLongField(String name) {
+		return this.addField(name, ObjectCodec.TAG_LONG);
+	}
+
+	public ObjectSchema addBooleanField(String name) {
+		return this.addField(name, ObjectCodec.TAG_BOOLEAN);
+	}
+
+	private synchronized ObjectSchema addField(String name, byte type) {
+		if (this.sealed) {
+			throw new IllegalStateException("Field '" + name + "' can't be added, objects have already been created with this schema");
+		}
+		if (this.fieldIndexes.containsKey(name)) {
+			throw new IllegalArgumentException("Field '" + name + "' has already been declared");
+		}
+		this.fieldIndexes.put(name, this.names.size());
+		this.names.add(name);
+		this.types.add(type);
+		this.slots.add(this.slotCounts[type]++);
+		return this;
+	}
+
+	/**
+	 * Gets the index of a field, which is what the index based methods of {@link DistributedObject} take
+	 * @param name The name the field was declared with
+	 * @return The field's index, or -1 if no field with that name has been declared
+	 */
+	public synchronized int getField(String name) {
+		Integer index = this.fieldIndexes.get(name);
+		return index == null ? -1 : index;
+	}
+
+	/**
+	 * @return The number of fields that have been declared
+	 */
+	public synchronized int getFieldCount() {
+		return this.names.size();
+	}
+
+	/**
+	 * Internal method. Do not call.
+	 * Stops fields from being added, called when the first object is created with the schema
+	 */
+	synchronized void seal() {
+		if (this.sealed) {
+			return;
+		}
+		int count = this.names.size();
+		this.sealedIndexes = new HashMap<String, Integer>(this.fieldIndexes);
+		this.fieldNames = this.names.toArray(new String[count]);
+		this.fieldTypes = new byte[count];
+		this.fieldSlots = new int[count];
+		for (int field = 0; field < count; field++) {
+			this.fieldTypes[field] = this.types.get(field);
+			this.fieldSlots[field] = this.slots.get(field);
+		}
+
+		this.namesByType = new ArrayList<Set<String>>(this.slotCounts.length);
+		for (int type = 0; type < this.slotCounts.length; type++) {
+			Set<String> names = new LinkedHashSet<String>();
+			for (int field = 0; field < count; field++) {
+				if (this.fieldTypes[field] == type) {
+					names.add(this.fieldNames[field]);
+				}
+			}
+			this.namesByType.add(Collections.unmodifiableSet(names));
+		}
+		this.sealed = true;
+	}
+
+	// The methods below are only called once the schema has been sealed, which makes the arrays they read safe to share
+
+	String getName(int field) {
+		return this.fieldNames[field];
+	}
+
+	byte getType(int field) {
+		return this.fieldTypes[field];
+	}
+
+	int getSlot(int field) {
+		return this.fieldSlots[field];
+	}
+
+	int getSlotCount(byte type) {
+		return this.slotCounts[type];
+	}
+
+	int getSealedFieldCount() {
+		return this.fieldNames.length;
+	}
+
+	Set<String> getNames(byte type) {
+		return this.namesByType.get(type);
+	}
+
+	/**
+	 * Looks up a field by name and checks its type
+	 * @return The field's index
+	 * @throws IllegalArgumentException If the schema has no field of that name and type
+	 */
+	int getField(String name, byte type) {
+		Integer index = this.sealedIndexes.get(name);
+		if (index == null || this.fieldTypes[index] != type) {
+			throw new IllegalArgumentException("The schema has no " + ObjectCodec.getTypeName(type) + " field named '" + name + "'");
+		}
+		return index;
+	}
+}
@@ -0,0 +1,297 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.distributed;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * SchemaFields - The fields of a DistributedObject created with an {@link ObjectSchema}, one primitive array per type and one bit per field marking it as changed.
+ * The values are not locked, like the fields of any plain Java object a value set on one thread is only certain to be seen by another once they have synchronized.
+ * Marking a field as changed happens after its value is stored and taking the marks happens before the values are read, so an update always holds at least the values that were marked in it.
+ * @author Unkn0wn0ne
+ */
+final class SchemaFields {
+
+	private final ObjectSchema schema;
+	private final DistributedObject owner;
+	private final int fieldCount;
+
+	private final byte[] bytes;
+	private final byte[][] byteArrays;
+	private final String[] strings;
+	private final int[] integers;
+	private final double[] doubles;
+	private final float[] floats;
+	private final short[] shorts;
+	private final long[] longs;
+	private final boolean[] booleans;
+
+	// Fields changed since the last update was sent, one bit per field index
+	private final AtomicLongArray dirty;
+
+	SchemaFields(ObjectSchema schema, DistributedObject owner) {
+		schema.seal();
+		this.schema = schema;
+		this.owner = owner;
+		this.fieldCount = schema.getSealedFieldCount();
+		this.bytes = new byte[schema.getSlotCount(ObjectCodec.TAG_BYTE)];
+		this.byteArrays = new byte[schema.getSlotCount(ObjectCodec.TAG_BYTE_ARRAY)][];
+		this.strings = new String[schema.getSlotCount(ObjectCodec.TAG_STRING)];
+		this.integers = new int[schema.getSlotCount(ObjectCodec.TAG_INTEGER)];
+		this.doubles = new double[schema.getSlotCount(ObjectCodec.TAG_DOUBLE)];
+		this.floats = new float[schema.getSlotCount(ObjectCodec.TAG_FLOAT)];
+		this.shorts = new short[schema.getSlotCount(ObjectCodec.TAG_SHORT)];
+		this.longs = new long[schema.getSlotCount(ObjectCodec.TAG_LONG)];
+		this.booleans = new boolean[schema.getSlotCount(ObjectCodec.TAG_BOOLEAN)];
+		this.dirty = new AtomicLongArray((this.fieldCount + 63) / 64);
+	}
+
+	/**
+	 * Looks up a field by name
+	 * @throws IllegalArgumentException If the schema has no field of that name and type
+	 */
+	int getField(String name, byte type) {
+		return this.schema.getField(name, type);
+	}
+
+	Set<String> getNames(byte type) {
+		return this.schema.getNames(type);
+	}
+
+	void setByte(int field, byte value) {
+		int slot = this.slot(field, ObjectCodec.TAG_BYTE);
+		if (this.bytes[slot] != value) {
+			this.bytes[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	byte getByte(int field) {
+		return this.bytes[this.slot(field, ObjectCodec.TAG_BYTE)];
+	}
+
+	void setByteArray(int field, byte[] value) {
+		this.byteArrays[this.slot(field, ObjectCodec.TAG_BYTE_ARRAY)] = value;
+		// The array may have been changed in place, so it is always sent again
+		this.markDirty(field);
+	}
+
+	byte[] getByteArray(int field) {
+		return this.byteArrays[this.slot(field, ObjectCodec.TAG_BYTE_ARRAY)];
+	}
+
+	void setString(int field, String value) {
+		int slot = this.slot(field, ObjectCodec.TAG_STRING);
+		if (this.strings[slot] == null || !this.strings[slot].equals(value)) {
+			this.strings[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	String getString(int field) {
+		return this.strings[this.slot(field, ObjectCodec.TAG_STRING)];
+	}
+
+	void setInteger(int field, int value) {
+		int slot = this.slot(field, ObjectCodec.TAG_INTEGER);
+		if (this.integers[slot] != value) {
+			this.integers[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	int getInteger(int field) {
+		return this.integers[this.slot(field, ObjectCodec.TAG_INTEGER)];
+	}
+
+	void setDouble(int field, double value) {
+		int slot = this.slot(field, ObjectCodec.TAG_DOUBLE);
+		if (this.doubles[slot] != value) {
+			this.doubles[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	double getDouble(int field) {
+		return this.doubles[this.slot(field, ObjectCodec.TAG_DOUBLE)];
+	}
+
+	void setFloat(int field, float value) {
+		int slot = this.slot(field, ObjectCodec.TAG_FLOAT);
+		if (this.floats[slot] != value) {
+			this.floats[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	float getFloat(int field) {
+		return this.floats[this.slot(field, ObjectCodec.TAG_FLOAT)];
+	}
+
+	void setShort(int field, short value) {
+		int slot = this.slot(field, ObjectCodec.TAG_SHORT);
+		if (this.shorts[slot] != value) {
+			this.shorts[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	short getShort(int field) {
+		return this.shorts[this.slot(field, ObjectCodec.TAG_SHORT)];
+	}
+
+	void setLong(int field, long value) {
+		int slot = this.slot(field, ObjectCodec.TAG_LONG);
+		if (this.longs[slot] != value) {
+			this.longs[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	long getLong(int field) {
+		return this.longs[this.slot(field, ObjectCodec.TAG_LONG)];
+	}
+
+	void setBoolean(int field, boolean value) {
+		int slot = this.slot(field, ObjectCodec.TAG_BOOLEAN);
+		if (this.booleans[slot] != value) {
+			this.booleans[slot] = value;
+			this.markDirty(field);
+		}
+	}
+
+	boolean getBoolean(int field) {
+		return this.booleans[this.slot(field, ObjectCodec.TAG_BOOLEAN)];
+	}
+
+	/**
+	 * Writes every field with its type tag and name. Strings and byte arrays that are null are written as null fields.
+	 */
+	void writeFields(DataOutputStream out) throws IOException {
+		for (int field = 0; field < this.fieldCount; field++) {
+			this.writeField(out, field);
+		}
+	}
+
+	/**
+	 * Writes every field changed since the last update and marks them as sent
+	 * @return The number of fields written
+	 */
+	int writeDirtyFields(DataOutputStream out) throws IOException {
+		int written = 0;
+		for (int word = 0; word < this.dirty.length(); word++) {
+			long bits = this.dirty.getAndSet(word, 0);
+			while (bits != 0) {
+				int field = word * 64 + Long.numberOfTrailingZeros(bits);
+				bits &= bits - 1;
+				this.writeField(out, field);
+				written++;
+			}
+		}
+		return written;
+	}
+
+	void clearDirty() {
+		for (int word = 0; word < this.dirty.length(); word++) {
+			this.dirty.set(word, 0);
+		}
+	}
+
+	private void writeField(DataOutputStream out, int field) throws IOException {
+		byte type = this.schema.getType(field);
+		int slot = this.schema.getSlot(field);
+		switch (type) {
+		case ObjectCodec.TAG_BYTE:
+			this.writeFieldHeader(out, type, field);
+			out.writeByte(this.bytes[slot]);
+			return;
+		case ObjectCodec.TAG_BYTE_ARRAY: {
+			byte[] array = this.byteArrays[slot];
+			if (array == null) {
+				ObjectCodec.writeNullField(out, type, this.schema.getName(field));
+				return;
+			}
+			this.writeFieldHeader(out, type, field);
+			out.writeInt(array.length);
+			out.write(array);
+			return;
+		}
+		case ObjectCodec.TAG_STRING:
+			if (this.strings[slot] == null) {
+				ObjectCodec.writeNullField(out, type, this.schema.getName(field));
+				return;
+			}
+			this.writeFieldHeader(out, type, field);
+			out.writeUTF(this.strings[slot]);
+			return;
+		case ObjectCodec.TAG_INTEGER:
+			this.writeFieldHeader(out, type, field);
+			out.writeInt(this.integers[slot]);
+			return;
+		case ObjectCodec.TAG_DOUBLE:
+			this.writeFieldHeader(out, type, field);
+			out.writeDouble(this.doubles[slot]);
+			return;
+		case ObjectCodec.TAG_FLOAT:
+			this.writeFieldHeader(out, type, field);
+			out.writeFloat(this.floats[slot]);
+			return;
+		case ObjectCodec.TAG_SHORT:
+			this.writeFieldHeader(out, type, field);
+			out.writeShort(this.shorts[slot]);
+			return;
+		case ObjectCodec.TAG_LONG:
+			this.writeFieldHeader(out, type, field);
+			out.writeLong(this.longs[slot]);
+			return;
+		default:
+			this.writeFieldHeader(out, type, field);
+			out.writeBoolean(this.booleans[slot]);
+			return;
+		}
+	}
+
+	private void writeFieldHeader(DataOutputStream out, byte type, int field) throws IOException {
+		out.writeByte(type);
+		out.writeUTF(this.schema.getName(field));
+	}
+
+	private void markDirty(int field) {
+		int word = field >> 6;
+		long bit = 1L << field;
+		long bits = this.dirty.get(word);
+		// A field set many times between updates is only marked the first time
+		while ((bits & bit) == 0) {
+			if (this.dirty.compareAndSet(word, bits, bits | bit)) {
+				this.owner.fieldChanged();
+				return;
+			}
+			bits = this.dirty.get(word);
+		}
+	}
+
+	/**
+	 * Checks that a field exists and has the expected type
+	 * @return The field's slot in the array for its type
+	 */
+	private int slot(int field, byte type) {
+		if (field < 0 || field >= this.fieldCount || this.schema.getType(field) != type) {
+			throw new IllegalArgumentException("Field " + field + " is not a " + ObjectCodec.getTypeName(type) + " field of the schema");
+		}
+		return this.schema.getSlot(field);
+	}
+}
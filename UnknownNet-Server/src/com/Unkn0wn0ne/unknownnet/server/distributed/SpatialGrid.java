@@ -0,0 +1,146 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.distributed;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * SpatialGrid - A uniform grid of square cells holding values at 2D positions, so that the values near a point can be found without checking every value.
+ * With cells as wide as the radius that is searched, a search only ever looks at the 3x3 cells around the point.
+ * Not thread safe, the owning ClientZone locks around it.
+ * @author Unkn0wn0ne
+ */
+final class SpatialGrid<T> {
+
+	private final float cellSize;
+	private final Map<Long, List<Entry<T>>> cells = new HashMap<Long, List<Entry<T>>>();
+	private final Map<T, Entry<T>> entries = new HashMap<T, Entry<T>>();
+
+	SpatialGrid(float cellSize) {
+		if (!(cellSize > 0)) {
+			throw new IllegalArgumentException("The cell size must be greater than 0");
+		}
+		this.cellSize = cellSize;
+	}
+
+	/**
+	 * Adds a value, or moves it if it is already in the grid
+	 */
+	void put(T value, float x, float y) {
+		long cell = this.cellOf(x, y);
+		Entry<T> entry = this.entries.get(value);
+		if (entry == null) {
+			entry = new Entry<T>(value);
+			this.entries.put(value, entry);
+		} else if (entry.cell != cell) {
+			this.removeFromCell(entry);
+		} else {
+			entry.x = x;
+			entry.y = y;
+			return;
+		}
+		entry.x = x;
+		entry.y = y;
+		entry.cell = cell;
+		List<Entry<T>> list = this.cells.get(cell);
+		if (list == null) {
+			list = new ArrayList<Entry<T>>(4);
+			this.cells.put(cell, list);
+		}
+		list.add(entry);
+	}
+
+	/**
+	 * @return True if the value was in the grid
+	 */
+	boolean remove(T value) {
+		Entry<T> entry = this.entries.remove(value);
+		if (entry == null) {
+			return false;
+		}
+		this.removeFromCell(entry);
+		return true;
+	}
+
+	boolean contains(T value) {
+		return this.entries.containsKey(value);
+	}
+
+	int size() {
+		return this.entries.size();
+	}
+
+	Collection<T> values() {
+		return this.entries.keySet();
+	}
+
+	/**
+	 * Adds every value within a radius of a point to a collection
+	 */
+	void query(float x, float y, float radius, Collection<T> out) {
+		int minX = (int) Math.floor((x - radius) / this.cellSize);
+		int maxX = (int) Math.floor((x + radius) / this.cellSize);
+		int minY = (int) Math.floor((y - radius) / this.cellSize);
+		int maxY = (int) Math.floor((y + radius) / this.cellSize);
+		float radiusSquared = radius * radius;
+		for (int cellX = minX; cellX <= maxX; cellX++) {
+			for (int cellY = minY; cellY <= maxY; cellY++) {
+				List<Entry<T>> list = this.cells.get(key(cellX, cellY));
+				if (list == null) {
+					continue;
+				}
+				for (int i = 0; i < list.size(); i++) {
+					Entry<T> entry = list.get(i);
+					float dx = entry.x - x;
+					float dy = entry.y - y;
+					if (dx * dx + dy * dy <= radiusSquared) {
+						out.add(entry.value);
+					}
+				}
+			}
+		}
+	}
+
+	private void removeFromCell(Entry<T> entry) {
+		List<Entry<T>> list = this.cells.get(entry.cell);
+		list.remove(entry);
+		if (list.isEmpty()) {
+			this.cells.remove(entry.cell);
+		}
+	}
+
+	private long cellOf(float x, float y) {
+		return key((int) Math.floor(x / this.cellSize), (int) Math.floor(y / this.cellSize));
+	}
+
+	private static long key(int cellX, int cellY) {
+		return ((long) cellX << 32) | (cellY & 0xFFFFFFFFL);
+	}
+
+	private static final class Entry<T> {
+
+		final T value;
+		float x;
+		float y;
+		long cell;
+
+		Entry(T value) {
+			this.value = value;
+		}
+	}
+}
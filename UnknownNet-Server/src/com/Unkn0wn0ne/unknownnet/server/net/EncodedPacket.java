@@ -0,0 +1,160 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+import com.Unkn0wn0ne.unknownnet.server.util.BufferPool;
+import com.Unkn0wn0ne.unknownnet.server.util.PooledBuffer;
+
+/**
+ * EncodedPacket - A packet that has already been written out once, so that it can be sent to many clients without being written again.
+ * The bytes never change after the packet is created and are shared by every client it is queued on. Each client releases its reference once it has sent them, the last one leaves them to the garbage collector.
+ * EncodedPackets are created by {@link com.Unkn0wn0ne.unknownnet.server.UnknownServer#broadcast(Packet, java.util.Collection)} and are not pooled.
+ * @author Unkn0wn0ne
+ */
+public final class EncodedPacket extends Packet {
+
+	private final byte[] data;
+	private final int id;
+	private final PACKET_PRIORITY priority;
+	private final PACKET_PROTOCOL protocol;
+
+	/**
+	 * Encodes a packet
+	 * @param packet The packet to encode. It is not changed and may be freed as soon as this returns.
+	 * @param references The number of clients the encoded packet will be queued on
+	 * @throws IOException If the packet could not be written
+	 */
+	public EncodedPacket(Packet packet, int references) throws IOException {
+		this(packet, references, null);
+	}
+
+	/**
+	 * Encodes a packet into a buffer leased from a pool, so that the only allocation is the encoded bytes themselves
+	 * @param packet The packet to encode. It is not changed and may be freed as soon as this returns.
+	 * @param references The number of clients the encoded packet will be queued on
+	 * @param pool The pool to lease the buffer from, or null to encode through a stream
+	 * @throws IOException If the packet could not be written
+	 */
+	public EncodedPacket(Packet packet, int references, BufferPool pool) throws IOException {
+		this.data = encode(packet, pool);
+		this.id = packet.getId();
+		this.priority = packet.getPriority();
+		this.protocol = packet.getProtocol();
+		this.setRecipentCount(references);
+	}
+
+	private static byte[] encode(Packet packet, BufferPool pool) throws IOException {
+		if (pool != null) {
+			PooledBuffer lease = pool.lease(BufferPool.MAX_SIZE);
+			try {
+				ByteBuffer buffer = lease.getBuffer();
+				packet._write(buffer);
+				byte[] data = new byte[buffer.position()];
+				buffer.flip();
+				buffer.get(data);
+				return data;
+			} catch (BufferOverflowException e) {
+				// Larger than any pooled buffer, fall back to a stream that grows
+			} finally {
+				lease.release();
+			}
+		}
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		packet._write(new DataOutputStream(bytes));
+		return bytes.toByteArray();
+	}
+
+	@Override
+	public int getId() {
+		return this.id;
+	}
+
+	/**
+	 * Writes the packet's body, everything after its id
+	 */
+	@Override
+	public void write(DataOutputStream dataStream) throws IOException {
+		dataStream.write(this.data, 4, this.data.length - 4);
+	}
+
+	/**
+	 * Writes the packet exactly as it was encoded, id included, in a single write
+	 */
+	@Override
+	public void _write(DataOutputStream dataStream) throws IOException {
+		dataStream.write(this.data);
+	}
+
+	/**
+	 * Writes the packet's body, everything after its id
+	 */
+	@Override
+	public void write(ByteBuffer buffer) {
+		buffer.put(this.data, 4, this.data.length - 4);
+	}
+
+	/**
+	 * Writes the packet exactly as it was encoded, id included
+	 */
+	@Override
+	public void _write(ByteBuffer buffer) {
+		buffer.put(this.data);
+	}
+
+	@Override
+	public void read(DataInputStream dataStream) throws IOException {
+		throw new IOException("EncodedPackets are only sent, never read");
+	}
+
+	@Override
+	public void read(ByteBuffer buffer) throws IOException {
+		throw new IOException("EncodedPackets are only sent, never read");
+	}
+
+	@Override
+	public PACKET_PRIORITY getPriority() {
+		return this.priority;
+	}
+
+	@Override
+	public PACKET_PROTOCOL getProtocol() {
+		return this.protocol;
+	}
+
+	/**
+	 * Internal method. Do not call.
+	 * Gets the encoded bytes, id included. They are shared by every recipient and must not be modified.
+	 * @return The encoded packet
+	 */
+	public byte[] getEncodedBytes() {
+		return this.data;
+	}
+
+	@Override
+	public void setVariables(Object... vars) {
+
+	}
+
+	@Override
+	public void clearVariables() {
+
+	}
+}
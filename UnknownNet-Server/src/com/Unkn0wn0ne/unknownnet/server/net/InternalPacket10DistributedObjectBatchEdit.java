@@ -0,0 +1,69 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * InternalPacket10DistributedObjectBatchEdit - The changed fields of every object of a zone that changed during one replication tick, sent only to clients that use the binary object format.
+ * The packet holds the number of objects followed by each of them encoded by {@link com.Unkn0wn0ne.unknownnet.server.distributed.ObjectCodec#encodeDelta(com.Unkn0wn0ne.unknownnet.server.distributed.DistributedObject)}.
+ */
+public class InternalPacket10DistributedObjectBatchEdit extends Packet {
+
+	private int objectCount = 0;
+	private byte[] objectData = null;
+	
+	/**
+	 * @param vars The number of objects, then the objects one after another in the binary format
+	 */
+	@Override
+	public void setVariables(Object... vars) {
+		this.objectCount = (Integer)vars[0];
+		this.objectData = (byte[])vars[1];
+	}
+
+	@Override
+	public int getId() {
+		return -10;
+	}
+
+	@Override
+	public void write(DataOutputStream dataStream) throws IOException {
+		dataStream.writeInt(this.objectCount);
+		dataStream.write(this.objectData);
+	}
+
+	@Override
+	public void read(DataInputStream dataStream) throws IOException {
+		
+	}
+
+	@Override
+	public PACKET_PRIORITY getPriority() {
+		return PACKET_PRIORITY.INTERNAL;
+	}
+
+	@Override
+	public PACKET_PROTOCOL getProtocol() {
+		return PACKET_PROTOCOL.TCP;
+	}
+
+	@Override
+	public void clearVariables() {
+		this.objectCount = 0;
+		this.objectData = null;
+	}
+}
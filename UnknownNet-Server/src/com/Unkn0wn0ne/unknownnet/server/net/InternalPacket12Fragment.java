@@ -0,0 +1,158 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.net;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
+
+/**
+ * InternalPacket12Fragment - One piece of a datagram that was larger than the sender's MTU, only sent to and from clients that agreed to it in their handshake.
+ * Every fragment of a datagram carries the same group number and the number of fragments it was split into, the receiver puts them back together with a {@link com.Unkn0wn0ne.unknownnet.server.util.FragmentAssembler}.
+ */
+public class InternalPacket12Fragment extends Packet {
+
+	/**
+	 * The most bytes a fragment adds to its piece of the datagram, id included. A fragment sent in {@link WireFormat#V2} adds 3 less.
+	 */
+	public static final int HEADER_SIZE = 14;
+	
+	private int group = 0;
+	private int index = 0;
+	private int count = 0;
+	private byte[] data = null;
+	private int offset = 0;
+	private int length = 0;
+	
+	/**
+	 * @param vars The group number, the fragment's index, the number of fragments and the fragment's bytes
+	 */
+	@Override
+	public void setVariables(Object... vars) {
+		byte[] data = (byte[])vars[3];
+		this.setFragment((Integer)vars[0], (Integer)vars[1], (Integer)vars[2], data, 0, data.length);
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * @param group The number shared by every fragment of the datagram
+	 * @param index The fragment's position in the datagram
+	 * @param count The number of fragments the datagram was split into
+	 * @param data The whole datagram, it is not copied
+	 * @param offset Where the fragment starts in the datagram
+	 * @param length The number of bytes in the fragment
+	 */
+	public void setFragment(int group, int index, int count, byte[] data, int offset, int length) {
+		this.group = group;
+		this.index = index;
+		this.count = count;
+		this.data = data;
+		this.offset = offset;
+		this.length = length;
+	}
+
+	/**
+	 * Internal method. Do not call.
+	 * Writes a fragment, id included, in the same format as {@link #_write(DataOutputStream)} without creating the packet
+	 * @param target The buffer to write to, it must have room for {@link #HEADER_SIZE} and the fragment's bytes
+	 * @param format The format the fragment's id is written in
+	 * @param group The number shared by every fragment of the datagram
+	 * @param index The fragment's position in the datagram
+	 * @param count The number of fragments the datagram was split into
+	 * @param datagram The whole datagram, its position and limit are left as they were
+	 * @param offset Where the fragment starts in the datagram
+	 * @param length The number of bytes in the fragment
+	 */
+	public static void putFragment(ByteBuffer target, WireFormat format, int group, int index, int count, ByteBuffer datagram, int offset, int length) {
+		format.putId(target, -12);
+		target.putInt(group);
+		target.putShort((short) index);
+		target.putShort((short) count);
+		target.putShort((short) length);
+		int position = datagram.position();
+		int limit = datagram.limit();
+		datagram.limit(offset + length);
+		datagram.position(offset);
+		target.put(datagram);
+		datagram.limit(limit);
+		datagram.position(position);
+	}
+
+	@Override
+	public int getId() {
+		return -12;
+	}
+
+	@Override
+	public void write(DataOutputStream dataStream) throws IOException {
+		dataStream.writeInt(this.group);
+		dataStream.writeShort(this.index);
+		dataStream.writeShort(this.count);
+		dataStream.writeShort(this.length);
+		dataStream.write(this.data, this.offset, this.length);
+	}
+
+	@Override
+	public void read(DataInputStream dataStream) throws IOException {
+		this.group = dataStream.readInt();
+		this.index = dataStream.readUnsignedShort();
+		this.count = dataStream.readUnsignedShort();
+		this.length = dataStream.readUnsignedShort();
+		this.data = new byte[this.length];
+		this.offset = 0;
+		dataStream.readFully(this.data);
+	}
+	
+	public int getGroup() {
+		return this.group;
+	}
+	
+	public int getIndex() {
+		return this.index;
+	}
+	
+	public int getCount() {
+		return this.count;
+	}
+	
+	/**
+	 * @return The fragment's bytes, only once it has been read
+	 */
+	public byte[] getData() {
+		return this.data;
+	}
+
+	@Override
+	public PACKET_PRIORITY getPriority() {
+		return PACKET_PRIORITY.INTERNAL;
+	}
+
+	@Override
+	public PACKET_PROTOCOL getProtocol() {
+		return PACKET_PROTOCOL.UDP;
+	}
+
+	@Override
+	public void clearVariables() {
+		this.group = 0;
+		this.index = 0;
+		this.count = 0;
+		this.data = null;
+		this.offset = 0;
+		this.length = 0;
+	}
+}
@@ -16,13 +16,51 @@ package com.Unkn0wn0ne.unknownnet.server.net;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.util.Arrays;
 
 
 public class InternalPacket2Handshake extends Packet{
 
+	/**
+	 * The client asks for, or the server accepts, a length prefix on every packet sent over TCP after the handshake
+	 */
+	public static final int FLAG_LENGTH_FRAMING = 1;
+	
+	/**
+	 * The client asks for, or the server accepts, DistributedObjects being sent in the binary format instead of as text
+	 */
+	public static final int FLAG_BINARY_OBJECTS = 2;
+	
+	/**
+	 * The client asks for, or the server accepts, RELIABLE_UDP and RELIABLE_ORDERED_UDP packets being acknowledged and sent again until they arrive
+	 */
+	public static final int FLAG_RELIABLE_UDP = 4;
+	
+	/**
+	 * The client asks for, or the server accepts, datagrams larger than the sender's MTU being split into fragments and put back together by the receiver
+	 */
+	public static final int FLAG_FRAGMENTATION = 8;
+	
+	/**
+	 * The client asks for, or the server accepts, packet ids, frame lengths and the client id of datagrams being sent as varints after the handshake
+	 */
+	public static final int FLAG_COMPACT_HEADERS = 16;
+	
+	// Clients that ask for options send them as one more login parameter, which servers without options hand to the server's callback with the rest
+	private static final String OPTIONS = "\u0000UnknownNet-Options:";
+	// The same, from a client that has no login data of its own
+	private static final String OPTIONS_NO_LOGIN = "\u0000UnknownNet-Options-NoLogin:";
+	
+	// Bits of the response to a client that asked for options. Servers without options only ever send 0 or 1, so the client knows whether the accepted options follow.
+	private static final int RESPONSE_ACCEPTED = 1;
+	private static final int RESPONSE_WITH_OPTIONS = 2;
+	
 	private boolean accepted = false;
 	private String protocolVersion = "unknownserver-dev";
 	private String[] loginParams = null;
+	private boolean extended = false;
+	private int requestedFlags = 0;
+	private int acceptedFlags = 0;
 	
 	@Override
 	public int getId() {
@@ -31,13 +69,22 @@ public class InternalPacket2Handshake extends Packet{
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		dataStream.writeBoolean(this.accepted);
+		if (!this.extended) {
+			// Clients that didn't ask for any options don't expect an answer
+			dataStream.writeBoolean(this.accepted);
+			return;
+		}
+		dataStream.writeByte((this.accepted ? RESPONSE_ACCEPTED : 0) | RESPONSE_WITH_OPTIONS);
+		dataStream.writeInt(this.acceptedFlags);
 	}
 
 	@Override
 	public void read(DataInputStream dataStream) throws IOException {
 		this.protocolVersion = dataStream.readUTF();
 		int loginData = dataStream.readInt();
+		if (loginData < -1) {
+			throw new IOException("Invalid login data count " + loginData);
+		}
 		
 		switch (loginData) {
 		case -1: {
@@ -51,6 +98,29 @@ public class InternalPacket2Handshake extends Packet{
 			break;
 		}
 		}
+		this.readOptions();
+	}
+	
+	/**
+	 * Takes the options the client asked for out of the login data, if it sent any
+	 */
+	private void readOptions() throws IOException {
+		if (this.loginParams == null || this.loginParams.length == 0) {
+			return;
+		}
+		String last = this.loginParams[this.loginParams.length - 1];
+		boolean noLogin = last.startsWith(OPTIONS_NO_LOGIN);
+		if (!noLogin && !last.startsWith(OPTIONS)) {
+			return;
+		}
+		
+		try {
+			this.requestedFlags = Integer.parseInt(last.substring(noLogin ? OPTIONS_NO_LOGIN.length() : OPTIONS.length()));
+		} catch (NumberFormatException e) {
+			throw new IOException("Malformed handshake options");
+		}
+		this.extended = true;
+		this.loginParams = noLogin ? null : Arrays.copyOf(this.loginParams, this.loginParams.length - 1);
 	}
 
 	@Override
@@ -70,6 +140,24 @@ public class InternalPacket2Handshake extends Packet{
 	public String[] getLoginData() {
 		return this.loginParams;
 	}
+	
+	/**
+	 * Gets the options the client asked for, a combination of the FLAG_ constants
+	 */
+	public int getRequestedFlags() {
+		return this.requestedFlags;
+	}
+	
+	/**
+	 * Sets the options the server accepts, which are sent to the client with the response. Only options the client asked for should be accepted.
+	 */
+	public void setAcceptedFlags(int flags) {
+		this.acceptedFlags = flags;
+	}
+	
+	public int getAcceptedFlags() {
+		return this.acceptedFlags;
+	}
 
 	@Override
 	public PACKET_PROTOCOL getProtocol() {
@@ -81,5 +169,8 @@ public class InternalPacket2Handshake extends Packet{
 		this.loginParams = null;
 		this.protocolVersion = "unknownserver-dev";
 		this.accepted = false;
+		this.extended = false;
+		this.requestedFlags = 0;
+		this.acceptedFlags = 0;
 	}
 }
@@ -33,10 +33,19 @@ import java.io.IOException;
 public class InternalPacket6DistributedObjectCreation extends Packet{
 
 	private String objectText = "";
+	// The object in the binary format, sent instead of the text to clients that asked for it in their handshake
+	private byte[] objectData = null;
 	
+	/**
+	 * @param vars The object, either as text or encoded by {@link com.Unkn0wn0ne.unknownnet.server.distributed.ObjectCodec}
+	 */
 	@Override
 	public void setVariables(Object... vars) {
-		this.objectText = (String)vars[0];
+		if (vars[0] instanceof byte[]) {
+			this.objectData = (byte[])vars[0];
+		} else {
+			this.objectText = (String)vars[0];
+		}
 	}
 
 	@Override
@@ -46,7 +55,11 @@ public class InternalPacket6DistributedObjectCreation extends Packet{
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		dataStream.writeUTF(this.objectText);
+		if (this.objectData != null) {
+			dataStream.write(this.objectData);
+		} else {
+			dataStream.writeUTF(this.objectText);
+		}
 	}
 
 	@Override
@@ -67,6 +80,7 @@ public class InternalPacket6DistributedObjectCreation extends Packet{
 	@Override
 	public void clearVariables() {
 		this.objectText = null;
+		this.objectData = null;
 	}
 
 }
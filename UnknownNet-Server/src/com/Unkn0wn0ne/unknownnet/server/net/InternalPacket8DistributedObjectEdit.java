@@ -20,10 +20,19 @@ import java.io.IOException;
 public class InternalPacket8DistributedObjectEdit extends Packet {
 
 	private String objectText = null;
+	// The object in the binary format, sent instead of the text to clients that asked for it in their handshake
+	private byte[] objectData = null;
 	
+	/**
+	 * @param vars The object, either as text or encoded by {@link com.Unkn0wn0ne.unknownnet.server.distributed.ObjectCodec}
+	 */
 	@Override
 	public void setVariables(Object... vars) {
-		this.objectText = (String)vars[0];
+		if (vars[0] instanceof byte[]) {
+			this.objectData = (byte[])vars[0];
+		} else {
+			this.objectText = (String)vars[0];
+		}
 	}
 
 	@Override
@@ -33,7 +42,11 @@ public class InternalPacket8DistributedObjectEdit extends Packet {
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		dataStream.writeUTF(this.objectText);
+		if (this.objectData != null) {
+			dataStream.write(this.objectData);
+		} else {
+			dataStream.writeUTF(this.objectText);
+		}
 	}
 
 	@Override
@@ -54,5 +67,6 @@ public class InternalPacket8DistributedObjectEdit extends Packet {
 	@Override
 	public void clearVariables() {
 		this.objectText = null;
+		this.objectData = null;
 	}
 }
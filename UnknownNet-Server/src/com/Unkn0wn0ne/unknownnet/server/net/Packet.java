@@ -16,6 +16,8 @@ package com.Unkn0wn0ne.unknownnet.server.net;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import com.Unkn0wn0ne.unknownnet.server.util.PoolableObject;
 
@@ -26,7 +28,12 @@ import com.Unkn0wn0ne.unknownnet.server.util.PoolableObject;
  */
 public abstract class Packet implements PoolableObject{
 	
-	private int numClients = 1;
+	// Whoever gets or creates a packet holds its first reference
+	private final AtomicInteger references = new AtomicInteger(1);
+	// The repository the packet goes back to once its last reference is released, null for packets that were not taken from one
+	private ServerRepository repository = null;
+	// Where the packet was taken from its pool, only while leak detection is enabled
+	private PacketLeakDetector.Record leakRecord = null;
 	
 	/**
 	 * This function is used to identify specific types of packets
@@ -48,6 +55,38 @@ public abstract class Packet implements PoolableObject{
 	 */
 	public abstract void read(DataInputStream dataStream) throws IOException;
 	
+	/**
+	 * Called when a packet's data is written straight into a buffer, as it is for UDP datagrams and broadcasts.
+	 * By default this calls {@link #write(DataOutputStream)} with a stream over the buffer. Packets that override it should override {@link #read(ByteBuffer)} to match.
+	 * @param buffer The buffer to write the data to, from its position
+	 * @throws IOException If the packet could not be written
+	 * @throws java.nio.BufferOverflowException If the data does not fit in the buffer
+	 */
+	public void write(ByteBuffer buffer) throws IOException {
+		PacketBufferStreams streams = PacketBufferStreams.open(buffer);
+		try {
+			this.write(streams.dataOutputStream);
+		} finally {
+			streams.close();
+		}
+	}
+	
+	/**
+	 * Called when a packet's data is read straight from a buffer, as it is for UDP datagrams.
+	 * By default this calls {@link #read(DataInputStream)} with a stream over the buffer.
+	 * @param buffer The buffer to read the data from, between its position and limit
+	 * @throws IOException If the data is truncated or malformed
+	 * @throws java.nio.BufferUnderflowException If the data is truncated and the packet reads the buffer directly
+	 */
+	public void read(ByteBuffer buffer) throws IOException {
+		PacketBufferStreams streams = PacketBufferStreams.open(buffer);
+		try {
+			this.read(streams.dataInputStream);
+		} finally {
+			streams.close();
+		}
+	}
+	
 	/**
 	 * @return The {@link PACKET_PRIORITY} used to determine when to send the packet
 	 */
@@ -70,12 +109,99 @@ public abstract class Packet implements PoolableObject{
 		this.write(dataStream);
 	}
 	
+	/** 
+	 * Internal Method. Do not call.
+	 * Writes the packet's id and then calls {@link Packet#write(ByteBuffer)}
+	 * @param buffer The buffer used for writing the packet
+	 * @throws IOException If the packet could not be written
+	 */
+	public void _write(ByteBuffer buffer) throws IOException {
+		buffer.putInt(this.getId());
+		this.write(buffer);
+	}
+	
 	@Override
 	public void resetVariables() {
-		this.numClients = 1;
 		this.clearVariables();
 	}
 	
+	/**
+	 * Takes another reference to the packet, which must be given back with {@link #release()}. The packet is not put back into its pool while any reference is held.
+	 * Retain a packet once for every client it is queued on beyond the first, or to keep a received packet after {@link com.Unkn0wn0ne.unknownnet.server.UnknownServer#onPacketReceived} returns.
+	 * @return This packet
+	 * @throws IllegalStateException If every reference to the packet has already been released
+	 */
+	public Packet retain() {
+		return this.retain(1);
+	}
+	
+	/**
+	 * Takes several references to the packet at once
+	 * @param increment The number of references to take
+	 * @return This packet
+	 * @throws IllegalStateException If every reference to the packet has already been released
+	 */
+	public Packet retain(int increment) {
+		if (increment <= 0) {
+			throw new IllegalArgumentException("Cannot retain a packet " + increment + " times");
+		}
+		while (true) {
+			int count = this.references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Packet with id '" + this.getId() + "' was retained after its last reference was released");
+			}
+			if (this.references.compareAndSet(count, count + increment)) {
+				return this;
+			}
+		}
+	}
+	
+	/**
+	 * Gives back a reference to the packet. Once the last one is given back the packet is cleared and put back into the pool it was taken from, exactly once.
+	 * The packet must not be used after its last reference is released.
+	 * @return True if this was the packet's last reference
+	 * @throws IllegalStateException If the packet was released more times than it was retained
+	 */
+	public boolean release() {
+		while (true) {
+			int count = this.references.get();
+			if (count <= 0) {
+				throw new IllegalStateException("Packet with id '" + this.getId() + "' was released more times than it was retained");
+			}
+			if (this.references.compareAndSet(count, count - 1)) {
+				if (count > 1) {
+					return false;
+				}
+				ServerRepository repository = this.repository;
+				if (repository != null) {
+					this.repository = null;
+					repository.recyclePacket(this, this.leakRecord);
+					this.leakRecord = null;
+				}
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * @return The number of references to the packet that have not been released yet
+	 */
+	public int getReferenceCount() {
+		return this.references.get();
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Called when the packet is taken from a repository's pool, gives the taker its only reference
+	 * @param repository The repository to put the packet back into once it is released
+	 * @param leakRecord Where the packet was taken, or null if leak detection is disabled
+	 */
+	void onAcquired(ServerRepository repository, PacketLeakDetector.Record leakRecord) {
+		this.repository = repository;
+		this.leakRecord = leakRecord;
+		this.references.set(1);
+	}
+	
 	/**
 	 * Called to reset the packet's variables before it is reinserted into the pool. UnknownNet manages this automatically.
 	 */
@@ -87,7 +213,18 @@ public abstract class Packet implements PoolableObject{
 	public enum PACKET_PROTOCOL {
 		TCP,
 		
-		UDP;
+		UDP,
+		
+		/**
+		 * Sent over UDP and sent again until the client acknowledges it, then handed to the client as soon as it arrives.
+		 * Clients that did not agree to acknowledge packets in their handshake are sent it over TCP in the 'Dualstack (TCP + UDP)' configuration, and over plain UDP in the 'UDP' one.
+		 */
+		RELIABLE_UDP,
+		
+		/**
+		 * Like {@link #RELIABLE_UDP}, but handed to the client in the order it was sent, after every earlier RELIABLE_ORDERED_UDP packet
+		 */
+		RELIABLE_ORDERED_UDP;
 	}
 	
 	/**
@@ -106,20 +243,17 @@ public abstract class Packet implements PoolableObject{
 	
 	/**
 	 * If you are sending a packet to more than one client, you must specify how many clients you are sending it to.
+	 * This sets the packet's reference count, so it must be called before the packet is queued on any client. {@link #retain(int)} may be called at any time instead.
 	 * @param numClients The number of clients you are sending the packet to
 	 */
 	public void setRecipentCount(int numClients) {
-		synchronized (this) {
-			this.numClients = numClients;
-		}
+		this.references.set(numClients);
 	}
 	
 	/**
-	 * @return The number of clients you are sending the packet to
+	 * @return The number of clients that have not sent the packet yet, its reference count
 	 */
 	public int getRecipentCount() {
-		synchronized (this) {
-			return this.numClients;
-		}
+		return this.references.get();
 	}
 }
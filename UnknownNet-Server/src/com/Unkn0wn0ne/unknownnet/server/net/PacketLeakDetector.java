@@ -0,0 +1,116 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.net;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.logging.Level;
+
+import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
+import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
+
+/**
+ * PacketLeakDetector - Records where every packet was taken from the {@link ServerRepository}, so that packets that are never released can be traced back to the code that took them.
+ * A packet that is garbage collected before its last reference was released is logged along with the stack it was taken from.
+ * Recording a stack for every packet is slow, enable it with {@link ServerRepository#setLeakDetection(boolean)} for soak tests rather than in production.
+ * @author Unkn0wn0ne
+ */
+public class PacketLeakDetector {
+
+	private final Set<Record> unreleased = ConcurrentHashMap.newKeySet();
+	private final ReferenceQueue<Packet> collected = new ReferenceQueue<Packet>();
+	private final LongAdder leaks = new LongAdder();
+
+	/**
+	 * Internal method. Do not call.
+	 * Starts tracking a packet that was just taken from its pool
+	 * @param packet The packet
+	 * @return The record to hand to {@link #untrack(Record)} once the packet is released
+	 */
+	Record track(Packet packet) {
+		this.poll();
+		Record record = new Record(packet, this.collected);
+		this.unreleased.add(record);
+		return record;
+	}
+
+	/**
+	 * Internal method. Do not call.
+	 * Stops tracking a packet whose last reference was released
+	 * @param record The record the packet was tracked with
+	 */
+	void untrack(Record record) {
+		this.unreleased.remove(record);
+		record.clear();
+	}
+
+	/**
+	 * Logs every packet that was garbage collected without being released since the last call
+	 * @return The number of leaked packets found
+	 */
+	public int poll() {
+		int found = 0;
+		Record record;
+		while ((record = (Record) this.collected.poll()) != null) {
+			if (this.unreleased.remove(record)) {
+				found++;
+				this.leaks.increment();
+				UnknownLogger.log(Level.WARNING, LogType.DEBUG_INFORMATION, "Internal/PacketLeakDetector: A packet with id '" + record.id + "' was garbage collected without being released", record.site);
+			}
+		}
+		return found;
+	}
+
+	/**
+	 * @return The number of packets that were garbage collected without being released
+	 */
+	public long getLeakCount() {
+		this.poll();
+		return this.leaks.sum();
+	}
+
+	/**
+	 * Gets where each packet that is still in use was taken from its pool. At the end of a soak test, once every client has left, any packet listed here was never released.
+	 * @return The stack each unreleased packet was taken from, its message names the packet's id
+	 */
+	public List<Throwable> getUnreleasedPackets() {
+		this.poll();
+		List<Throwable> sites = new ArrayList<Throwable>();
+		for (Record record : this.unreleased) {
+			sites.add(record.site);
+		}
+		return sites;
+	}
+
+	/**
+	 * Internal class. Do not use.
+	 * Refers to a tracked packet weakly, so a packet that is never released is still collected and can be reported
+	 */
+	static class Record extends WeakReference<Packet> {
+
+		private final int id;
+		private final Throwable site;
+
+		Record(Packet packet, ReferenceQueue<Packet> queue) {
+			super(packet, queue);
+			this.id = packet.getId();
+			this.site = new Throwable("Packet with id '" + this.id + "' taken from its pool here");
+		}
+	}
+}
@@ -13,64 +13,291 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server.net;
 
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
 import java.util.logging.Level;
 
 import com.Unkn0wn0ne.unknownnet.server.logging.LogType;
 import com.Unkn0wn0ne.unknownnet.server.logging.UnknownLogger;
 import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.ConstructorFactory;
 import com.Unkn0wn0ne.unknownnet.server.util.ObjectPool;
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
 
 public class ServerRepository {
 	
-	private ConcurrentHashMap<Integer, ObjectPool<Packet>> registeredPacketPools = new ConcurrentHashMap<Integer, ObjectPool<Packet>>();
+	// Ids up to this one are looked up in an array, larger ones in a map
+	private static final int MAX_INDEXED_ID = 65535;
+	
+	// The pools of the internal packets by their negated id and the implementation's packets by their id.
+	// Registering a packet replaces the array, so looking a packet up never takes a lock.
+	private volatile ObjectPool<Packet>[] internalPacketPools = newPools(16);
+	private volatile ObjectPool<Packet>[] packetPools = newPools(16);
+	private ConcurrentHashMap<Integer, ObjectPool<Packet>> largeIdPacketPools = new ConcurrentHashMap<Integer, ObjectPool<Packet>>();
+	
+	private volatile int poolSize = 1024;
+	private volatile PacketLeakDetector leakDetector = null;
 	
 	public void init() {
 		UnknownLogger.log(Level.INFO, LogType.DEBUG_INFORMATION, "Internal/ServerRepository: Init");
-		registerPacket(-1, InternalPacket1Kick.class);
-		registerPacket(-2, InternalPacket2Handshake.class);
-		registerPacket(-3, InternalPacket3KeepAlive.class);
-		registerPacket(-4, InternalPacket4AdministrativeAction.class);
-		registerPacket(-5, InternalPacket5Hello.class);
-		registerPacket(-6, InternalPacket6DistributedObjectCreation.class);
-		registerPacket(-7, InternalPacket7DestroyDistributedObject.class);
-		registerPacket(-8, InternalPacket8DistributedObjectEdit.class);
-		registerPacket(-9, InternalPacket9LeaveZone.class);
+		for (int id = -1; id >= -12; id--) {
+			registerPacket(id, new InternalPacketFactory(id));
+		}
 	}
 	
 	public void registerPacket(int id, Class<? extends Packet> packet){
-		UnknownLogger.log(Level.INFO, LogType.DEBUG_INFORMATION, "Internal/ServerRepository: Registering packet with id '" + id + "' to class '" + packet.getName() + "'");
 		try {
-			ObjectPool<Packet> pool = new ObjectPool<Packet>();
-			pool.setType(packet.newInstance());
-			this.registeredPacketPools.put(id, pool);
-		} catch (InstantiationException e) {
-			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/ServerRepository: Failed to register packet id '" + id + "' to class '" + packet.getName() + "' An InstantiationException has occurred.", e);
+			Supplier<Packet> factory = new ConstructorFactory<Packet>(packet);
+			UnknownLogger.log(Level.INFO, LogType.DEBUG_INFORMATION, "Internal/ServerRepository: Registering packet with id '" + id + "' to class '" + packet.getName() + "'");
+			this.addPacketPool(id, factory);
+		} catch (NoSuchMethodException e) {
+			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/ServerRepository: Failed to register packet id '" + id + "' to class '" + packet.getName() + "' A NoSuchMethodException has occurred.", e);
 		} catch (IllegalAccessException e) {
 			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/ServerRepository: Failed to register packet id '" + id + "' to class '" + packet.getName() + "' An IllegalAccessException has occurred.", e);
 		}
 	}
 	
+	/**
+	 * Registers a packet that is created by a factory, such as its constructor reference, instead of through reflection
+	 * @param id The id of the packet
+	 * @param factory Creates a new instance of the packet
+	 */
+	public synchronized void registerPacket(int id, Supplier<? extends Packet> factory) {
+		UnknownLogger.log(Level.INFO, LogType.DEBUG_INFORMATION, "Internal/ServerRepository: Registering packet with id '" + id + "' to a factory");
+		this.addPacketPool(id, factory);
+	}
+	
+	private synchronized void addPacketPool(int id, Supplier<? extends Packet> factory) {
+		ObjectPool<Packet> pool = new ObjectPool<Packet>(factory);
+		pool.setMaximumSize(this.poolSize);
+		
+		int index = id < 0 ? -id : id;
+		if (index < 0 || index > MAX_INDEXED_ID) {
+			this.largeIdPacketPools.put(id, pool);
+			return;
+		}
+		
+		ObjectPool<Packet>[] pools = id < 0 ? this.internalPacketPools : this.packetPools;
+		if (index >= pools.length) {
+			int length = pools.length;
+			while (length <= index) {
+				length <<= 1;
+			}
+			ObjectPool<Packet>[] grown = newPools(length);
+			System.arraycopy(pools, 0, grown, 0, pools.length);
+			pools = grown;
+		} else {
+			pools = pools.clone();
+		}
+		pools[index] = pool;
+		
+		if (id < 0) {
+			this.internalPacketPools = pools;
+		} else {
+			this.packetPools = pools;
+		}
+	}
+	
 	public Packet getPacket(int id) throws ProtocolViolationException {
-		if (this.registeredPacketPools.get(id) == null) {
+		ObjectPool<Packet> pool = this.getPacketPool(id);
+		if (pool == null) {
 			UnknownLogger.log(Level.SEVERE, LogType.NETWORKING, "Internal/ServerRepository: Protocol security violation, attempted to access a packet with non-existant id '" + id + "' ejecting client");
 			throw new ProtocolViolationException("A protocol security violation has occurred. Attempted to access a packet with a non-existant id '" + id + "'");
 		}
+		Packet packet = pool.getObject();
+		PacketLeakDetector detector = this.leakDetector;
+		packet.onAcquired(this, detector == null ? null : detector.track(packet));
+		return packet;
+	}
+	
+	/**
+	 * Takes a packet from its pool and reads it, id included, from a buffer
+	 * @param buffer The buffer to read the packet from, starting at its position
+	 * @return The packet, which must be freed once it's been handled
+	 * @throws IOException If the packet is truncated or malformed, it has already been freed
+	 * @throws ProtocolViolationException If no packet is registered with the id read
+	 */
+	public Packet readPacket(ByteBuffer buffer) throws IOException, ProtocolViolationException {
+		return this.readPacket(buffer, WireFormat.V1);
+	}
+	
+	/**
+	 * Takes a packet from its pool and reads it, id included, from a buffer
+	 * @param buffer The buffer to read the packet from, starting at its position
+	 * @param format The format the packet's id is written in
+	 * @return The packet, which must be freed once it's been handled
+	 * @throws IOException If the packet is truncated or malformed, it has already been freed
+	 * @throws ProtocolViolationException If no packet is registered with the id read
+	 */
+	public Packet readPacket(ByteBuffer buffer, WireFormat format) throws IOException, ProtocolViolationException {
+		int id;
+		try {
+			id = format.getId(buffer);
+		} catch (BufferUnderflowException e) {
+			throw new EOFException("Buffer ends before the packet's id");
+		}
+		Packet packet = this.getPacket(id);
 		try {
-			return (Packet)this.registeredPacketPools.get(id).getObject();
-		} catch (InstantiationException e) {
-			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/ServerRepository: Failed to allocate packet id '" + id + "', an InstantiationException has occurrred.", e);
-		} catch (IllegalAccessException e) {
-			UnknownLogger.log(Level.SEVERE, LogType.NETWORKING, "Internal/ServerRepository: Failed to allocate packet id '" + id + "', an IllegalAccessException has occurrred.", e);
+			packet.read(buffer);
+		} catch (BufferUnderflowException e) {
+			this.freePacket(packet);
+			throw new EOFException("Packet " + id + " is truncated");
+		} catch (IOException e) {
+			this.freePacket(packet);
+			throw e;
 		}
-		return null;
+		return packet;
 	}
 	
 	public ObjectPool<Packet> getPacketPool(int id) {
-		return this.registeredPacketPools.get(id);
+		ObjectPool<Packet>[] pools = id < 0 ? this.internalPacketPools : this.packetPools;
+		int index = id < 0 ? -id : id;
+		if (index >= 0 && index < pools.length) {
+			return pools[index];
+		}
+		return this.largeIdPacketPools.get(id);
 	}
 	
+	/**
+	 * Sets the most freed packets of each id kept in the shared part of its pool, for the packets registered so far and those registered later
+	 * @param size The most packets to keep per id, 0 turns pooling off
+	 */
+	public synchronized void setPoolSize(int size) {
+		this.poolSize = size;
+		for (ObjectPool<Packet> pool : this.getPacketPools()) {
+			pool.setMaximumSize(size);
+		}
+	}
+	
+	/**
+	 * Releases the packets that sat unused in each pool since the last trim, so pools shrink again after a spike in traffic
+	 * @return The number of packets released
+	 */
+	public int trimPools() {
+		int released = 0;
+		for (ObjectPool<Packet> pool : this.getPacketPools()) {
+			released += pool.trim();
+		}
+		return released;
+	}
+	
+	/**
+	 * @return The pools of every registered packet, internal ones included
+	 */
+	public List<ObjectPool<Packet>> getPacketPools() {
+		List<ObjectPool<Packet>> list = new ArrayList<ObjectPool<Packet>>();
+		for (ObjectPool<Packet> pool : this.internalPacketPools) {
+			if (pool != null) {
+				list.add(pool);
+			}
+		}
+		for (ObjectPool<Packet> pool : this.packetPools) {
+			if (pool != null) {
+				list.add(pool);
+			}
+		}
+		list.addAll(this.largeIdPacketPools.values());
+		return list;
+	}
+	
+	/**
+	 * Releases a reference to the packet, see {@link Packet#release()}. The packet goes back into its pool once every reference is released.
+	 * @param packet The packet
+	 */
 	public void freePacket(Packet packet) {
-		this.registeredPacketPools.get(packet.getId()).freeObject(packet);
+		packet.release();
+	}
+	
+	/**
+	 * Internal method. Do not call.
+	 * Puts a packet whose last reference was released back into its pool
+	 * @param packet The packet
+	 * @param leakRecord Where the packet was taken, or null if it wasn't tracked
+	 */
+	void recyclePacket(Packet packet, PacketLeakDetector.Record leakRecord) {
+		if (leakRecord != null) {
+			PacketLeakDetector detector = this.leakDetector;
+			if (detector != null) {
+				detector.untrack(leakRecord);
+			}
+		}
+		ObjectPool<Packet> pool = this.getPacketPool(packet.getId());
+		if (pool != null) {
+			pool.freeObject(packet);
+		}
+	}
+	
+	/**
+	 * Records where every packet is taken from its pool, so packets that are never released can be found. This is slow and meant for soak tests.
+	 * @param enabled Whether to record packets taken from now on
+	 */
+	public synchronized void setLeakDetection(boolean enabled) {
+		if (enabled && this.leakDetector == null) {
+			this.leakDetector = new PacketLeakDetector();
+		} else if (!enabled) {
+			this.leakDetector = null;
+		}
+	}
+	
+	/**
+	 * @return The leak detector, or null if leak detection is disabled
+	 */
+	public PacketLeakDetector getLeakDetector() {
+		return this.leakDetector;
+	}
+	
+	@SuppressWarnings("unchecked")
+	private static ObjectPool<Packet>[] newPools(int length) {
+		return (ObjectPool<Packet>[]) new ObjectPool<?>[length];
+	}
+	
+	/**
+	 * Creates the internal packets with plain constructor calls
+	 */
+	private static class InternalPacketFactory implements Supplier<Packet> {
+		
+		private final int id;
+		
+		InternalPacketFactory(int id) {
+			this.id = id;
+		}
+		
+		@Override
+		public Packet get() {
+			switch (this.id) {
+			case -1:
+				return new InternalPacket1Kick();
+			case -2:
+				return new InternalPacket2Handshake();
+			case -3:
+				return new InternalPacket3KeepAlive();
+			case -4:
+				return new InternalPacket4AdministrativeAction();
+			case -5:
+				return new InternalPacket5Hello();
+			case -6:
+				return new InternalPacket6DistributedObjectCreation();
+			case -7:
+				return new InternalPacket7DestroyDistributedObject();
+			case -8:
+				return new InternalPacket8DistributedObjectEdit();
+			case -9:
+				return new InternalPacket9LeaveZone();
+			case -10:
+				return new InternalPacket10DistributedObjectBatchEdit();
+			case -11:
+				return new InternalPacket11ReliableDatagram();
+			case -12:
+				return new InternalPacket12Fragment();
+			default:
+				throw new IllegalArgumentException("No internal packet has the id " + this.id);
+			}
+		}
 	}
-}
+}
\ No newline at end of file
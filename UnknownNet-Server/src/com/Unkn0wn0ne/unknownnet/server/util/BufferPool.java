@@ -0,0 +1,163 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
+
+/**
+ * A pool of direct buffers in power of two size classes, from {@link #MIN_SIZE} to {@link #MAX_SIZE} bytes, shared by every transport.
+ * A buffer is leased for one send or receive and released right after the socket call, so the same few buffers are used over and over instead of a new array per datagram.
+ * Direct buffers are handed to the socket as they are, where heap arrays are copied into a temporary direct buffer first.
+ * Each size class is an {@link ObjectPool}, so leasing and releasing on the same thread never touches shared state.
+ */
+public class BufferPool {
+
+	public static final int MIN_SIZE = 512;
+	public static final int MAX_SIZE = 65536;
+	private static final int MIN_SHIFT = 9;
+
+	private final ObjectPool<PooledBuffer>[] classes;
+	private final LongAdder oversized = new LongAdder();
+
+	/**
+	 * Creates a pool that keeps up to 1MB of released buffers of each size class
+	 */
+	public BufferPool() {
+		this(1048576);
+	}
+
+	/**
+	 * @param pooledBytes The most bytes of released buffers kept of each size class, including the ones each thread keeps for itself. At least one buffer of each is kept.
+	 */
+	public BufferPool(int pooledBytes) {
+		int count = Integer.numberOfTrailingZeros(MAX_SIZE) - MIN_SHIFT + 1;
+		this.classes = newPools(count);
+		for (int i = 0; i < count; i++) {
+			final int size = MIN_SIZE << i;
+			final ObjectPool<PooledBuffer> pool = new ObjectPool<PooledBuffer>();
+			pool.setFactory(new Supplier<PooledBuffer>() {
+				@Override
+				public PooledBuffer get() {
+					return new PooledBuffer(ByteBuffer.allocateDirect(size), pool);
+				}
+			});
+			pool.setMaximumSize(Math.max(1, pooledBytes / size));
+			this.classes[i] = pool;
+		}
+	}
+
+	@SuppressWarnings("unchecked")
+	private static ObjectPool<PooledBuffer>[] newPools(int length) {
+		return (ObjectPool<PooledBuffer>[]) new ObjectPool<?>[length];
+	}
+
+	/**
+	 * Leases a cleared buffer that can hold at least the given number of bytes. Buffers larger than {@link #MAX_SIZE} are allocated each time and not pooled.
+	 * @param size The bytes the buffer must hold
+	 * @return The buffer, which must be given back with {@link PooledBuffer#release()} once it's no longer used
+	 */
+	public PooledBuffer lease(int size) {
+		if (size > MAX_SIZE) {
+			this.oversized.increment();
+			return new PooledBuffer(ByteBuffer.allocateDirect(size), null);
+		}
+		return this.classes[getSizeClass(size)].getObject();
+	}
+
+	/**
+	 * Gets the pool of a size class, whose counters show how many buffers of that size are leased and how many had to be allocated
+	 * @param size A size the class holds
+	 * @return The pool of the smallest size class that holds the size, or null if it's larger than {@link #MAX_SIZE}
+	 */
+	public ObjectPool<PooledBuffer> getPool(int size) {
+		if (size > MAX_SIZE) {
+			return null;
+		}
+		return this.classes[getSizeClass(size)];
+	}
+
+	/**
+	 * @return The number of buffers leased and not released yet
+	 */
+	public long getLeasedCount() {
+		long leased = 0;
+		for (ObjectPool<PooledBuffer> pool : this.classes) {
+			leased += pool.getLiveCount();
+		}
+		return leased;
+	}
+
+	/**
+	 * @return The number of pooled buffers that had to be allocated, because none of their size class was free
+	 */
+	public long getAllocatedCount() {
+		long allocated = 0;
+		for (ObjectPool<PooledBuffer> pool : this.classes) {
+			allocated += pool.getMissCount();
+		}
+		return allocated;
+	}
+
+	/**
+	 * @return The bytes of direct memory allocated for pooled buffers, including the ones that were dropped since
+	 */
+	public long getAllocatedBytes() {
+		long bytes = 0;
+		for (int i = 0; i < this.classes.length; i++) {
+			bytes += this.classes[i].getMissCount() * (MIN_SIZE << i);
+		}
+		return bytes;
+	}
+
+	/**
+	 * @return The number of buffers larger than {@link #MAX_SIZE} that were allocated without being pooled
+	 */
+	public long getOversizedCount() {
+		return this.oversized.sum();
+	}
+
+	/**
+	 * Releases the buffers that sat unused since the last trim, see {@link ObjectPool#trim()}
+	 * @return The number of buffers released
+	 */
+	public int trim() {
+		int released = 0;
+		for (ObjectPool<PooledBuffer> pool : this.classes) {
+			released += pool.trim();
+		}
+		return released;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder builder = new StringBuilder();
+		builder.append("leased=").append(this.getLeasedCount()).append(", allocated=").append(this.getAllocatedCount()).append(" (").append(this.getAllocatedBytes()).append(" bytes), oversized=").append(this.getOversizedCount());
+		for (int i = 0; i < this.classes.length; i++) {
+			ObjectPool<PooledBuffer> pool = this.classes[i];
+			if (pool.getHitCount() + pool.getMissCount() > 0) {
+				builder.append(", ").append(MIN_SIZE << i).append(": [").append(pool).append(']');
+			}
+		}
+		return builder.toString();
+	}
+
+	private static int getSizeClass(int size) {
+		if (size <= MIN_SIZE) {
+			return 0;
+		}
+		return 32 - Integer.numberOfLeadingZeros(size - 1) - MIN_SHIFT;
+	}
+}
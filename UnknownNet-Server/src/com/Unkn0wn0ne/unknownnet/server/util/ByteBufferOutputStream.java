@@ -0,0 +1,123 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.io.OutputStream;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+
+/**
+ * Writes into a buffer leased from a {@link BufferPool}, leasing a larger one whenever it fills up.
+ * Wrap it in a DataOutputStream once and reuse it: {@link #begin(int)} leases a buffer, the packet is written, and {@link #finish()} hands the buffer over to be sent and released.
+ * Streams created without a pool write into a buffer given with {@link #setBuffer(ByteBuffer)} instead and never grow it.
+ * Not thread safe.
+ */
+public class ByteBufferOutputStream extends OutputStream {
+
+	private final BufferPool pool;
+	private PooledBuffer lease = null;
+	private ByteBuffer buffer = null;
+
+	public ByteBufferOutputStream(BufferPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * Creates a stream that writes into the buffers given to {@link #setBuffer(ByteBuffer)}
+	 */
+	public ByteBufferOutputStream() {
+		this(null);
+	}
+
+	/**
+	 * Writes into a buffer the stream does not own. Writing past its limit throws a {@link BufferOverflowException}.
+	 * @param buffer The buffer to write at its position, or null once finished with it
+	 */
+	public void setBuffer(ByteBuffer buffer) {
+		if (this.pool != null) {
+			throw new IllegalStateException("Streams with a pool write into the buffers they lease");
+		}
+		this.buffer = buffer;
+	}
+
+	/**
+	 * Leases a buffer to write into, releasing any buffer that wasn't finished
+	 * @param size The bytes expected to be written, the buffer grows if more are
+	 */
+	public void begin(int size) {
+		if (this.lease != null) {
+			this.lease.release();
+		}
+		this.lease = this.pool.lease(size);
+		this.buffer = this.lease.getBuffer();
+	}
+
+	/**
+	 * Stops writing and hands over the buffer, flipped so that it holds exactly what was written
+	 * @return The buffer, which the caller must release
+	 */
+	public PooledBuffer finish() {
+		PooledBuffer finished = this.lease;
+		this.buffer.flip();
+		this.lease = null;
+		this.buffer = null;
+		return finished;
+	}
+
+	/**
+	 * @return The number of bytes written since {@link #begin(int)}
+	 */
+	public int size() {
+		return this.buffer.position();
+	}
+
+	@Override
+	public void write(int b) {
+		if (!this.buffer.hasRemaining()) {
+			this.grow(1);
+		}
+		this.buffer.put((byte) b);
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) {
+		if (this.buffer.remaining() < len) {
+			this.grow(len);
+		}
+		this.buffer.put(b, off, len);
+	}
+
+	/**
+	 * Writes the rest of a buffer
+	 * @param source The bytes between its position and limit are written, its position is moved to its limit
+	 */
+	public void write(ByteBuffer source) {
+		if (this.buffer.remaining() < source.remaining()) {
+			this.grow(source.remaining());
+		}
+		this.buffer.put(source);
+	}
+
+	private void grow(int needed) {
+		if (this.pool == null) {
+			throw new BufferOverflowException();
+		}
+		PooledBuffer grown = this.pool.lease(Math.max(this.buffer.capacity() * 2, this.buffer.position() + needed));
+		this.buffer.flip();
+		grown.getBuffer().put(this.buffer);
+		this.lease.release();
+		this.lease = grown;
+		this.buffer = grown.getBuffer();
+	}
+}
@@ -0,0 +1,126 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * CoalescingOutputStream - Gathers everything a client's writer writes in one pass so it reaches the socket in as few writes as possible.
+ * Nothing is written to the socket until {@link #flush()} is called, unless the buffered bytes reach the flush threshold first.
+ * @author Unkn0wn0ne
+ */
+public class CoalescingOutputStream extends OutputStream {
+
+	private static final int INITIAL_SIZE = 8192;
+
+	private OutputStream out;
+	private OutputStatistics statistics;
+
+	private byte[] buffer;
+	private int count = 0;
+	private int maxBufferSize;
+	private int flushThreshold;
+
+	/**
+	 * @param out The stream to write to, normally a socket's output stream
+	 * @param maxBufferSize The most bytes that will be buffered. Writes larger than this are passed straight through.
+	 * @param flushThreshold Once this many bytes are buffered they are written without waiting for {@link #flush()}
+	 * @param statistics Counts the writes made to out
+	 */
+	public CoalescingOutputStream(OutputStream out, int maxBufferSize, int flushThreshold, OutputStatistics statistics) {
+		this.out = out;
+		this.maxBufferSize = Math.max(1, maxBufferSize);
+		this.flushThreshold = Math.min(Math.max(1, flushThreshold), this.maxBufferSize);
+		this.statistics = statistics;
+		this.buffer = new byte[Math.min(INITIAL_SIZE, this.maxBufferSize)];
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		if (this.count == this.buffer.length) {
+			this.ensureCapacity(1);
+		}
+		this.buffer[this.count++] = (byte) b;
+		if (this.count >= this.flushThreshold) {
+			this.flushBuffer();
+		}
+	}
+
+	@Override
+	public void write(byte[] b, int off, int len) throws IOException {
+		if (this.count + len > this.maxBufferSize) {
+			this.flushBuffer();
+			if (len >= this.maxBufferSize) {
+				// Too large to be worth copying
+				this.out.write(b, off, len);
+				this.statistics.recordWrite(len);
+				return;
+			}
+		}
+
+		this.ensureCapacity(len);
+		System.arraycopy(b, off, this.buffer, this.count, len);
+		this.count += len;
+		if (this.count >= this.flushThreshold) {
+			this.flushBuffer();
+		}
+	}
+
+	/**
+	 * Writes everything buffered to the socket in a single write
+	 */
+	@Override
+	public void flush() throws IOException {
+		this.flushBuffer();
+		this.out.flush();
+	}
+
+	@Override
+	public void close() throws IOException {
+		try {
+			this.flush();
+		} finally {
+			this.out.close();
+		}
+	}
+
+	private void flushBuffer() throws IOException {
+		if (this.count == 0) {
+			return;
+		}
+		int length = this.count;
+		// Drop the bytes even if the write fails, the connection is finished either way
+		this.count = 0;
+		this.out.write(this.buffer, 0, length);
+		this.statistics.recordWrite(length);
+	}
+
+	private void ensureCapacity(int length) throws IOException {
+		if (this.count + length > this.maxBufferSize) {
+			this.flushBuffer();
+		}
+		if (this.count + length <= this.buffer.length) {
+			return;
+		}
+
+		int size = this.buffer.length;
+		while (size < this.count + length) {
+			size <<= 1;
+		}
+		byte[] newBuffer = new byte[Math.min(size, this.maxBufferSize)];
+		System.arraycopy(this.buffer, 0, newBuffer, 0, this.count);
+		this.buffer = newBuffer;
+	}
+}
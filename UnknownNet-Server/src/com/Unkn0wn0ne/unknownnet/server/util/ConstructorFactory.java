@@ -0,0 +1,61 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.util.function.Supplier;
+
+/**
+ * ConstructorFactory - Creates objects of a class through its public constructor that takes no arguments.
+ * The constructor is looked up once as a method handle, so creating an object doesn't repeat the reflective lookup and access checks of Class.newInstance.
+ * Registering a factory such as a constructor reference instead avoids even the method handle.
+ * @author Unkn0wn0ne
+ */
+public class ConstructorFactory<T> implements Supplier<T> {
+
+	private final Class<? extends T> type;
+	private final MethodHandle constructor;
+
+	/**
+	 * @param type The class to create objects of
+	 * @throws NoSuchMethodException If the class has no constructor that takes no arguments
+	 * @throws IllegalAccessException If the class or its constructor is not public
+	 */
+	public ConstructorFactory(Class<? extends T> type) throws NoSuchMethodException, IllegalAccessException {
+		this.type = type;
+		this.constructor = MethodHandles.publicLookup().findConstructor(type, MethodType.methodType(void.class)).asType(MethodType.methodType(Object.class));
+	}
+
+	@Override
+	public T get() {
+		try {
+			return this.type.cast((Object) this.constructor.invokeExact());
+		} catch (RuntimeException e) {
+			throw e;
+		} catch (Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new IllegalStateException("Failed to create an instance of " + this.type.getName(), e);
+		}
+	}
+
+	/**
+	 * @return The class objects are created of
+	 */
+	public Class<? extends T> getType() {
+		return this.type;
+	}
+}
@@ -0,0 +1,157 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * FragmentAssembler - Puts datagrams that were split into fragments back together, for one connection.
+ * Fragments may arrive in any order, more than once or not at all. A datagram whose fragments don't all arrive within the timeout is discarded, and so are the oldest unfinished datagrams whenever the fragments being held would take more memory than the budget allows.
+ * Only the thread handling the connection's datagrams may add fragments, the counters can be read from any thread.
+ * @author Unkn0wn0ne
+ */
+public class FragmentAssembler {
+
+	// Memory charged to every unfinished datagram on top of its fragments, and to every fragment it may hold
+	private static final int GROUP_OVERHEAD = 64;
+	private static final int FRAGMENT_OVERHEAD = 8;
+
+	private final int budget;
+	private final long timeout;
+
+	// Unfinished datagrams by group number, oldest first
+	private final LinkedHashMap<Integer, Group> groups = new LinkedHashMap<Integer, Group>();
+	private int bufferedBytes = 0;
+
+	// Only written by the thread adding fragments
+	private volatile long reassembled = 0;
+	private volatile long expired = 0;
+
+	private static class Group {
+		final byte[][] fragments;
+		final long started;
+		int received = 0;
+		int size = 0;
+		int charge;
+
+		Group(int count, long started) {
+			this.fragments = new byte[count][];
+			this.started = started;
+			this.charge = GROUP_OVERHEAD + count * FRAGMENT_OVERHEAD;
+		}
+	}
+
+	/**
+	 * @param budget The most bytes the unfinished datagrams may hold at once
+	 * @param timeout How long a datagram's fragments may take to arrive, in milliseconds
+	 */
+	public FragmentAssembler(int budget, long timeout) {
+		this.budget = budget;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Adds a fragment that arrived
+	 * @param group The number shared by every fragment of the datagram
+	 * @param index The fragment's position in the datagram
+	 * @param count The number of fragments the datagram was split into
+	 * @param data The fragment's bytes, kept until the datagram is finished or discarded
+	 * @param now The current time in milliseconds
+	 * @return The whole datagram if this was its last missing fragment, otherwise null
+	 */
+	public byte[] add(int group, int index, int count, byte[] data, long now) {
+		this.expire(now);
+		if (count < 2 || index >= count || data.length == 0) {
+			// Never produced by a sender, ignore it
+			return null;
+		}
+
+		Group g = this.groups.get(group);
+		if (g == null) {
+			g = new Group(count, now);
+			this.groups.put(group, g);
+			this.bufferedBytes += g.charge;
+		} else if (g.fragments.length != count || g.fragments[index] != null) {
+			// A duplicate, or a fragment of an older datagram whose group number has come round again
+			return null;
+		}
+
+		g.fragments[index] = data;
+		g.received++;
+		g.size += data.length;
+		g.charge += data.length;
+		this.bufferedBytes += data.length;
+
+		if (g.received == count) {
+			this.groups.remove(group);
+			this.bufferedBytes -= g.charge;
+			this.reassembled++;
+
+			byte[] datagram = new byte[g.size];
+			int offset = 0;
+			for (byte[] fragment : g.fragments) {
+				System.arraycopy(fragment, 0, datagram, offset, fragment.length);
+				offset += fragment.length;
+			}
+			return datagram;
+		}
+
+		Iterator<Group> oldest = this.groups.values().iterator();
+		while (this.bufferedBytes > this.budget && oldest.hasNext()) {
+			this.bufferedBytes -= oldest.next().charge;
+			oldest.remove();
+			this.expired++;
+		}
+		return null;
+	}
+
+	/**
+	 * Discards the datagrams whose fragments have taken longer than the timeout to arrive. Called by {@link #add(int, int, int, byte[], long)}.
+	 * @param now The current time in milliseconds
+	 */
+	public void expire(long now) {
+		Iterator<Group> oldest = this.groups.values().iterator();
+		while (oldest.hasNext()) {
+			Group g = oldest.next();
+			if (now - g.started < this.timeout) {
+				return;
+			}
+			this.bufferedBytes -= g.charge;
+			oldest.remove();
+			this.expired++;
+		}
+	}
+
+	/**
+	 * @return The number of datagrams that were put back together
+	 */
+	public long getReassembledCount() {
+		return this.reassembled;
+	}
+
+	/**
+	 * @return The number of datagrams discarded before all of their fragments arrived, because they timed out or did not fit in the budget
+	 */
+	public long getExpiredCount() {
+		return this.expired;
+	}
+
+	/**
+	 * @return The bytes currently held for unfinished datagrams, as charged against the budget
+	 */
+	public int getBufferedBytes() {
+		return this.bufferedBytes;
+	}
+}
@@ -0,0 +1,103 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * FragmentStatistics - Counts the datagrams the server split into fragments because they were larger than its MTU, and the ones its clients sent that it put back together.
+ * Every client records into the same instance, so counting never contends on a single lock or counter.
+ * @author Unkn0wn0ne
+ */
+public class FragmentStatistics {
+
+	private LongAdder fragmented = new LongAdder();
+	private LongAdder fragmentsSent = new LongAdder();
+	private LongAdder fragmentsReceived = new LongAdder();
+	private LongAdder reassembled = new LongAdder();
+	private LongAdder expired = new LongAdder();
+
+	/**
+	 * Internal method. Do not call
+	 * Records a datagram sent as fragments
+	 * @param fragments The number of fragments it was split into
+	 */
+	public void recordFragmented(int fragments) {
+		this.fragmented.increment();
+		this.fragmentsSent.add(fragments);
+	}
+
+	/**
+	 * Internal method. Do not call
+	 * Records a fragment received from a client
+	 * @param reassembled The number of datagrams that were finished by it, 0 or 1
+	 * @param expired The number of datagrams that were discarded while it was added
+	 */
+	public void recordReceived(int reassembled, long expired) {
+		this.fragmentsReceived.increment();
+		this.reassembled.add(reassembled);
+		this.expired.add(expired);
+	}
+
+	/**
+	 * @return The number of datagrams sent as fragments
+	 */
+	public long getFragmentedCount() {
+		return this.fragmented.sum();
+	}
+
+	/**
+	 * @return The number of fragments sent
+	 */
+	public long getFragmentsSent() {
+		return this.fragmentsSent.sum();
+	}
+
+	/**
+	 * @return The number of fragments received from clients
+	 */
+	public long getFragmentsReceived() {
+		return this.fragmentsReceived.sum();
+	}
+
+	/**
+	 * @return The number of datagrams from clients that were put back together
+	 */
+	public long getReassembledCount() {
+		return this.reassembled.sum();
+	}
+
+	/**
+	 * @return The number of datagrams from clients that were discarded before all of their fragments arrived, because they timed out or did not fit in the client's reassembly budget
+	 */
+	public long getExpiredCount() {
+		return this.expired.sum();
+	}
+
+	/**
+	 * Starts counting again from zero
+	 */
+	public void reset() {
+		this.fragmented.reset();
+		this.fragmentsSent.reset();
+		this.fragmentsReceived.reset();
+		this.reassembled.reset();
+		this.expired.reset();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d datagrams sent as %d fragments, %d fragments received, %d reassembled, %d expired", this.getFragmentedCount(), this.getFragmentsSent(), this.getFragmentsReceived(), this.getReassembledCount(), this.getExpiredCount());
+	}
+}
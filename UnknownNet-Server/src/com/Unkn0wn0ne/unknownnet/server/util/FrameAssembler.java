@@ -0,0 +1,205 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * FrameAssembler - Collects the bytes of a length prefixed stream until whole frames have arrived.
+ * A frame is a length followed by that many bytes, the packet's id and its data. The length is an int, or a varint on connections that use {@link WireFormat#V2}. Bytes are appended as they arrive and {@link #nextFrame()} hands out each complete frame in turn, so a reader never waits in the middle of a packet.
+ * Only one thread may use an assembler.
+ * @author Unkn0wn0ne
+ */
+public class FrameAssembler {
+
+	private static final int INITIAL_SIZE = 8192;
+
+	private final int maxFrameSize;
+	private final WireFormat format;
+	// The largest length prefix the format writes
+	private final int maxPrefixSize;
+
+	private byte[] buffer = new byte[INITIAL_SIZE];
+	// The first byte that has not been handed out in a frame
+	private int start = 0;
+	// The end of the bytes that have been received
+	private int end = 0;
+
+	private FrameInputStream frameInputStream = new FrameInputStream();
+	private DataInputStream frameStream = new DataInputStream(this.frameInputStream);
+
+	/**
+	 * @param maxFrameSize The largest frame, not counting its length prefix, that will be accepted
+	 */
+	public FrameAssembler(int maxFrameSize) {
+		this(maxFrameSize, WireFormat.V1);
+	}
+
+	/**
+	 * @param maxFrameSize The largest frame, not counting its length prefix, that will be accepted
+	 * @param format The format the frames' lengths are written in
+	 */
+	public FrameAssembler(int maxFrameSize, WireFormat format) {
+		this.maxFrameSize = maxFrameSize;
+		this.format = format;
+		this.maxPrefixSize = format.getLengthSize(maxFrameSize);
+	}
+
+	/**
+	 * Reads the bytes that have already arrived on a stream, never waiting for more
+	 * @param in The stream to read from
+	 * @return The number of bytes read, which may be 0
+	 * @throws IOException If the stream could not be read
+	 */
+	public int readAvailable(InputStream in) throws IOException {
+		int available = in.available();
+		if (available <= 0) {
+			return 0;
+		}
+
+		int space = this.prepare(available);
+		int read = in.read(this.buffer, this.end, Math.min(available, space));
+		if (read > 0) {
+			this.end += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Reads whatever arrives on a stream next, waiting until at least one byte is there
+	 * @param in The stream to read from
+	 * @return The number of bytes read, or -1 if the stream has ended
+	 * @throws IOException If the stream could not be read
+	 */
+	public int read(InputStream in) throws IOException {
+		int space = this.prepare(1);
+		int read = in.read(this.buffer, this.end, space);
+		if (read > 0) {
+			this.end += read;
+		}
+		return read;
+	}
+
+	/**
+	 * Appends every remaining byte of a buffer
+	 * @param src The bytes that have arrived
+	 */
+	public void append(ByteBuffer src) {
+		int length = src.remaining();
+		this.prepare(length);
+		if (this.buffer.length - this.end < length) {
+			byte[] newBuffer = new byte[this.end + length];
+			System.arraycopy(this.buffer, 0, newBuffer, 0, this.end);
+			this.buffer = newBuffer;
+		}
+		src.get(this.buffer, this.end, length);
+		this.end += length;
+	}
+
+	/**
+	 * Gets the next complete frame. The returned stream reads the frame's id and data and is reused by the next call, so the previous frame must be finished with first.
+	 * @return A stream over the frame, or null if the next frame hasn't fully arrived yet
+	 * @throws IOException If the next frame's length is invalid or larger than the maximum frame size
+	 */
+	public DataInputStream nextFrame() throws IOException {
+		int prefix = this.format.getPrefixSize(this.buffer, this.start, this.end - this.start);
+		if (prefix == -1) {
+			return null;
+		}
+
+		int length = this.frameLength();
+		if (this.end - this.start - prefix < length) {
+			return null;
+		}
+
+		this.frameInputStream.setFrame(this.buffer, this.start + prefix, length);
+		this.start += prefix + length;
+		return this.frameStream;
+	}
+
+	/**
+	 * @return The number of bytes received that have not been handed out in a frame
+	 */
+	public int size() {
+		return this.end - this.start;
+	}
+
+	/**
+	 * Reads and checks the length prefix of the frame at the start of the buffer
+	 */
+	private int frameLength() throws IOException {
+		int length = this.format.getLength(this.buffer, this.start);
+		// Every frame holds at least a packet id
+		if (length < this.format.getIdSize(0)) {
+			throw new IOException("Invalid frame length " + length);
+		}
+		if (length > this.maxFrameSize) {
+			throw new IOException("Frame of " + length + " bytes exceeds the maximum frame size");
+		}
+		return length;
+	}
+
+	/**
+	 * Discards the frames that have been handed out and makes room for more bytes, growing the buffer if the frame being assembled will not fit
+	 * @param wanted How many bytes are about to be added
+	 * @return The number of bytes that can be added without growing the buffer again
+	 */
+	private int prepare(int wanted) {
+		if (this.start > 0) {
+			System.arraycopy(this.buffer, this.start, this.buffer, 0, this.end - this.start);
+			this.end -= this.start;
+			this.start = 0;
+		}
+
+		int needed = this.end + wanted;
+		int prefix = this.format.getPrefixSize(this.buffer, 0, this.end);
+		if (prefix != -1) {
+			try {
+				needed = Math.max(needed, prefix + this.frameLength());
+			} catch (IOException e) {
+				// Reported by nextFrame
+			}
+		}
+		// Never grow past what the largest frame needs, a reader that wants more will be given as much as fits
+		needed = Math.min(needed, Math.max(this.buffer.length, this.maxFrameSize + this.maxPrefixSize));
+
+		if (needed > this.buffer.length) {
+			byte[] newBuffer = new byte[Math.min(Math.max(this.buffer.length * 2, needed), this.maxFrameSize + this.maxPrefixSize)];
+			System.arraycopy(this.buffer, 0, newBuffer, 0, this.end);
+			this.buffer = newBuffer;
+		}
+		return this.buffer.length - this.end;
+	}
+
+	/**
+	 * Reads one frame in place, without copying it out of the assembler's buffer
+	 */
+	private static class FrameInputStream extends ByteArrayInputStream {
+
+		public FrameInputStream() {
+			super(new byte[0]);
+		}
+
+		public void setFrame(byte[] buffer, int offset, int length) {
+			this.buf = buffer;
+			this.pos = offset;
+			this.count = offset + length;
+			this.mark = offset;
+		}
+	}
+}
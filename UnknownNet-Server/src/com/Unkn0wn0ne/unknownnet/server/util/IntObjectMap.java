@@ -0,0 +1,163 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+/**
+ * IntObjectMap - A map from primitive int keys to objects that never boxes its keys.
+ * Lookups never lock and may run on any thread. Changes copy the table, the same way {@link java.util.concurrent.CopyOnWriteArrayList} does, so it suits maps that are read far more often than they change.
+ * @author Unkn0wn0ne
+ */
+public class IntObjectMap<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	/**
+	 * An immutable open addressing table, a slot is empty when its value is null
+	 */
+	private static class Table {
+		final int[] keys;
+		final Object[] values;
+		final int mask;
+		final int size;
+
+		Table(int capacity, int size) {
+			this.keys = new int[capacity];
+			this.values = new Object[capacity];
+			this.mask = capacity - 1;
+			this.size = size;
+		}
+	}
+
+	private volatile Table table = new Table(MIN_CAPACITY, 0);
+
+	/**
+	 * Gets the value stored for a key. Safe to call from any thread without locking.
+	 * @param key The key to look up
+	 * @return The value, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(int key) {
+		Table table = this.table;
+		int index = hash(key) & table.mask;
+		while (true) {
+			Object value = table.values[index];
+			if (value == null) {
+				return null;
+			}
+			if (table.keys[index] == key) {
+				return (V) value;
+			}
+			index = (index + 1) & table.mask;
+		}
+	}
+
+	/**
+	 * Stores a value for a key, replacing any value already stored for it
+	 * @param key The key
+	 * @param value The value, may not be null
+	 */
+	public synchronized void put(int key, V value) {
+		if (value == null) {
+			throw new NullPointerException("IntObjectMap does not accept null values");
+		}
+
+		Table old = this.table;
+		boolean replacing = this.get(key) != null;
+		int size = replacing ? old.size : old.size + 1;
+		Table table = new Table(capacityFor(size), size);
+		copy(old, table, key, false);
+		insert(table, key, value);
+		this.table = table;
+	}
+
+	/**
+	 * Removes the value stored for a key
+	 * @param key The key
+	 * @return The value that was removed, or null if there was none
+	 */
+	public synchronized V remove(int key) {
+		V value = this.get(key);
+		if (value == null) {
+			return null;
+		}
+
+		Table old = this.table;
+		Table table = new Table(capacityFor(old.size - 1), old.size - 1);
+		copy(old, table, key, true);
+		this.table = table;
+		return value;
+	}
+
+	/**
+	 * Removes the value stored for a key, but only if it is the given value
+	 * @param key The key
+	 * @param value The value expected to be stored for the key
+	 * @return True if the value was removed
+	 */
+	public synchronized boolean remove(int key, V value) {
+		if (value == null || this.get(key) != value) {
+			return false;
+		}
+		this.remove(key);
+		return true;
+	}
+
+	public int size() {
+		return this.table.size;
+	}
+
+	public boolean isEmpty() {
+		return this.size() == 0;
+	}
+
+	/**
+	 * Copies every entry of one table into another, leaving out the given key if skip is true
+	 */
+	private static void copy(Table from, Table to, int key, boolean skip) {
+		for (int i = 0; i < from.values.length; i++) {
+			Object value = from.values[i];
+			if (value != null && !(skip && from.keys[i] == key)) {
+				insert(to, from.keys[i], value);
+			}
+		}
+	}
+
+	private static void insert(Table table, int key, Object value) {
+		int index = hash(key) & table.mask;
+		while (table.values[index] != null && table.keys[index] != key) {
+			index = (index + 1) & table.mask;
+		}
+		table.keys[index] = key;
+		table.values[index] = value;
+	}
+
+	/**
+	 * Keeps the table at most half full so that probes stay short
+	 */
+	private static int capacityFor(int size) {
+		int capacity = MIN_CAPACITY;
+		while (capacity < size * 2) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	/**
+	 * Spreads sequential keys, such as client ids, across the table
+	 */
+	private static int hash(int key) {
+		int h = key * 0x9E3779B9;
+		return h ^ (h >>> 16);
+	}
+}
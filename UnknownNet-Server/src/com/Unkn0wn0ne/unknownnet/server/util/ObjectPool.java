@@ -13,50 +13,513 @@
    limitations under the License. **/
 package com.Unkn0wn0ne.unknownnet.server.util;
 
-import java.util.LinkedList;
+import java.lang.ref.WeakReference;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Supplier;
 
+/**
+ * A pool that any number of threads may get objects from and free objects to at the same time.
+ * Every thread keeps two magazines of up to {@link #MAGAZINE_SIZE} objects of its own, so most calls never touch shared state.
+ * Full magazines are exchanged through a shared lock-free depot. The depot and the magazines of every thread together hold at most {@link #getMaximumSize()} objects,
+ * a thread sets aside room for its magazines a few objects at a time and drops what it frees once there is none left.
+ * Objects that sit in the depot unused for a whole {@link #TRIM_INTERVAL} are released by {@link #trim()}. Each trim also has every thread hand its magazines to the depot
+ * the next time it uses the pool, so the objects of a thread that stopped using the pool can be released too.
+ * Virtual threads keep no magazines, there may be too many of them, and get and free their objects through the depot.
+ * Each thread counts the objects it gets and frees itself, the counts are summed when they are read, so they are only exact once the threads using the pool are done with it.
+ */
 public class ObjectPool<T extends PoolableObject> {
 
-	private T poolableObjectType;
-	private LinkedList<T> poolableObjects = new LinkedList<T>();
-	private int maxSize = Integer.MAX_VALUE;
+	public static final int MAGAZINE_SIZE = 32;
+	public static final long TRIM_INTERVAL = 10000;
+	private static final int MIN_SWEEP = 64;
+
+	// The cache of virtual threads, which get and free through the depot
+	private static final Cache UNCACHED = new Cache();
+
+	private volatile Supplier<? extends T> factory;
+	private volatile int maxSize = Integer.MAX_VALUE;
+	// The most objects in one of a thread's magazines, at most a quarter of maxSize so a few threads can't take up all of it
+	private volatile int magazineSize = MAGAZINE_SIZE;
+	// The objects in the depot and the room every thread set aside for its magazines, never more than maxSize
+	private final AtomicInteger size = new AtomicInteger();
+	
+	// Bumped by clearPool and setMaximumSize, every thread empties its magazines when it notices
+	private volatile int generation = 0;
+	// Bumped by every trim, every thread hands its magazines to the depot when it notices
+	private volatile int trims = 0;
+	private final ThreadLocal<Cache> caches = new ThreadLocal<Cache>() {
+		@Override
+		protected Cache initialValue() {
+			if (Threads.isVirtual(Thread.currentThread())) {
+				return UNCACHED;
+			}
+			return ObjectPool.this.register(new Cache());
+		}
+	};
+	// The magazines of every thread that used the pool, so their counts can be summed
+	private final ConcurrentLinkedQueue<Cache> allCaches = new ConcurrentLinkedQueue<Cache>();
+	private final AtomicInteger cacheCount = new AtomicInteger();
+	// The number of registered caches at which the caches of dead threads are retired next
+	private volatile int nextSweep = MIN_SWEEP;
+	
+	// A stack of full magazines, every push creates a new node so a popped node is never seen again
+	private final AtomicReference<Magazine> depot = new AtomicReference<Magazine>();
+	private final AtomicInteger depotSize = new AtomicInteger();
+	// The fewest objects the depot held since the last trim, these were not needed during the interval
+	private volatile int depotLow = 0;
+	private final AtomicLong lastTrim = new AtomicLong(System.currentTimeMillis());
+	
+	// The counts of threads that have died and of virtual threads
+	private final LongAdder retiredHits = new LongAdder();
+	private final LongAdder retiredMisses = new LongAdder();
+	private final LongAdder retiredFrees = new LongAdder();
+	private final LongAdder trimmed = new LongAdder();
+
+	public ObjectPool() {
+
+	}
+
+	/**
+	 * @param factory Creates the pool's objects whenever it is empty
+	 */
+	public ObjectPool(Supplier<? extends T> factory) {
+		this.factory = factory;
+	}
 
 	@SuppressWarnings("unchecked")
-	public T getObject() throws InstantiationException, IllegalAccessException {
-		if (poolableObjects.isEmpty()) {
-			return (T) poolableObjectType.getClass().newInstance();
-		} else {
-			T object = poolableObjects.poll();
-			if (object == null) {
-				return (T) this.poolableObjectType.getClass().newInstance();
+	public T getObject() {
+		Cache cache = this.getCache();
+		if (cache == UNCACHED) {
+			return this.getShared();
+		}
+		if (cache.loadedCount == 0) {
+			if (cache.previousCount > 0) {
+				cache.swap();
 			} else {
-				return object;
+				Magazine magazine = this.pop();
+				if (magazine != null) {
+					// Both magazines are empty, the room set aside for them is given back and the depot's objects, already counted, take its place
+					this.size.addAndGet(-cache.reserved);
+					cache.reserved = magazine.count;
+					cache.loaded = magazine.objects;
+					cache.loadedCount = magazine.count;
+					this.trim(System.currentTimeMillis());
+				}
 			}
 		}
+		
+		if (cache.loadedCount > 0) {
+			Cache.HITS.lazySet(cache, cache.hits + 1);
+			Object object = cache.loaded[--cache.loadedCount];
+			cache.loaded[cache.loadedCount] = null;
+			return (T) object;
+		}
+		Cache.MISSES.lazySet(cache, cache.misses + 1);
+		return this.factory.get();
 	}
 
 	public void freeObject(T object) {
 		if (object == null)
 			return;
-		if (this.poolableObjects.size() < this.maxSize) {
-			object.resetVariables();
-			this.poolableObjects.add(object);
+		Cache cache = this.getCache();
+		if (cache == UNCACHED) {
+			this.freeShared(object);
+			return;
+		}
+		Cache.FREES.lazySet(cache, cache.frees + 1);
+		int capacity = this.magazineSize;
+		if (cache.loadedCount >= capacity) {
+			if (cache.previousCount == 0) {
+				cache.swap();
+			} else {
+				// The room set aside for the previous magazine's objects now counts for the depot
+				this.push(cache.previous, cache.previousCount);
+				cache.reserved -= cache.previousCount;
+				cache.previous = cache.loaded;
+				cache.previousCount = cache.loadedCount;
+				cache.loaded = new Object[MAGAZINE_SIZE];
+				cache.loadedCount = 0;
+				this.trim(System.currentTimeMillis());
+			}
+		}
+		if (cache.loadedCount + cache.previousCount >= cache.reserved) {
+			int reserved = this.reserve(Math.min(capacity, 2 * capacity - cache.reserved));
+			if (reserved == 0) {
+				this.trimmed.increment();
+				return;
+			}
+			cache.reserved += reserved;
+		}
+		
+		object.resetVariables();
+		cache.loaded[cache.loadedCount++] = object;
+	}
+	
+	/**
+	 * Gets an object for a virtual thread, straight from the depot
+	 */
+	@SuppressWarnings("unchecked")
+	private T getShared() {
+		Magazine magazine = this.pop();
+		if (magazine == null) {
+			this.retiredMisses.increment();
+			return this.factory.get();
+		}
+		this.retiredHits.increment();
+		this.size.decrementAndGet();
+		int count = magazine.count - 1;
+		Object object = magazine.objects[count];
+		magazine.objects[count] = null;
+		if (count > 0) {
+			this.push(magazine.objects, count);
+		}
+		return (T) object;
+	}
+	
+	/**
+	 * Frees an object of a virtual thread, straight into the depot
+	 */
+	private void freeShared(T object) {
+		this.retiredFrees.increment();
+		if (this.reserve(1) == 0) {
+			this.trimmed.increment();
+			return;
 		}
+		
+		object.resetVariables();
+		Object[] objects;
+		int count;
+		Magazine magazine = this.pop();
+		if (magazine != null && magazine.count < this.magazineSize) {
+			objects = magazine.objects;
+			count = magazine.count;
+		} else {
+			if (magazine != null) {
+				this.push(magazine.objects, magazine.count);
+			}
+			objects = new Object[MAGAZINE_SIZE];
+			count = 0;
+		}
+		objects[count] = object;
+		this.push(objects, count + 1);
 	}
 
+	/**
+	 * Creates the pool's objects through the public constructor of the given object's class
+	 * @param newInstance An object of the class to create
+	 * @throws IllegalArgumentException If the class or its constructor that takes no arguments is not public
+	 */
+	@SuppressWarnings("unchecked")
 	public void setType(T newInstance) {
-		this.poolableObjectType = newInstance;
+		try {
+			this.factory = new ConstructorFactory<T>((Class<? extends T>) newInstance.getClass());
+		} catch (ReflectiveOperationException e) {
+			throw new IllegalArgumentException(e);
+		}
 	}
 
+	/**
+	 * @param factory Creates the pool's objects whenever it is empty
+	 */
+	public void setFactory(Supplier<? extends T> factory) {
+		this.factory = factory;
+	}
+
+	/**
+	 * @return The most objects the shared depot and the magazines of every thread hold together
+	 */
 	public int getMaximumSize() {
 		return this.maxSize;
 	}
 
+	/**
+	 * Sets the most objects the shared depot and the magazines of every thread hold together, and empties them so the new size applies.
+	 * Each thread empties its magazines the next time it uses the pool, until then the pool may hold more than the new size.
+	 * @param size The most objects to keep, 0 turns pooling off
+	 */
 	public void setMaximumSize(int size) {
 		this.maxSize = size;
+		this.magazineSize = Math.max(1, Math.min(MAGAZINE_SIZE, size / 4));
+		this.clearPool();
 	}
 	
 	public void clearPool() {
-		this.poolableObjects.clear();
+		this.generation++;
+		Magazine magazine;
+		while ((magazine = this.pop()) != null) {
+			this.size.addAndGet(-magazine.count);
+			this.trimmed.add(magazine.count);
+		}
+		this.depotLow = 0;
+	}
+	
+	/**
+	 * Releases the objects that sat in the shared depot unused since the last trim, if a whole trim interval has passed.
+	 * Getting and freeing objects trims the pool as well, this is for pools that have gone idle.
+	 * @return The number of objects released
+	 */
+	public int trim() {
+		return this.trim(System.currentTimeMillis());
+	}
+	
+	private int trim(long now) {
+		long last = this.lastTrim.get();
+		if (now - last < TRIM_INTERVAL || !this.lastTrim.compareAndSet(last, now)) {
+			return 0;
+		}
+		
+		int excess = this.depotLow;
+		int released = 0;
+		Magazine magazine;
+		while (released < excess && (magazine = this.pop()) != null) {
+			if (released + magazine.count > excess) {
+				this.push(magazine.objects, magazine.count);
+				break;
+			}
+			released += magazine.count;
+		}
+		this.size.addAndGet(-released);
+		this.trimmed.add(released);
+		this.depotLow = this.depotSize.get();
+		this.trims++;
+		return released;
+	}
+	
+	/**
+	 * @return The number of objects that were handed out from the pool
+	 */
+	public long getHitCount() {
+		this.retireDeadCaches();
+		long count = this.retiredHits.sum();
+		for (Cache cache : this.allCaches) {
+			count += cache.hits;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The number of objects that had to be created because the pool was empty
+	 */
+	public long getMissCount() {
+		this.retireDeadCaches();
+		long count = this.retiredMisses.sum();
+		for (Cache cache : this.allCaches) {
+			count += cache.misses;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The number of objects that were handed out and have not been freed yet
+	 */
+	public long getLiveCount() {
+		this.retireDeadCaches();
+		long count = this.retiredHits.sum() + this.retiredMisses.sum() - this.retiredFrees.sum();
+		for (Cache cache : this.allCaches) {
+			count += cache.hits + cache.misses - cache.frees;
+		}
+		return count;
+	}
+	
+	/**
+	 * @return The number of freed objects that were dropped, because the pool was full, idle or cleared
+	 */
+	public long getTrimmedCount() {
+		this.retireDeadCaches();
+		return this.trimmed.sum();
+	}
+	
+	/**
+	 * @return The number of objects in the shared depot, not counting the magazines of each thread
+	 */
+	public int getDepotSize() {
+		return this.depotSize.get();
+	}
+	
+	/**
+	 * @return The number of objects in the shared depot and the room every thread set aside for its magazines, which is at most {@link #getMaximumSize()}
+	 */
+	public int getSize() {
+		return this.size.get();
+	}
+	
+	@Override
+	public String toString() {
+		return "hits=" + this.getHitCount() + ", misses=" + this.getMissCount() + ", live=" + this.getLiveCount() + ", trimmed=" + this.getTrimmedCount() + ", depot=" + this.getDepotSize();
+	}
+	
+	private Cache getCache() {
+		Cache cache = this.caches.get();
+		if (cache == UNCACHED) {
+			return cache;
+		}
+		int generation = this.generation;
+		if (cache.generation != generation) {
+			this.trimmed.add(cache.loadedCount + cache.previousCount);
+			this.size.addAndGet(-cache.reserved);
+			cache.reserved = 0;
+			cache.loaded = new Object[MAGAZINE_SIZE];
+			cache.loadedCount = 0;
+			cache.previous = new Object[MAGAZINE_SIZE];
+			cache.previousCount = 0;
+			cache.generation = generation;
+		}
+		int trims = this.trims;
+		if (cache.trims != trims) {
+			this.flush(cache);
+			cache.trims = trims;
+		}
+		return cache;
+	}
+	
+	/**
+	 * Hands a thread's magazines to the depot and gives back the room it set aside, so the next trims can release objects the thread no longer needs
+	 */
+	private void flush(Cache cache) {
+		this.size.addAndGet(cache.loadedCount + cache.previousCount - cache.reserved);
+		cache.reserved = 0;
+		if (cache.previousCount > 0) {
+			this.push(cache.previous, cache.previousCount);
+			cache.previous = new Object[MAGAZINE_SIZE];
+			cache.previousCount = 0;
+		}
+		if (cache.loadedCount > 0) {
+			this.push(cache.loaded, cache.loadedCount);
+			cache.loaded = new Object[MAGAZINE_SIZE];
+			cache.loadedCount = 0;
+		}
+	}
+	
+	/**
+	 * Sets aside room for a thread's objects, as much as is left under the maximum size
+	 * @param count The most room to set aside
+	 * @return The room set aside, 0 if the pool is full
+	 */
+	private int reserve(int count) {
+		while (true) {
+			int size = this.size.get();
+			int reserved = Math.min(count, this.maxSize - size);
+			if (reserved <= 0) {
+				return 0;
+			}
+			if (this.size.compareAndSet(size, size + reserved)) {
+				return reserved;
+			}
+		}
+	}
+	
+	private Cache register(Cache cache) {
+		this.allCaches.add(cache);
+		if (this.cacheCount.incrementAndGet() >= this.nextSweep) {
+			// Sweeping only once the number of caches has doubled keeps threads that come and go from sweeping every time
+			this.retireDeadCaches();
+			this.nextSweep = Math.max(MIN_SWEEP, this.cacheCount.get() * 2);
+		}
+		return cache;
+	}
+	
+	/**
+	 * Moves the counts of threads that have died to the retired totals and drops their magazines, nothing else can reach them
+	 */
+	private void retireDeadCaches() {
+		Iterator<Cache> iterator = this.allCaches.iterator();
+		while (iterator.hasNext()) {
+			Cache cache = iterator.next();
+			if (!cache.isOwnerAlive() && this.allCaches.remove(cache)) {
+				this.cacheCount.decrementAndGet();
+				this.retiredHits.add(cache.hits);
+				this.retiredMisses.add(cache.misses);
+				this.retiredFrees.add(cache.frees);
+				this.trimmed.add(cache.loadedCount + cache.previousCount);
+				this.size.addAndGet(-cache.reserved);
+			}
+		}
+	}
+	
+	private Magazine pop() {
+		while (true) {
+			Magazine head = this.depot.get();
+			if (head == null) {
+				return null;
+			}
+			if (this.depot.compareAndSet(head, head.next)) {
+				int size = this.depotSize.addAndGet(-head.count);
+				if (size < this.depotLow) {
+					this.depotLow = size;
+				}
+				return head;
+			}
+		}
+	}
+	
+	/**
+	 * Pushes a magazine onto the depot, its objects must already be counted in the pool's size
+	 */
+	private void push(Object[] objects, int count) {
+		this.depotSize.addAndGet(count);
+		while (true) {
+			Magazine head = this.depot.get();
+			if (this.depot.compareAndSet(head, new Magazine(objects, count, head))) {
+				return;
+			}
+		}
+	}
+	
+	/**
+	 * The magazines and counts of one thread, only that thread changes them
+	 */
+	private static class Cache {
+		static final AtomicLongFieldUpdater<Cache> HITS = AtomicLongFieldUpdater.newUpdater(Cache.class, "hits");
+		static final AtomicLongFieldUpdater<Cache> MISSES = AtomicLongFieldUpdater.newUpdater(Cache.class, "misses");
+		static final AtomicLongFieldUpdater<Cache> FREES = AtomicLongFieldUpdater.newUpdater(Cache.class, "frees");
+		
+		final WeakReference<Thread> owner = new WeakReference<Thread>(Thread.currentThread());
+		// Written with lazySet by the owner, which is as cheap as a plain write, and read by whichever thread sums them
+		volatile long hits;
+		volatile long misses;
+		volatile long frees;
+		Object[] loaded = new Object[MAGAZINE_SIZE];
+		int loadedCount;
+		Object[] previous = new Object[MAGAZINE_SIZE];
+		int previousCount;
+		// The room set aside for the objects of both magazines, counted in the pool's size
+		int reserved;
+		int generation;
+		int trims;
+		
+		/**
+		 * Once the owner has died its fields are final, seeing it dead makes them visible
+		 */
+		boolean isOwnerAlive() {
+			Thread thread = this.owner.get();
+			return thread != null && thread.isAlive();
+		}
+		
+		void swap() {
+			Object[] objects = this.loaded;
+			int count = this.loadedCount;
+			this.loaded = this.previous;
+			this.loadedCount = this.previousCount;
+			this.previous = objects;
+			this.previousCount = count;
+		}
+	}
+	
+	private static class Magazine {
+		final Object[] objects;
+		final int count;
+		final Magazine next;
+		
+		Magazine(Object[] objects, int count, Magazine next) {
+			this.objects = objects;
+			this.count = count;
+			this.next = next;
+		}
 	}
-}
\ No newline at end of file
+}
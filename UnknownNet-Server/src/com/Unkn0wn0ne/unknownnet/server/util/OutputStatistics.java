@@ -0,0 +1,82 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * OutputStatistics - Counts the writes the server makes to its sockets, each of which is a system call, and the bytes they carry.
+ * Every client's writer records into the same instance, so counting never contends on a single lock or counter.
+ * @author Unkn0wn0ne
+ */
+public class OutputStatistics {
+
+	private LongAdder writes = new LongAdder();
+	private LongAdder bytes = new LongAdder();
+	private volatile long since = System.nanoTime();
+
+	/**
+	 * Internal method. Do not call
+	 * Records one write to a socket
+	 * @param length The number of bytes written
+	 */
+	public void recordWrite(int length) {
+		this.writes.increment();
+		this.bytes.add(length);
+	}
+
+	/**
+	 * @return The number of socket writes since the statistics were created or last reset
+	 */
+	public long getWriteCount() {
+		return this.writes.sum();
+	}
+
+	/**
+	 * @return The number of bytes written to sockets since the statistics were created or last reset
+	 */
+	public long getBytesWritten() {
+		return this.bytes.sum();
+	}
+
+	/**
+	 * @return The average number of socket writes per second since the statistics were created or last reset
+	 */
+	public double getWritesPerSecond() {
+		double seconds = (System.nanoTime() - this.since) / 1000000000.0;
+		return seconds <= 0 ? 0 : this.getWriteCount() / seconds;
+	}
+
+	/**
+	 * @return The average number of bytes each socket write carried
+	 */
+	public double getAverageBytesPerWrite() {
+		long writes = this.getWriteCount();
+		return writes == 0 ? 0 : (double) this.getBytesWritten() / writes;
+	}
+
+	/**
+	 * Starts counting again from zero
+	 */
+	public void reset() {
+		this.writes.reset();
+		this.bytes.reset();
+		this.since = System.nanoTime();
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%d writes (%.1f/s), %d bytes, %.1f bytes/write", this.getWriteCount(), this.getWritesPerSecond(), this.getBytesWritten(), this.getAverageBytesPerWrite());
+	}
+}
@@ -0,0 +1,56 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.nio.ByteBuffer;
+
+/**
+ * PooledBuffer - A direct buffer leased from a {@link BufferPool}
+ */
+public final class PooledBuffer implements PoolableObject {
+
+	private final ByteBuffer buffer;
+	private final ObjectPool<PooledBuffer> pool;
+
+	PooledBuffer(ByteBuffer buffer, ObjectPool<PooledBuffer> pool) {
+		this.buffer = buffer;
+		this.pool = pool;
+	}
+
+	/**
+	 * @return The buffer, cleared when it was leased
+	 */
+	public ByteBuffer getBuffer() {
+		return this.buffer;
+	}
+
+	/**
+	 * Gives the buffer back to its pool. Neither this nor the buffer may be used afterwards.
+	 */
+	public void release() {
+		if (this.pool != null) {
+			this.pool.freeObject(this);
+		}
+	}
+
+	@Override
+	public void setVariables(Object... vars) {
+
+	}
+
+	@Override
+	public void resetVariables() {
+		this.buffer.clear();
+	}
+}
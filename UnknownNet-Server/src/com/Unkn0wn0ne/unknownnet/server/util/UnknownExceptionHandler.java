@@ -44,11 +44,15 @@ public class UnknownExceptionHandler implements UncaughtExceptionHandler {
 			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/UnknownExceptionHandler: System is not recoverable, shutting down server...");
 			this.server.shutdown(true);
 			return;
-		} else if (arg0.getName().equalsIgnoreCase("Server-UDP-Receive-Thread")) {
+		} else if (arg0.getName().startsWith("Server-UDP-Receive-Thread")) {
 			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/UnknownExceptionHandler: System is not recoverable, shutting down server...");
 			this.server.shutdown(true);
 			return;
-		} else if (arg0.getName().equalsIgnoreCase("Server-UDP-Director-Thread")) {
+		} else if (arg0.getName().startsWith("Server-UDP-Director-Thread")) {
+			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/UnknownExceptionHandler: System is not recoverable, shutting down server...");
+			this.server.shutdown(true);
+			return;
+		} else if (arg0.getName().startsWith("Server-Selector-Thread")) {
 			UnknownLogger.log(Level.SEVERE, LogType.CRITICAL_ERROR, "Internal/UnknownExceptionHandler: System is not recoverable, shutting down server...");
 			this.server.shutdown(true);
 			return;
@@ -0,0 +1,395 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownnet.server.util;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+
+/**
+ * WireFormat - How packet ids, frame lengths and the client id at the start of a client's datagrams are written on one connection.
+ * {@link #V1} writes each of them as a 4 byte int. {@link #V2} is used once both sides agreed to {@link InternalPacket2Handshake#FLAG_COMPACT_HEADERS} and writes them as varints, 7 bits to a byte with the high bit set on every byte but the last, so small packets carry 1 or 2 bytes of header instead of 4 to 8.
+ * Packet ids are zigzag encoded before they're written as varints, since internal packets have small negative ids. The handshake and its response are always written in V1.
+ * @author Unkn0wn0ne
+ */
+public enum WireFormat {
+
+	V1 {
+		@Override
+		public void writeId(DataOutputStream out, int id) throws IOException {
+			out.writeInt(id);
+		}
+
+		@Override
+		public int readId(DataInputStream in) throws IOException {
+			return in.readInt();
+		}
+
+		@Override
+		public void putId(ByteBuffer buffer, int id) {
+			buffer.putInt(id);
+		}
+
+		@Override
+		public int getId(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+
+		@Override
+		public int getIdSize(int id) {
+			return 4;
+		}
+
+		@Override
+		public void writePacket(Packet p, DataOutputStream out) throws IOException {
+			p._write(out);
+		}
+
+		@Override
+		public void putPacket(Packet p, ByteBuffer buffer) throws IOException {
+			p._write(buffer);
+		}
+
+		@Override
+		public void writeLength(DataOutputStream out, int length) throws IOException {
+			out.writeInt(length);
+		}
+
+		@Override
+		public int getLengthSize(int length) {
+			return 4;
+		}
+
+		@Override
+		public void putLength(byte[] buffer, int offset, int length) {
+			buffer[offset] = (byte) (length >>> 24);
+			buffer[offset + 1] = (byte) (length >>> 16);
+			buffer[offset + 2] = (byte) (length >>> 8);
+			buffer[offset + 3] = (byte) length;
+		}
+
+		@Override
+		public int getPrefixSize(byte[] buffer, int offset, int available) {
+			return available < 4 ? -1 : 4;
+		}
+
+		@Override
+		public int getLength(byte[] buffer, int offset) {
+			return ((buffer[offset] & 0xFF) << 24) | ((buffer[offset + 1] & 0xFF) << 16) | ((buffer[offset + 2] & 0xFF) << 8) | (buffer[offset + 3] & 0xFF);
+		}
+
+		@Override
+		public void putClientId(ByteBuffer buffer, int clientId) {
+			buffer.putInt(clientId);
+		}
+
+		@Override
+		public int getClientId(ByteBuffer buffer) {
+			return buffer.getInt();
+		}
+
+		@Override
+		public int getClientIdSize(int clientId) {
+			return 4;
+		}
+	},
+
+	V2 {
+		@Override
+		public void writeId(DataOutputStream out, int id) throws IOException {
+			writeVarint(out, zigzag(id));
+		}
+
+		@Override
+		public int readId(DataInputStream in) throws IOException {
+			return unzigzag(readVarint(in));
+		}
+
+		@Override
+		public void putId(ByteBuffer buffer, int id) {
+			putVarint(buffer, zigzag(id));
+		}
+
+		@Override
+		public int getId(ByteBuffer buffer) throws IOException {
+			return unzigzag(getVarint(buffer));
+		}
+
+		@Override
+		public int getIdSize(int id) {
+			return varintSize(zigzag(id));
+		}
+
+		@Override
+		public void writeLength(DataOutputStream out, int length) throws IOException {
+			writeVarint(out, length);
+		}
+
+		@Override
+		public int getLengthSize(int length) {
+			return varintSize(length);
+		}
+
+		@Override
+		public void putLength(byte[] buffer, int offset, int length) {
+			while ((length & ~0x7F) != 0) {
+				buffer[offset++] = (byte) ((length & 0x7F) | 0x80);
+				length >>>= 7;
+			}
+			buffer[offset] = (byte) length;
+		}
+
+		@Override
+		public int getPrefixSize(byte[] buffer, int offset, int available) {
+			for (int i = 0; i < Math.min(available, MAX_VARINT_SIZE); i++) {
+				if ((buffer[offset + i] & 0x80) == 0) {
+					return i + 1;
+				}
+			}
+			// A varint that's too long is reported by getLength
+			return available < MAX_VARINT_SIZE ? -1 : MAX_VARINT_SIZE;
+		}
+
+		@Override
+		public int getLength(byte[] buffer, int offset) throws IOException {
+			int value = 0;
+			for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+				int b = buffer[offset + i];
+				value |= (b & 0x7F) << (7 * i);
+				if ((b & 0x80) == 0) {
+					return value;
+				}
+			}
+			throw new IOException("Malformed varint");
+		}
+
+		/**
+		 * Writes the client id with the high bit of its first byte set, which marks the datagram as V2. The rest of that byte holds the low 6 bits of the id and whether a varint of the remaining bits follows.
+		 */
+		@Override
+		public void putClientId(ByteBuffer buffer, int clientId) {
+			int rest = clientId >>> 6;
+			buffer.put((byte) (0x80 | (rest != 0 ? 0x40 : 0) | (clientId & 0x3F)));
+			if (rest != 0) {
+				putVarint(buffer, rest);
+			}
+		}
+
+		@Override
+		public int getClientId(ByteBuffer buffer) throws IOException {
+			int first = buffer.get() & 0xFF;
+			int clientId = first & 0x3F;
+			if ((first & 0x40) != 0) {
+				clientId |= getVarint(buffer) << 6;
+			}
+			return clientId;
+		}
+
+		@Override
+		public int getClientIdSize(int clientId) {
+			int rest = clientId >>> 6;
+			return rest != 0 ? 1 + varintSize(rest) : 1;
+		}
+	};
+
+	private static final int MAX_VARINT_SIZE = 5;
+
+	/**
+	 * Gets the format a connection uses from the options accepted in its handshake
+	 * @param acceptedFlags The flags of the handshake's response
+	 * @return {@link #V2} if compact headers were accepted, otherwise {@link #V1}
+	 */
+	public static WireFormat fromFlags(int acceptedFlags) {
+		return (acceptedFlags & InternalPacket2Handshake.FLAG_COMPACT_HEADERS) != 0 ? V2 : V1;
+	}
+
+	/**
+	 * Tells the format of a datagram a client sent from its first byte. Client ids are positive, so a V1 datagram never starts with its high bit set.
+	 * @param datagram The datagram, which must have at least one byte remaining
+	 * @return The format the datagram's client id and packet id are written in
+	 */
+	public static WireFormat ofDatagram(ByteBuffer datagram) {
+		return (datagram.get(datagram.position()) & 0x80) != 0 ? V2 : V1;
+	}
+
+	public abstract void writeId(DataOutputStream out, int id) throws IOException;
+
+	/**
+	 * @throws IOException If the stream ends or the id is malformed
+	 */
+	public abstract int readId(DataInputStream in) throws IOException;
+
+	public abstract void putId(ByteBuffer buffer, int id);
+
+	/**
+	 * @throws IOException If the id is malformed
+	 * @throws BufferUnderflowException If the buffer ends before the id does
+	 */
+	public abstract int getId(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * @return The number of bytes the id is written in
+	 */
+	public abstract int getIdSize(int id);
+
+	/**
+	 * Writes a packet, its id and then its data
+	 * @param p The packet
+	 * @param out The stream to write to
+	 * @throws IOException If the packet could not be written
+	 */
+	public void writePacket(Packet p, DataOutputStream out) throws IOException {
+		this.writeId(out, p.getId());
+		p.write(out);
+	}
+
+	/**
+	 * Writes a packet, its id and then its data, straight into a buffer
+	 * @param p The packet
+	 * @param buffer The buffer to write to, from its position
+	 * @throws IOException If the packet could not be written
+	 * @throws java.nio.BufferOverflowException If the packet does not fit in the buffer
+	 */
+	public void putPacket(Packet p, ByteBuffer buffer) throws IOException {
+		this.putId(buffer, p.getId());
+		p.write(buffer);
+	}
+
+	/**
+	 * Checks the id of the packet at a buffer's position without moving it
+	 * @param buffer The buffer
+	 * @param id The id to look for
+	 * @return True if the buffer starts with a complete id equal to the one given
+	 */
+	public boolean startsWithId(ByteBuffer buffer, int id) {
+		int position = buffer.position();
+		try {
+			return this.getId(buffer) == id;
+		} catch (IOException e) {
+			return false;
+		} catch (BufferUnderflowException e) {
+			return false;
+		} finally {
+			buffer.position(position);
+		}
+	}
+
+	/**
+	 * Writes the length prefix of a frame
+	 */
+	public abstract void writeLength(DataOutputStream out, int length) throws IOException;
+
+	/**
+	 * @return The number of bytes the length prefix of a frame is written in
+	 */
+	public abstract int getLengthSize(int length);
+
+	/**
+	 * Writes the length prefix of a frame into an array, which must have room for {@link #getLengthSize(int)} bytes
+	 */
+	public abstract void putLength(byte[] buffer, int offset, int length);
+
+	/**
+	 * Finds how long the length prefix of a frame that is being received is
+	 * @param buffer The bytes that have arrived
+	 * @param offset Where the frame starts
+	 * @param available How many bytes have arrived from the offset on
+	 * @return The size of the prefix, or -1 if it hasn't fully arrived
+	 */
+	public abstract int getPrefixSize(byte[] buffer, int offset, int available);
+
+	/**
+	 * Reads the length prefix of a frame once it has fully arrived
+	 * @throws IOException If the prefix is malformed
+	 */
+	public abstract int getLength(byte[] buffer, int offset) throws IOException;
+
+	/**
+	 * Writes the client id that starts every datagram a client sends, ahead of its session token
+	 */
+	public abstract void putClientId(ByteBuffer buffer, int clientId);
+
+	/**
+	 * @throws IOException If the id is malformed
+	 * @throws BufferUnderflowException If the datagram ends before the id does
+	 */
+	public abstract int getClientId(ByteBuffer buffer) throws IOException;
+
+	/**
+	 * @return The number of bytes the client id is written in
+	 */
+	public abstract int getClientIdSize(int clientId);
+
+	private static int zigzag(int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag(int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static int varintSize(int value) {
+		int size = 1;
+		while ((value & ~0x7F) != 0) {
+			value >>>= 7;
+			size++;
+		}
+		return size;
+	}
+
+	private static void writeVarint(DataOutputStream out, int value) throws IOException {
+		while ((value & ~0x7F) != 0) {
+			out.writeByte((value & 0x7F) | 0x80);
+			value >>>= 7;
+		}
+		out.writeByte(value);
+	}
+
+	private static int readVarint(DataInputStream in) throws IOException {
+		int value = 0;
+		for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+			int b = in.readUnsignedByte();
+			value |= (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+
+	private static void putVarint(ByteBuffer buffer, int value) {
+		while ((value & ~0x7F) != 0) {
+			buffer.put((byte) ((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte) value);
+	}
+
+	private static int getVarint(ByteBuffer buffer) throws IOException {
+		int value = 0;
+		for (int i = 0; i < MAX_VARINT_SIZE; i++) {
+			int b = buffer.get();
+			value |= (b & 0x7F) << (7 * i);
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+		}
+		throw new IOException("Malformed varint");
+	}
+}
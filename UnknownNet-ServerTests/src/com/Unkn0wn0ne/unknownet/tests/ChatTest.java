@@ -52,7 +52,7 @@ public class ChatTest extends UnknownServer{
 		}
 		
 		// Let the other clients know someone connected
-		msgPacket.setVariables(username + " has joined our server!");
+		Packet1ChatMessageCodec.builder(msgPacket).setMessage(username + " has joined our server!");
 		
 		// Get the number of clients connected.
 		int num = 0;
@@ -70,7 +70,7 @@ public class ChatTest extends UnknownServer{
 			num = 1;
 		try {
 			Packet1ChatMessage	msgPacket2 = (Packet1ChatMessage) this.createPacket(1);
-			msgPacket2.setVariables("Welcome to our chat server! There are : " + num + " client(s) connected right now.");
+			Packet1ChatMessageCodec.builder(msgPacket2).setMessage("Welcome to our chat server! There are : " + num + " client(s) connected right now.");
 			client.queuePacket(msgPacket2);
 		} catch (ProtocolViolationException e) {
 			
@@ -86,7 +86,7 @@ public class ChatTest extends UnknownServer{
 		// Let the clients know that a client has left
 		try {
 			Packet1ChatMessage msgPacket = (Packet1ChatMessage) this.createPacket(1);
-			msgPacket.setVariables(client.getClientTag() + " has left the server.");
+			Packet1ChatMessageCodec.builder(msgPacket).setMessage(client.getClientTag() + " has left the server.");
 			synchronized (this.getConnectedClients()) {
 				int numClients = this.getConnectedClients().size();
 				msgPacket.setRecipentCount(numClients);
@@ -115,7 +115,8 @@ public class ChatTest extends UnknownServer{
 				Packet1ChatMessage msgPacket = (Packet1ChatMessage) this.createPacket(1);
 				int numClients = this.getConnectedClients().size();
 				msgPacket.setRecipentCount(numClients);
-				msgPacket.setVariables(str);
+				// The client's tag can push a message that fit over the limit, so cut it back to fit
+				Packet1ChatMessageCodec.builder(msgPacket).setMessage(str.length() > Packet1ChatMessage.MAX_MESSAGE_LENGTH ? str.substring(0, Packet1ChatMessage.MAX_MESSAGE_LENGTH) : str);
 				for (UnknownClient c: this.getConnectedClients()) {
 					c.queuePacket(msgPacket);
 				}
@@ -0,0 +1,205 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.Unkn0wn0ne.unknownnet.server.ServerConfigurationBuilder;
+import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.util.Threads;
+
+/**
+ * Compares how many idle TCP connections a server holds on platform threads and on virtual threads, and what they cost.
+ * Each mode runs in a JVM of its own, which starts a server, opens the same number of connections that authenticate and then sit idle, and reports the platform threads and memory they added.
+ * Virtual threads need Java 21 or later at run time, the Java 8 build reaches them through reflection. On older versions there is nothing to compare, so the benchmark stops.
+ */
+public class ConnectionDensityBenchmark {
+
+	private static final int CONNECTIONS = 1000;
+	private static final int PORT = 4340;
+	// How long the connections sit idle before they are measured
+	private static final long IDLE_TIME = 3000;
+
+	public ConnectionDensityBenchmark() {
+		if (!Threads.isVirtualThreadSupported()) {
+			System.out.println("ConnectionDensityBenchmark: FAILED, virtual threads need Java 21 or later but this is Java " + System.getProperty("java.version"));
+			System.exit(1);
+		}
+
+		try {
+			this.forkMode("platform");
+			this.forkMode("virtual");
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Runs one mode in a new JVM, so that neither mode's threads or memory are counted against the other
+	 */
+	private void forkMode(String mode) throws Exception {
+		String java = System.getProperty("java.home") + File.separator + "bin" + File.separator + "java";
+		Process process = new ProcessBuilder(java, "-cp", System.getProperty("java.class.path"), ConnectionDensityBenchmark.class.getName(), mode).inheritIO().start();
+		process.waitFor();
+	}
+
+	public static void main(String[] args) {
+		try {
+			runMode(args[0].equals("virtual"), PORT);
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		// The server's threads would keep the JVM running
+		System.exit(0);
+	}
+
+	private static void runMode(boolean virtual, final int port) throws Exception {
+		String mode = virtual ? "virtual" : "platform";
+		final DensityServer server = new DensityServer(new ServerConfigurationBuilder().setServerPort(port).setMaxClients(CONNECTIONS + 1).setUseVirtualThreads(virtual));
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				server.startServer();
+			}
+		}, "ConnectionDensityBenchmark-Server-" + port).start();
+		Thread.sleep(1000);
+
+		Snapshot before = new Snapshot();
+		long start = System.currentTimeMillis();
+		List<Socket> sockets = new ArrayList<Socket>();
+		for (int i = 0; i < CONNECTIONS; i++) {
+			sockets.add(connect(port));
+		}
+		long connectTime = System.currentTimeMillis() - start;
+
+		Thread.sleep(IDLE_TIME);
+		Snapshot after = new Snapshot();
+
+		System.out.println("ConnectionDensityBenchmark: " + mode + " threads, " + server.connected.get() + " of " + CONNECTIONS + " connections accepted in " + connectTime + " ms, " + server.onVirtualThreads.get() + " handled on virtual threads");
+		if (server.onVirtualThreads.get() != (virtual ? server.connected.get() : 0)) {
+			System.out.println("ConnectionDensityBenchmark: FAILED, " + mode + " mode did not run its connections on " + mode + " threads");
+		}
+		System.out.println("ConnectionDensityBenchmark: " + mode + " threads, " + (after.threads - before.threads) + " platform threads added, peak " + after.peakThreads);
+		System.out.println("ConnectionDensityBenchmark: " + mode + " threads, heap " + ((after.heap - before.heap) / CONNECTIONS) + " bytes per connection, resident memory " + (before.rss < 0 ? "n/a" : ((after.rss - before.rss) / CONNECTIONS) + " bytes per connection"));
+	}
+
+	/**
+	 * Opens a connection and authenticates it the same way the client library does, without asking for any options
+	 */
+	private static Socket connect(int port) throws IOException {
+		Socket socket = new Socket("127.0.0.1", port);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+
+		out.writeInt(-2);
+		out.writeUTF("unknownserver-dev");
+		out.writeInt(-1);
+		out.flush();
+
+		if (in.readInt() != -2 || !in.readBoolean()) {
+			socket.close();
+			throw new IOException("Server refused the benchmark connection");
+		}
+		return socket;
+	}
+
+	/**
+	 * The process' threads and memory at one moment
+	 */
+	private static class Snapshot {
+
+		final int threads;
+		final int peakThreads;
+		final long heap;
+		final long rss;
+
+		Snapshot() {
+			System.gc();
+			Runtime runtime = Runtime.getRuntime();
+			this.threads = ManagementFactory.getThreadMXBean().getThreadCount();
+			this.peakThreads = ManagementFactory.getThreadMXBean().getPeakThreadCount();
+			this.heap = runtime.totalMemory() - runtime.freeMemory();
+			this.rss = readResidentMemory();
+		}
+
+		/**
+		 * Reads the process' resident memory, which includes the thread stacks the heap doesn't
+		 * @return The resident memory in bytes, or -1 if it can't be read on this platform
+		 */
+		private static long readResidentMemory() {
+			try {
+				BufferedReader reader = new BufferedReader(new FileReader("/proc/self/status"));
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						if (line.startsWith("VmRSS:")) {
+							return Long.parseLong(line.substring(6).trim().split("\\s+")[0]) * 1024;
+						}
+					}
+				} finally {
+					reader.close();
+				}
+			} catch (Exception e) {
+
+			}
+			return -1;
+		}
+	}
+
+	private static class DensityServer extends UnknownServer {
+
+		private AtomicInteger connected = new AtomicInteger(0);
+		private AtomicInteger onVirtualThreads = new AtomicInteger(0);
+
+		public DensityServer(ServerConfigurationBuilder config) {
+			super(config);
+		}
+
+		@Override
+		public boolean handleNewConnection(UnknownClient client, String[] loginData) {
+			this.connected.incrementAndGet();
+			if (Threads.isVirtual(Thread.currentThread())) {
+				this.onVirtualThreads.incrementAndGet();
+			}
+			return true;
+		}
+
+		@Override
+		public void onClientLeave(UnknownClient client) {
+
+		}
+
+		@Override
+		public void onPacketReceived(UnknownClient client, Packet packet) {
+
+		}
+
+		@Override
+		public void mainLoop() {
+
+		}
+	}
+}
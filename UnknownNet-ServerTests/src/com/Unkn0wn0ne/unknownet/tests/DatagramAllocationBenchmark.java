@@ -0,0 +1,131 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+
+import com.Unkn0wn0ne.unknownnet.server.util.BufferPool;
+import com.Unkn0wn0ne.unknownnet.server.util.ByteBufferOutputStream;
+import com.Unkn0wn0ne.unknownnet.server.util.PooledBuffer;
+
+/**
+ * Measures the memory allocated per datagram sent, the way the server used to send them and the way it sends them now.
+ * The old way encodes each packet into a ByteArrayOutputStream, copies it out with toByteArray() and sends the array from a DatagramSocket, which copies it again into a temporary direct buffer.
+ * The new way encodes each packet into a direct buffer leased from a {@link BufferPool} and hands that buffer to a DatagramChannel as it is.
+ * The datagrams go to a socket on the loopback interface that nobody reads, so the kernel drops them once its buffer is full.
+ */
+public class DatagramAllocationBenchmark {
+
+	private static final int WARMUP = 200000;
+	private static final int DATAGRAMS = 1000000;
+
+	private final Packet1ChatMessage packet = new Packet1ChatMessage();
+	private final BufferPool bufferPool = new BufferPool();
+
+	public DatagramAllocationBenchmark() {
+		Packet1ChatMessageCodec.builder(this.packet).setMessage("The quick brown fox jumps over the lazy dog");
+		try {
+			DatagramChannel sink = DatagramChannel.open();
+			sink.bind(new InetSocketAddress("127.0.0.1", 0));
+			InetSocketAddress target = (InetSocketAddress) sink.getLocalAddress();
+
+			this.sendWithArrays(target, WARMUP);
+			this.sendWithBuffers(target, WARMUP);
+			this.report("ByteArrayOutputStream + DatagramSocket", this.sendWithArrays(target, DATAGRAMS));
+			this.report("BufferPool + DatagramChannel", this.sendWithBuffers(target, DATAGRAMS));
+			System.out.println("DatagramAllocationBenchmark: buffer pool " + this.bufferPool);
+			System.out.println(this.bufferPool.getLeasedCount() == 0 ? "DatagramAllocationBenchmark: every leased buffer was released" : "DatagramAllocationBenchmark: FAILED, " + this.bufferPool.getLeasedCount() + " buffers were never released");
+			sink.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Sends the way the server used to, a new array per datagram
+	 * @return The bytes allocated and the nanoseconds taken
+	 */
+	private long[] sendWithArrays(InetSocketAddress target, int datagrams) throws IOException {
+		DatagramSocket socket = new DatagramSocket();
+		ByteArrayOutputStream writer = new ByteArrayOutputStream();
+		DataOutputStream outputStream = new DataOutputStream(writer);
+		DatagramPacket datagram = new DatagramPacket(new byte[0], 0, target);
+
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < datagrams; i++) {
+			writer.reset();
+			this.packet._write(outputStream);
+			byte[] data = writer.toByteArray();
+			datagram.setData(data);
+			datagram.setLength(data.length);
+			socket.send(datagram);
+		}
+		long[] result = new long[] { getAllocatedBytes() - allocated, System.nanoTime() - start };
+		socket.close();
+		return result;
+	}
+
+	/**
+	 * Sends the way the server does now, a pooled direct buffer per datagram
+	 * @return The bytes allocated and the nanoseconds taken
+	 */
+	private long[] sendWithBuffers(InetSocketAddress target, int datagrams) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		ByteBufferOutputStream writer = new ByteBufferOutputStream(this.bufferPool);
+		DataOutputStream outputStream = new DataOutputStream(writer);
+
+		long allocated = getAllocatedBytes();
+		long start = System.nanoTime();
+		for (int i = 0; i < datagrams; i++) {
+			writer.begin(BufferPool.MIN_SIZE);
+			this.packet._write(outputStream);
+			PooledBuffer data = writer.finish();
+			try {
+				channel.send(data.getBuffer(), target);
+			} finally {
+				data.release();
+			}
+		}
+		long[] result = new long[] { getAllocatedBytes() - allocated, System.nanoTime() - start };
+		channel.close();
+		return result;
+	}
+
+	private void report(String name, long[] result) {
+		if (getAllocatedBytes() < 0) {
+			System.out.println("DatagramAllocationBenchmark: " + name + ": " + DATAGRAMS + " datagrams in " + result[1] / 1000000 + " ms, this JVM can't measure allocations");
+			return;
+		}
+		System.out.println("DatagramAllocationBenchmark: " + name + ": " + DATAGRAMS + " datagrams in " + result[1] / 1000000 + " ms, " + result[0] / DATAGRAMS + " bytes allocated per datagram");
+	}
+
+	/**
+	 * @return The bytes the current thread has allocated on the heap so far, or -1 if the JVM doesn't count them
+	 */
+	private static long getAllocatedBytes() {
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+			return -1;
+		}
+		return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+	}
+}
@@ -0,0 +1,220 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.Unkn0wn0ne.unknownnet.server.distributed.DistributedObject;
+import com.Unkn0wn0ne.unknownnet.server.distributed.ObjectCodec;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+
+/**
+ * Compares the text and binary formats DistributedObjects are sent in: how long the server takes to encode an object, how long a client takes to decode it and how many bytes it takes on the wire.
+ * Updates that only hold the fields that changed are measured too.
+ * Encoding does the same work as the server, which produces the text from the binary form. Decoding does the same work as the client library, the text is split apart and parsed field by field while the binary form is read straight from a stream.
+ */
+public class DistributedObjectCodecBenchmark {
+
+	private static final int WARMUP = 100000;
+	private static final int ITERATIONS = 200000;
+
+	private static final String[] TEXT_SECTIONS = { "numBytes", "numByteArrays", "numStrings", "numIntegers", "numDoubles", "numFloats", "numShorts", "numLongs", "numBooleans" };
+
+	// Keeps the decoded values alive so that decoding can't be optimized away
+	private Map<String, Object> fields = new HashMap<String, Object>();
+
+	public DistributedObjectCodecBenchmark() {
+		BenchmarkObject object = new BenchmarkObject();
+		object.computeUpdate();
+		byte[] binary = object.getEncodedBytes();
+		String text = object.toString();
+
+		try {
+			for (int round = 0; round < 2; round++) {
+				// The first round warms up the JIT and is not reported
+				boolean report = round > 0;
+				int iterations = report ? ITERATIONS : WARMUP;
+
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					ObjectCodec.encode(object);
+				}
+				long binaryEncode = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					ObjectCodec.toText(ObjectCodec.encode(object));
+				}
+				long textEncode = System.nanoTime() - start;
+
+				// A moving entity usually changes nothing but its position between updates
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					object.setFloatValue("x", i);
+					ObjectCodec.encodeDelta(object);
+				}
+				long deltaEncode = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					this.decodeBinary(binary);
+				}
+				long binaryDecode = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					this.decodeText(text);
+				}
+				long textDecode = System.nanoTime() - start;
+
+				if (report) {
+					System.out.println("DistributedObjectCodecBenchmark: " + iterations + " objects of 12 fields");
+					System.out.println("DistributedObjectCodecBenchmark: text,   " + (text.getBytes("UTF-8").length + 2) + " bytes, encode " + (textEncode / iterations) + " ns, decode " + (textDecode / iterations) + " ns");
+					System.out.println("DistributedObjectCodecBenchmark: binary, " + binary.length + " bytes, encode " + (binaryEncode / iterations) + " ns, decode " + (binaryDecode / iterations) + " ns");
+					object.setFloatValue("x", 0);
+					System.out.println("DistributedObjectCodecBenchmark: binary with 1 changed field, " + ObjectCodec.encodeDelta(object).length + " bytes, encode " + (deltaEncode / iterations) + " ns");
+				}
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (ProtocolViolationException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void decodeBinary(byte[] binary) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(binary));
+		this.fields.put("name", in.readUTF());
+		this.fields.put("id", in.readLong());
+		this.fields.put("zId", in.readInt());
+
+		byte tag;
+		while ((tag = in.readByte()) != ObjectCodec.TAG_END) {
+			String name = in.readUTF();
+			switch (tag) {
+			case ObjectCodec.TAG_BYTE:
+				this.fields.put(name, in.readByte());
+				break;
+			case ObjectCodec.TAG_BYTE_ARRAY: {
+				byte[] array = new byte[in.readInt()];
+				in.readFully(array);
+				this.fields.put(name, array);
+				break;
+			}
+			case ObjectCodec.TAG_STRING:
+				this.fields.put(name, in.readUTF());
+				break;
+			case ObjectCodec.TAG_INTEGER:
+				this.fields.put(name, in.readInt());
+				break;
+			case ObjectCodec.TAG_DOUBLE:
+				this.fields.put(name, in.readDouble());
+				break;
+			case ObjectCodec.TAG_FLOAT:
+				this.fields.put(name, in.readFloat());
+				break;
+			case ObjectCodec.TAG_SHORT:
+				this.fields.put(name, in.readShort());
+				break;
+			case ObjectCodec.TAG_LONG:
+				this.fields.put(name, in.readLong());
+				break;
+			case ObjectCodec.TAG_NULL:
+				in.readByte();
+				this.fields.put(name, null);
+				break;
+			default:
+				this.fields.put(name, in.readBoolean());
+				break;
+			}
+		}
+	}
+
+	private void decodeText(String text) {
+		String[] entries = text.split(";");
+		int position = 0;
+		this.fields.put("name", entries[position++].split("=")[1]);
+		this.fields.put("id", Long.parseLong(entries[position++].split("=")[1].trim()));
+		this.fields.put("zId", Integer.parseInt(entries[position++].split("=")[1].trim()));
+
+		for (int section = 0; section < TEXT_SECTIONS.length; section++) {
+			int count = Integer.parseInt(entries[position].split("=")[1]);
+			for (int index = 0; index < count; index++) {
+				position++;
+				String name = entries[position].split("=")[0];
+				String value = entries[position].split("=")[1];
+				switch (section) {
+				case 0:
+					this.fields.put(name, Byte.parseByte(value));
+					break;
+				case 1:
+					this.fields.put(name, value.getBytes());
+					break;
+				case 2:
+					this.fields.put(name, value);
+					break;
+				case 3:
+					this.fields.put(name, Integer.parseInt(value));
+					break;
+				case 4:
+					this.fields.put(name, Double.parseDouble(value));
+					break;
+				case 5:
+					this.fields.put(name, Float.parseFloat(value));
+					break;
+				case 6:
+					this.fields.put(name, Short.parseShort(value));
+					break;
+				case 7:
+					this.fields.put(name, Long.parseLong(value));
+					break;
+				default:
+					this.fields.put(name, Boolean.parseBoolean(value));
+					break;
+				}
+			}
+			position++;
+		}
+	}
+
+	/**
+	 * A typical moving entity
+	 */
+	private static class BenchmarkObject extends DistributedObject {
+
+		public BenchmarkObject() {
+			this.setFloatValue("x", 1021.75f);
+			this.setFloatValue("y", 64.0f);
+			this.setFloatValue("z", -338.125f);
+			this.setDoubleValue("yaw", 271.5);
+			this.setIntegerValue("health", 87);
+			this.setIntegerValue("armor", 40);
+			this.setShortValue("level", (short) 23);
+			this.setLongValue("score", 1234567890123L);
+			this.setByteValue("team", (byte) 2);
+			this.setByteArrayValue("equipment", new byte[] { 4, 8, 15, 16, 23, 42, 0, 1 });
+			this.setStringValue("name", "Unkn0wn0ne");
+			this.setBooleanValue("alive", true);
+		}
+
+		@Override
+		public String getObjectType() {
+			return "DistributedPlayer";
+		}
+	}
+}
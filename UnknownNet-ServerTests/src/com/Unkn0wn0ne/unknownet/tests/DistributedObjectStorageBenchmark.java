@@ -0,0 +1,123 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import com.Unkn0wn0ne.unknownnet.server.distributed.DistributedObject;
+import com.Unkn0wn0ne.unknownnet.server.distributed.ObjectSchema;
+
+/**
+ * Compares DistributedObjects that store their fields in maps with ones that declare them in an {@link ObjectSchema}: the heap each object takes and how long it takes to set and read a field.
+ */
+public class DistributedObjectStorageBenchmark {
+
+	private static final int OBJECTS = 200000;
+	private static final int ITERATIONS = 5000000;
+
+	private static final ObjectSchema SCHEMA = new ObjectSchema().addFloatField("x").addFloatField("y").addFloatField("z").addIntegerField("health").addStringField("name").addBooleanField("alive");
+	private static final int X = SCHEMA.getField("x");
+
+	// Keeps the values read alive so that reading can't be optimized away
+	private float sum = 0;
+
+	public DistributedObjectStorageBenchmark() {
+		this.measureHeap("maps", false);
+		this.measureHeap("schema", true);
+
+		DistributedObject mapObject = new MapObject();
+		DistributedObject schemaObject = new SchemaObject();
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up the JIT and is not reported
+			boolean report = round > 0;
+
+			long start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				mapObject.setFloatValue("x", i);
+				this.sum += mapObject.getFloatValue("x");
+			}
+			long mapTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				schemaObject.setFloatValue("x", i);
+				this.sum += schemaObject.getFloatValue("x");
+			}
+			long schemaNameTime = System.nanoTime() - start;
+
+			start = System.nanoTime();
+			for (int i = 0; i < ITERATIONS; i++) {
+				schemaObject.setFloatValue(X, i);
+				this.sum += schemaObject.getFloatValue(X);
+			}
+			long schemaIndexTime = System.nanoTime() - start;
+
+			if (report) {
+				System.out.println("DistributedObjectStorageBenchmark: set and get a float, maps " + (mapTime / ITERATIONS) + " ns, schema by name " + (schemaNameTime / ITERATIONS) + " ns, schema by index " + (schemaIndexTime / ITERATIONS) + " ns");
+			}
+		}
+	}
+
+	private void measureHeap(String mode, boolean schema) {
+		DistributedObject[] objects = new DistributedObject[OBJECTS];
+		long before = usedHeap();
+		for (int i = 0; i < OBJECTS; i++) {
+			objects[i] = schema ? new SchemaObject() : new MapObject();
+		}
+		long after = usedHeap();
+		System.out.println("DistributedObjectStorageBenchmark: " + mode + ", " + OBJECTS + " objects of 6 fields, " + ((after - before) / OBJECTS) + " bytes of heap per object");
+		// Keeps the objects reachable until they have been measured
+		this.sum += objects[OBJECTS - 1].getFloatValue("x");
+	}
+
+	private static long usedHeap() {
+		Runtime runtime = Runtime.getRuntime();
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+		}
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static void setFields(DistributedObject object) {
+		object.setFloatValue("x", 12.5f);
+		object.setFloatValue("y", 64.0f);
+		object.setFloatValue("z", -3.25f);
+		object.setIntegerValue("health", 100);
+		object.setStringValue("name", "Unkn0wn0ne");
+		object.setBooleanValue("alive", true);
+	}
+
+	private static class MapObject extends DistributedObject {
+
+		public MapObject() {
+			setFields(this);
+		}
+
+		@Override
+		public String getObjectType() {
+			return "DistributedPlayer";
+		}
+	}
+
+	private static class SchemaObject extends DistributedObject {
+
+		public SchemaObject() {
+			super(SCHEMA);
+			setFields(this);
+		}
+
+		@Override
+		public String getObjectType() {
+			return "DistributedPlayer";
+		}
+	}
+}
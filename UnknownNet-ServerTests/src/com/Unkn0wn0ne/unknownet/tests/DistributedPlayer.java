@@ -14,12 +14,18 @@
 package com.Unkn0wn0ne.unknownet.tests;
 
 import com.Unkn0wn0ne.unknownnet.server.distributed.DistributedObject;
+import com.Unkn0wn0ne.unknownnet.server.distributed.ObjectSchema;
 
 public class DistributedPlayer extends DistributedObject{
 	
+	public static final ObjectSchema SCHEMA = new ObjectSchema().addFloatField("x").addFloatField("y");
+	public static final int X = SCHEMA.getField("x");
+	public static final int Y = SCHEMA.getField("y");
+	
 	public DistributedPlayer(float x, float y) {
-		this.setFloatValue("x", y);
-		this.setFloatValue("y", y);
+		super(SCHEMA);
+		this.setFloatValue(X, x);
+		this.setFloatValue(Y, y);
 	}
 	
 	@Override
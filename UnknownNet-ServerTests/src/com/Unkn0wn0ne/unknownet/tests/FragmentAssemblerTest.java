@@ -0,0 +1,238 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket12Fragment;
+import com.Unkn0wn0ne.unknownnet.server.util.FragmentAssembler;
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
+
+/**
+ * Splits datagrams into fragments the way a client's UDP connection sends them at the smallest MTU the server allows, and puts them back together with a {@link FragmentAssembler}
+ * after shuffling and duplicating them. Then checks that fragments that don't match their datagram are ignored, and that unfinished datagrams are discarded once they time out or no longer fit in the budget.
+ * Time is passed to the assembler by hand and the shuffling is seeded, so the results are the same on every run.
+ */
+public class FragmentAssemblerTest {
+
+	private static final int MTU = 256;
+	private static final int[] SIZES = { MTU + 1, 1000, 4000, 60000 };
+	private static final double DUPLICATION_RATE = 0.2;
+	private static final int BUDGET = 4096;
+	private static final long TIMEOUT = 1000;
+
+	private int failures = 0;
+
+	public FragmentAssemblerTest() {
+		try {
+			this.testRoundTrip();
+			this.testMismatch();
+			this.testTimeout();
+			this.testBudget();
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "FragmentAssemblerTest: PASSED" : "FragmentAssemblerTest: FAILED (" + this.failures + " failures)");
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Every datagram is split in both wire formats, its fragments are handed over out of order with some of them twice, and exactly one whole copy of it must come back
+	 */
+	private void testRoundTrip() throws IOException {
+		Random random = new Random(11);
+		int group = 0;
+		for (WireFormat format : WireFormat.values()) {
+			FragmentAssembler assembler = new FragmentAssembler(1 << 20, TIMEOUT);
+			for (int size : SIZES) {
+				byte[] datagram = new byte[size];
+				random.nextBytes(datagram);
+				List<InternalPacket12Fragment> fragments = this.split(format, group++, datagram);
+				int sent = fragments.size();
+				for (int i = 0; i < sent; i++) {
+					if (random.nextDouble() < DUPLICATION_RATE) {
+						fragments.add(fragments.get(i));
+					}
+				}
+				Collections.shuffle(fragments, random);
+
+				int whole = 0;
+				for (InternalPacket12Fragment fragment : fragments) {
+					byte[] data = assembler.add(fragment.getGroup(), fragment.getIndex(), fragment.getCount(), fragment.getData(), 0);
+					if (data == null) {
+						continue;
+					}
+					whole++;
+					if (!Arrays.equals(datagram, data)) {
+						this.fail(format + ", " + size + " bytes: the datagram put back together differs from the one sent");
+					}
+				}
+				// A duplicate that arrives after its datagram was finished starts it again, and is left to time out
+				assembler.expire(TIMEOUT);
+				if (whole != 1) {
+					this.fail(format + ", " + size + " bytes: the datagram came back " + whole + " times");
+				}
+				if (assembler.getBufferedBytes() != 0) {
+					this.fail(format + ", " + size + " bytes: " + assembler.getBufferedBytes() + " bytes are still held after the timeout");
+				}
+				System.out.println("FragmentAssemblerTest: " + format + ", " + size + " bytes in " + sent + " fragments, " + (fragments.size() - sent) + " duplicated");
+			}
+			if (assembler.getReassembledCount() != SIZES.length) {
+				this.fail(format + ": " + assembler.getReassembledCount() + " datagrams were put back together out of " + SIZES.length);
+			}
+		}
+	}
+
+	/**
+	 * Fragments that claim a different count than the rest of their datagram, or that could never have been sent, must not change it
+	 */
+	private void testMismatch() {
+		FragmentAssembler assembler = new FragmentAssembler(BUDGET, TIMEOUT);
+		byte[] first = { 1, 2 };
+		byte[] second = { 3 };
+		byte[] third = { 4, 5, 6 };
+
+		this.expectNull(assembler.add(1, 0, 1, first, 0), "a datagram of one fragment");
+		this.expectNull(assembler.add(1, 3, 3, first, 0), "an index past the count");
+		this.expectNull(assembler.add(1, 0, 3, new byte[0], 0), "an empty fragment");
+		if (assembler.getBufferedBytes() != 0) {
+			this.fail("fragments that could never have been sent were kept");
+		}
+
+		this.expectNull(assembler.add(1, 0, 3, first, 0), "the first of three fragments");
+		int buffered = assembler.getBufferedBytes();
+		this.expectNull(assembler.add(1, 1, 4, second, 0), "a fragment that claims a different count");
+		this.expectNull(assembler.add(1, 0, 3, third, 0), "a duplicate with different bytes");
+		if (assembler.getBufferedBytes() != buffered) {
+			this.fail("ignored fragments were kept");
+		}
+
+		this.expectNull(assembler.add(1, 2, 3, third, 0), "the last of three fragments");
+		byte[] data = assembler.add(1, 1, 3, second, 0);
+		if (!Arrays.equals(new byte[] { 1, 2, 3, 4, 5, 6 }, data)) {
+			this.fail("the datagram was put back together as " + Arrays.toString(data));
+		}
+		if (assembler.getBufferedBytes() != 0 || assembler.getExpiredCount() != 0) {
+			this.fail("the finished datagram left " + assembler.getBufferedBytes() + " bytes held and " + assembler.getExpiredCount() + " discarded");
+		}
+	}
+
+	/**
+	 * A datagram is discarded once its first fragment is as old as the timeout, and its late fragments can't finish it
+	 */
+	private void testTimeout() {
+		FragmentAssembler assembler = new FragmentAssembler(BUDGET, TIMEOUT);
+		byte[] fragment = new byte[100];
+		assembler.add(1, 0, 2, fragment, 0);
+		assembler.add(2, 0, 2, fragment, TIMEOUT / 2);
+
+		assembler.expire(TIMEOUT - 1);
+		if (assembler.getExpiredCount() != 0) {
+			this.fail("a datagram was discarded before its timeout");
+		}
+		int buffered = assembler.getBufferedBytes();
+		assembler.expire(TIMEOUT);
+		if (assembler.getExpiredCount() != 1 || assembler.getBufferedBytes() * 2 != buffered) {
+			this.fail("after the timeout " + assembler.getExpiredCount() + " datagrams were discarded and " + assembler.getBufferedBytes() + " of " + buffered + " bytes are still held");
+		}
+
+		this.expectNull(assembler.add(1, 1, 2, fragment, TIMEOUT), "the late fragment of a discarded datagram");
+		if (assembler.add(2, 1, 2, fragment, TIMEOUT) == null) {
+			this.fail("the datagram that had not timed out was not finished");
+		}
+
+		assembler.expire(2 * TIMEOUT);
+		if (assembler.getExpiredCount() != 2 || assembler.getBufferedBytes() != 0 || assembler.getReassembledCount() != 1) {
+			this.fail("the late fragment's datagram was not discarded, " + assembler.getExpiredCount() + " discarded, " + assembler.getBufferedBytes() + " bytes held");
+		}
+	}
+
+	/**
+	 * Unfinished datagrams that would take more than the budget are discarded oldest first, and the ones that fit can still be finished
+	 */
+	private void testBudget() {
+		FragmentAssembler assembler = new FragmentAssembler(BUDGET, TIMEOUT);
+		byte[] fragment = new byte[BUDGET / 4];
+		int groups = 8;
+		for (int group = 0; group < groups; group++) {
+			assembler.add(group, 0, 2, fragment, 0);
+			if (assembler.getBufferedBytes() > BUDGET) {
+				this.fail(assembler.getBufferedBytes() + " bytes are held, more than the budget of " + BUDGET);
+			}
+		}
+
+		long discarded = assembler.getExpiredCount();
+		if (discarded == 0) {
+			this.fail("no datagram was discarded when the budget ran out");
+		}
+		// Newest first, the late fragments of a discarded datagram start it again and would push out the ones still held
+		for (int group = groups - 1; group >= 0; group--) {
+			byte[] data = assembler.add(group, 1, 2, fragment, 0);
+			if (group < discarded && data != null) {
+				this.fail("datagram " + group + " was finished after it was discarded");
+			} else if (group >= discarded && data == null) {
+				this.fail("datagram " + group + " was discarded out of order, " + discarded + " of " + groups + " were");
+			}
+			if (assembler.getBufferedBytes() > BUDGET) {
+				this.fail(assembler.getBufferedBytes() + " bytes are held, more than the budget of " + BUDGET);
+			}
+		}
+		System.out.println("FragmentAssemblerTest: " + discarded + " of " + groups + " datagrams were discarded to keep within " + BUDGET + " bytes");
+	}
+
+	/**
+	 * Splits a datagram like UnknownClient.sendDatagram and reads every fragment back like the connection receiving it
+	 */
+	private List<InternalPacket12Fragment> split(WireFormat format, int group, byte[] datagram) throws IOException {
+		ByteBuffer data = ByteBuffer.wrap(datagram);
+		int size = MTU - InternalPacket12Fragment.HEADER_SIZE;
+		int count = (datagram.length + size - 1) / size;
+		List<InternalPacket12Fragment> fragments = new ArrayList<InternalPacket12Fragment>();
+		for (int index = 0; index < count; index++) {
+			int offset = index * size;
+			ByteBuffer buffer = ByteBuffer.allocate(MTU);
+			InternalPacket12Fragment.putFragment(buffer, format, group, index, count, data, offset, Math.min(size, datagram.length - offset));
+			buffer.flip();
+			if (format.getId(buffer) != -12) {
+				this.fail(format + ": fragment " + index + " was not written with the fragment's id");
+			}
+
+			InternalPacket12Fragment fragment = new InternalPacket12Fragment();
+			fragment.read(new DataInputStream(new ByteArrayInputStream(buffer.array(), buffer.position(), buffer.remaining())));
+			fragments.add(fragment);
+		}
+		return fragments;
+	}
+
+	private void expectNull(byte[] data, String what) {
+		if (data != null) {
+			this.fail(what + " finished a datagram");
+		}
+	}
+
+	private void fail(String message) {
+		System.out.println("FAILURE: " + message);
+		this.failures++;
+	}
+}
@@ -0,0 +1,179 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.Random;
+
+import com.Unkn0wn0ne.unknownnet.server.ServerConfigurationBuilder;
+import com.Unkn0wn0ne.unknownnet.server.TCPClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
+import com.Unkn0wn0ne.unknownnet.server.distributed.ClientZone;
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket2Handshake;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+
+/**
+ * Measures the bytes a zone sends per replication tick as the number of players on a map grows, with every client sent every player and with an interest radius.
+ * Every player is a client with a DistributedPlayer that wanders the map, each tick moves every player and runs one replication tick. Enter and leave packets are counted along with the updates.
+ * The clients are never connected, their packets are written to memory.
+ */
+public class InterestManagementBenchmark {
+
+	private static final float MAP_SIZE = 2000;
+	private static final float RADIUS = 150;
+	private static final float STEP = 5;
+	private static final int WARMUP_TICKS = 10;
+	private static final int TICKS = 50;
+	private static final int[] PLAYERS = { 50, 100, 200, 400 };
+
+	public InterestManagementBenchmark() {
+		BenchmarkServer server = new BenchmarkServer();
+		try {
+			System.out.println("InterestManagementBenchmark: " + MAP_SIZE + "x" + MAP_SIZE + " map, interest radius " + RADIUS);
+			for (int players : PLAYERS) {
+				long all = this.run(server, players, false);
+				long interest = this.run(server, players, true);
+				System.out.println("InterestManagementBenchmark: " + players + " players, every player " + (all / TICKS) + " bytes per tick (" + (all / TICKS / players) + " per client), interest radius " + (interest / TICKS) + " bytes per tick (" + (interest / TICKS / players) + " per client)");
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * @return The bytes sent to every client over the measured ticks
+	 */
+	private long run(BenchmarkServer server, int players, boolean interest) throws IOException {
+		Random random = new Random(players);
+		ClientZone zone = new ClientZone(players);
+		if (interest) {
+			zone.setInterestRadius(RADIUS);
+		}
+
+		BenchmarkClient[] clients = new BenchmarkClient[players];
+		DistributedPlayer[] objects = new DistributedPlayer[players];
+		for (int i = 0; i < players; i++) {
+			float x = random.nextFloat() * MAP_SIZE;
+			float y = random.nextFloat() * MAP_SIZE;
+			clients[i] = new BenchmarkClient(server);
+			objects[i] = new DistributedPlayer(x, y);
+			if (interest) {
+				zone.addClient(clients[i], x, y);
+				zone.spawnDistributedObject(objects[i], x, y);
+			} else {
+				zone.addClient(clients[i]);
+				zone.spawnDistributedObject(objects[i]);
+			}
+		}
+
+		long sent = 0;
+		for (int tick = 0; tick < WARMUP_TICKS + TICKS; tick++) {
+			for (int i = 0; i < players; i++) {
+				DistributedPlayer player = objects[i];
+				float x = clamp(player.getFloatValue(DistributedPlayer.X) + (random.nextFloat() * 2 - 1) * STEP);
+				float y = clamp(player.getFloatValue(DistributedPlayer.Y) + (random.nextFloat() * 2 - 1) * STEP);
+				player.setFloatValue(DistributedPlayer.X, x);
+				player.setFloatValue(DistributedPlayer.Y, y);
+				if (interest) {
+					zone.setObjectPosition(player.getId(), x, y);
+					zone.setClientPosition(clients[i], x, y);
+				}
+			}
+			zone.replicate();
+
+			long tickBytes = 0;
+			for (BenchmarkClient client : clients) {
+				tickBytes += client.drain();
+			}
+			// The warmup ticks also send what the clients were sent when they joined
+			if (tick >= WARMUP_TICKS) {
+				sent += tickBytes;
+			}
+		}
+		return sent;
+	}
+
+	private static float clamp(float position) {
+		return Math.max(0, Math.min(MAP_SIZE, position));
+	}
+
+	/**
+	 * A client that is never connected and uses the binary object format, its packets are written to memory
+	 */
+	private static class BenchmarkClient extends TCPClient {
+
+		private ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+		protected BenchmarkClient(UnknownServer server) throws IOException {
+			super(new Socket(), server);
+			this.dataOutputStream = new DataOutputStream(this.written);
+
+			// Ask for binary objects the same way the client library's handshake does
+			ByteArrayOutputStream handshake = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(handshake);
+			out.writeUTF("unknownserver-dev");
+			out.writeInt(-2);
+			out.writeInt(InternalPacket2Handshake.FLAG_BINARY_OBJECTS);
+			out.writeInt(-1);
+			InternalPacket2Handshake handshakePacket = new InternalPacket2Handshake();
+			handshakePacket.read(new DataInputStream(new ByteArrayInputStream(handshake.toByteArray())));
+			this.acceptHandshakeFlags(handshakePacket);
+		}
+
+		/**
+		 * @return The number of bytes written since the last drain
+		 */
+		public int drain() {
+			this.writeQueuedPackets();
+			int size = this.written.size();
+			this.written.reset();
+			return size;
+		}
+	}
+
+	private static class BenchmarkServer extends UnknownServer {
+
+		public BenchmarkServer() {
+			// The server is never started, a replication rate only lets zones queue changed objects for ClientZone.replicate
+			super(new ServerConfigurationBuilder().setReplicationRate(20));
+			this.getRepository().init();
+		}
+
+		@Override
+		public boolean handleNewConnection(UnknownClient client, String[] loginData) {
+			return true;
+		}
+
+		@Override
+		public void onClientLeave(UnknownClient client) {
+
+		}
+
+		@Override
+		public void onPacketReceived(UnknownClient client, Packet packet) {
+
+		}
+
+		@Override
+		public void mainLoop() {
+
+		}
+	}
+}
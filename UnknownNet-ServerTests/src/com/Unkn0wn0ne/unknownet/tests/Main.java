@@ -18,6 +18,20 @@ public class Main {
 	public static void main(String[] args) {
 		new ChatTest();
 		//new DistributedTest();
+		//new QueueStressTest();
+		//new UDPReceiveBenchmark();
+		//new ConnectionDensityBenchmark();
+		//new DistributedObjectCodecBenchmark();
+		//new DistributedObjectStorageBenchmark();
+		//new InterestManagementBenchmark();
+		//new ReliableChannelLossTest();
+		//new PacketRegistryBenchmark();
+		//new PacketPoolStressTest();
+		//new PacketLifecycleTest();
+		//new DatagramAllocationBenchmark();
+		//new PacketCodecTest();
+		//new WireFormatTest();
+		//new FragmentAssemblerTest();
 	}
 
 }
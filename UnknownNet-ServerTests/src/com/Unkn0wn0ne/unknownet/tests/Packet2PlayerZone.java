@@ -16,16 +16,21 @@ package com.Unkn0wn0ne.unknownet.tests;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 
+import com.Unkn0wn0ne.unknownnet.codegen.PacketCodec;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketField;
 import com.Unkn0wn0ne.unknownnet.server.net.Packet;
 
+@PacketCodec(maxSize = 1)
 public class Packet2PlayerZone extends Packet{
 
-	private boolean isJoining = false;
+	@PacketField
+	boolean isJoining = false;
 	
 	@Override
 	public void setVariables(Object... vars) {
-		
+		Packet2PlayerZoneCodec.setVariables(this, vars);
 	}
 
 	@Override
@@ -35,12 +40,22 @@ public class Packet2PlayerZone extends Packet{
 
 	@Override
 	public void write(DataOutputStream dataStream) throws IOException {
-		
+		Packet2PlayerZoneCodec.write(this, dataStream);
 	}
 
 	@Override
 	public void read(DataInputStream dataStream) throws IOException {
-		this.isJoining = dataStream.readBoolean();
+		Packet2PlayerZoneCodec.read(this, dataStream);
+	}
+
+	@Override
+	public void write(ByteBuffer buffer) throws IOException {
+		Packet2PlayerZoneCodec.write(this, buffer);
+	}
+
+	@Override
+	public void read(ByteBuffer buffer) throws IOException {
+		Packet2PlayerZoneCodec.read(this, buffer);
 	}
 
 	@Override
@@ -55,7 +70,7 @@ public class Packet2PlayerZone extends Packet{
 
 	@Override
 	public void clearVariables() {
-		this.isJoining = false;
+		Packet2PlayerZoneCodec.clear(this);
 	}
 	
 	public boolean isJoining() {
@@ -0,0 +1,223 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import com.Unkn0wn0ne.unknownnet.codegen.PacketCodec;
+import com.Unkn0wn0ne.unknownnet.codegen.PacketField;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+
+/**
+ * Sends a generated codec packet with a field of every kind through a stream and a buffer, and checks that both give the same bytes and read back the same fields.
+ * Then checks that values longer than their maxLength are refused when they're set and when they're read, and that clearing resets every field.
+ */
+public class PacketCodecTest {
+
+	private int failures = 0;
+
+	public PacketCodecTest() {
+		try {
+			this.testRoundTrip();
+			this.testMaxLength();
+			this.testClear();
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "PacketCodecTest: PASSED" : "PacketCodecTest: FAILED (" + this.failures + " failures)");
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	private void testRoundTrip() throws IOException {
+		EveryFieldPacket sent = new EveryFieldPacket();
+		PacketCodecTest_EveryFieldPacketCodec.builder(sent).setAlive(true).setLevel((byte) -3).setHealth((short) 300).setGrade('é')
+			.setScore(-123456).setExperience(1L << 40).setX(1.5f).setY(-2.25).setName("Zoë ☃ \u0000").setData(new byte[] {1, 2, 3})
+			.setPositions(new int[] {7, -8, 9}).setMissing(null);
+
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		sent.write(new DataOutputStream(bytes));
+		ByteBuffer buffer = ByteBuffer.allocate(PacketCodecTest_EveryFieldPacketCodec.MAX_SIZE);
+		sent.write(buffer);
+		buffer.flip();
+		byte[] buffered = new byte[buffer.remaining()];
+		buffer.get(buffered);
+		if (!Arrays.equals(bytes.toByteArray(), buffered)) {
+			System.out.println("PacketCodecTest: the stream and the buffer wrote different bytes");
+			this.failures++;
+		}
+
+		EveryFieldPacket streamed = new EveryFieldPacket();
+		streamed.read(new DataInputStream(new ByteArrayInputStream(buffered)));
+		this.checkEqual("stream", sent, streamed);
+
+		EveryFieldPacket read = new EveryFieldPacket();
+		read.read(ByteBuffer.wrap(buffered));
+		this.checkEqual("buffer", sent, read);
+		System.out.println("PacketCodecTest: " + buffered.length + " bytes, at most " + PacketCodecTest_EveryFieldPacketCodec.MAX_SIZE);
+	}
+
+	private void testMaxLength() throws IOException {
+		EveryFieldPacket packet = new EveryFieldPacket();
+		try {
+			PacketCodecTest_EveryFieldPacketCodec.builder(packet).setPositions(new int[17]);
+			System.out.println("PacketCodecTest: the builder set an array longer than its maxLength");
+			this.failures++;
+		} catch (IllegalArgumentException e) {
+			System.out.println("PacketCodecTest: refused to set, " + e.getMessage());
+		}
+		try {
+			packet.setVariables(false, (byte) 0, (short) 0, 'c', 0, 0L, 0f, 0d, null, null, new int[17]);
+			System.out.println("PacketCodecTest: setVariables set an array longer than its maxLength");
+			this.failures++;
+		} catch (IllegalArgumentException e) {
+			System.out.println("PacketCodecTest: refused to set, " + e.getMessage());
+		}
+
+		// An array written past its maxLength by direct assignment must still be refused when it's read
+		packet.clearVariables();
+		packet.positions = new int[17];
+		ByteBuffer oversized = ByteBuffer.allocate(1024);
+		packet.write(oversized);
+		oversized.flip();
+		try {
+			new EveryFieldPacket().read(oversized);
+			System.out.println("PacketCodecTest: an array longer than its maxLength was read");
+			this.failures++;
+		} catch (IOException e) {
+			System.out.println("PacketCodecTest: refused to read, " + e.getMessage());
+		}
+
+		// A truncated buffer must not be read past its end
+		ByteBuffer truncated = ByteBuffer.allocate(24);
+		truncated.position(23);
+		truncated.put((byte) 1);
+		truncated.flip();
+		try {
+			packet.read(truncated);
+			System.out.println("PacketCodecTest: a truncated buffer was read");
+			this.failures++;
+		} catch (IOException e) {
+			System.out.println("PacketCodecTest: refused to read, " + e.getMessage());
+		} catch (RuntimeException e) {
+			System.out.println("PacketCodecTest: refused to read, " + e);
+		}
+	}
+
+	private void testClear() {
+		EveryFieldPacket packet = new EveryFieldPacket();
+		packet.setVariables(true, (byte) 1, (short) 2, 'c', 3, 4L, 5f, 6d, "name", new byte[1], new int[1], new int[1]);
+		if (!packet.alive || packet.score != 3 || !"name".equals(packet.name)) {
+			System.out.println("PacketCodecTest: setVariables did not set the fields");
+			this.failures++;
+		}
+		packet.clearVariables();
+		if (packet.alive || packet.level != 0 || packet.health != 0 || packet.grade != 0 || packet.score != 0 || packet.experience != 0 || packet.x != 0
+				|| packet.y != 0 || packet.name != null || packet.data != null || packet.positions != null || packet.missing != null) {
+			System.out.println("PacketCodecTest: clearing left a field set");
+			this.failures++;
+		}
+	}
+
+	private void checkEqual(String how, EveryFieldPacket expected, EveryFieldPacket actual) {
+		if (expected.alive != actual.alive || expected.level != actual.level || expected.health != actual.health || expected.grade != actual.grade
+				|| expected.score != actual.score || expected.experience != actual.experience || expected.x != actual.x || expected.y != actual.y
+				|| !expected.name.equals(actual.name) || !Arrays.equals(expected.data, actual.data) || !Arrays.equals(expected.positions, actual.positions)
+				|| actual.missing != null) {
+			System.out.println("PacketCodecTest: the packet read from the " + how + " differs from the one written");
+			this.failures++;
+		}
+	}
+
+	@PacketCodec(maxSize = 512)
+	static class EveryFieldPacket extends Packet {
+
+		@PacketField
+		boolean alive;
+		@PacketField
+		byte level;
+		@PacketField
+		short health;
+		@PacketField
+		char grade;
+		@PacketField
+		int score;
+		@PacketField
+		long experience;
+		@PacketField
+		float x;
+		@PacketField
+		double y;
+		@PacketField(maxLength = 32)
+		String name;
+		@PacketField(maxLength = 64)
+		byte[] data;
+		@PacketField(maxLength = 16)
+		int[] positions;
+		@PacketField(maxLength = 4)
+		int[] missing;
+
+		@Override
+		public int getId() {
+			return 1;
+		}
+
+		@Override
+		public void write(DataOutputStream dataStream) throws IOException {
+			PacketCodecTest_EveryFieldPacketCodec.write(this, dataStream);
+		}
+
+		@Override
+		public void read(DataInputStream dataStream) throws IOException {
+			PacketCodecTest_EveryFieldPacketCodec.read(this, dataStream);
+		}
+
+		@Override
+		public void write(ByteBuffer buffer) throws IOException {
+			PacketCodecTest_EveryFieldPacketCodec.write(this, buffer);
+		}
+
+		@Override
+		public void read(ByteBuffer buffer) throws IOException {
+			PacketCodecTest_EveryFieldPacketCodec.read(this, buffer);
+		}
+
+		@Override
+		public void setVariables(Object... vars) {
+			PacketCodecTest_EveryFieldPacketCodec.setVariables(this, vars);
+		}
+
+		@Override
+		public PACKET_PRIORITY getPriority() {
+			return PACKET_PRIORITY.NORMAL;
+		}
+
+		@Override
+		public PACKET_PROTOCOL getProtocol() {
+			return PACKET_PROTOCOL.UDP;
+		}
+
+		@Override
+		public void clearVariables() {
+			PacketCodecTest_EveryFieldPacketCodec.clear(this);
+		}
+	}
+}
@@ -0,0 +1,161 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.net.PacketLeakDetector;
+import com.Unkn0wn0ne.unknownnet.server.net.ServerRepository;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.ObjectPool;
+
+/**
+ * Releases packets shared by many clients from many threads at once, the way every client that sent a broadcast packet releases it, and checks that each packet goes back into its pool exactly once.
+ * Then checks that misusing a packet's references is caught and that leak detection finds packets that were never released.
+ */
+public class PacketLifecycleTest {
+
+	private static final int THREADS = 8;
+	private static final int PACKETS = 20000;
+	private static final int ROUNDS = 20;
+
+	private int failures = 0;
+
+	public PacketLifecycleTest() {
+		try {
+			this.testConcurrentRelease();
+			this.testMisuse();
+			this.testLeakDetection();
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "PacketLifecycleTest: PASSED" : "PacketLifecycleTest: FAILED (" + this.failures + " failures)");
+		// The server's log handler thread would keep the JVM running
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	private void testConcurrentRelease() throws InterruptedException, ProtocolViolationException {
+		ServerRepository repository = new ServerRepository();
+		repository.registerPacket(1, Packet1ChatMessage.class);
+		ObjectPool<Packet> pool = repository.getPacketPool(1);
+		long frees = pool.getHitCount() + pool.getMissCount() - pool.getLiveCount();
+
+		for (int round = 0; round < ROUNDS; round++) {
+			final Packet[] packets = new Packet[PACKETS];
+			for (int i = 0; i < PACKETS; i++) {
+				// Queued on every thread, as if it was sent to as many clients
+				packets[i] = repository.getPacket(1).retain(THREADS - 1);
+			}
+			final AtomicIntegerArray lastReleases = new AtomicIntegerArray(PACKETS);
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(THREADS);
+			for (int t = 0; t < THREADS; t++) {
+				final int thread = t;
+				new Thread(new Runnable() {
+					@Override
+					public void run() {
+						try {
+							start.await();
+							for (int n = 0; n < PACKETS; n++) {
+								// Every thread walks the packets from a different place so they meet on the same packets
+								int i = (n + thread * (PACKETS / THREADS)) % PACKETS;
+								if (packets[i].release()) {
+									lastReleases.incrementAndGet(i);
+								}
+							}
+						} catch (InterruptedException e) {
+							return;
+						} finally {
+							done.countDown();
+						}
+					}
+				}, "PacketLifecycleTest-" + t).start();
+			}
+			start.countDown();
+			done.await();
+
+			for (int i = 0; i < PACKETS; i++) {
+				if (lastReleases.get(i) != 1) {
+					System.out.println("PacketLifecycleTest: packet " + i + " of round " + round + " had its last reference released " + lastReleases.get(i) + " times");
+					this.failures++;
+					return;
+				}
+			}
+		}
+
+		long freed = pool.getHitCount() + pool.getMissCount() - pool.getLiveCount() - frees;
+		System.out.println("PacketLifecycleTest: " + (ROUNDS * PACKETS) + " packets released by " + THREADS + " threads each, " + freed + " freed, " + pool);
+		if (freed != ROUNDS * PACKETS || pool.getLiveCount() != 0) {
+			System.out.println("PacketLifecycleTest: expected every packet to be freed exactly once");
+			this.failures++;
+		}
+	}
+
+	private void testMisuse() throws ProtocolViolationException {
+		ServerRepository repository = new ServerRepository();
+		repository.registerPacket(1, Packet1ChatMessage.class);
+		Packet packet = repository.getPacket(1);
+		packet.release();
+		try {
+			packet.release();
+			System.out.println("PacketLifecycleTest: releasing a packet twice was not caught");
+			this.failures++;
+		} catch (IllegalStateException e) {
+			System.out.println("PacketLifecycleTest: caught double release, " + e.getMessage());
+		}
+		try {
+			packet.retain();
+			System.out.println("PacketLifecycleTest: retaining a released packet was not caught");
+			this.failures++;
+		} catch (IllegalStateException e) {
+			System.out.println("PacketLifecycleTest: caught retain after release, " + e.getMessage());
+		}
+	}
+
+	private void testLeakDetection() throws InterruptedException, ProtocolViolationException {
+		ServerRepository repository = new ServerRepository();
+		repository.registerPacket(1, Packet1ChatMessage.class);
+		repository.setLeakDetection(true);
+		PacketLeakDetector detector = repository.getLeakDetector();
+
+		Packet held = repository.getPacket(1);
+		this.leakPacket(repository);
+		for (int i = 0; i < 50 && detector.getLeakCount() == 0; i++) {
+			System.gc();
+			Thread.sleep(20);
+		}
+		System.out.println("PacketLifecycleTest: " + detector.getLeakCount() + " leaked, " + detector.getUnreleasedPackets().size() + " unreleased");
+		if (detector.getLeakCount() != 1) {
+			System.out.println("PacketLifecycleTest: the packet that was dropped without being released was not reported");
+			this.failures++;
+		}
+		if (detector.getUnreleasedPackets().size() != 1) {
+			System.out.println("PacketLifecycleTest: the packet still in use was not listed as unreleased");
+			this.failures++;
+		}
+		held.release();
+		if (!detector.getUnreleasedPackets().isEmpty()) {
+			System.out.println("PacketLifecycleTest: a released packet is still listed as unreleased");
+			this.failures++;
+		}
+	}
+
+	private void leakPacket(ServerRepository repository) throws ProtocolViolationException {
+		repository.getPacket(1).setVariables("never released");
+	}
+}
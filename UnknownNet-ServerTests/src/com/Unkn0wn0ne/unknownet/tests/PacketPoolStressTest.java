@@ -0,0 +1,270 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.util.LinkedList;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.function.Supplier;
+
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.util.ObjectPool;
+
+/**
+ * Gets and frees packets of one pool from many threads at once, the way client threads share a packet id's pool, and checks that no packet is ever handed to two owners.
+ * Packets are also handed between threads before being freed, like a packet read on one thread and freed by the thread that sent it.
+ * Then checks that a spike of freed packets is capped, counting the packets every thread keeps, that an idle pool is trimmed, and compares the pool's throughput with a list guarded by a lock.
+ */
+public class PacketPoolStressTest {
+
+	private static final int THREADS = 8;
+	private static final int ROUNDS = 200000;
+	private static final int SPIKE = 10000;
+	private static final int CAP = 256;
+	private static final int THROUGHPUT_ITERATIONS = 5000000;
+
+	private int failures = 0;
+
+	private static final Supplier<Packet> FACTORY = new Supplier<Packet>() {
+		@Override
+		public Packet get() {
+			return new Packet1ChatMessage();
+		}
+	};
+
+	public PacketPoolStressTest() {
+		try {
+			this.testConcurrentUse();
+			this.testCap();
+			this.testThroughput();
+			this.testTrim();
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "PacketPoolStressTest: PASSED" : "PacketPoolStressTest: FAILED (" + this.failures + " failures)");
+		// The server's log handler thread would keep the JVM running
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	private void testConcurrentUse() throws InterruptedException {
+		final ObjectPool<Packet> pool = new ObjectPool<Packet>(FACTORY);
+		// Every packet that is handed out and not freed yet, by its identity
+		final ConcurrentHashMap<Packet, Boolean> owned = new ConcurrentHashMap<Packet, Boolean>();
+		final ConcurrentLinkedQueue<Packet> handedOver = new ConcurrentLinkedQueue<Packet>();
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch done = new CountDownLatch(THREADS);
+		final int[] duplicates = new int[THREADS];
+
+		for (int t = 0; t < THREADS; t++) {
+			final int thread = t;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Random random = new Random(thread);
+					Packet[] batch = new Packet[48];
+					try {
+						start.await();
+						for (int round = 0; round < ROUNDS; round++) {
+							int count = 1 + random.nextInt(batch.length);
+							for (int i = 0; i < count; i++) {
+								batch[i] = pool.getObject();
+								if (owned.putIfAbsent(batch[i], Boolean.TRUE) != null) {
+									duplicates[thread]++;
+								}
+							}
+							for (int i = 0; i < count; i++) {
+								if ((i & 1) == 0) {
+									owned.remove(batch[i]);
+									pool.freeObject(batch[i]);
+								} else {
+									handedOver.add(batch[i]);
+								}
+								batch[i] = null;
+							}
+							Packet packet;
+							for (int i = 0; i < count && (packet = handedOver.poll()) != null; i++) {
+								owned.remove(packet);
+								pool.freeObject(packet);
+							}
+						}
+					} catch (InterruptedException e) {
+						return;
+					} finally {
+						done.countDown();
+					}
+				}
+			}, "PacketPoolStressTest-" + t).start();
+		}
+		start.countDown();
+		done.await();
+
+		Packet packet;
+		while ((packet = handedOver.poll()) != null) {
+			owned.remove(packet);
+			pool.freeObject(packet);
+		}
+
+		int duplicated = 0;
+		for (int count : duplicates) {
+			duplicated += count;
+		}
+		System.out.println("PacketPoolStressTest: concurrent use " + pool);
+		if (duplicated > 0) {
+			System.out.println("PacketPoolStressTest: " + duplicated + " packets were handed to two owners at once");
+			this.failures++;
+		}
+		if (pool.getLiveCount() != 0 || !owned.isEmpty()) {
+			System.out.println("PacketPoolStressTest: " + pool.getLiveCount() + " packets are still live after every packet was freed");
+			this.failures++;
+		}
+		if (pool.getMissCount() * 10 > pool.getHitCount()) {
+			System.out.println("PacketPoolStressTest: too many packets were created instead of reused");
+			this.failures++;
+		}
+	}
+
+	/**
+	 * Several threads take many more packets than usual and free them all, the depot and the magazines of the threads, which are still alive, may only keep the cap
+	 */
+	private void testCap() throws InterruptedException {
+		final ObjectPool<Packet> pool = new ObjectPool<Packet>(FACTORY);
+		pool.setMaximumSize(CAP);
+		final CountDownLatch freed = new CountDownLatch(THREADS);
+		final CountDownLatch checked = new CountDownLatch(1);
+		for (int t = 0; t < THREADS; t++) {
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					Packet[] packets = new Packet[SPIKE / THREADS];
+					for (int i = 0; i < packets.length; i++) {
+						packets[i] = pool.getObject();
+					}
+					for (int i = 0; i < packets.length; i++) {
+						pool.freeObject(packets[i]);
+					}
+					freed.countDown();
+					try {
+						checked.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}, "PacketPoolStressTest-" + t).start();
+		}
+		freed.await();
+
+		System.out.println("PacketPoolStressTest: spike of " + SPIKE + " over " + THREADS + " threads " + pool + ", size=" + pool.getSize());
+		if (pool.getSize() > CAP || pool.getDepotSize() > CAP) {
+			System.out.println("PacketPoolStressTest: the pool holds " + pool.getSize() + " packets, more than its cap of " + CAP);
+			this.failures++;
+		}
+		// Every packet that was created is either kept or dropped
+		if (pool.getTrimmedCount() < pool.getMissCount() - CAP) {
+			System.out.println("PacketPoolStressTest: only " + pool.getTrimmedCount() + " of the " + pool.getMissCount() + " packets created were dropped");
+			this.failures++;
+		}
+		checked.countDown();
+	}
+
+	/**
+	 * A pool that is left alone gives back its unused packets after two trim intervals, the first one finds how many weren't needed
+	 */
+	private void testTrim() throws InterruptedException {
+		ObjectPool<Packet> pool = new ObjectPool<Packet>(FACTORY);
+		Packet[] packets = new Packet[SPIKE];
+		for (int i = 0; i < SPIKE; i++) {
+			packets[i] = pool.getObject();
+		}
+		for (int i = 0; i < SPIKE; i++) {
+			pool.freeObject(packets[i]);
+		}
+		int before = pool.getDepotSize();
+
+		System.out.println("PacketPoolStressTest: waiting two trim intervals for the idle pool to be trimmed");
+		for (int i = 0; i < 2; i++) {
+			Thread.sleep(ObjectPool.TRIM_INTERVAL + 100);
+			pool.trim();
+		}
+
+		System.out.println("PacketPoolStressTest: idle pool trimmed from " + before + " to " + pool.getDepotSize() + ", " + pool);
+		if (pool.getDepotSize() != 0) {
+			System.out.println("PacketPoolStressTest: the idle pool still holds " + pool.getDepotSize() + " packets");
+			this.failures++;
+		}
+	}
+
+	/**
+	 * Every thread gets and frees packets as fast as it can, through the pool and through one list guarded by a lock
+	 */
+	private void testThroughput() throws InterruptedException {
+		final ObjectPool<Packet> pool = new ObjectPool<Packet>(FACTORY);
+		final LockedPool locked = new LockedPool();
+		for (int round = 0; round < 2; round++) {
+			// The first round warms up the JIT and is not reported
+			long magazines = this.runThroughput(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < THROUGHPUT_ITERATIONS; i++) {
+						pool.freeObject(pool.getObject());
+					}
+				}
+			});
+			long lock = this.runThroughput(new Runnable() {
+				@Override
+				public void run() {
+					for (int i = 0; i < THROUGHPUT_ITERATIONS; i++) {
+						locked.freeObject(locked.getObject());
+					}
+				}
+			});
+			if (round > 0) {
+				System.out.println("PacketPoolStressTest: " + THREADS + " threads get and free, ObjectPool " + (magazines / 1000000) + " ms, locked list " + (lock / 1000000) + " ms");
+			}
+		}
+	}
+
+	private long runThroughput(Runnable work) throws InterruptedException {
+		Thread[] threads = new Thread[THREADS];
+		long start = System.nanoTime();
+		for (int t = 0; t < THREADS; t++) {
+			threads[t] = new Thread(work, "PacketPoolStressTest-" + t);
+			threads[t].start();
+		}
+		for (Thread thread : threads) {
+			thread.join();
+		}
+		return System.nanoTime() - start;
+	}
+
+	/**
+	 * The pool as it was before, made safe to share by locking it for every call
+	 */
+	private static class LockedPool {
+		private final LinkedList<Packet> packets = new LinkedList<Packet>();
+
+		synchronized Packet getObject() {
+			Packet packet = this.packets.poll();
+			return packet == null ? FACTORY.get() : packet;
+		}
+
+		synchronized void freeObject(Packet packet) {
+			packet.resetVariables();
+			this.packets.add(packet);
+		}
+	}
+}
@@ -0,0 +1,140 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.net.ServerRepository;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.ConstructorFactory;
+import com.Unkn0wn0ne.unknownnet.server.util.ObjectPool;
+
+/**
+ * Measures what it costs to get a packet from the repository and give it back, the way every packet that is received or sent does, and what it costs to create a packet when its pool is empty.
+ * The repository looks packets up in an array by id. It is compared with the map of boxed ids it replaced, which was looked up twice per packet.
+ * Creating a packet is compared between Class.newInstance, which pools used before, a ConstructorFactory, used for packets registered by class, and a factory that calls the constructor, used for packets registered with one.
+ */
+public class PacketRegistryBenchmark {
+
+	private static final int WARMUP = 2000000;
+	private static final int ITERATIONS = 10000000;
+	// Received packets are spread over a few ids, internal and the implementation's
+	private static final int[] IDS = { -3, 1, -8, 2, -11, 1, -6, 2 };
+
+	// Holds the last packet created so that creating them can't be optimized away
+	private Packet sink = null;
+
+	public PacketRegistryBenchmark() {
+		ServerRepository repository = new ServerRepository();
+		repository.init();
+		repository.registerPacket(1, Packet1ChatMessage.class);
+		repository.registerPacket(2, new Supplier<Packet>() {
+			@Override
+			public Packet get() {
+				return new Packet2PlayerZone();
+			}
+		});
+
+		ConcurrentHashMap<Integer, ObjectPool<Packet>> map = new ConcurrentHashMap<Integer, ObjectPool<Packet>>();
+		for (int id : IDS) {
+			map.put(id, repository.getPacketPool(id));
+		}
+
+		Supplier<Packet> constructor = new Supplier<Packet>() {
+			@Override
+			public Packet get() {
+				return new Packet1ChatMessage();
+			}
+		};
+
+		try {
+			ConstructorFactory<Packet> factory = new ConstructorFactory<Packet>(Packet1ChatMessage.class);
+			for (int round = 0; round < 2; round++) {
+				// The first round warms up the JIT and is not reported
+				boolean report = round > 0;
+				int iterations = report ? ITERATIONS : WARMUP;
+
+				long start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					Packet packet = repository.getPacket(IDS[i & 7]);
+					repository.freePacket(packet);
+				}
+				long array = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					int id = IDS[i & 7];
+					if (map.get(id) == null) {
+						throw new ProtocolViolationException("Unknown id " + id);
+					}
+					Packet packet = map.get(id).getObject();
+					map.get(packet.getId()).freeObject(packet);
+				}
+				long boxed = System.nanoTime() - start;
+
+				// The lookups alone, without the pool
+				int found = 0;
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					found += repository.getPacketPool(IDS[i & 7]) != null ? 1 : 0;
+				}
+				long arrayLookup = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					found += map.get(IDS[i & 7]) != null ? 1 : 0;
+				}
+				long boxedLookup = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					this.sink = this.newInstance(Packet1ChatMessage.class);
+				}
+				long reflection = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					this.sink = factory.get();
+				}
+				long methodHandle = System.nanoTime() - start;
+
+				start = System.nanoTime();
+				for (int i = 0; i < iterations; i++) {
+					this.sink = constructor.get();
+				}
+				long direct = System.nanoTime() - start;
+
+				if (report) {
+					System.out.println("PacketRegistryBenchmark: " + iterations + " packets of " + this.sink.getClass().getSimpleName() + ", " + found + " lookups");
+					System.out.println("PacketRegistryBenchmark: get and free, array " + nanos(array, iterations) + " ns, map of boxed ids " + nanos(boxed, iterations) + " ns");
+					System.out.println("PacketRegistryBenchmark: lookup, array " + nanos(arrayLookup, iterations) + " ns, map of boxed ids " + nanos(boxedLookup, iterations) + " ns");
+					System.out.println("PacketRegistryBenchmark: create, Class.newInstance " + nanos(reflection, iterations) + " ns, ConstructorFactory " + nanos(methodHandle, iterations) + " ns, constructor " + nanos(direct, iterations) + " ns");
+				}
+			}
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+	}
+
+	@SuppressWarnings("deprecation")
+	private Packet newInstance(Class<? extends Packet> type) throws InstantiationException, IllegalAccessException {
+		return type.newInstance();
+	}
+
+	private static String nanos(long elapsed, int iterations) {
+		return String.format("%.1f", (double) elapsed / iterations);
+	}
+}
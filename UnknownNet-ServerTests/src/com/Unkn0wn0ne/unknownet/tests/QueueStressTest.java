@@ -0,0 +1,273 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import com.Unkn0wn0ne.unknownnet.server.ServerConfigurationBuilder;
+import com.Unkn0wn0ne.unknownnet.server.TCPClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
+import com.Unkn0wn0ne.unknownnet.server.net.EncodedPacket;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.net.errors.ProtocolViolationException;
+import com.Unkn0wn0ne.unknownnet.server.util.MPSCQueue;
+
+/**
+ * Hammers the outbound packet queues from many threads at once while a single thread drains them, and checks that every packet comes out exactly once and in the order each thread queued them.
+ */
+public class QueueStressTest {
+
+	private static final int PRODUCERS = 8;
+	private static final int ELEMENTS_PER_PRODUCER = 1000000;
+	private static final int PACKETS_PER_PRODUCER = 50000;
+
+	private int failures = 0;
+
+	public QueueStressTest() {
+		try {
+			this.testQueue();
+			this.testQueuePacket();
+			this.testReleaseOnTeardown();
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "QueueStressTest: PASSED" : "QueueStressTest: FAILED (" + this.failures + " failures)");
+		// The server's log handler thread would keep the JVM running
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	/**
+	 * Producers add to a small queue so it fills and wraps around many times, retrying whenever it is full.
+	 */
+	private void testQueue() throws InterruptedException {
+		final MPSCQueue<Long> queue = new MPSCQueue<Long>(1024);
+		final CountDownLatch start = new CountDownLatch(1);
+
+		for (int p = 0; p < PRODUCERS; p++) {
+			final long producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (long i = 0; i < ELEMENTS_PER_PRODUCER; i++) {
+						Long element = (producer << 32) | i;
+						while (!queue.offer(element)) {
+							Thread.yield();
+						}
+					}
+				}
+			}, "QueueStressTest-Producer-" + p).start();
+		}
+
+		long[] nextExpected = new long[PRODUCERS];
+		long received = 0;
+		long total = (long) PRODUCERS * ELEMENTS_PER_PRODUCER;
+		List<Long> batch = new ArrayList<Long>();
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		while (received < total) {
+			batch.clear();
+			if (queue.drainTo(batch) == 0) {
+				Thread.yield();
+				continue;
+			}
+
+			for (Long element : batch) {
+				int producer = (int) (element >>> 32);
+				long sequence = element & 0xFFFFFFFFL;
+				if (sequence != nextExpected[producer]) {
+					this.fail("MPSCQueue: producer " + producer + " expected element " + nextExpected[producer] + " but got " + sequence);
+				}
+				nextExpected[producer] = sequence + 1;
+				received++;
+			}
+		}
+		long elapsed = System.nanoTime() - startTime;
+
+		if (!queue.isEmpty()) {
+			this.fail("MPSCQueue: queue still has elements after every element was received");
+		}
+		System.out.println("MPSCQueue: " + received + " elements from " + PRODUCERS + " producers in " + (elapsed / 1000000) + " ms (" + (received * 1000000000L / elapsed) + " elements/s)");
+	}
+
+	/**
+	 * Producers queue packets on a client through {@link UnknownClient#queuePacket(Packet)} while the client's own writer drains them to a stream, which is then read back.
+	 */
+	private void testQueuePacket() throws InterruptedException, IOException {
+		StressServer server = new StressServer(new ServerConfigurationBuilder().setOutboundQueueCapacity(PRODUCERS * PACKETS_PER_PRODUCER));
+		server.registerPacket(1, Packet1ChatMessage.class);
+		final StressClient client = new StressClient(server);
+
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(PRODUCERS);
+		for (int p = 0; p < PRODUCERS; p++) {
+			final int producer = p;
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+					} catch (InterruptedException e) {
+						return;
+					}
+					for (int i = 0; i < PACKETS_PER_PRODUCER; i++) {
+						Packet1ChatMessage packet = new Packet1ChatMessage();
+						Packet1ChatMessageCodec.builder(packet).setMessage(producer + ":" + i);
+						client.queuePacket(packet);
+					}
+					finished.countDown();
+				}
+			}, "QueueStressTest-Packet-Producer-" + p).start();
+		}
+
+		long startTime = System.nanoTime();
+		start.countDown();
+		while (finished.getCount() > 0) {
+			client.drain();
+		}
+		client.drain();
+		long elapsed = System.nanoTime() - startTime;
+
+		if (client.hasBeenEjected()) {
+			this.fail("queuePacket: client was ejected");
+		}
+
+		int[] nextExpected = new int[PRODUCERS];
+		int received = 0;
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(client.getWritten()));
+		while (in.available() > 0) {
+			int id = in.readInt();
+			String[] message = in.readUTF().split(":");
+			int producer = Integer.parseInt(message[0]);
+			int sequence = Integer.parseInt(message[1]);
+			if (id != 1 || sequence != nextExpected[producer]) {
+				this.fail("queuePacket: producer " + producer + " expected packet " + nextExpected[producer] + " but got " + sequence);
+			}
+			nextExpected[producer] = sequence + 1;
+			received++;
+		}
+
+		if (received != PRODUCERS * PACKETS_PER_PRODUCER) {
+			this.fail("queuePacket: expected " + (PRODUCERS * PACKETS_PER_PRODUCER) + " packets but got " + received);
+		}
+		System.out.println("queuePacket: " + received + " packets from " + PRODUCERS + " threads in " + (elapsed / 1000000) + " ms");
+	}
+
+	/**
+	 * A packet broadcast to several clients is released by each of them, including a client whose writer stopped before sending it and a client it was queued on after its writer stopped.
+	 */
+	private void testReleaseOnTeardown() throws IOException, ProtocolViolationException {
+		StressServer server = new StressServer(new ServerConfigurationBuilder());
+		server.registerPacket(1, Packet1ChatMessage.class);
+		StressClient sent = new StressClient(server);
+		StressClient stopped = new StressClient(server);
+		StressClient late = new StressClient(server);
+		late.stop();
+
+		Packet1ChatMessage packet = (Packet1ChatMessage) server.createPacket(1);
+		Packet1ChatMessageCodec.builder(packet).setMessage("teardown");
+		EncodedPacket encoded = new EncodedPacket(packet, 3);
+		packet.release();
+		sent.queuePacket(encoded);
+		stopped.queuePacket(encoded);
+		late.queuePacket(encoded);
+
+		sent.drain();
+		stopped.stop();
+		if (encoded.getReferenceCount() != 0) {
+			this.fail("teardown: broadcast packet still has " + encoded.getReferenceCount() + " references after every client stopped");
+		}
+
+		stopped.queuePacket(server.createPacket(1));
+		if (server.getPacketPool(1).getLiveCount() != 0) {
+			this.fail("teardown: " + server.getPacketPool(1).getLiveCount() + " pooled packets were never released");
+		}
+		System.out.println("teardown: every reference released");
+	}
+
+	private void fail(String message) {
+		if (this.failures < 10) {
+			System.out.println("FAILURE: " + message);
+		}
+		this.failures++;
+	}
+
+	/**
+	 * A client that is never connected, its packets are written to memory by whichever thread calls {@link #drain()}
+	 */
+	private static class StressClient extends TCPClient {
+
+		private ByteArrayOutputStream written = new ByteArrayOutputStream();
+
+		protected StressClient(UnknownServer server) {
+			super(new Socket(), server);
+			this.dataOutputStream = new DataOutputStream(this.written);
+		}
+
+		public void drain() {
+			this.writeQueuedPackets();
+		}
+
+		public byte[] getWritten() {
+			return this.written.toByteArray();
+		}
+
+		public void stop() {
+			this.releaseQueuedPackets();
+		}
+	}
+
+	private static class StressServer extends UnknownServer {
+
+		public StressServer(ServerConfigurationBuilder config) {
+			super(config);
+		}
+
+		@Override
+		public boolean handleNewConnection(UnknownClient client, String[] loginData) {
+			return true;
+		}
+
+		@Override
+		public void onClientLeave(UnknownClient client) {
+
+		}
+
+		@Override
+		public void onPacketReceived(UnknownClient client, Packet packet) {
+
+		}
+
+		@Override
+		public void mainLoop() {
+
+		}
+	}
+}
@@ -0,0 +1,243 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+
+import com.Unkn0wn0ne.unknownnet.server.net.InternalPacket11ReliableDatagram;
+import com.Unkn0wn0ne.unknownnet.server.util.ReliableChannel;
+
+/**
+ * Runs two ReliableChannels against each other over a simulated link that loses, delays, reorders and duplicates datagrams, and checks that every packet arrives exactly once and that the ordered sub-channel hands them out in order.
+ * The link runs on a simulated clock, so the results are the same on every run and don't depend on the machine.
+ */
+public class ReliableChannelLossTest {
+
+	private static final double[] LOSS_RATES = { 0, 0.05, 0.2, 0.4 };
+	private static final double DUPLICATION_RATE = 0.02;
+	// Milliseconds each way, the jitter is enough for datagrams to overtake each other
+	private static final int LATENCY = 40;
+	private static final int JITTER = 30;
+	
+	// Packets each side sends on each sub-channel, and how often, in simulated milliseconds
+	private static final int PACKETS = 5000;
+	private static final int SERVER_INTERVAL = 2;
+	private static final int CLIENT_INTERVAL = 20;
+	private static final long TIME_LIMIT = 600000;
+
+	private int failures = 0;
+
+	public ReliableChannelLossTest() {
+		try {
+			for (double lossRate : LOSS_RATES) {
+				this.run(lossRate);
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "ReliableChannelLossTest: PASSED" : "ReliableChannelLossTest: FAILED (" + this.failures + " failures)");
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	private void run(double lossRate) throws IOException {
+		Random random = new Random(17);
+		Link link = new Link();
+		Endpoint server = new Endpoint("server", link, random, lossRate);
+		Endpoint client = new Endpoint("client", link, random, lossRate);
+		server.peer = client;
+		client.peer = server;
+
+		long now = 0;
+		while (!server.isFinished() || !client.isFinished()) {
+			if (now > TIME_LIMIT) {
+				this.fail(lossRate, "not every packet was acknowledged after " + TIME_LIMIT + " ms");
+				return;
+			}
+			
+			link.now = now;
+			if (now % SERVER_INTERVAL == 0) {
+				server.sendNext(now);
+			}
+			if (now % CLIENT_INTERVAL == 0) {
+				client.sendNext(now);
+			}
+			
+			while (!link.datagrams.isEmpty() && link.datagrams.peek().arrival <= now) {
+				Datagram datagram = link.datagrams.poll();
+				datagram.destination.receive(datagram.data, now);
+			}
+			
+			if (!server.channel.update(now, server) || !client.channel.update(now, client)) {
+				this.fail(lossRate, "a packet went unacknowledged for too long");
+				return;
+			}
+			now++;
+		}
+		
+		for (Endpoint endpoint : new Endpoint[] { server, client }) {
+			if (endpoint.error != null) {
+				this.fail(lossRate, endpoint.name + " " + endpoint.error);
+			} else if (endpoint.unorderedReceived != endpoint.peer.sent || endpoint.orderedReceived != endpoint.peer.sent) {
+				this.fail(lossRate, endpoint.name + " received " + endpoint.unorderedReceived + " unordered and " + endpoint.orderedReceived + " ordered packets out of " + endpoint.peer.sent);
+			}
+		}
+		
+		System.out.println("ReliableChannelLossTest: " + (int) (lossRate * 100) + "% loss, " + (PACKETS * 4) + " packets delivered in " + now + " ms, "
+				+ server.datagrams + " server datagrams (" + server.channel.getRetransmissions() + " resent), "
+				+ client.datagrams + " client datagrams (" + client.channel.getRetransmissions() + " resent), round trip " + (int) server.channel.getRoundTripTime() + " ms");
+	}
+
+	private void fail(double lossRate, String message) {
+		System.out.println("FAILURE at " + (int) (lossRate * 100) + "% loss: " + message);
+		this.failures++;
+	}
+
+	/**
+	 * One side of the connection. It sends every packet on both sub-channels, and checks what arrives from the other side.
+	 */
+	private static class Endpoint implements ReliableChannel.Transmitter {
+
+		final String name;
+		final ReliableChannel channel = new ReliableChannel();
+		final Link link;
+		final Random random;
+		final double lossRate;
+		Endpoint peer = null;
+		
+		int sent = 0;
+		long datagrams = 0;
+		
+		final boolean[] unorderedSeen = new boolean[PACKETS];
+		int unorderedReceived = 0;
+		int orderedReceived = 0;
+		String error = null;
+		
+		final List<byte[]> delivered = new ArrayList<byte[]>();
+		final InternalPacket11ReliableDatagram received = new InternalPacket11ReliableDatagram();
+		final ByteArrayOutputStream writer = new ByteArrayOutputStream();
+		final DataOutputStream outputStream = new DataOutputStream(this.writer);
+
+		Endpoint(String name, Link link, Random random, double lossRate) {
+			this.name = name;
+			this.link = link;
+			this.random = random;
+			this.lossRate = lossRate;
+		}
+
+		void sendNext(long now) throws IOException {
+			if (this.sent == PACKETS) {
+				return;
+			}
+			this.channel.send(this.encode(1, this.sent), false, now, this);
+			this.channel.send(this.encode(2, this.sent), true, now, this);
+			this.sent++;
+		}
+		
+		private byte[] encode(int id, int index) throws IOException {
+			this.writer.reset();
+			this.outputStream.writeInt(id);
+			this.outputStream.writeInt(index);
+			return this.writer.toByteArray();
+		}
+
+		boolean isFinished() {
+			return this.sent == PACKETS && this.channel.getUnacknowledgedCount() == 0;
+		}
+
+		@Override
+		public void transmit(byte[] datagram) {
+			this.datagrams++;
+			if (this.random.nextDouble() < this.lossRate) {
+				return;
+			}
+			int copies = this.random.nextDouble() < DUPLICATION_RATE ? 2 : 1;
+			for (int i = 0; i < copies; i++) {
+				long arrival = this.link.now + LATENCY + this.random.nextInt(JITTER + 1);
+				this.link.datagrams.add(new Datagram(arrival, this.link.order++, datagram, this.peer));
+			}
+		}
+
+		void receive(byte[] data, long now) throws IOException {
+			DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(data));
+			if (inputStream.readInt() != -11) {
+				this.error = "received a datagram that was not a reliable datagram";
+				return;
+			}
+			this.received.read(inputStream);
+			this.channel.receive(this.received, now, this.delivered);
+			
+			for (byte[] payload : this.delivered) {
+				DataInputStream packet = new DataInputStream(new ByteArrayInputStream(payload));
+				int id = packet.readInt();
+				int index = packet.readInt();
+				if (id == 1) {
+					if (this.unorderedSeen[index]) {
+						this.error = "received unordered packet " + index + " twice";
+					}
+					this.unorderedSeen[index] = true;
+					this.unorderedReceived++;
+				} else if (index != this.orderedReceived) {
+					this.error = "received ordered packet " + index + " when " + this.orderedReceived + " was expected";
+				} else {
+					this.orderedReceived++;
+				}
+			}
+			this.delivered.clear();
+		}
+	}
+	
+	/**
+	 * The datagrams on their way between the two sides, by arrival time
+	 */
+	private static class Link {
+		
+		final PriorityQueue<Datagram> datagrams = new PriorityQueue<Datagram>();
+		long now = 0;
+		long order = 0;
+	}
+	
+	private static class Datagram implements Comparable<Datagram> {
+		
+		final long arrival;
+		// Breaks ties between datagrams arriving at the same time
+		final long order;
+		final byte[] data;
+		final Endpoint destination;
+		
+		Datagram(long arrival, long order, byte[] data, Endpoint destination) {
+			this.arrival = arrival;
+			this.order = order;
+			this.data = data;
+			this.destination = destination;
+		}
+
+		@Override
+		public int compareTo(Datagram other) {
+			if (this.arrival != other.arrival) {
+				return this.arrival < other.arrival ? -1 : 1;
+			}
+			return this.order < other.order ? -1 : this.order == other.order ? 0 : 1;
+		}
+	}
+}
@@ -0,0 +1,183 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.Unkn0wn0ne.unknownnet.server.ServerConfigurationBuilder;
+import com.Unkn0wn0ne.unknownnet.server.UnknownClient;
+import com.Unkn0wn0ne.unknownnet.server.UnknownServer;
+import com.Unkn0wn0ne.unknownnet.server.net.Packet;
+import com.Unkn0wn0ne.unknownnet.server.util.Protocol;
+
+/**
+ * Measures how many datagrams per second a UDP server receives, decodes and hands to {@link UnknownServer#onPacketReceived(UnknownClient, Packet)}.
+ * Several clients authenticate over TCP and then each sends numbered chat packets to the server as fast as it can for a few seconds.
+ * Datagrams may be dropped under load, but each client's packets must still arrive in the order they were sent.
+ */
+public class UDPReceiveBenchmark extends UnknownServer {
+
+	private static final int UDP_PORT = 4334;
+	private static final int AUTH_PORT = 4333;
+	private static final long DURATION = 5000;
+	private static final int CLIENTS = 4;
+	private static final int WORKERS = 4;
+
+	private AtomicLong received = new AtomicLong(0);
+	private AtomicLong outOfOrder = new AtomicLong(0);
+	private Map<Integer, Long> lastSequence = new ConcurrentHashMap<Integer, Long>();
+
+	public UDPReceiveBenchmark() {
+		super(new ServerConfigurationBuilder().setProtocol(Protocol.UDP).setServerPort(UDP_PORT).setAuthServerPort(AUTH_PORT).setUDPWorkerCount(WORKERS));
+		this.registerPacket(1, Packet1ChatMessage.class);
+
+		new Thread(new Runnable() {
+			@Override
+			public void run() {
+				UDPReceiveBenchmark.this.startServer();
+			}
+		}, "UDPReceiveBenchmark-Server").start();
+
+		try {
+			this.runBenchmark();
+		} catch (Exception e) {
+			e.printStackTrace();
+		}
+		// The server's threads would keep the JVM running
+		System.exit(0);
+	}
+
+	private void runBenchmark() throws Exception {
+		Thread.sleep(1000);
+
+		final AtomicLong sent = new AtomicLong(0);
+		final CountDownLatch start = new CountDownLatch(1);
+		final CountDownLatch finished = new CountDownLatch(CLIENTS);
+		for (int c = 0; c < CLIENTS; c++) {
+			final int[] session = this.authenticate();
+			new Thread(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						start.await();
+						sent.addAndGet(UDPReceiveBenchmark.this.send(session));
+					} catch (Exception e) {
+						e.printStackTrace();
+					}
+					finished.countDown();
+				}
+			}, "UDPReceiveBenchmark-Sender-" + c).start();
+		}
+
+		long startTime = System.currentTimeMillis();
+		start.countDown();
+		finished.await();
+		long elapsed = System.currentTimeMillis() - startTime;
+		// Give the server a moment to finish what is already in its buffers
+		Thread.sleep(500);
+
+		long received = this.received.get();
+		System.out.println("UDPReceiveBenchmark: " + CLIENTS + " clients sent " + sent.get() + " datagrams in " + elapsed + " ms (" + (sent.get() * 1000 / elapsed) + " datagrams/s)");
+		System.out.println("UDPReceiveBenchmark: " + WORKERS + " workers handled " + received + " datagrams (" + (received * 1000 / elapsed) + " datagrams/s, " + (sent.get() == 0 ? 0 : received * 100 / sent.get()) + "% of those sent)");
+		System.out.println(this.outOfOrder.get() == 0 ? "UDPReceiveBenchmark: every client's packets arrived in order" : "UDPReceiveBenchmark: FAILED, " + this.outOfOrder.get() + " packets arrived out of order");
+	}
+
+	/**
+	 * Sends numbered chat packets until the benchmark is over
+	 * @return The number of datagrams sent
+	 */
+	private long send(int[] session) throws IOException {
+		DatagramChannel channel = DatagramChannel.open();
+		channel.connect(new InetSocketAddress("127.0.0.1", UDP_PORT));
+		ByteBuffer datagram = ByteBuffer.allocate(64);
+
+		long sequence = 0;
+		long start = System.currentTimeMillis();
+		while (System.currentTimeMillis() - start < DURATION) {
+			byte[] message = Long.toString(sequence).getBytes("UTF-8");
+			datagram.clear();
+			datagram.putInt(session[0]);
+			datagram.putInt(session[1]);
+			datagram.putInt(1);
+			datagram.putShort((short) message.length);
+			datagram.put(message);
+			datagram.flip();
+			channel.write(datagram);
+			sequence++;
+		}
+		channel.close();
+		return sequence;
+	}
+
+	/**
+	 * Authenticates with the server's TCP authentication service the same way the client library does
+	 * @return The client id and session token the server assigned to us
+	 */
+	private int[] authenticate() throws IOException {
+		Socket socket = new Socket("127.0.0.1", AUTH_PORT);
+		DataOutputStream out = new DataOutputStream(socket.getOutputStream());
+		DataInputStream in = new DataInputStream(socket.getInputStream());
+
+		out.writeInt(-2);
+		out.writeUTF(this.getProtocolVersion());
+		out.writeInt(2);
+		out.writeUTF("Password");
+		out.writeUTF("benchmark");
+		out.flush();
+
+		if (in.readInt() != -2 || !in.readBoolean()) {
+			socket.close();
+			throw new IOException("Server refused the benchmark client");
+		}
+		int[] session = new int[] { in.readInt(), in.readInt() };
+		socket.close();
+		return session;
+	}
+
+	@Override
+	public boolean handleNewConnection(UnknownClient client, String[] loginData) {
+		return true;
+	}
+
+	@Override
+	public void onClientLeave(UnknownClient client) {
+
+	}
+
+	@Override
+	public void onPacketReceived(UnknownClient client, Packet packet) {
+		this.received.incrementAndGet();
+
+		long sequence = Long.parseLong(((Packet1ChatMessage) packet).getMessage());
+		Long last = this.lastSequence.put(client.getId(), sequence);
+		if (last != null && last >= sequence) {
+			this.outOfOrder.incrementAndGet();
+		}
+	}
+
+	@Override
+	public void mainLoop() {
+
+	}
+}
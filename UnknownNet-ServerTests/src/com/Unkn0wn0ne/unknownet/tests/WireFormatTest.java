@@ -0,0 +1,156 @@
+/** Copyright 2014 Unkn0wn0ne
+
+   Licensed under the Apache License, Version 2.0 (the "License");
+   you may not use this file except in compliance with the License.
+   You may obtain a copy of the License at
+
+       http://www.apache.org/licenses/LICENSE-2.0
+
+   Unless required by applicable law or agreed to in writing, software
+   distributed under the License is distributed on an "AS IS" BASIS,
+   WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+   See the License for the specific language governing permissions and
+   limitations under the License. **/
+package com.Unkn0wn0ne.unknownet.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import com.Unkn0wn0ne.unknownnet.server.util.FrameAssembler;
+import com.Unkn0wn0ne.unknownnet.server.util.WireFormat;
+
+/**
+ * Writes packet ids, client ids and frames in both wire formats and reads them back, checking the sizes each format promises.
+ * Frames are handed to a {@link FrameAssembler} one byte at a time, so every length prefix is also read while it is only partly there.
+ */
+public class WireFormatTest {
+
+	private static final int[] IDS = {Integer.MIN_VALUE, -65, -64, -13, -12, -11, -2, -1, 0, 1, 2, 63, 64, 127, 128, 8191, 8192, 16383, 16384, Integer.MAX_VALUE};
+	private static final int[] CLIENT_IDS = {1, 2, 63, 64, 127, 128, 8191, 8192, 1 << 20, Integer.MAX_VALUE};
+	private static final int[] LENGTHS = {1, 4, 127, 128, 300, 16384};
+
+	private int failures = 0;
+
+	public WireFormatTest() {
+		try {
+			for (WireFormat format : WireFormat.values()) {
+				this.testIds(format);
+				this.testClientIds(format);
+				this.testFrames(format);
+			}
+			this.testCompactSizes();
+			this.testMalformed();
+		} catch (Exception e) {
+			e.printStackTrace();
+			this.failures++;
+		}
+
+		System.out.println(this.failures == 0 ? "WireFormatTest: PASSED" : "WireFormatTest: FAILED (" + this.failures + " failures)");
+		System.exit(this.failures == 0 ? 0 : 1);
+	}
+
+	private void testIds(WireFormat format) throws IOException {
+		for (int id : IDS) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			format.writeId(new DataOutputStream(bytes), id);
+			ByteBuffer buffer = ByteBuffer.allocate(8);
+			format.putId(buffer, id);
+			buffer.flip();
+
+			this.check(format + " id " + id + " stream size", bytes.size() == format.getIdSize(id));
+			this.check(format + " id " + id + " buffer size", buffer.remaining() == format.getIdSize(id));
+			this.check(format + " id " + id + " startsWithId", format.startsWithId(buffer, id) && buffer.position() == 0);
+			this.check(format + " id " + id + " stream", format.readId(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray()))) == id);
+			this.check(format + " id " + id + " buffer", format.getId(buffer) == id && !buffer.hasRemaining());
+		}
+	}
+
+	private void testClientIds(WireFormat format) throws IOException {
+		for (int clientId : CLIENT_IDS) {
+			ByteBuffer buffer = ByteBuffer.allocate(16);
+			format.putClientId(buffer, clientId);
+			int size = buffer.position();
+			buffer.putInt(0x12345678);
+			buffer.flip();
+
+			this.check(format + " client id " + clientId + " size", size == format.getClientIdSize(clientId));
+			this.check(format + " client id " + clientId + " detected", WireFormat.ofDatagram(buffer) == format);
+			this.check(format + " client id " + clientId, format.getClientId(buffer) == clientId && buffer.getInt() == 0x12345678);
+		}
+	}
+
+	private void testFrames(WireFormat format) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(bytes);
+		for (int i = 0; i < LENGTHS.length; i++) {
+			int id = IDS[i * 3];
+			ByteArrayOutputStream frame = new ByteArrayOutputStream();
+			format.writeId(new DataOutputStream(frame), id);
+			for (int b = 0; b < LENGTHS[i]; b++) {
+				frame.write(b);
+			}
+			format.writeLength(out, frame.size());
+			frame.writeTo(out);
+
+			byte[] prefix = new byte[format.getLengthSize(frame.size())];
+			format.putLength(prefix, 0, frame.size());
+			this.check(format + " length " + frame.size(), format.getPrefixSize(prefix, 0, prefix.length) == prefix.length && format.getLength(prefix, 0) == frame.size());
+		}
+
+		FrameAssembler assembler = new FrameAssembler(65536, format);
+		byte[] stream = bytes.toByteArray();
+		int received = 0;
+		for (int i = 0; i < stream.length; i++) {
+			assembler.append(ByteBuffer.wrap(stream, i, 1));
+			DataInputStream frame = assembler.nextFrame();
+			if (frame == null) {
+				continue;
+			}
+			int id = format.readId(frame);
+			this.check(format + " frame " + received + " id", id == IDS[received * 3]);
+			this.check(format + " frame " + received + " length", frame.available() == LENGTHS[received]);
+			frame.skip(frame.available());
+			received++;
+		}
+		this.check(format + " every frame assembled", received == LENGTHS.length && assembler.size() == 0);
+		System.out.println("WireFormatTest: " + format + " wrote " + LENGTHS.length + " frames in " + stream.length + " bytes");
+	}
+
+	private void testCompactSizes() {
+		// Internal packets, small packet ids and the first clients each fit in a single byte
+		this.check("compact internal id", WireFormat.V2.getIdSize(-12) == 1);
+		this.check("compact small id", WireFormat.V2.getIdSize(63) == 1);
+		this.check("compact client id", WireFormat.V2.getClientIdSize(63) == 1);
+		this.check("compact frame length", WireFormat.V2.getLengthSize(127) == 1);
+	}
+
+	private void testMalformed() {
+		byte[] tooLong = {(byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, (byte) 0x80, 1};
+		this.check("unterminated varint id", !WireFormat.V2.startsWithId(ByteBuffer.wrap(tooLong), 0));
+		this.expectInvalidFrame("unterminated frame length", tooLong);
+		this.expectInvalidFrame("empty frame", new byte[] {0});
+		this.expectInvalidFrame("oversized frame", new byte[] {(byte) 0x81, (byte) 0x80, 0x04});
+	}
+
+	private void expectInvalidFrame(String name, byte[] stream) {
+		FrameAssembler assembler = new FrameAssembler(65536, WireFormat.V2);
+		assembler.append(ByteBuffer.wrap(stream));
+		try {
+			assembler.nextFrame();
+			this.check(name + " refused", false);
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+
+	private void check(String name, boolean passed) {
+		if (!passed) {
+			System.out.println("WireFormatTest: " + name + " failed");
+			this.failures++;
+		}
+	}
+}
@@ -2,6 +2,11 @@
 # Unkn0wn0ne - Original Author
 
 echo Starting build
+echo Building UnknownNet-Codegen
+cd UnknownNet-Codegen
+mvn clean install || exit 2;
+echo Done.
+cd ..
 echo Building UnknownNet-Server
 cd UnknownNet-Server
 mvn clean install || exit 2;